@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.EventQueue;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import dorkbox.util.tray.headless.HeadlessSystemTray;
+
+/**
+ * Checks that the calls a tray gets all the time (setting the same status, updating a menu entry to what it already is, and dispatching
+ * a click) don't allocate anything, on the thread that makes them. Uses the allocation counter of HotSpot's ThreadMXBean.
+ * <p>
+ * The calls that change what is shown (switching between preloaded icons, and relabeling a menu entry) are checked against a
+ * (small) budget per call instead.
+ * <p>
+ * The calls are checked on the {@link HeadlessSystemTray} (which only has the overhead of this library), on the popup menu that the
+ * Swing and GTK trays share, and on the tray that this platform uses (if there is one).
+ * <p>
+ * Usage: TrayAllocations [iterations]. Exits with 1 if a call allocated more than its budget.
+ */
+public class TrayAllocations {
+    /** Bytes per call that are allowed, for calls that don't change what the tray shows */
+    public static long BUDGET_BYTES = 0L;
+
+    /**
+     * Bytes per call that are allowed, for calls that change what the tray shows (to an icon that was preloaded, or a label). These
+     * wait for the EDT or the GTK thread, and the task (and event) that is queued there is allocated every time. The StatusNotifierItem
+     * tray sends a D-Bus signal instead, and its message is allocated every time.
+     */
+    public static long CHANGE_BUDGET_BYTES = 4096L;
+
+    /**
+     * Bytes per second (of making the calls) that are allowed, for what is done at most once a second no matter how many calls there
+     * are. The file of an icon is checked that often, and File.isFile() allocates a little in the JDK.
+     */
+    public static long BUDGET_BYTES_PER_SECOND = 2048L;
+
+    /**
+     * Bytes that are allowed each time clicks are queued while none were waiting. That queues the task that runs them on the callback
+     * executor, whose (unbounded) queue allocates a node for it. The clicks that are queued after it, until it is done, allocate nothing.
+     */
+    public static long SCHEDULE_BUDGET_BYTES = 256L;
+
+    private static final int WARMUP = 20000;
+    private static final int WARMUP_ROUNDS = 50;
+
+    private interface Call {
+        void run();
+    }
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final long threadId = Thread.currentThread().getId();
+    private boolean failed;
+
+    TrayAllocations(com.sun.management.ThreadMXBean threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Makes the call (after warming it up), and prints how many bytes it allocated. The warm up goes on until a round of it
+     * stayed within the budget, because while the JIT is still (re)compiling the call, objects it had optimized away can end up on the heap.
+     *
+     * @param budgetBytes how many bytes each call may allocate
+     * @param drain if not null, the call queues clicks on this tray. They are made in batches that fit in its click queue (which
+     *              allocates when it grows), and the queue is drained (outside of what is counted) in between.
+     */
+    private void check(String name, int iterations, Call call, long budgetBytes, SystemTray drain) {
+        int batch = drain == null ? iterations : SystemTray.CALLBACK_QUEUE_SIZE / 2;
+
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            if (count(WARMUP, batch, call, drain) <= budgetBytes * WARMUP) {
+                break;
+            }
+        }
+        long start = System.nanoTime();
+        long allocated = count(iterations, batch, call, drain);
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + 1;
+
+        long batches = drain == null ? 0L : (iterations + batch - 1) / batch;
+        boolean over = allocated > budgetBytes * iterations + BUDGET_BYTES_PER_SECOND * seconds + SCHEDULE_BUDGET_BYTES * batches;
+        this.failed |= over;
+
+        System.out.println(String.format("%-46s %10d bytes in %d calls (%.3f bytes/call)%s", name, allocated, iterations,
+                                         (double) allocated / iterations, over ? "  OVER BUDGET" : ""));
+    }
+
+    /**
+     * @return the bytes that the calls allocated (not counting the draining in between)
+     */
+    private long count(int iterations, int batch, Call call, SystemTray drain) {
+        long allocated = 0L;
+
+        for (int done = 0; done < iterations; done += batch) {
+            int count = Math.min(batch, iterations - done);
+
+            long before = this.threads.getThreadAllocatedBytes(this.threadId);
+            for (int i = 0; i < count; i++) {
+                call.run();
+            }
+            allocated += this.threads.getThreadAllocatedBytes(this.threadId) - before;
+
+            if (drain != null) {
+                drain(drain);
+            }
+        }
+
+        return allocated;
+    }
+
+    /**
+     * Checks the calls that every tray gets.
+     *
+     * @param otherIconName an icon that the tray switches to (and back from), once it is preloaded
+     */
+    private void checkTray(String trayName, int iterations, final SystemTray tray, final String iconName, final String otherIconName)
+                    throws Exception {
+        final SystemTrayMenuAction action = new SystemTrayMenuAction() {
+            @Override
+            public void onClick(SystemTray systemTray) {
+            }
+        };
+        tray.addMenuEntry("Entry", action);
+
+        check(trayName + ": setStatus (unchanged)", iterations, new Call() {
+            @Override
+            public void run() {
+                tray.setStatus("Allocations", iconName);
+            }
+        }, BUDGET_BYTES, null);
+
+        check(trayName + ": updateMenuEntry (unchanged)", iterations, new Call() {
+            @Override
+            public void run() {
+                tray.updateMenuEntry("Entry", "Entry", action);
+            }
+        }, BUDGET_BYTES, null);
+
+        check(trayName + ": click (callback executor)", iterations, new Call() {
+            @Override
+            public void run() {
+                tray.dispatchClick(action);
+            }
+        }, BUDGET_BYTES, tray);
+
+        tray.preloadIcons(iconName, otherIconName).get();
+        check(trayName + ": setStatus (alternating cached icons)", iterations, new Call() {
+            private boolean other;
+
+            @Override
+            public void run() {
+                this.other = !this.other;
+                tray.setStatus("Allocations", this.other ? otherIconName : iconName);
+            }
+        }, CHANGE_BUDGET_BYTES, null);
+        tray.setStatus("Allocations", iconName);
+
+        check(trayName + ": updateMenuEntry (label change)", iterations, new Call() {
+            private boolean other;
+
+            @Override
+            public void run() {
+                this.other = !this.other;
+                tray.updateMenuEntry("Entry", this.other ? "Other entry" : "Entry", action);
+            }
+        }, CHANGE_BUDGET_BYTES, null);
+        tray.updateMenuEntry("Entry", "Entry", action);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 100000;
+        if (args.length > 0) {
+            iterations = Integer.parseInt(args[0]);
+        }
+
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            System.err.println("This JVM can't count the allocations of a thread");
+            System.exit(1);
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // an icon that is on disk, so the icon path is resolved like it usually is
+        File icon = File.createTempFile("TrayAllocations", ".png");
+        icon.deleteOnExit();
+        writeIcon(icon);
+        final String iconName = icon.getAbsolutePath();
+
+        File otherIcon = File.createTempFile("TrayAllocations", ".png");
+        otherIcon.deleteOnExit();
+        writeIcon(otherIcon);
+        String otherIconName = otherIcon.getAbsolutePath();
+
+        TrayAllocations allocations = new TrayAllocations(threads);
+
+        // this library on its own
+        final SystemTray headless = new HeadlessSystemTray("TrayAllocations");
+        headless.createTray(iconName);
+        headless.setStatus("Allocations", iconName);
+
+        allocations.check("headless: iconPath", iterations, new Call() {
+            @Override
+            public void run() {
+                headless.iconPath(iconName);
+            }
+        }, BUDGET_BYTES, null);
+
+        final SystemTrayMenuAction inlineAction = new InlineMenuAction() {
+            @Override
+            public void onClick(SystemTray systemTray) {
+            }
+        };
+        // a pause (ie: GC) during the warm up can get the inline action moved to the callback executor, so this drains too
+        allocations.check("headless: click (inline)", iterations, new Call() {
+            @Override
+            public void run() {
+                headless.dispatchClick(inlineAction);
+            }
+        }, BUDGET_BYTES, headless);
+
+        allocations.checkTray("headless", iterations, headless, iconName, otherIconName);
+        headless.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+
+        // the popup menu of the Swing and GTK trays, which is where their setStatus() and updateMenuEntry() go
+        final SystemTrayMenuEntries menu = new SystemTrayMenuEntries(headless);
+        EventQueue.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                menu.createPopup();
+            }
+        });
+        final SystemTrayMenuAction action = new SystemTrayMenuAction() {
+            @Override
+            public void onClick(SystemTray systemTray) {
+            }
+        };
+        menu.setStatus("Allocations");
+        menu.addMenuEntry("Entry", action);
+
+        allocations.check("popup menu: setStatus (unchanged)", iterations, new Call() {
+            @Override
+            public void run() {
+                menu.setStatus("Allocations");
+            }
+        }, BUDGET_BYTES, null);
+        allocations.check("popup menu: updateMenuEntry (unchanged)", iterations, new Call() {
+            @Override
+            public void run() {
+                menu.updateMenuEntry("Entry", "Entry", action);
+            }
+        }, BUDGET_BYTES, null);
+        allocations.check("popup menu: updateMenuEntry (label change)", iterations, new Call() {
+            private boolean other;
+
+            @Override
+            public void run() {
+                this.other = !this.other;
+                menu.updateMenuEntry("Entry", this.other ? "Other entry" : "Entry", action);
+            }
+        }, CHANGE_BUDGET_BYTES, null);
+
+        // the tray that this platform uses
+        SystemTray tray = SystemTray.create("TrayAllocations");
+        if (tray == null) {
+            System.out.println("There is no system tray available here, its calls were not checked");
+        } else {
+            tray.createTray(iconName);
+            tray.setStatus("Allocations", iconName);
+            allocations.checkTray(tray.getClass().getSimpleName(), iterations, tray, iconName, otherIconName);
+            tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+        }
+
+        System.exit(allocations.failed ? 1 : 0);
+    }
+
+    /**
+     * Waits until the callback executor ran everything that was queued.
+     */
+    private static void drain(SystemTray tray) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        tray.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // a 16x16 png, that every tray can read
+    static void writeIcon(File file) throws IOException {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 4; x < 12; x++) {
+            for (int y = 4; y < 12; y++) {
+                image.setRGB(x, y, 0xFF3070C0);
+            }
+        }
+
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("Unable to write " + file);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import dorkbox.util.OS;
+import dorkbox.util.jna.linux.GtkSupport;
+import dorkbox.util.tray.headless.HeadlessSystemTray;
+import dorkbox.util.tray.linux.AppIndicatorTray;
+import dorkbox.util.tray.linux.GtkSystemTray;
+import dorkbox.util.tray.linux.StatusNotifierTray;
+import dorkbox.util.tray.swing.SwingSystemTray;
+
+/**
+ * Creates a tray of a backend by name, for the tools that run every backend (ie: {@link TrayTraining}, {@link TraySoak}), and starts
+ * their JVMs.
+ */
+final class TrayBackends {
+    static final String[] NAMES = new String[] {"default", "headless", "swing", "gtk", "appindicator", "statusnotifier"};
+
+    private TrayBackends() {
+    }
+
+    /**
+     * @return a new tray of that backend, or null if it isn't available here
+     */
+    static SystemTray create(String appName, String backend) {
+        if (backend.equals("default")) {
+            return SystemTray.create(appName);
+        }
+        if (backend.equals("headless")) {
+            return new HeadlessSystemTray(appName);
+        }
+        if (backend.equals("swing")) {
+            if (GraphicsEnvironment.isHeadless() || !java.awt.SystemTray.isSupported()) {
+                return null;
+            }
+            return SystemTray.create(appName, SwingSystemTray.class);
+        }
+        if (backend.equals("statusnotifier")) {
+            if (!OS.isLinux() || !StatusNotifierTray.isSupported()) {
+                return null;
+            }
+            return SystemTray.create(appName, StatusNotifierTray.class);
+        }
+        if (backend.equals("gtk") || backend.equals("appindicator")) {
+            if (!OS.isLinux()) {
+                return null;
+            }
+            try {
+                NativeLoader.init(true);
+                GtkSupport.init();
+                if (!GtkSupport.isSupported) {
+                    return null;
+                }
+            } catch (Throwable t) {
+                return null;
+            }
+            return SystemTray.create(appName, backend.equals("gtk") ? GtkSystemTray.class : AppIndicatorTray.class);
+        }
+
+        throw new IllegalArgumentException("Unknown backend: " + backend + ", expected one of " + Arrays.toString(NAMES));
+    }
+
+    /**
+     * @param args what to give the main class
+     *
+     * @return the command that runs the main class in a new JVM (with this class path), with its own session bus and X server for
+     * whichever of them are installed
+     */
+    static List<String> command(String backend, Class<?> mainClass, String... args) {
+        List<String> command = new ArrayList<String>();
+
+        if (findCommand("dbus-run-session")) {
+            command.add("dbus-run-session");
+            command.add("--");
+        }
+        if (!backend.equals("headless") && !backend.equals("statusnotifier") && findCommand("xvfb-run")) {
+            command.add("xvfb-run");
+            command.add("-a");
+        }
+
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    private static boolean findCommand(String name) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+
+        for (String directory : path.split(File.pathSeparator)) {
+            if (new File(directory, name).canExecute()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the resident set size in bytes, or -1 if it isn't known
+     */
+    static long rss() {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        // ie: 'VmRSS:	   81236 kB'
+                        String kilobytes = line.substring(6).trim();
+                        return Long.parseLong(kilobytes.substring(0, kilobytes.indexOf(' '))) * 1024L;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception ignored) {
+        }
+        return -1L;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.OS;
+import dorkbox.util.tray.linux.StatusNotifierWatcher;
+
+/**
+ * Measures the latency from when a tray gets a click, until the menu action's onClick() starts. Once with an action that runs on the
+ * callback executor, and once with an {@link InlineMenuAction}. The clicks are made on the EDT, like the ActionEvent of a Swing menu.
+ * Where there is no tray host, a stand-in is put on the session bus.
+ * <p>
+ * Usage: TrayClickLatency [--all | --backend name]... [clicks]. By default, the headless tray and the tray that this platform would use
+ * are measured. Backends: default, headless, swing, gtk, appindicator, statusnotifier
+ */
+public class TrayClickLatency {
+    private final Semaphore clicked = new Semaphore(0);
+
+    private final SystemTrayMenuAction queuedAction = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+            TrayClickLatency.this.clicked.release();
+        }
+    };
+
+    // set when the inline action had to run on the callback executor (once it blocked for too long)
+    private volatile boolean movedToExecutor;
+
+    private final SystemTrayMenuAction inlineAction = new InlineMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+            if (!EventQueue.isDispatchThread()) {
+                TrayClickLatency.this.movedToExecutor = true;
+            }
+            TrayClickLatency.this.clicked.release();
+        }
+    };
+
+    private void measure(String backend, int clicks) throws Exception {
+        SystemTray tray = TrayBackends.create("TrayClickLatency", backend);
+        if (tray == null) {
+            System.out.println(String.format("%-16s not available", backend));
+            return;
+        }
+
+        File icon = File.createTempFile("TrayClickLatency", ".png");
+        icon.deleteOnExit();
+        TrayAllocations.writeIcon(icon);
+        tray.createTray(icon.getAbsolutePath());
+
+        System.out.println(String.format("%-16s callback executor  %s", backend, click(tray, this.queuedAction, clicks)));
+        this.movedToExecutor = false;
+        System.out.println(String.format("%-16s inline             %s", backend, click(tray, this.inlineAction, clicks)));
+        if (this.movedToExecutor) {
+            System.out.println(String.format("%-16s (the inline action blocked too long once, and was moved to the callback executor)",
+                                             backend));
+        }
+
+        tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+    }
+
+    /**
+     * Clicks one at a time, waiting for each to reach the action.
+     *
+     * @return the latency of the clicks (after warming up)
+     */
+    private LatencyHistogram click(final SystemTray tray, final SystemTrayMenuAction action, int clicks) throws InterruptedException {
+        Runnable click = new Runnable() {
+            @Override
+            public void run() {
+                tray.dispatchClick(action);
+            }
+        };
+
+        LatencyHistogram latency = tray.getClickLatency();
+        for (int i = 0, warmup = clicks / 10; i < warmup + clicks; i++) {
+            if (i == warmup) {
+                latency.reset();
+            }
+
+            EventQueue.invokeLater(click);
+            if (!this.clicked.tryAcquire(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new SystemTrayTimeoutException("No click in " + SystemTray.TIMEOUT_MILLIS + " ms");
+            }
+        }
+
+        return latency;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> backends = new ArrayList<String>();
+        int clicks = 100000;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--all")) {
+                backends.addAll(Arrays.asList(TrayBackends.NAMES));
+            } else if (arg.equals("--backend") && i + 1 < args.length) {
+                backends.add(args[++i]);
+            } else {
+                clicks = Integer.parseInt(arg);
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.add("headless");
+            backends.add("default");
+        }
+
+        // where there is no desktop, something has to be the tray host (for the app-indicator and StatusNotifierItem trays)
+        StatusNotifierWatcher watcher = null;
+        if (OS.isLinux()) {
+            try {
+                watcher = StatusNotifierWatcher.start();
+            } catch (IOException ignored) {
+                // no session bus
+            }
+        }
+
+        TrayClickLatency benchmark = new TrayClickLatency();
+        for (String backend : backends) {
+            benchmark.measure(backend, clicks);
+        }
+
+        if (watcher != null) {
+            watcher.close();
+        }
+
+        System.exit(0);
+    }
+}
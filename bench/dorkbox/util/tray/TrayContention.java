@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.OS;
+import dorkbox.util.tray.linux.StatusNotifierWatcher;
+
+/**
+ * Measures the throughput of menu updates made from several threads at once, each to its own entry, while another thread keeps changing
+ * the status. Once as the tray does it (each entry has its own lock), and once with every call made under one global lock, like the
+ * synchronized menu map that the trays used before. Where there is no tray host, a stand-in is put on the session bus.
+ * <p>
+ * Usage: TrayContention [--all | --backend name]... [seconds]. By default, the headless tray and the tray that this platform would use
+ * are measured. Backends: default, headless, swing, gtk, appindicator, statusnotifier
+ */
+public class TrayContention {
+    private static final int[] THREADS = new int[] {1, 2, 4, 8};
+
+    private static final SystemTrayMenuAction action = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+        }
+    };
+
+    private final SystemTray tray;
+    private final String icon;
+
+    // null to use the tray's own locking
+    private Object globalLock;
+    private volatile boolean stop;
+
+    private TrayContention(SystemTray tray, String icon) {
+        this.tray = tray;
+        this.icon = icon;
+    }
+
+    private static void measure(String backend, long nanos) throws Exception {
+        SystemTray tray = TrayBackends.create("TrayContention", backend);
+        if (tray == null) {
+            System.out.println(String.format("%-16s not available", backend));
+            return;
+        }
+
+        File icon = File.createTempFile("TrayContention", ".png");
+        icon.deleteOnExit();
+        TrayAllocations.writeIcon(icon);
+        tray.createTray(icon.getAbsolutePath());
+
+        int maxThreads = THREADS[THREADS.length - 1];
+        for (int i = 0; i < maxThreads; i++) {
+            tray.addMenuEntry(label(i, 0), action);
+        }
+
+        TrayContention contention = new TrayContention(tray, icon.getAbsolutePath());
+
+        // warm up both
+        contention.run(maxThreads, nanos / 5, null);
+        contention.run(maxThreads, nanos / 5, new Object());
+
+        for (int threads : THREADS) {
+            double perEntry = contention.run(threads, nanos, null);
+            double global = contention.run(threads, nanos, new Object());
+            System.out.println(String.format("%-16s threads %d   per entry %,12.0f updates/s   global lock %,12.0f updates/s   (%.1fx)",
+                                             backend, threads, perEntry, global, perEntry / global));
+        }
+
+        tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+    }
+
+    // the labels of an entry alternate, so every update changes it
+    private static String label(int entry, int update) {
+        return (update & 1) == 0 ? "Entry " + entry : "Entry " + entry + " (updated)";
+    }
+
+    /**
+     * @return the menu updates per second, of all the threads together
+     */
+    private double run(int threads, long nanos, Object globalLock) throws InterruptedException {
+        this.globalLock = globalLock;
+        this.stop = false;
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] updates = new long[threads];
+        List<Thread> started = new ArrayList<Thread>(threads + 1);
+
+        for (int i = 0; i < threads; i++) {
+            final int entry = i;
+            started.add(start(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+
+                    // each thread starts from the same label every time it is run, so the entries end where they started
+                    String[] labels = new String[] {label(entry, 0), label(entry, 1)};
+                    int update = 0;
+                    while (!TrayContention.this.stop) {
+                        updateMenuEntry(labels[update & 1], labels[++update & 1]);
+                    }
+                    if ((update & 1) != 0) {
+                        updateMenuEntry(labels[1], labels[0]);
+                    }
+                    updates[entry] = update;
+                }
+            }));
+        }
+
+        started.add(start(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+
+                String[] status = new String[] {"Syncing", "Up to date"};
+                int update = 0;
+                while (!TrayContention.this.stop) {
+                    setStatus(status[update++ & 1]);
+                }
+            }
+        }));
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(nanos));
+        this.stop = true;
+        for (Thread thread : started) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        long total = 0L;
+        for (long update : updates) {
+            total += update;
+        }
+        return total * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    private void updateMenuEntry(String origMenuText, String newMenuText) {
+        Object lock = this.globalLock;
+        if (lock == null) {
+            this.tray.updateMenuEntry(origMenuText, newMenuText, action);
+        } else {
+            synchronized (lock) {
+                this.tray.updateMenuEntry(origMenuText, newMenuText, action);
+            }
+        }
+    }
+
+    private void setStatus(String status) {
+        Object lock = this.globalLock;
+        if (lock == null) {
+            this.tray.setStatus(status, this.icon);
+        } else {
+            synchronized (lock) {
+                this.tray.setStatus(status, this.icon);
+            }
+        }
+    }
+
+    private static Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable, "TrayContention");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> backends = new ArrayList<String>();
+        int seconds = 3;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--all")) {
+                backends.addAll(Arrays.asList(TrayBackends.NAMES));
+            } else if (arg.equals("--backend") && i + 1 < args.length) {
+                backends.add(args[++i]);
+            } else {
+                seconds = Integer.parseInt(arg);
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.add("headless");
+            backends.add("default");
+        }
+
+        // where there is no desktop, something has to be the tray host (for the app-indicator and StatusNotifierItem trays)
+        StatusNotifierWatcher watcher = null;
+        if (OS.isLinux()) {
+            try {
+                watcher = StatusNotifierWatcher.start();
+            } catch (IOException ignored) {
+                // no session bus
+            }
+        }
+
+        // with only one, the threads can't run at the same time, whatever the locking
+        System.out.println("processors: " + Runtime.getRuntime().availableProcessors());
+        for (String backend : backends) {
+            measure(backend, TimeUnit.SECONDS.toNanos(seconds));
+        }
+
+        if (watcher != null) {
+            watcher.close();
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts a (headless) {@link TrayHost} helper, and measures the round trip to it.
+ * <p>
+ * Usage: TrayHostBenchmark [count]
+ */
+public class TrayHostBenchmark {
+    /**
+     * Starts a headless helper, and measures the round trip, how many calls it takes per second, and how long a click takes to come
+     * back as a callback.
+     */
+    private static void benchmark(int count) throws InterruptedException {
+        // so this JVM doesn't look for a tray (or load GTK) either
+        System.setProperty("SystemTray.outOfProcess", "true");
+        RemoteSystemTray.HEADLESS = true;
+        RemoteSystemTray tray = new RemoteSystemTray();
+        tray.appName = "TrayHostBenchmark";
+
+        long start = System.nanoTime();
+        tray.createTray("benchmark");
+        if (tray.ping(1) == null) {
+            System.err.println("Unable to start the tray helper");
+            System.exit(1);
+            return;
+        }
+        System.out.println("helper started in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        // warm up
+        tray.ping(count);
+        System.out.println("round trip:    " + tray.ping(count));
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            tray.setStatus("status " + i, "benchmark");
+        }
+        tray.ping(1);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("setStatus:     " + count + " calls in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms (" +
+                           (long) (count * 1e9D / elapsed) + " calls/sec)");
+
+        final AtomicLong clickStart = new AtomicLong();
+        final LatencyHistogram clickLatency = new LatencyHistogram();
+        final ClickLatch clicked = new ClickLatch();
+        tray.addMenuEntry("Click", new SystemTrayMenuAction() {
+            @Override
+            public void onClick(SystemTray systemTray) {
+                clickLatency.record(System.nanoTime() - clickStart.get());
+                clicked.countDown();
+            }
+        });
+
+        for (int i = 0; i < count; i++) {
+            clicked.reset();
+            clickStart.set(System.nanoTime());
+            tray.testClick("Click");
+            clicked.await();
+        }
+        System.out.println("click:         " + clickLatency);
+
+        tray.removeTray();
+    }
+
+    /**
+     * A latch that can be used again.
+     */
+    private static class ClickLatch {
+        private volatile CountDownLatch latch;
+
+        void reset() {
+            this.latch = new CountDownLatch(1);
+        }
+
+        void countDown() {
+            this.latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            if (!this.latch.await(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new SystemTrayTimeoutException("No click in " + SystemTray.TIMEOUT_MILLIS + " ms");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        benchmark(count);
+        System.exit(0);
+    }
+}
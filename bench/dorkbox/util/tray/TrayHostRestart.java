@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.tray.linux.AppIndicatorTray;
+import dorkbox.util.tray.linux.StatusNotifierTray;
+import dorkbox.util.tray.linux.StatusNotifierWatcher;
+import dorkbox.util.tray.linux.dbus.DBusConnection;
+import dorkbox.util.tray.linux.dbus.Message;
+import dorkbox.util.tray.linux.dbus.Variant;
+
+/**
+ * Checks that a tray comes back when the tray host restarts: a stand-in host (StatusNotifierWatcher) on the session bus is stopped and
+ * started again, and each time the tray has to register with it again, within {@link #REREGISTER_MILLIS}, with the same menu. Then
+ * the host is stopped for good, and the failure callback has to run once the tray stops waiting for it.
+ * <p>
+ * Usage: dbus-run-session -- java ... TrayHostRestart [--backend name]... [--restarts n]. By default, the StatusNotifierItem and the
+ * app-indicator trays are checked (the app-indicator tray needs GTK, and an X server ie: xvfb-run).
+ */
+public class TrayHostRestart {
+    /**
+     * How long a tray may take to register again, once the host is back.
+     */
+    public static long REREGISTER_MILLIS = 2000L;
+
+    // how long the host is gone, each time it restarts
+    private static final long HOST_DOWN_MILLIS = 200L;
+    private static final long HOST_RETURN_TIMEOUT_MILLIS = 1000L;
+
+    private static final String ITEM_PATH = "/StatusNotifierItem";
+    private static final String ITEM_INTERFACE = "org.kde.StatusNotifierItem";
+    private static final String MENU_INTERFACE = "com.canonical.dbusmenu";
+    private static final String PROPERTIES = "org.freedesktop.DBus.Properties";
+
+    private static final String[] ENTRIES = new String[] {"Open", "Pause sync", "Quit"};
+
+    private static final SystemTrayMenuAction NO_ACTION = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+        }
+    };
+
+    private final DBusConnection host;
+
+    private TrayHostRestart(DBusConnection host) {
+        this.host = host;
+    }
+
+    /**
+     * @return true if the tray came back every time, and failed when the host didn't
+     */
+    private boolean check(String backend, int restarts) throws Exception {
+        StatusNotifierWatcher watcher = StatusNotifierWatcher.start();
+        if (watcher == null) {
+            System.out.println(String.format("%-16s there is a tray host on this session bus already, run this under dbus-run-session",
+                                             backend));
+            return false;
+        }
+
+        SystemTray tray = TrayBackends.create("TrayHostRestart", backend);
+        if (tray == null) {
+            watcher.close();
+            System.out.println(String.format("%-16s not available", backend));
+            return true;
+        }
+
+        // so that the host not coming back is found out quickly. Only set once there is such a tray, the classes need their libraries
+        if (tray instanceof StatusNotifierTray) {
+            StatusNotifierTray.HOST_RETURN_TIMEOUT_MILLIS = HOST_RETURN_TIMEOUT_MILLIS;
+        } else if (tray instanceof AppIndicatorTray) {
+            AppIndicatorTray.HOST_RETURN_TIMEOUT_MILLIS = HOST_RETURN_TIMEOUT_MILLIS;
+        }
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        tray.setFailureCallback(new FailureCallback() {
+            @Override
+            public void createTrayFailed() {
+                failed.countDown();
+            }
+        });
+
+        File icon = File.createTempFile("TrayHostRestart", ".png");
+        icon.deleteOnExit();
+        TrayAllocations.writeIcon(icon);
+        tray.createTray(icon.getAbsolutePath());
+        tray.setStatus("Restarting", icon.getAbsolutePath());
+        tray.addMenuEntry(ENTRIES[0], NO_ACTION);
+        tray.addCheckMenuEntry(ENTRIES[1], true, NO_ACTION);
+        tray.addMenuEntry(ENTRIES[2], NO_ACTION);
+
+        boolean passed = true;
+        try {
+            String item = awaitItem(watcher);
+            if (item == null) {
+                System.out.println(String.format("%-16s FAILED: the tray never registered", backend));
+                return false;
+            }
+
+            long slowest = 0L;
+            for (int i = 1; i <= restarts; i++) {
+                watcher.close();
+                Thread.sleep(HOST_DOWN_MILLIS);
+
+                watcher = StatusNotifierWatcher.start();
+                if (watcher == null) {
+                    throw new IOException("Unable to start the tray host again");
+                }
+
+                long start = System.nanoTime();
+                item = awaitItem(watcher);
+                long elapsed = System.nanoTime() - start;
+
+                if (item == null) {
+                    System.out.println(String.format("%-16s FAILED: restart %d, the tray did not register again within %d ms", backend, i,
+                                                     REREGISTER_MILLIS));
+                    passed = false;
+                    break;
+                }
+
+                List<String> labels = menuLabels(item);
+                if (!labels.containsAll(Arrays.asList(ENTRIES)) || !labels.contains("Restarting")) {
+                    System.out.println(String.format("%-16s FAILED: restart %d, the menu is not the same: %s", backend, i, labels));
+                    passed = false;
+                    break;
+                }
+
+                slowest = Math.max(slowest, elapsed);
+            }
+
+            if (passed) {
+                System.out.println(String.format("%-16s came back after %d restarts, with the same menu (slowest %.1f ms)", backend, restarts,
+                                                 slowest / 1000000.0D));
+
+                watcher.close();
+                watcher = null;
+                if (failed.await(HOST_RETURN_TIMEOUT_MILLIS + REREGISTER_MILLIS, TimeUnit.MILLISECONDS)) {
+                    System.out.println(String.format("%-16s failed once the host did not come back", backend));
+                } else {
+                    System.out.println(String.format("%-16s FAILED: the failure callback did not run when the host did not come back",
+                                                     backend));
+                    passed = false;
+                }
+            }
+        } finally {
+            tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+
+        return passed;
+    }
+
+    /**
+     * @return the item that registered with the host, or null if none did in time
+     */
+    private static String awaitItem(StatusNotifierWatcher watcher) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REREGISTER_MILLIS);
+        do {
+            List<String> items = watcher.getItems();
+            if (!items.isEmpty()) {
+                return items.get(items.size() - 1);
+            }
+            Thread.sleep(5L);
+        } while (System.nanoTime() < deadline);
+        return null;
+    }
+
+    /**
+     * Reads the menu the way a tray host does: the item's Menu property, then the layout of that.
+     *
+     * @param item its bus name (ie: the StatusNotifierItem tray), or its bus name and object path (ie: libappindicator)
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> menuLabels(String item) throws IOException {
+        int slash = item.indexOf('/');
+        String service = slash < 0 ? item : item.substring(0, slash);
+        String path = slash < 0 ? ITEM_PATH : item.substring(slash);
+
+        Variant menu = (Variant) this.host.call(Message.methodCall(service, path, PROPERTIES, "Get", "ss", ITEM_INTERFACE, "Menu")).body[0];
+        Message reply = this.host.call(Message.methodCall(service, (String) menu.value, MENU_INTERFACE, "GetLayout", "iias", 0, 1,
+                                                          new ArrayList<Object>(0)));
+
+        List<String> labels = new ArrayList<String>();
+        for (Object child : (List<Object>) ((Object[]) reply.body[1])[2]) {
+            Map<Object, Object> properties = (Map<Object, Object>) ((Object[]) ((Variant) child).value)[1];
+            Variant label = (Variant) properties.get("label");
+            if (label != null) {
+                labels.add((String) label.value);
+            }
+        }
+        return labels;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> backends = new ArrayList<String>();
+        int restarts = 5;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--backend") && i + 1 < args.length) {
+                backends.add(args[++i]);
+            } else if (arg.equals("--restarts") && i + 1 < args.length) {
+                restarts = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: TrayHostRestart [--backend name]... [--restarts n]");
+                System.exit(1);
+                return;
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.add("statusnotifier");
+            backends.add("appindicator");
+        }
+
+        DBusConnection host;
+        try {
+            host = DBusConnection.openSessionBus(SystemTray.TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            System.err.println("No session bus, run this under dbus-run-session: " + e);
+            System.exit(2);
+            return;
+        }
+
+        TrayHostRestart check = new TrayHostRestart(host);
+        int exitCode = 0;
+        for (String backend : backends) {
+            if (!check.check(backend, restarts)) {
+                exitCode = 1;
+            }
+        }
+
+        host.close();
+        System.exit(exitCode);
+    }
+}
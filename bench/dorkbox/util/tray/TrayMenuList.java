@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import javax.swing.JMenuItem;
+import javax.swing.SwingUtilities;
+
+/**
+ * Compares opening a Swing popup ({@link SystemTrayMenuPopup}) with that many menu entries, against one with a
+ * {@link SystemTrayMenuList} of that many.
+ * <p>
+ * Usage: TrayMenuList [count]
+ */
+public class TrayMenuList {
+    /**
+     * Builds, lays out and paints (off-screen) a popup with that many menu entries, and one with a list of that many, and prints how
+     * long it took and how much memory was used.
+     */
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        final MenuListModel model = new MenuListModel() {
+            @Override
+            public int getSize() {
+                return count;
+            }
+
+            @Override
+            public String getText(int index) {
+                return "Entry number " + index;
+            }
+
+            @Override
+            public void onClick(SystemTray systemTray, int index) {
+            }
+        };
+
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 3; i++) {
+                        measure("menu entries", count, false, model);
+                        measure("menu list", count, true, model);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    private static void measure(String name, int count, boolean asList, MenuListModel model) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+
+        SystemTrayMenuPopup popup = new SystemTrayMenuPopup();
+        if (asList) {
+            popup.add(new SystemTrayMenuList(null, name, model));
+        } else {
+            for (int i = 0; i < count; i++) {
+                popup.add(new JMenuItem(model.getText(i)));
+            }
+        }
+        popup.prewarm();
+
+        long elapsed = System.nanoTime() - start;
+        System.gc();
+        long used = runtime.totalMemory() - runtime.freeMemory() - usedBefore;
+
+        System.out.println(String.format("%-14s %6d entries: %6d ms, %6d KB, %5d px high", name, count, elapsed / 1000000L, used / 1024L,
+                                         popup.getHeight()));
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.OS;
+import dorkbox.util.tray.linux.GObjects;
+import dorkbox.util.tray.linux.StatusNotifierWatcher;
+
+/**
+ * Soaks the trays, to find what leaks over weeks of running: every backend (each in its own JVM) creates its tray, fills the menu,
+ * sets the status and updates the menu entries over and over, removes the tray and starts again, for as long as it is told to.
+ * <p>
+ * The icons are found on the classpath (like the icons of an application usually are), so every tray copies them out to temp files.
+ * There are more of them than the trays cache, so the caches are full and evicting.
+ * <p>
+ * Every so often it samples the Java heap (after a GC), the RSS, the threads, the open file descriptors, the live GObjects of the
+ * GTK trays, the files in the temp directory, and the files that are deleted on exit. Once it is done, the samples of the last third (of the run after warming up) must not all be higher than the highest one of
+ * the first third, or it fails.
+ * <p>
+ * When they are installed, each JVM gets a private session bus (dbus-run-session) with a stand-in for the tray host on it, and its own
+ * X server (xvfb-run), so this runs without a desktop. GObjects are counted by GLib, with GOBJECT_DEBUG=instance-count.
+ * <p>
+ * Usage: TraySoak [--all | --backend name]... [--minutes n] [--sample seconds]. By default, the tray that this platform would use is
+ * soaked for 60 minutes. Backends: default, headless, swing, gtk, appindicator, statusnotifier
+ */
+public class TraySoak {
+    /** How much each sample may grow, from the first third of the run to the last third. In the order of {@link #SAMPLED} */
+    public static long[] ALLOWED_GROWTH = new long[] {2L * 1024 * 1024, 16L * 1024 * 1024, 0L, 0L, 0L, 0L, 0L};
+
+    private static final String[] SAMPLED = new String[] {"heap", "rss", "threads", "fds", "gobjects", "tmpfiles", "deleteOnExit"};
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // exit codes of the soaked JVM
+    private static final int STEADY = 0;
+    private static final int GREW = 1;
+    private static final int UNAVAILABLE = 2;
+    private static final int FAILED = 3;
+
+    private static final int MENU_ENTRIES = 20;
+    // more than the trays cache (PIXBUF_CACHE_SIZE, PIXMAP_CACHE_SIZE, IMAGE_CACHE_SIZE)
+    private static final int ICONS = 24;
+    private static final int ROUNDS_PER_TRAY = 500;
+
+    private static final SystemTrayMenuAction NO_ACTION = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+        }
+    };
+
+    private final List<long[]> samples = new ArrayList<long[]>();
+
+    /**
+     * Runs in the soaked JVM.
+     */
+    private int soak(String backend, long durationNanos, long sampleNanos) throws Exception {
+        // where there is no desktop, something has to be the tray host. There already is one if this can't take its name
+        StatusNotifierWatcher watcher = null;
+        if (OS.isLinux()) {
+            try {
+                watcher = StatusNotifierWatcher.start();
+            } catch (IOException ignored) {
+                // no session bus
+            }
+        }
+
+        try {
+            String[] icons = iconResources();
+
+            long start = System.nanoTime();
+            long nextSample = start;
+            int trays = 0;
+
+            while (System.nanoTime() - start < durationNanos) {
+                SystemTray tray = TrayBackends.create("TraySoak", backend);
+                if (tray == null) {
+                    return UNAVAILABLE;
+                }
+                trays++;
+
+                tray.createTray(icons[0]);
+                for (int i = 0; i < MENU_ENTRIES; i++) {
+                    tray.addMenuEntry("Entry " + i, NO_ACTION);
+                }
+
+                for (int round = 0; round < ROUNDS_PER_TRAY; round++) {
+                    tray.setStatus("Soaking " + (round & 1), icons[round % icons.length]);
+
+                    int entry = round % MENU_ENTRIES;
+                    String text = "Entry " + entry;
+                    tray.updateMenuEntry(text, text, NO_ACTION);
+                }
+
+                TeardownReport report = tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, true);
+                if (!report.isComplete()) {
+                    System.out.println("Tray " + trays + " was not removed completely: " + report);
+                }
+
+                long now = System.nanoTime();
+                if (now >= nextSample) {
+                    sample(now - start, trays);
+                    nextSample = now + sampleNanos;
+                }
+            }
+        } finally {
+            if (watcher != null) {
+                watcher.close();
+            }
+        }
+
+        return grew() ? GREW : STEADY;
+    }
+
+    /**
+     * Writes the icons to a directory, which is put on the classpath (of the context class loader).
+     *
+     * @return the names of the icons, as resources
+     */
+    private static String[] iconResources() throws IOException {
+        File directory = File.createTempFile("TraySoak", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        // deleted in the reverse order, so the directory goes last
+        directory.deleteOnExit();
+
+        String[] icons = new String[ICONS];
+        for (int i = 0; i < icons.length; i++) {
+            icons[i] = "TraySoak" + i + ".png";
+
+            File icon = new File(directory, icons[i]);
+            icon.deleteOnExit();
+            TrayAllocations.writeIcon(icon);
+        }
+
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[] {directory.toURI().toURL()},
+                                                                        TraySoak.class.getClassLoader()));
+        return icons;
+    }
+
+    private void sample(long elapsedNanos, int trays) {
+        System.gc();
+        System.gc();
+
+        long[] sample = new long[] {ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), TrayBackends.rss(),
+                                    ManagementFactory.getThreadMXBean().getThreadCount(), fileDescriptors(), gobjects(), tempFiles(),
+                                    deleteOnExitFiles()};
+        this.samples.add(sample);
+
+        StringBuilder line = new StringBuilder(String.format("%8.1f min %7d trays", elapsedNanos / 60e9, trays));
+        for (int i = 0; i < SAMPLED.length; i++) {
+            line.append(String.format("  %s %s", SAMPLED[i], format(i, sample[i])));
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * @return true if a sample grew. The first quarter of the run is the warm up, and not looked at.
+     */
+    private boolean grew() {
+        int warmup = this.samples.size() / 4;
+        List<long[]> samples = this.samples.subList(warmup, this.samples.size());
+        int third = samples.size() / 3;
+        if (third < 2) {
+            System.out.println("Too few samples to tell (" + this.samples.size() + "), run for longer or sample more often");
+            return false;
+        }
+
+        boolean grew = false;
+        for (int i = 0; i < SAMPLED.length; i++) {
+            long firstMax = Long.MIN_VALUE;
+            for (long[] sample : samples.subList(0, third)) {
+                firstMax = Math.max(firstMax, sample[i]);
+            }
+            long lastMin = Long.MAX_VALUE;
+            for (long[] sample : samples.subList(samples.size() - third, samples.size())) {
+                lastMin = Math.min(lastMin, sample[i]);
+            }
+
+            // -1 is not sampled
+            if (firstMax >= 0L && lastMin > firstMax + ALLOWED_GROWTH[i]) {
+                System.out.println(SAMPLED[i] + " grew from " + format(i, firstMax) + " to " + format(i, lastMin));
+                grew = true;
+            }
+        }
+
+        return grew;
+    }
+
+    private static String format(int sampled, long value) {
+        if (value < 0L) {
+            return "n/a";
+        }
+        if (sampled < 2) {
+            return String.format("%.1f MB", value / (1024.0 * 1024.0));
+        }
+        return Long.toString(value);
+    }
+
+    /**
+     * @return how many file descriptors are open, or -1 if it isn't known
+     */
+    private static long fileDescriptors() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1L : fds.length;
+    }
+
+    /**
+     * @return how many files are in the temp directory, or -1 if it can't be listed
+     */
+    private static long tempFiles() {
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+        return files == null ? -1L : files.length;
+    }
+
+    /**
+     * @return how many files are registered to be deleted on exit, or -1 if that can't be seen (java.io has to be opened to this, from
+     * java 9 on)
+     */
+    private static long deleteOnExitFiles() {
+        try {
+            Field files = Class.forName("java.io.DeleteOnExitHook").getDeclaredField("files");
+            files.setAccessible(true);
+
+            Object set = files.get(null);
+            return set instanceof Collection ? ((Collection<?>) set).size() : -1L;
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return how many GObjects are alive, or -1 if they aren't counted
+     */
+    private static long gobjects() {
+        try {
+            return GObjects.count();
+        } catch (Throwable t) {
+            // no GTK here
+            return -1L;
+        }
+    }
+
+    /**
+     * Soaks the backend in its own JVM, and prints what it prints.
+     *
+     * @return the exit code
+     */
+    private static int run(String backend, String minutes, String sampleSeconds) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(TrayBackends.command(backend, TraySoak.class, "--soak", backend, minutes,
+                                                                        sampleSeconds));
+        builder.redirectErrorStream(true);
+        builder.environment().put("GOBJECT_DEBUG", "instance-count");
+        // so the files to delete on exit can be counted. Only java 9 (and later) reads this, and it doesn't need it before that
+        builder.environment().put("JDK_JAVA_OPTIONS", "--add-opens=java.base/java.io=ALL-UNNAMED");
+        Process process = builder.start();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(String.format("%-16s %s", backend, line));
+            }
+        } finally {
+            in.close();
+        }
+
+        return process.waitFor();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals("--soak")) {
+            int exitCode = FAILED;
+            try {
+                exitCode = new TraySoak().soak(args[1], TimeUnit.MINUTES.toNanos(Long.parseLong(args[2])),
+                                               TimeUnit.SECONDS.toNanos(Long.parseLong(args[3])));
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            System.exit(exitCode);
+            return;
+        }
+
+        List<String> backends = new ArrayList<String>();
+        String minutes = "60";
+        String sampleSeconds = "30";
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--all")) {
+                backends.addAll(Arrays.asList(TrayBackends.NAMES));
+            } else if (arg.equals("--backend") && i + 1 < args.length) {
+                backends.add(args[++i]);
+            } else if (arg.equals("--minutes") && i + 1 < args.length) {
+                minutes = args[++i];
+            } else if (arg.equals("--sample") && i + 1 < args.length) {
+                sampleSeconds = args[++i];
+            } else {
+                System.err.println("Usage: TraySoak [--all | --backend name]... [--minutes n] [--sample seconds]");
+                System.exit(1);
+                return;
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.add("default");
+        }
+
+        // or failed
+        boolean grew = false;
+        for (String backend : backends) {
+            int exitCode = run(backend, minutes, sampleSeconds);
+            if (exitCode == UNAVAILABLE) {
+                System.out.println(String.format("%-16s not available", backend));
+            } else if (exitCode == STEADY) {
+                System.out.println(String.format("%-16s steady", backend));
+            } else if (exitCode == GREW) {
+                System.out.println(String.format("%-16s GREW", backend));
+                grew = true;
+            } else {
+                System.out.println(String.format("%-16s failed (exit code %d)", backend, exitCode));
+                grew = true;
+            }
+        }
+
+        System.exit(grew ? 1 : 0);
+    }
+}
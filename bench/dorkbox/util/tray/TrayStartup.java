@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.OS;
+import dorkbox.util.tray.linux.StatusNotifierWatcher;
+
+/**
+ * Compares how long each backend takes to start (from creating the tray, until the icon, the status and the menu are set) and how much
+ * memory that adds to the process (RSS, which includes the native libraries that it loads). Every run is a new JVM, and where they are
+ * installed, it gets a private session bus (with a stand-in for the tray host) and X server, like {@link TraySoak}.
+ * <p>
+ * Usage: TrayStartup [--all | --backend name]... [--runs n]. By default, the headless, StatusNotifierItem, app-indicator and GTK trays
+ * are compared. Backends: default, headless, swing, gtk, appindicator, statusnotifier
+ */
+public class TrayStartup {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // exit codes of the measured JVM
+    private static final int STARTED = 0;
+    private static final int UNAVAILABLE = 2;
+
+    private static final String RESULT = "startup";
+
+    private static final SystemTrayMenuAction NO_ACTION = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+        }
+    };
+
+    /**
+     * Runs in the measured JVM: starts the tray, and prints how long that took and how much the RSS grew.
+     */
+    private static int startup(String backend) throws IOException {
+        // where there is no desktop, something has to be the tray host. There already is one if this can't take its name
+        StatusNotifierWatcher watcher = null;
+        if (OS.isLinux()) {
+            try {
+                watcher = StatusNotifierWatcher.start();
+            } catch (IOException ignored) {
+                // no session bus
+            }
+        }
+
+        File icon = File.createTempFile("TrayStartup", ".png");
+        icon.deleteOnExit();
+        TrayAllocations.writeIcon(icon);
+        String iconName = icon.getAbsolutePath();
+
+        long rssBefore = TrayBackends.rss();
+        long start = System.nanoTime();
+
+        SystemTray tray = TrayBackends.create("TrayStartup", backend);
+        if (tray == null) {
+            return UNAVAILABLE;
+        }
+        tray.createTray(iconName);
+        tray.setStatus("Starting", iconName);
+        tray.addMenuEntry("Open", NO_ACTION);
+        tray.addCheckMenuEntry("Pause sync", false, NO_ACTION);
+        tray.addMenuEntry("Quit", NO_ACTION);
+
+        long elapsed = System.nanoTime() - start;
+        long rssAfter = TrayBackends.rss();
+
+        System.out.println(RESULT + " " + elapsed + " " + rssAfter + " " + (rssAfter - rssBefore));
+        System.out.flush();
+
+        tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+        if (watcher != null) {
+            watcher.close();
+        }
+        return STARTED;
+    }
+
+    /**
+     * @return the medians of the runs (startup nanos, rss, rss added by the tray), or null if the backend isn't available here
+     */
+    private static long[] measure(String backend, int runs) throws IOException, InterruptedException {
+        long[][] results = new long[3][runs];
+
+        for (int i = 0; i < runs; i++) {
+            ProcessBuilder builder = new ProcessBuilder(TrayBackends.command(backend, TrayStartup.class, "--startup", backend));
+            builder.redirectErrorStream(true);
+            Process process = builder.start();
+
+            String result = null;
+            StringBuilder output = new StringBuilder();
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(RESULT + " ")) {
+                        result = line;
+                    } else {
+                        output.append(line).append('\n');
+                    }
+                }
+            } finally {
+                in.close();
+            }
+
+            int exitCode = process.waitFor();
+            if (exitCode == UNAVAILABLE) {
+                return null;
+            }
+            if (exitCode != STARTED || result == null) {
+                throw new IOException("The " + backend + " tray failed to start (exit code " + exitCode + "):\n" + output);
+            }
+
+            String[] values = result.split(" ");
+            for (int j = 0; j < 3; j++) {
+                results[j][i] = Long.parseLong(values[j + 1]);
+            }
+        }
+
+        long[] medians = new long[3];
+        for (int j = 0; j < 3; j++) {
+            Arrays.sort(results[j]);
+            medians[j] = results[j][runs / 2];
+        }
+        return medians;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--startup")) {
+            int exitCode = 1;
+            try {
+                exitCode = startup(args[1]);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            System.exit(exitCode);
+            return;
+        }
+
+        List<String> backends = new ArrayList<String>();
+        int runs = 5;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--all")) {
+                backends.addAll(Arrays.asList(TrayBackends.NAMES));
+            } else if (arg.equals("--backend") && i + 1 < args.length) {
+                backends.add(args[++i]);
+            } else if (arg.equals("--runs") && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: TrayStartup [--all | --backend name]... [--runs n]");
+                System.exit(1);
+                return;
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.addAll(Arrays.asList("headless", "statusnotifier", "appindicator", "gtk"));
+        }
+
+        int exitCode = 0;
+        for (String backend : backends) {
+            try {
+                long[] medians = measure(backend, runs);
+                if (medians == null) {
+                    System.out.println(String.format("%-16s not available", backend));
+                } else {
+                    System.out.println(String.format("%-16s startup %8.1f ms   rss %6.1f MB (%+.1f MB for the tray)", backend,
+                                                     medians[0] / 1000000.0D, medians[1] / (1024.0D * 1024.0D),
+                                                     medians[2] / (1024.0D * 1024.0D)));
+                }
+            } catch (IOException e) {
+                System.out.println(String.format("%-16s %s", backend, e.getMessage()));
+                exitCode = 1;
+            }
+        }
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.tray.linux.StatusNotifierWatcher;
+import dorkbox.util.tray.linux.dbus.DBusConnection;
+import dorkbox.util.tray.linux.dbus.Message;
+import dorkbox.util.tray.linux.dbus.Variant;
+
+/**
+ * Checks the StatusNotifierItem tray against the protocols, the way a tray host sees it: a stand-in watcher is put on the session bus,
+ * and the item and its menu (DBusMenu) are read, clicked and watched over D-Bus while the tray is changed.
+ * <p>
+ * Usage: dbus-run-session -- java ... TrayStatusNotifierCheck. It needs a session bus without a tray host on it (that would get the
+ * items instead of the stand-in).
+ */
+public class TrayStatusNotifierCheck {
+    private static final String ITEM_PATH = "/StatusNotifierItem";
+    private static final String ITEM_INTERFACE = "org.kde.StatusNotifierItem";
+    private static final String MENU_PATH = "/MenuBar";
+    private static final String MENU_INTERFACE = "com.canonical.dbusmenu";
+    private static final String PROPERTIES = "org.freedesktop.DBus.Properties";
+
+    // how long to wait for a signal, or to make sure there is none
+    private static final long SIGNAL_MILLIS = 2000L;
+    private static final long NO_SIGNAL_MILLIS = 300L;
+
+    private final DBusConnection host;
+    private final BlockingQueue<Message> signals = new LinkedBlockingQueue<Message>();
+    private final Semaphore clicked = new Semaphore(0);
+    private final SystemTrayMenuAction action = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+            TrayStatusNotifierCheck.this.clicked.release();
+        }
+    };
+
+    private String itemName;
+    private int checks;
+
+    private TrayStatusNotifierCheck(DBusConnection host) {
+        this.host = host;
+    }
+
+    private void check(boolean passed, String what) {
+        if (!passed) {
+            throw new IllegalStateException("FAILED: " + what);
+        }
+        this.checks++;
+        System.out.println("ok   " + what);
+    }
+
+    private void run(StatusNotifierWatcher watcher) throws Exception {
+        this.host.setHandler(new DBusConnection.Handler() {
+            @Override
+            public boolean handle(Message message) {
+                if (message.type == Message.SIGNAL) {
+                    TrayStatusNotifierCheck.this.signals.add(message);
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void closed() {
+            }
+        });
+        this.host.callBus("AddMatch", "s", "type='signal',path='" + ITEM_PATH + "'");
+        this.host.callBus("AddMatch", "s", "type='signal',path='" + MENU_PATH + "'");
+
+        File iconFile = File.createTempFile("TrayStatusNotifierCheck", ".png");
+        iconFile.deleteOnExit();
+        TrayAllocations.writeIcon(iconFile);
+        String icon = iconFile.getAbsolutePath();
+
+        SystemTray tray = TrayBackends.create("TrayStatusNotifierCheck", "statusnotifier");
+        check(tray != null, "the StatusNotifierItem tray is available");
+        tray.createTray(icon);
+        check(tray.isActive(), "createTray() made an active tray");
+
+        // the item
+        List<String> items = watcher.getItems();
+        check(items.size() == 1, "the item registered with the watcher " + items);
+        this.itemName = items.get(0);
+
+        Map<Object, Object> properties = getAll(ITEM_INTERFACE);
+        check("TrayStatusNotifierCheck".equals(value(properties, "Id")), "Id is the application name");
+        check(Boolean.TRUE.equals(value(properties, "ItemIsMenu")), "ItemIsMenu");
+        check(MENU_PATH.equals(value(properties, "Menu")), "Menu is " + MENU_PATH);
+        check("".equals(value(properties, "IconName")), "no IconName, the icon is sent as a pixmap");
+
+        // the icon as it is, and scaled to the tray size (the host picks)
+        List<?> pixmaps = (List<?>) value(properties, "IconPixmap");
+        check(pixmaps.size() == (SystemTray.TRAY_SIZE == 16 ? 1 : 2), "IconPixmap has the icon's size and the tray size");
+        for (Object size : pixmaps) {
+            Object[] pixmap = (Object[]) size;
+            check(((byte[]) pixmap[2]).length == (Integer) pixmap[0] * (Integer) pixmap[1] * 4,
+                  "IconPixmap " + pixmap[0] + "x" + pixmap[1] + " has 4 bytes per pixel");
+        }
+        Object[] pixmap = (Object[]) pixmaps.get(0);
+        int width = (Integer) pixmap[0];
+        byte[] argb = (byte[]) pixmap[2];
+        check(width == 16 && (Integer) pixmap[1] == 16, "the first IconPixmap is the icon (16x16)");
+        int center = (8 * width + 8) * 4;
+        check((argb[center] & 0xFF) == 0xFF && (argb[center + 1] & 0xFF) == 0x30 && (argb[center + 2] & 0xFF) == 0x70 &&
+              (argb[center + 3] & 0xFF) == 0xC0, "IconPixmap is in network byte order (ARGB)");
+
+        // the status
+        this.signals.clear();
+        tray.setStatus("Syncing", icon);
+        expectSignal(ITEM_INTERFACE, "NewToolTip");
+        Object[] toolTip = (Object[]) value(getAll(ITEM_INTERFACE), "ToolTip");
+        check("Syncing".equals(toolTip[3]), "the ToolTip has the status");
+        check("Syncing".equals(label(menuLayout(), 0)), "the status is the first menu entry");
+
+        tray.setStatus("Syncing", icon);
+        expectNoSignal();
+
+        // the menu
+        tray.addMenuEntry("Open", this.action);
+        tray.addCheckMenuEntry("Pause sync", false, this.action);
+        expectSignal(MENU_INTERFACE, "LayoutUpdated");
+
+        Object[] layout = menuLayout();
+        check("Open".equals(label(layout, 1)) && "Pause sync".equals(label(layout, 2)), "GetLayout has the entries, in order");
+        Object[] pause = child(layout, 2);
+        Map<Object, Object> pauseProperties = properties(pause);
+        check("checkmark".equals(value(pauseProperties, "toggle-type")) && Integer.valueOf(0).equals(value(pauseProperties, "toggle-state")),
+              "a check entry is a checkmark, and unchecked");
+
+        this.host.call(Message.methodCall(this.itemName, MENU_PATH, MENU_INTERFACE, "Event", "isvu", id(child(layout, 1)), "clicked",
+                                          Variant.of(0), 0));
+        check(this.clicked.tryAcquire(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "a clicked Event runs the action");
+
+        this.signals.clear();
+        this.host.call(Message.methodCall(this.itemName, MENU_PATH, MENU_INTERFACE, "Event", "isvu", id(pause), "clicked",
+                                          Variant.of(0), 0));
+        check(this.clicked.tryAcquire(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "a clicked Event runs the action of a check entry");
+        expectSignal(MENU_INTERFACE, "ItemsPropertiesUpdated");
+        check(tray.isMenuEntryChecked("Pause sync"), "clicking a check entry checks it");
+
+        this.signals.clear();
+        tray.setMenuEntryChecked("Pause sync", false);
+        expectSignal(MENU_INTERFACE, "ItemsPropertiesUpdated");
+        Variant state = (Variant) this.host.call(Message.methodCall(this.itemName, MENU_PATH, MENU_INTERFACE, "GetProperty", "is",
+                                                                    id(pause), "toggle-state")).body[0];
+        check(Integer.valueOf(0).equals(state.value), "setMenuEntryChecked() is sent to the host");
+
+        this.signals.clear();
+        tray.updateMenuEntry("Open", "Open folder", this.action);
+        expectSignal(MENU_INTERFACE, "ItemsPropertiesUpdated");
+        check("Open folder".equals(label(menuLayout(), 1)), "updateMenuEntry() relabels the entry");
+
+        // removing it
+        tray.removeTray();
+        boolean hasOwner = true;
+        for (int i = 0; i < 20 && hasOwner; i++) {
+            hasOwner = (Boolean) this.host.callBus("NameHasOwner", "s", this.itemName).body[0];
+            if (hasOwner) {
+                Thread.sleep(100L);
+            }
+        }
+        check(!hasOwner, "removeTray() gives up the bus name");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> getAll(String iface) throws IOException {
+        return (Map<Object, Object>) this.host.call(Message.methodCall(this.itemName, ITEM_PATH, PROPERTIES, "GetAll", "s", iface)).body[0];
+    }
+
+    /**
+     * @return the whole menu (id, properties, children)
+     */
+    private Object[] menuLayout() throws IOException {
+        Message reply = this.host.call(Message.methodCall(this.itemName, MENU_PATH, MENU_INTERFACE, "GetLayout", "iias", 0, -1,
+                                                          new ArrayList<Object>(0)));
+        return (Object[]) reply.body[1];
+    }
+
+    private static Object[] child(Object[] layout, int index) {
+        List<?> children = (List<?>) layout[2];
+        return (Object[]) ((Variant) children.get(index)).value;
+    }
+
+    private static int id(Object[] layout) {
+        return (Integer) layout[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> properties(Object[] layout) {
+        return (Map<Object, Object>) layout[1];
+    }
+
+    private static String label(Object[] layout, int index) {
+        return (String) value(properties(child(layout, index)), "label");
+    }
+
+    private static Object value(Map<Object, Object> properties, String name) {
+        Variant variant = (Variant) properties.get(name);
+        return variant == null ? null : variant.value;
+    }
+
+    private void expectSignal(String iface, String member) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SIGNAL_MILLIS);
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0L) {
+            Message signal = this.signals.poll(left, TimeUnit.NANOSECONDS);
+            if (signal != null && signal.is(iface, member)) {
+                check(true, member + " was sent");
+                return;
+            }
+        }
+        check(false, member + " was sent");
+    }
+
+    private void expectNoSignal() throws InterruptedException {
+        Message signal = this.signals.poll(NO_SIGNAL_MILLIS, TimeUnit.MILLISECONDS);
+        check(signal == null, "nothing is sent when nothing changed" + (signal == null ? "" : " (" + signal.member + " was)"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        StatusNotifierWatcher watcher;
+        DBusConnection host;
+        try {
+            watcher = StatusNotifierWatcher.start();
+            host = DBusConnection.openSessionBus(SystemTray.TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            System.err.println("No session bus, run this under dbus-run-session: " + e);
+            System.exit(2);
+            return;
+        }
+        if (watcher == null) {
+            System.err.println("There is a tray host on this session bus already, run this under dbus-run-session");
+            System.exit(2);
+            return;
+        }
+
+        TrayStatusNotifierCheck check = new TrayStatusNotifierCheck(host);
+        int exitCode = 0;
+        try {
+            check.run(watcher);
+            System.out.println(check.checks + " checks passed");
+        } catch (Throwable t) {
+            t.printStackTrace(System.out);
+            exitCode = 1;
+        } finally {
+            host.close();
+            watcher.close();
+        }
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.OS;
+import dorkbox.util.tray.linux.StatusNotifierWatcher;
+
+/**
+ * Measures how fast a toggle (ie: "Pause sync") can be flipped on each backend. Once in place, with a check menu entry, and once the
+ * way it was done before check entries, by relabeling a menu entry with {@link SystemTray#updateMenuEntry}. Where there is no tray
+ * host, a stand-in is put on the session bus.
+ * <p>
+ * Usage: TrayToggleRate [--all | --backend name]... [seconds]. By default, the headless tray and the tray that this platform would use
+ * are measured. Backends: default, headless, swing, gtk, appindicator, statusnotifier
+ */
+public class TrayToggleRate {
+    private static final String CHECK_ENTRY = "Pause sync";
+    private static final String[] LABELS = new String[] {"Pause sync ", "Resume sync"};
+
+    private static final SystemTrayMenuAction action = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+        }
+    };
+
+    private abstract static class Toggle {
+        abstract void toggle(SystemTray tray, int i);
+    }
+
+    private static final Toggle check = new Toggle() {
+        @Override
+        void toggle(SystemTray tray, int i) {
+            tray.setMenuEntryChecked(CHECK_ENTRY, (i & 1) == 0);
+        }
+    };
+
+    private static final Toggle relabel = new Toggle() {
+        @Override
+        void toggle(SystemTray tray, int i) {
+            tray.updateMenuEntry(LABELS[i & 1], LABELS[(i + 1) & 1], action);
+        }
+    };
+
+    private static void measure(String backend, long nanos) throws IOException {
+        SystemTray tray = TrayBackends.create("TrayToggleRate", backend);
+        if (tray == null) {
+            System.out.println(String.format("%-16s not available", backend));
+            return;
+        }
+
+        File icon = File.createTempFile("TrayToggleRate", ".png");
+        icon.deleteOnExit();
+        TrayAllocations.writeIcon(icon);
+        tray.createTray(icon.getAbsolutePath());
+        tray.addCheckMenuEntry(CHECK_ENTRY, false, action);
+        tray.addMenuEntry(LABELS[0], action);
+
+        // warm up both, so neither is measured while the other is being compiled
+        toggles(tray, check, nanos / 5);
+        toggles(tray, relabel, nanos / 5);
+        double checkRate = toggles(tray, check, nanos);
+        double relabelRate = toggles(tray, relabel, nanos);
+
+        System.out.println(String.format("%-16s check entry %,12.0f toggles/s    relabel %,12.0f toggles/s   (%.1fx)", backend, checkRate,
+                                         relabelRate, checkRate / relabelRate));
+
+        tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+    }
+
+    /**
+     * Toggles for (at least) that long, ending with the entry as it started.
+     *
+     * @return the toggles per second
+     */
+    private static double toggles(SystemTray tray, Toggle toggle, long nanos) {
+        long start = System.nanoTime();
+        long elapsed;
+        int i = 0;
+        do {
+            toggle.toggle(tray, i++);
+            toggle.toggle(tray, i++);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+
+        // the backends apply a toggle before returning, this makes sure that the last one was
+        if (toggle == check && tray.isMenuEntryChecked(CHECK_ENTRY)) {
+            throw new IllegalStateException("The check entry was not unchecked by the last toggle");
+        }
+
+        return i * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> backends = new ArrayList<String>();
+        int seconds = 5;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--all")) {
+                backends.addAll(Arrays.asList(TrayBackends.NAMES));
+            } else if (arg.equals("--backend") && i + 1 < args.length) {
+                backends.add(args[++i]);
+            } else {
+                seconds = Integer.parseInt(arg);
+            }
+        }
+        if (backends.isEmpty()) {
+            backends.add("headless");
+            backends.add("default");
+        }
+
+        // where there is no desktop, something has to be the tray host (for the app-indicator and StatusNotifierItem trays)
+        StatusNotifierWatcher watcher = null;
+        if (OS.isLinux()) {
+            try {
+                watcher = StatusNotifierWatcher.start();
+            } catch (IOException ignored) {
+                // no session bus
+            }
+        }
+
+        for (String backend : backends) {
+            measure(backend, TimeUnit.SECONDS.toNanos(seconds));
+        }
+
+        if (watcher != null) {
+            watcher.close();
+        }
+
+        System.exit(0);
+    }
+}
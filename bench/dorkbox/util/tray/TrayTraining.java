@@ -0,0 +1,365 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.tray.headless.HeadlessSystemTray;
+
+/**
+ * Trains a class data sharing (AppCDS) archive, so that the classes a tray needs at startup (AWT/Swing, the JNA bindings, slf4j and
+ * this library) are mapped from the archive instead of being loaded and verified one by one.
+ * <p>
+ * Every backend is run (each in its own JVM, started with -XX:DumpLoadedClassList) through creating the tray, setting the status,
+ * building the menu, preparing the popup and removing the tray. The class lists are merged into 'archiveFile.classlist', which is then
+ * dumped into the archive. Applications use it by starting with '-XX:SharedArchiveFile=archiveFile', with the same class path (jars
+ * only, the JVM does not archive classes from directories) and the same JVM that it was made with.
+ * <p>
+ * With --measure, it then compares the time to the first icon (from starting the JVM, until createTray() and setStatus() returned)
+ * with and without the archive.
+ * <p>
+ * Usage: TrayTraining [--all | --backend name]... [--measure runs] archiveFile. By default, the tray that this platform would use and
+ * the headless tray are trained. Backends: default, headless, swing, gtk, appindicator, statusnotifier
+ */
+public class TrayTraining {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // exit codes of the trained JVM
+    private static final int TRAINED = 0;
+    private static final int FAILED = 1;
+    private static final int UNAVAILABLE = 2;
+
+    // printed by the measured JVM once the first icon is shown
+    private static final String FIRST_ICON = "first-icon";
+
+    private static final SystemTrayMenuAction NO_ACTION = new SystemTrayMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+        }
+    };
+
+    private final String javaCommand = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    private final String classPath = System.getProperty("java.class.path");
+
+    // the backends that could be trained, in the order they were asked for
+    private final List<String> trained = new ArrayList<String>();
+
+    /**
+     * Runs in the trained JVM: the backend goes through everything a tray usually does at startup (and shutdown).
+     */
+    private static int train(String backend) throws Exception {
+        SystemTray tray = TrayBackends.create("TrayTraining", backend);
+        if (tray == null) {
+            return UNAVAILABLE;
+        }
+
+        File icon = File.createTempFile("TrayTraining", ".png");
+        icon.deleteOnExit();
+        TrayAllocations.writeIcon(icon);
+        String iconName = icon.getAbsolutePath();
+
+        // the Swing popup (used by the Swing and GTK trays) is laid out and painted off-screen, like it is when it is first shown
+        SystemTrayMenuPopup.prewarmPopup = true;
+
+        tray.createTray(iconName);
+        tray.setStatus("Training", iconName);
+        tray.preloadIcons(iconName).get(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        tray.addMenuEntry("Entry", NO_ACTION);
+        tray.updateMenuEntry("Entry", "Entry (updated)", NO_ACTION);
+        tray.addCheckMenuEntry("Check", false, NO_ACTION);
+        tray.setMenuEntryChecked("Check", true);
+        tray.isMenuEntryChecked("Check");
+        tray.addRadioMenuEntry("Group", "Radio 1", true, NO_ACTION);
+        tray.addRadioMenuEntry("Group", "Radio 2", false, NO_ACTION);
+        tray.addSubmenu("Submenu", new SubmenuProvider() {
+            @Override
+            public List<SubmenuItem> getItems() {
+                return Collections.singletonList(SubmenuItem.entry("Item", NO_ACTION));
+            }
+        });
+        tray.setStatus("Training (updated)", iconName);
+        tray.dispatchClick(NO_ACTION);
+
+        if (!GraphicsEnvironment.isHeadless()) {
+            // the popup is prepared on the EDT
+            EventQueue.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+
+        TeardownReport report = tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, true);
+        return report.isComplete() ? TRAINED : FAILED;
+    }
+
+    /**
+     * Runs in the measured JVM: shows the first icon, and says so.
+     */
+    private static void firstIcon(String backend) throws IOException {
+        SystemTray tray = TrayBackends.create("TrayTraining", backend);
+        if (tray == null) {
+            tray = new HeadlessSystemTray("TrayTraining");
+        }
+
+        File icon = File.createTempFile("TrayTraining", ".png");
+        icon.deleteOnExit();
+        TrayAllocations.writeIcon(icon);
+        String iconName = icon.getAbsolutePath();
+
+        tray.createTray(iconName);
+        tray.setStatus("Training", iconName);
+        System.out.println(FIRST_ICON);
+        System.out.flush();
+
+        tray.removeTray(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, false);
+    }
+
+    /**
+     * Starts a JVM with this class path, and waits for it.
+     *
+     * @param output where to put what it printed, or null to throw it away
+     * @return the exit code
+     */
+    private int run(List<String> jvmOptions, List<String> args, StringBuilder output) throws IOException, InterruptedException {
+        Process process = start(jvmOptions, args);
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (output != null) {
+                    output.append(line).append('\n');
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return process.waitFor();
+    }
+
+    private Process start(List<String> jvmOptions, List<String> args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(this.javaCommand);
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(this.classPath);
+        command.addAll(args);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        return builder.start();
+    }
+
+    /**
+     * Trains every backend (in its own JVM), and merges their class lists.
+     *
+     * @return the classes, in the order they were first loaded. Empty if no backend could be trained
+     */
+    private Set<String> trainAll(List<String> backends) throws IOException, InterruptedException {
+        Set<String> classes = new LinkedHashSet<String>();
+
+        for (String backend : backends) {
+            File classList = File.createTempFile("TrayTraining-" + backend, ".classlist");
+            try {
+                StringBuilder output = new StringBuilder();
+                int exitCode = run(Arrays.asList("-XX:DumpLoadedClassList=" + classList.getAbsolutePath()),
+                                   Arrays.asList(TrayTraining.class.getName(), "--train", backend), output);
+
+                if (exitCode == UNAVAILABLE) {
+                    System.out.println(String.format("%-16s not available", backend));
+                    continue;
+                }
+                if (exitCode != TRAINED) {
+                    System.out.println(String.format("%-16s failed (exit code %d)%n%s", backend, exitCode, output));
+                    continue;
+                }
+
+                this.trained.add(backend);
+                int before = classes.size();
+                readClassList(classList, classes);
+                System.out.println(String.format("%-16s trained, %d new classes", backend, classes.size() - before));
+            } finally {
+                classList.delete();
+            }
+        }
+
+        return classes;
+    }
+
+    private static void readClassList(File classList, Set<String> classes) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(classList));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // classes from other class loaders are listed with an id (and their source) that is only valid in that one list
+                if (line.isEmpty() || line.startsWith("#") || line.contains(" source: ")) {
+                    continue;
+                }
+                classes.add(line);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the median time to the first icon (in nanos), of the given number of JVMs. -1 if one of them failed
+     */
+    private long measure(String backend, List<String> jvmOptions, int runs) throws IOException, InterruptedException {
+        long[] times = new long[runs];
+
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            Process process = start(jvmOptions, Arrays.asList(TrayTraining.class.getName(), "--first-icon", backend));
+
+            long time = -1L;
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (time < 0L && line.equals(FIRST_ICON)) {
+                        time = System.nanoTime() - start;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+
+            if (process.waitFor() != 0 || time < 0L) {
+                return -1L;
+            }
+            times[i] = time;
+        }
+
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--train")) {
+            int exitCode = FAILED;
+            try {
+                exitCode = train(args[1]);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            System.exit(exitCode);
+            return;
+        }
+        if (args.length == 2 && args[0].equals("--first-icon")) {
+            firstIcon(args[1]);
+            System.exit(0);
+            return;
+        }
+
+        List<String> backends = new ArrayList<String>();
+        int runs = 0;
+        File archive = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--all")) {
+                backends.addAll(Arrays.asList(TrayBackends.NAMES));
+            } else if (arg.equals("--backend") && i + 1 < args.length) {
+                backends.add(args[++i]);
+            } else if (arg.equals("--measure") && i + 1 < args.length) {
+                runs = Integer.parseInt(args[++i]);
+            } else {
+                archive = new File(arg).getAbsoluteFile();
+            }
+        }
+
+        if (archive == null) {
+            System.err.println("Usage: TrayTraining [--all | --backend name]... [--measure runs] archiveFile");
+            System.exit(1);
+            return;
+        }
+        if (backends.isEmpty()) {
+            backends.add("default");
+            backends.add("headless");
+        }
+
+        TrayTraining training = new TrayTraining();
+
+        Set<String> classes = training.trainAll(backends);
+        if (classes.isEmpty()) {
+            System.err.println("No backend could be trained");
+            System.exit(1);
+            return;
+        }
+
+        File classList = new File(archive.getPath() + ".classlist");
+        Writer out = new OutputStreamWriter(new FileOutputStream(classList), UTF_8);
+        try {
+            for (String name : classes) {
+                out.write(name);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println(classes.size() + " classes written to " + classList);
+
+        StringBuilder output = new StringBuilder();
+        int exitCode = training.run(Arrays.asList("-Xshare:dump", "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+                                                  "-XX:SharedArchiveFile=" + archive.getAbsolutePath()),
+                                    Collections.<String>emptyList(), output);
+        if (exitCode != 0 || !archive.isFile()) {
+            System.err.println("Unable to dump the archive (this JVM might not support AppCDS):\n" + output);
+            System.exit(1);
+            return;
+        }
+        System.out.println("Archive written to " + archive + ", use it with: -XX:SharedArchiveFile=" + archive);
+
+        if (runs > 0) {
+            // the same backend with and without the archive. Without it, the JVM still uses its own (JDK classes only) archive
+            String backend = training.trained.get(0);
+            List<String> none = Collections.emptyList();
+            List<String> shared = Arrays.asList("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+
+            long without = training.measure(backend, none, runs);
+            long with = training.measure(backend, shared, runs);
+            if (without < 0L || with < 0L) {
+                System.err.println("Unable to measure the time to the first icon");
+                System.exit(1);
+                return;
+            }
+
+            System.out.println(String.format("time to first icon (%s, median of %d): %d ms without the archive, %d ms with it", backend,
+                                             runs, TimeUnit.NANOSECONDS.toMillis(without), TimeUnit.NANOSECONDS.toMillis(with)));
+        }
+
+        System.exit(0);
+    }
+}
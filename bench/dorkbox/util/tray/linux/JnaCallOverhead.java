@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+import dorkbox.util.jna.linux.Gtk;
+import dorkbox.util.jna.linux.GtkSupport;
+import dorkbox.util.tray.NativeLoader;
+
+/**
+ * Compares the per-call overhead of a direct-mapped JNA binding (Native.register) with the same function through an interface-mapped
+ * Library proxy. The libc calls are always measured, they show the cost of the mechanism itself. The GTK calls that {@link GtkNative}
+ * maps are measured when there is a display to run GTK on.
+ * <p>
+ * Usage: JnaCallOverhead [calls]
+ */
+public class JnaCallOverhead {
+    private static final int ROUNDS = 5;
+
+    static final class DirectLibC {
+        static {
+            Native.register(DirectLibC.class, "c");
+        }
+
+        static native int getpid();
+        static native NativeLong strlen(String s);
+    }
+
+    interface LibC extends Library {
+        LibC INSTANCE = (LibC) Native.loadLibrary("c", LibC.class);
+
+        int getpid();
+        NativeLong strlen(String s);
+    }
+
+    private abstract static class Call {
+        /**
+         * @return something from the calls, so they can't be optimized away
+         */
+        abstract long run(int calls);
+    }
+
+    private static long sink;
+
+    /**
+     * @return the fastest time per call (in ns) of all the rounds
+     */
+    private static double measure(Call call, int calls) {
+        // warm up, so both are compiled
+        sink += call.run(calls);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += call.run(calls);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / calls;
+    }
+
+    private static void compare(String name, Call direct, Call proxy, int calls) {
+        double directNanos = measure(direct, calls);
+        double proxyNanos = measure(proxy, calls);
+        System.out.println(String.format("%-28s direct %8.1f ns   interface %8.1f ns   (%.1fx)", name, directNanos, proxyNanos,
+                                         proxyNanos / directNanos));
+    }
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        // the bundled jna jar doesn't load its own library
+        NativeLoader.init(false);
+
+        compare("getpid", new Call() {
+            @Override
+            long run(int calls) {
+                long sum = 0L;
+                for (int i = 0; i < calls; i++) {
+                    sum += DirectLibC.getpid();
+                }
+                return sum;
+            }
+        }, new Call() {
+            @Override
+            long run(int calls) {
+                LibC libC = LibC.INSTANCE;
+                long sum = 0L;
+                for (int i = 0; i < calls; i++) {
+                    sum += libC.getpid();
+                }
+                return sum;
+            }
+        }, calls);
+
+        final String text = "SystemTray menu entry";
+        compare("strlen", new Call() {
+            @Override
+            long run(int calls) {
+                long sum = 0L;
+                for (int i = 0; i < calls; i++) {
+                    sum += DirectLibC.strlen(text).longValue();
+                }
+                return sum;
+            }
+        }, new Call() {
+            @Override
+            long run(int calls) {
+                LibC libC = LibC.INSTANCE;
+                long sum = 0L;
+                for (int i = 0; i < calls; i++) {
+                    sum += libC.strlen(text).longValue();
+                }
+                return sum;
+            }
+        }, calls);
+
+        // gtk_init() exits the process when there is no display
+        if (System.getenv("DISPLAY") == null) {
+            System.out.println("GTK calls not measured, there is no display");
+        } else {
+            compareGtk(calls / 10);
+        }
+
+        // GTK's event loop doesn't let the JVM exit
+        System.exit(sink == 42L ? 1 : 0);
+    }
+
+    private static void compareGtk(int calls) {
+        try {
+            NativeLoader.init(true);
+            GtkSupport.init();
+        } catch (Throwable t) {
+            System.out.println("GTK calls not measured, GTK is not available: " + t);
+            return;
+        }
+        if (!GtkSupport.isSupported) {
+            System.out.println("GTK calls not measured, GTK is not available");
+            return;
+        }
+
+        final Gtk gtk = Gtk.INSTANCE;
+
+        compare("gdk_threads_enter/leave", new Call() {
+            @Override
+            long run(int calls) {
+                for (int i = 0; i < calls; i++) {
+                    GtkNative.gdk_threads_enter();
+                    GtkNative.gdk_threads_leave();
+                }
+                return calls;
+            }
+        }, new Call() {
+            @Override
+            long run(int calls) {
+                for (int i = 0; i < calls; i++) {
+                    gtk.gdk_threads_enter();
+                    gtk.gdk_threads_leave();
+                }
+                return calls;
+            }
+        }, calls);
+
+        // the rest are made while holding the gdk lock, like the trays do
+        gtk.gdk_threads_enter();
+        final Pointer menuItem = gtk.gtk_menu_item_new_with_label("JnaCallOverhead");
+        try {
+            final String[] labels = new String[] {"JnaCallOverhead", "JnaCallOverhead (updated)"};
+            compare("gtk_menu_item_set_label", new Call() {
+                @Override
+                long run(int calls) {
+                    for (int i = 0; i < calls; i++) {
+                        GtkNative.gtk_menu_item_set_label(menuItem, labels[i & 1]);
+                    }
+                    return calls;
+                }
+            }, new Call() {
+                @Override
+                long run(int calls) {
+                    for (int i = 0; i < calls; i++) {
+                        gtk.gtk_menu_item_set_label(menuItem, labels[i & 1]);
+                    }
+                    return calls;
+                }
+            }, calls);
+
+            compare("gtk_widget_show_all", new Call() {
+                @Override
+                long run(int calls) {
+                    for (int i = 0; i < calls; i++) {
+                        GtkNative.gtk_widget_show_all(menuItem);
+                    }
+                    return calls;
+                }
+            }, new Call() {
+                @Override
+                long run(int calls) {
+                    for (int i = 0; i < calls; i++) {
+                        gtk.gtk_widget_show_all(menuItem);
+                    }
+                    return calls;
+                }
+            }, calls);
+        } finally {
+            gtk.gtk_widget_destroy(menuItem);
+            gtk.gdk_threads_leave();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import com.sun.jna.Pointer;
+
+import dorkbox.util.tray.NativeLoader;
+
+/**
+ * Checks that the icons the GTK tray caches (decoded, as a GdkPixbuf) are freed once they are evicted and no longer shown, the way
+ * GtkSystemTray uses the cache: every icon switch acquires the new icon, and the previous one is let go of when the new one is shown.
+ * <p>
+ * Does not need a display (gdk-pixbuf and GObject don't), only the GTK libraries. Fails if an icon outlives its eviction.
+ * <p>
+ * Usage: PixbufLeaks [switches]
+ */
+public class PixbufLeaks {
+    public static void main(String[] args) throws IOException {
+        int switches = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        try {
+            NativeLoader.init(true);
+            // loads the library
+            GtkNative.g_object_ref(null);
+        } catch (Throwable t) {
+            System.out.println("Not checked, GTK is not available: " + t);
+            return;
+        }
+
+        // twice what is cached, so icons are evicted
+        int cacheSize = GtkSystemTray.PIXBUF_CACHE_SIZE;
+        int icons = cacheSize * 2;
+
+        File dir = File.createTempFile("PixbufLeaks", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        String[] iconPaths = new String[icons];
+        for (int i = 0; i < icons; i++) {
+            BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setColor(new Color(Color.HSBtoRGB((float) i / icons, 1.0F, 1.0F)));
+            graphics.fillOval(0, 0, 16, 16);
+            graphics.dispose();
+
+            File file = new File(dir, "PixbufLeaks" + i + ".png");
+            ImageIO.write(image, "png", file);
+            file.deleteOnExit();
+            iconPaths[i] = file.getAbsolutePath();
+        }
+        dir.deleteOnExit();
+
+        PixbufCache pixbufs = new PixbufCache(cacheSize);
+        boolean failed = false;
+
+        // the reference the status icon holds on the icon it shows
+        Pointer shown = null;
+        for (int i = 0; i < switches; i++) {
+            // cycles through more icons than are cached, with a few repeats, so some are hits and some are evicted
+            int icon = (i % 3 == 0) ? (i / 3) % icons : (i * 7) % icons;
+
+            Pointer pixbuf = pixbufs.acquire(iconPaths[icon]);
+            if (pixbuf == null) {
+                System.out.println("Could not decode " + iconPaths[icon]);
+                System.exit(1);
+            }
+
+            // the status icon takes its own reference to the new icon, and lets go of the old one. The caller gives theirs back
+            GtkNative.g_object_ref(pixbuf);
+            if (shown != null) {
+                GtkNative.g_object_unref(shown);
+            }
+            shown = pixbuf;
+            pixbufs.release(pixbuf);
+
+            // only the icon being shown can still be in use
+            if (pixbufs.checkLeaks(1) > 1) {
+                failed = true;
+                break;
+            }
+        }
+
+        if (shown != null) {
+            GtkNative.g_object_unref(shown);
+        }
+        pixbufs.clear();
+
+        // nothing is shown, so every icon is freed
+        int leaked = pixbufs.checkLeaks(0);
+        int live = pixbufs.liveCount();
+        if (leaked > 0 || live > 0) {
+            failed = true;
+        }
+
+        System.out.println(String.format("%d icon switches, %d icons: %d leaked, %d still alive after clear  %s", switches, icons,
+                                         leaked, live, failed ? "FAILED" : "ok"));
+        System.exit(failed ? 1 : 0);
+    }
+}
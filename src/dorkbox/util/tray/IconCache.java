@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Icons that were already decoded (and scaled), by name, so that switching between them does not read and decode the file again. Only
+ * the most recently used ones are kept, so a tray that is given a new icon (name) every time doesn't hold on to all of them.
+ * <p>
+ * Can be used from any thread. Getting an icon that is cached does not allocate anything.
+ */
+public class IconCache<V> {
+    private final int maxSize;
+
+    // guarded by itself. Access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, V> icons;
+
+    public IconCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+
+        this.icons = new LinkedHashMap<String, V>(16, 0.75F, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > IconCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the icon, or null if it is not cached
+     */
+    public V get(String iconName) {
+        synchronized (this.icons) {
+            return this.icons.get(iconName);
+        }
+    }
+
+    /**
+     * Caches the icon. If the cache is full, the least recently used one is dropped.
+     */
+    public void put(String iconName, V icon) {
+        synchronized (this.icons) {
+            this.icons.put(iconName, icon);
+        }
+    }
+
+    public void clear() {
+        synchronized (this.icons) {
+            this.icons.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.icons) {
+            return this.icons.size();
+        }
+    }
+}
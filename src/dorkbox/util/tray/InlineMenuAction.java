@@ -0,0 +1,26 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+/**
+ * A menu action that is cheap enough (toggling a flag, etc) to run directly on the thread that dispatched the click -- the GTK event
+ * loop or the Swing EDT -- instead of being handed off to the callback executor.
+ * <p>
+ * If one of these blocks longer than {@link SystemTray#INLINE_ACTION_LIMIT_NANOS}, it is reported and will be run on the callback
+ * executor from then on.
+ */
+public interface InlineMenuAction extends SystemTrayMenuAction {
+}
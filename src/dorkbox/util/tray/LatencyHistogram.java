@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram (in nanoseconds), using HDR-style log-linear buckets.
+ * <p>
+ * Every power-of-two range is split into 16 linear sub-buckets, so any recorded value is reported to within ~6%, no matter the
+ * magnitude. Recording never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+    // one bucket for the values smaller than SUB_BUCKET_COUNT, then one per remaining bit
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        this.counts.incrementAndGet(indexOf(nanos));
+        this.totalCount.incrementAndGet();
+
+        long max;
+        while (nanos > (max = this.maxValue.get())) {
+            if (this.maxValue.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getTotalCount() {
+        return this.totalCount.get();
+    }
+
+    public long getMaxValue() {
+        return this.maxValue.get();
+    }
+
+    /**
+     * @param percentile 0.0 - 100.0
+     *
+     * @return the highest value (in nanoseconds) that is equivalent (within the precision of this histogram) to the value at the given
+     *         percentile, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0L;
+        }
+
+        long target = (long) Math.ceil(Math.min(percentile, 100.0D) / 100.0D * total);
+        if (target < 1) {
+            target = 1;
+        }
+
+        long seen = 0;
+        int length = this.counts.length();
+        for (int i = 0; i < length; i++) {
+            seen += this.counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), getMaxValue());
+            }
+        }
+
+        return getMaxValue();
+    }
+
+    public void reset() {
+        int length = this.counts.length();
+        for (int i = 0; i < length; i++) {
+            this.counts.set(i, 0L);
+        }
+        this.totalCount.set(0L);
+        this.maxValue.set(0L);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & SUB_BUCKET_MASK;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = (index & SUB_BUCKET_MASK) + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, p50=%.1fus, p90=%.1fus, p99=%.1fus, p99.9=%.1fus, max=%.1fus",
+                             getTotalCount(),
+                             getValueAtPercentile(50.0D) / 1000.0D,
+                             getValueAtPercentile(90.0D) / 1000.0D,
+                             getValueAtPercentile(99.0D) / 1000.0D,
+                             getValueAtPercentile(99.9D) / 1000.0D,
+                             getMaxValue() / 1000.0D);
+    }
+}
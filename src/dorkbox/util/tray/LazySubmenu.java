@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.NamedThreadFactory;
+
+/**
+ * The entries of a submenu, loaded from its {@link SubmenuProvider} (off the UI thread) when the submenu is opened, and cached until it
+ * is invalidated. Used by every tray, each tray only has to build its own menu items from the entries.
+ */
+public final class LazySubmenu {
+    private static final Logger logger = LoggerFactory.getLogger(LazySubmenu.class);
+
+    /** Shown in a submenu while its entries are loading */
+    public static String loadingText = "Loading...";
+
+    // shared by all submenus (of all trays). The threads go away when nothing is loading
+    private static final ExecutorService loader = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10L, TimeUnit.SECONDS,
+                                                                         new SynchronousQueue<Runnable>(),
+                                                                         new NamedThreadFactory("SysTraySubmenu", true));
+
+    /**
+     * Told when the entries are loaded. Called on the loader thread.
+     */
+    public interface Listener {
+        /**
+         * @param items the entries, or an empty list if the provider failed (it is asked again the next time the submenu is opened)
+         */
+        void loaded(List<SubmenuItem> items);
+    }
+
+    private final SubmenuProvider provider;
+
+    // all guarded by this
+    private List<SubmenuItem> items;
+    private boolean loading;
+    // changes every time the submenu is invalidated, so a load that was started before that is thrown away
+    private int generation;
+    private final List<Listener> listeners = new ArrayList<Listener>(1);
+
+    public LazySubmenu(SubmenuProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Called when the submenu is opened.
+     *
+     * @return the cached entries. If there are none, null -- and they are loaded, and given to the listener when they are.
+     */
+    public List<SubmenuItem> open(Listener listener) {
+        synchronized (this) {
+            if (this.items != null) {
+                return this.items;
+            }
+
+            if (!this.listeners.contains(listener)) {
+                this.listeners.add(listener);
+            }
+            if (!this.loading) {
+                startLoading();
+            }
+            return null;
+        }
+    }
+
+    SubmenuProvider getProvider() {
+        return this.provider;
+    }
+
+    /**
+     * @return the cached entries, or null if they are not loaded (this does not load them)
+     */
+    public synchronized List<SubmenuItem> getItems() {
+        return this.items;
+    }
+
+    /**
+     * Throws away the cached entries, so they are loaded again the next time the submenu is opened.
+     */
+    public synchronized void invalidate() {
+        this.items = null;
+        this.generation++;
+    }
+
+    // must hold the lock on this
+    private void startLoading() {
+        this.loading = true;
+        final int generation = this.generation;
+
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(generation);
+            }
+        });
+    }
+
+    private void load(int generation) {
+        List<SubmenuItem> items;
+        boolean failed = false;
+        try {
+            items = this.provider.getItems();
+            if (items == null) {
+                items = Collections.emptyList();
+            } else {
+                items = Collections.unmodifiableList(new ArrayList<SubmenuItem>(items));
+            }
+        } catch (Throwable t) {
+            logger.error("Unable to get the submenu entries from {}", this.provider, t);
+            items = Collections.emptyList();
+            failed = true;
+        }
+
+        Listener[] listeners;
+        synchronized (this) {
+            if (generation != this.generation) {
+                // invalidated while loading, these might already be stale
+                startLoading();
+                return;
+            }
+
+            this.loading = false;
+            if (!failed) {
+                this.items = items;
+            }
+
+            listeners = this.listeners.toArray(new Listener[this.listeners.size()]);
+            this.listeners.clear();
+        }
+
+        for (Listener listener : listeners) {
+            try {
+                listener.loaded(items);
+            } catch (Throwable t) {
+                logger.error("Unable to show the submenu entries.", t);
+            }
+        }
+    }
+}
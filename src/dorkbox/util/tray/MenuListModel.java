@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+/**
+ * The entries of a (possibly very long) menu list, see {@link SystemTray#addMenuList(String, MenuListModel)}. Entries are asked for by
+ * index, and only when they are shown (or filtered), so they don't need to exist as strings up front.
+ */
+public interface MenuListModel {
+    /**
+     * Read every time the menu is opened, so it can change in between.
+     */
+    int getSize();
+
+    String getText(int index);
+
+    /**
+     * Called (like a {@link SystemTrayMenuAction}) when the entry is clicked.
+     */
+    void onClick(SystemTray systemTray, int index);
+}
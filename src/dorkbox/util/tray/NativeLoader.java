@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.jna.NativeLibrary;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.NamedThreadFactory;
+import dorkbox.util.OS;
+import dorkbox.util.OsType;
+
+/**
+ * Bootstraps the native libraries used by the linux trays.
+ * <p>
+ * The bundled JNA stub library (libjna) for this platform is copied out of the classpath ONCE, into a per-user cache directory that is
+ * named after its checksum, and loaded from there. Later launches find it there and skip the copy. If the bundled library doesn't
+ * match the JNA classes on the classpath, it is left alone and JNA finds its own.
+ * <p>
+ * GTK, gobject and libappindicator are then loaded in the background, in parallel, so that by the time the tray needs them they are
+ * (mostly) ready. That part is skipped when the tray doesn't use GTK (ie: the StatusNotifierItem tray).
+ */
+public class NativeLoader {
+    private static final Logger logger = LoggerFactory.getLogger(NativeLoader.class);
+
+    private static final String JNA_LIBRARY_NAME = "jna";
+
+    /**
+     * Location (on the classpath) of the bundled JNA libraries, ie: 'jna/linux_64/libjna.so'
+     */
+    public static String JNA_RESOURCE_PATH = "jna";
+
+    /**
+     * Per-user directory where the native libraries are cached. Defaults to $XDG_CACHE_HOME/SystemTray (or ~/.cache/SystemTray)
+     */
+    public static String CACHE_DIR = null;
+
+    private static final String[] preloadedClasses = new String[] {"dorkbox.util.jna.linux.Gtk",
+                                                                   "dorkbox.util.jna.linux.Gobject",
+                                                                   "dorkbox.util.jna.linux.GThread",
+                                                                   "dorkbox.util.jna.linux.AppIndicator",
+                                                                   "dorkbox.util.tray.linux.GtkNative",
+                                                                   "dorkbox.util.tray.linux.AppIndicatorNative"};
+
+    // kept, so it is never closed
+    private static NativeLibrary jnaLibrary;
+
+    private static boolean initialized = false;
+    private static boolean gtkPreloaded = false;
+
+    /**
+     * Extracts (if necessary) the bundled JNA library, and starts loading the GTK libraries in the background. Must be called before
+     * any JNA class is used, otherwise JNA will have already loaded its own library.
+     */
+    public static void init() {
+        init(true);
+    }
+
+    /**
+     * Extracts (if necessary) the bundled JNA library. Must be called before any JNA class is used, otherwise JNA will have already
+     * loaded its own library.
+     *
+     * @param loadGtk true to start loading the GTK libraries in the background. A tray that doesn't use GTK shouldn't pay for it, and
+     *                it can still be loaded later by calling this again.
+     */
+    public static synchronized void init(boolean loadGtk) {
+        if (!initialized) {
+            initialized = true;
+
+            try {
+                extractJna();
+            } catch (Exception e) {
+                // not fatal, JNA will fall back to its normal search
+                logger.warn("Unable to use the bundled JNA library.", e);
+            }
+        }
+
+        if (loadGtk && !gtkPreloaded && OS.isLinux()) {
+            gtkPreloaded = true;
+            preloadGtk();
+        }
+    }
+
+    private static void extractJna() throws IOException, NoSuchAlgorithmException {
+        if (System.getProperty("jna.boot.library.path") != null) {
+            // already configured by someone else
+            return;
+        }
+
+        String platform = platformDirectory(OS.get());
+        if (platform == null) {
+            return;
+        }
+
+        String resourceName = JNA_RESOURCE_PATH + "/" + platform + "/" + bundledFileName();
+        URL resource = Thread.currentThread().getContextClassLoader().getResource(resourceName);
+        if (resource == null) {
+            resource = ClassLoader.getSystemResource(resourceName);
+        }
+        if (resource == null) {
+            logger.debug("Bundled JNA library '{}' is not on the classpath.", resourceName);
+            return;
+        }
+
+        byte[] bytes = read(resource);
+        if (!isCompatible(bytes)) {
+            // JNA would fail to use it (and would not fall back to anything else), so leave it to JNA to find its own library
+            logger.debug("Bundled JNA library '{}' does not match the JNA classes on the classpath, it is not used.", resourceName);
+            return;
+        }
+
+        // the directory is named after the library, so a different bundled library never uses a library that was cached before it
+        String checksum = checksum(bytes);
+        File cacheDir = new File(new File(new File(cacheDir(), "jna"), platform), checksum);
+        // this is what JNA will look for, when jna.boot.library.name is set
+        File library = new File(cacheDir, System.mapLibraryName(JNA_LIBRARY_NAME).replace(".dylib", ".jnilib"));
+
+        if (!isValid(library, bytes.length)) {
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                throw new IOException("Unable to create directory: " + cacheDir);
+            }
+
+            // copy to a temp file first, so that concurrent launches never see a partial library
+            File tempFile = File.createTempFile(library.getName(), ".tmp", cacheDir);
+            try {
+                OutputStream outStream = new FileOutputStream(tempFile);
+                try {
+                    outStream.write(bytes);
+                } finally {
+                    outStream.close();
+                }
+
+                // the rename replaces a damaged library in one step. Where it can't replace files (windows), it fails instead, which is
+                // fine when another launch just put the same library there.
+                if (!tempFile.renameTo(library) && !isValid(library, bytes.length)) {
+                    throw new IOException("Unable to move " + tempFile + " to " + library);
+                }
+            } finally {
+                tempFile.delete();
+            }
+
+            logger.debug("Extracted JNA library to {}", library);
+        }
+
+        // the bundled jna jar doesn't load its library (that logic was removed from it), so it's loaded here. A regular jna jar finds the
+        // same library with these properties.
+        try {
+            System.load(library.getAbsolutePath());
+        } catch (UnsatisfiedLinkError e) {
+            logger.warn("Unable to load the JNA library {}", library, e);
+            return;
+        }
+
+        // before NativeLibrary (below) is the first JNA class that is initialized, which is when JNA looks for its library
+        System.setProperty("jna.boot.library.path", cacheDir.getAbsolutePath());
+        System.setProperty("jna.boot.library.name", JNA_LIBRARY_NAME);
+
+        try {
+            // libjna has its own (older) libffi, with the same symbol names as the system's libffi that GLib loads. Opening it again
+            // through JNA (RTLD_GLOBAL) puts it ahead of that one, so JNA never ends up with half of each (which crashes)
+            jnaLibrary = NativeLibrary.getInstance(library.getAbsolutePath());
+        } catch (UnsatisfiedLinkError e) {
+            logger.warn("Unable to open the JNA library {} for JNA", library, e);
+        }
+    }
+
+    /**
+     * Starts loading the GTK/AppIndicator bindings (and their native libraries) in parallel. Nothing waits for them here, whoever uses
+     * them first will block until that class has finished loading.
+     */
+    private static void preloadGtk() {
+        ExecutorService executor = Executors.newFixedThreadPool(preloadedClasses.length, new NamedThreadFactory("SysTrayNativeLoader", true));
+
+        for (final String className : preloadedClasses) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Class.forName(className, true, NativeLoader.class.getClassLoader());
+                    } catch (Throwable t) {
+                        // the tray will report this properly when it tries to use it
+                        logger.debug("Unable to preload {}", className, t);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * The directory is named after the checksum of the library, and the library is only ever put there in one step (by a rename), so
+     * a library of the right size is the right library. Only a partial (or truncated) one is caught, without reading it.
+     */
+    private static boolean isValid(File library, long length) {
+        return library.isFile() && library.length() == length;
+    }
+
+    /**
+     * Checks that the library is the one the JNA classes on the classpath expect: the same native version, and every native method of
+     * com.sun.jna.Native (by its JNI symbol, where '_' is written as '_1'). This looks at the classes without initializing them, since
+     * that would load a library.
+     */
+    private static boolean isCompatible(byte[] library) {
+        try {
+            ClassLoader classLoader = NativeLoader.class.getClassLoader();
+
+            Field versionField = Class.forName("com.sun.jna.Version", false, classLoader).getDeclaredField("VERSION_NATIVE");
+            versionField.setAccessible(true);
+            if (!contains(library, (String) versionField.get(null))) {
+                return false;
+            }
+
+            for (Method method : Class.forName("com.sun.jna.Native", false, classLoader).getDeclaredMethods()) {
+                if (Modifier.isNative(method.getModifiers()) && !contains(library, "Java_com_sun_jna_Native_" + method.getName().replace("_", "_1"))) {
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (Throwable t) {
+            logger.debug("Unable to check the bundled JNA library.", t);
+            return false;
+        }
+    }
+
+    private static boolean contains(byte[] bytes, String text) {
+        byte[] search = text.getBytes(Charset.forName("US-ASCII"));
+
+        outer:
+        for (int i = 0, last = bytes.length - search.length; i <= last; i++) {
+            for (int j = 0; j < search.length; j++) {
+                if (bytes[i + j] != search[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private static byte[] read(URL resource) throws IOException {
+        InputStream inStream = resource.openStream();
+        try {
+            return read(inStream);
+        } finally {
+            inStream.close();
+        }
+    }
+
+    private static byte[] read(InputStream inStream) throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inStream.read(buffer)) > 0) {
+            outStream.write(buffer, 0, read);
+        }
+
+        return outStream.toByteArray();
+    }
+
+    /**
+     * @return the SHA-256 of the bytes
+     */
+    private static String checksum(byte[] bytes) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return new BigInteger(1, digest.digest(bytes)).toString(16);
+    }
+
+    private static File cacheDir() {
+        if (CACHE_DIR != null) {
+            return new File(CACHE_DIR);
+        }
+
+        String xdgCache = System.getenv("XDG_CACHE_HOME");
+        if (xdgCache != null && !xdgCache.isEmpty()) {
+            return new File(xdgCache, "SystemTray");
+        }
+
+        return new File(new File(System.getProperty("user.home"), ".cache"), "SystemTray");
+    }
+
+    private static String platformDirectory(OsType osType) {
+        if (osType == null) {
+            return null;
+        }
+
+        switch (osType) {
+            case Linux32:   return "linux_32";
+            case Linux64:   return "linux_64";
+            case LinuxArm:  return "linux_arm7_hf";
+            case Windows32: return "windows_32";
+            case Windows64: return "windows_64";
+            case MacOsX32:  return "macosx_32";
+            case MacOsX64:  return "macosx_64";
+            default:        return null;
+        }
+    }
+
+    private static String bundledFileName() {
+        if (OS.isWindows()) {
+            return "libjna.dll";
+        }
+        if (OS.isMacOsX()) {
+            return "libjna.jnilib";
+        }
+        return "libjna.so";
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dorkbox.util.NamedThreadFactory;
+
+/**
+ * Rate limited, de-duplicating queue of desktop notifications, so that a storm of alerts cannot freeze the desktop.
+ * <p>
+ * - Notifications with the same key are merged while they are waiting, and dropped for {@link #DEDUPLICATION_WINDOW_MILLIS} after
+ *   one with that key was shown.
+ * <p>
+ * - At most {@link #MAX_PER_SECOND} notifications are shown per second. If more than {@link #BURST_THRESHOLD} are waiting, they are
+ *   all merged into a single summary notification.
+ * <p>
+ * - At most {@link #MAX_PENDING} notifications can be waiting, anything more is dropped.
+ */
+public class NotificationQueue {
+    /** Notifications with the same key are not shown again within this window */
+    public static long DEDUPLICATION_WINDOW_MILLIS = 10000L;
+
+    /** The maximum number of notifications shown per second */
+    public static int MAX_PER_SECOND = 2;
+
+    /** When more than this many notifications are waiting, they are merged into a single summary */
+    public static int BURST_THRESHOLD = 4;
+
+    /** The maximum number of notifications waiting to be shown */
+    public static int MAX_PENDING = 100;
+
+    // one thread for all of the trays
+    private static final ScheduledExecutorService scheduler =
+                    Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SysTrayNotifications", true));
+
+    private static class Notification {
+        private String title;
+        private String message;
+        private int count = 1;
+
+        Notification(String title, String message) {
+            this.title = title;
+            this.message = message;
+        }
+    }
+
+    private final SystemTray systemTray;
+
+    // guarded by this
+    private final Map<String, Notification> pending = new LinkedHashMap<String, Notification>();
+    private final Map<String, Long> recentlyShown = new HashMap<String, Long>();
+    private ScheduledFuture<?> delivery;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong shownCount = new AtomicLong();
+    private final AtomicLong mergedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    NotificationQueue(SystemTray systemTray) {
+        this.systemTray = systemTray;
+    }
+
+    /**
+     * Queues a notification. Never blocks.
+     *
+     * @param key notifications with the same key are considered duplicates of each other
+     */
+    public void submit(String key, String title, String message) {
+        this.submittedCount.incrementAndGet();
+
+        synchronized (this) {
+            Notification notification = this.pending.get(key);
+            if (notification != null) {
+                // still waiting, so only the latest text is shown
+                notification.title = title;
+                notification.message = message;
+                notification.count++;
+                this.mergedCount.incrementAndGet();
+                return;
+            }
+
+            Long lastShown = this.recentlyShown.get(key);
+            if (lastShown != null && System.currentTimeMillis() - lastShown < DEDUPLICATION_WINDOW_MILLIS) {
+                this.mergedCount.incrementAndGet();
+                return;
+            }
+
+            if (this.pending.size() >= MAX_PENDING) {
+                this.droppedCount.incrementAndGet();
+                return;
+            }
+
+            this.pending.put(key, new Notification(title, message));
+
+            if (this.delivery == null) {
+                long period = Math.max(1000L / Math.max(MAX_PER_SECOND, 1), 1L);
+                this.delivery = scheduler.scheduleAtFixedRate(this.deliver, 0L, period, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Throws away everything that is waiting to be shown.
+     */
+    public synchronized void clear() {
+        this.droppedCount.addAndGet(this.pending.size());
+        this.pending.clear();
+        this.recentlyShown.clear();
+
+        if (this.delivery != null) {
+            this.delivery.cancel(false);
+            this.delivery = null;
+        }
+    }
+
+    private void deliver() {
+        String title;
+        String message;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            Iterator<Long> shownTimes = this.recentlyShown.values().iterator();
+            while (shownTimes.hasNext()) {
+                if (now - shownTimes.next() >= DEDUPLICATION_WINDOW_MILLIS) {
+                    shownTimes.remove();
+                }
+            }
+
+            int size = this.pending.size();
+            if (size == 0) {
+                // nothing else to do until something is submitted
+                if (this.delivery != null) {
+                    this.delivery.cancel(false);
+                    this.delivery = null;
+                }
+                return;
+            }
+
+            if (size > BURST_THRESHOLD) {
+                List<String> titles = new ArrayList<String>(3);
+                int total = 0;
+
+                for (Map.Entry<String, Notification> entry : this.pending.entrySet()) {
+                    Notification notification = entry.getValue();
+                    total += notification.count;
+                    if (titles.size() < 3) {
+                        titles.add(notification.title);
+                    }
+                    this.recentlyShown.put(entry.getKey(), now);
+                }
+
+                this.pending.clear();
+                this.mergedCount.addAndGet(size - 1);
+
+                title = total + " notifications";
+                message = join(titles) + (size > titles.size() ? ", and " + (size - titles.size()) + " more" : "");
+            } else {
+                Iterator<Map.Entry<String, Notification>> iterator = this.pending.entrySet().iterator();
+                Map.Entry<String, Notification> entry = iterator.next();
+                iterator.remove();
+
+                Notification notification = entry.getValue();
+                this.recentlyShown.put(entry.getKey(), now);
+
+                title = notification.count > 1 ? notification.title + " (x" + notification.count + ")" : notification.title;
+                message = notification.message;
+            }
+        }
+
+        this.shownCount.incrementAndGet();
+
+        try {
+            this.systemTray.displayNotification(title, message);
+        } catch (Exception e) {
+            SystemTray.logger.error("Unable to show notification.", e);
+        }
+    }
+
+    private static String join(List<String> strings) {
+        StringBuilder builder = new StringBuilder();
+        for (String string : strings) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+
+    /** @return how many notifications were submitted */
+    public long getSubmittedCount() {
+        return this.submittedCount.get();
+    }
+
+    /** @return how many notifications were actually shown (a summary counts as one) */
+    public long getShownCount() {
+        return this.shownCount.get();
+    }
+
+    /** @return how many notifications were merged into another one, or suppressed as a duplicate */
+    public long getMergedCount() {
+        return this.mergedCount.get();
+    }
+
+    /** @return how many notifications were thrown away, because too many were waiting */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "submitted=" + getSubmittedCount() + ", shown=" + getShownCount() + ", merged=" + getMergedCount() + ", dropped=" +
+               getDroppedCount();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.NamedThreadFactory;
+
+/**
+ * Values that are polled from {@link StatusSupplier}s, and pushed to the tray only when one of them changed.
+ * <p>
+ * Every poller (of every tray) runs on the same thread, so a slow supplier delays the others. The time spent in each supplier is
+ * recorded, so that one can be found.
+ */
+public abstract class PolledStatus {
+    private static final Logger logger = LoggerFactory.getLogger(PolledStatus.class);
+
+    private static final ScheduledExecutorService scheduler =
+                    Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SysTrayPoller", true));
+
+    private final String[] names;
+    private final StatusSupplier[] suppliers;
+    private final LatencyHistogram[] latencies;
+
+    // only used by the poller thread
+    private final String[] values;
+
+    private final AtomicLong changeCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private volatile ScheduledFuture<?> future;
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                poll();
+            } catch (Throwable t) {
+                // an exception would stop the scheduler from ever running this again
+                PolledStatus.this.failureCount.incrementAndGet();
+                logger.error("Unable to update {}", PolledStatus.this.names[0], t);
+            }
+        }
+    };
+
+    /**
+     * @param names what each supplier is for, for the report
+     * @param initialValues what the tray shows now, so that is not pushed again. Can be null (when not known).
+     */
+    PolledStatus(String[] names, StatusSupplier[] suppliers, String[] initialValues) {
+        this.names = names;
+        this.suppliers = suppliers;
+        this.latencies = new LatencyHistogram[suppliers.length];
+        for (int i = 0; i < suppliers.length; i++) {
+            this.latencies[i] = new LatencyHistogram();
+        }
+        this.values = initialValues.clone();
+    }
+
+    void start(long intervalMillis) {
+        this.future = scheduler.scheduleWithFixedDelay(this.poll, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        boolean changed = false;
+
+        for (int i = 0; i < this.suppliers.length; i++) {
+            long start = System.nanoTime();
+            String value;
+            try {
+                value = this.suppliers[i].get();
+            } finally {
+                this.latencies[i].record(System.nanoTime() - start);
+            }
+
+            if (value != null && !value.equals(this.values[i])) {
+                this.values[i] = value;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            for (String value : this.values) {
+                if (value == null) {
+                    // nothing to show yet
+                    return;
+                }
+            }
+
+            this.changeCount.incrementAndGet();
+            push(this.values);
+        }
+    }
+
+    /**
+     * Called on the poller thread, with the current value from every supplier, when at least one of them changed.
+     */
+    abstract void push(String[] values);
+
+    /**
+     * Stops polling. If a poll is running right now, it still finishes.
+     */
+    public void cancel() {
+        ScheduledFuture<?> future = this.future;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    public boolean isCancelled() {
+        ScheduledFuture<?> future = this.future;
+        return future != null && future.isCancelled();
+    }
+
+    /**
+     * @return how long the supplier takes to return a value
+     */
+    public LatencyHistogram getEvaluationLatency(StatusSupplier supplier) {
+        for (int i = 0; i < this.suppliers.length; i++) {
+            if (this.suppliers[i] == supplier) {
+                return this.latencies[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return how many times a changed value was pushed to the tray
+     */
+    public long getChangeCount() {
+        return this.changeCount.get();
+    }
+
+    /**
+     * @return how many times a supplier (or the tray) threw an exception
+     */
+    public long getFailureCount() {
+        return this.failureCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(128 * this.suppliers.length);
+        for (int i = 0; i < this.suppliers.length; i++) {
+            builder.append(this.names[i]).append(": ").append(this.latencies[i]).append('\n');
+        }
+        builder.append("  changes=").append(getChangeCount()).append(", failures=").append(getFailureCount());
+        if (isCancelled()) {
+            builder.append(", cancelled");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a system tray, and records every call made to it (when it was made, how long it took, and its arguments) to an append-only
+ * binary log. The log can be played back against any tray with {@link TrayReplay}.
+ * <p>
+ * This is used when {@link SystemTray#RECORD_FILE} is set.
+ * <p>
+ * Log format: MAGIC (int), VERSION (byte), then one record after another. Each launch appends a SESSION record (start time in millis,
+ * app name) and every call is: op (byte), start (micros since the session started, var-long), duration (micros, var-long), arguments.
+ * Strings are a boolean (false for null) followed by the modified UTF-8 string.
+ */
+public class RecordingSystemTray extends SystemTray {
+    static final int MAGIC = 0x5354524C; // STRL
+    static final byte VERSION = 1;
+
+    static final byte SESSION = 0;
+    static final byte CREATE_TRAY = 1;
+    static final byte REMOVE_TRAY = 2;
+    static final byte SET_STATUS = 3;
+    static final byte ADD_MENU_ENTRY = 4;
+    static final byte UPDATE_MENU_ENTRY = 5;
+    static final byte ADD_CHECK_MENU_ENTRY = 6;
+    static final byte ADD_RADIO_MENU_ENTRY = 7;
+    static final byte SET_MENU_ENTRY_CHECKED = 8;
+    static final byte IS_MENU_ENTRY_CHECKED = 9;
+    static final byte NOTIFICATION = 10;
+    static final byte CLICK = 11;
+
+    private final SystemTray tray;
+    private final DataOutputStream out;
+    private final long startTime = System.nanoTime();
+
+    // guarded by out
+    private boolean closed;
+
+    // the wrapper that the tray was given for each entry, by its text. An update with the same text and callback gets the same wrapper,
+    // so that the tray can tell that nothing changed
+    private final Map<String, RecordedAction> actions = new HashMap<String, RecordedAction>();
+
+    /**
+     * @param tray the tray that actually does the work
+     * @param logFile the log to append to
+     */
+    public RecordingSystemTray(SystemTray tray, File logFile) throws IOException {
+        this.tray = tray;
+        this.appName = tray.appName;
+
+        boolean newFile = !logFile.isFile() || logFile.length() == 0;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+
+        synchronized (this.out) {
+            if (newFile) {
+                this.out.writeInt(MAGIC);
+                this.out.writeByte(VERSION);
+            }
+
+            this.out.writeByte(SESSION);
+            this.out.writeLong(System.currentTimeMillis());
+            writeString(this.out, this.appName);
+            this.out.flush();
+        }
+    }
+
+    /**
+     * @return the tray that actually does the work
+     */
+    public SystemTray getTray() {
+        return this.tray;
+    }
+
+    @Override
+    public void createTray(String iconName) {
+        // the failure callback is set on us, but it is the real tray that fails
+        this.tray.setFailureCallback(this.failureCallback);
+
+        long start = System.nanoTime();
+        try {
+            this.tray.createTray(iconName);
+        } finally {
+            this.active = this.tray.isActive();
+            record(CREATE_TRAY, start, iconName);
+        }
+    }
+
+    @Override
+    public void removeTray() {
+        long start = System.nanoTime();
+        try {
+            this.tray.removeTray();
+        } finally {
+            removed(start);
+        }
+
+        super.removeTray();
+    }
+
+    @Override
+    public TeardownReport removeTray(long timeout, TimeUnit unit, boolean drainCallbacks) {
+        // the callbacks are queued (and the native resources held) by the real tray
+        long start = System.nanoTime();
+        TeardownReport report;
+        try {
+            report = this.tray.removeTray(timeout, unit, drainCallbacks);
+        } finally {
+            removed(start);
+        }
+
+        super.removeTray();
+        return report;
+    }
+
+    private void removed(long start) {
+        this.active = this.tray.isActive();
+        record(REMOVE_TRAY, start);
+
+        synchronized (this.actions) {
+            this.actions.clear();
+        }
+
+        synchronized (this.out) {
+            this.closed = true;
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the tray recording.", e);
+            }
+        }
+    }
+
+    @Override
+    public void setStatus(String infoString, String iconName) {
+        long start = System.nanoTime();
+        try {
+            this.tray.setStatus(infoString, iconName);
+        } finally {
+            record(SET_STATUS, start, infoString, iconName);
+        }
+    }
+
+    @Override
+    public void addMenuEntry(String menuText, SystemTrayMenuAction callback) {
+        long start = System.nanoTime();
+        try {
+            this.tray.addMenuEntry(menuText, wrap(menuText, menuText, callback));
+        } finally {
+            record(ADD_MENU_ENTRY, start, menuText);
+        }
+    }
+
+    @Override
+    public void updateMenuEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback) {
+        long start = System.nanoTime();
+        try {
+            this.tray.updateMenuEntry(origMenuText, newMenuText, wrap(origMenuText, newMenuText, newCallback));
+        } finally {
+            record(UPDATE_MENU_ENTRY, start, origMenuText, newMenuText);
+        }
+    }
+
+    @Override
+    public void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        long start = System.nanoTime();
+        try {
+            this.tray.addCheckMenuEntry(menuText, checked, wrap(menuText, menuText, callback));
+        } finally {
+            record(ADD_CHECK_MENU_ENTRY, start, menuText, checked);
+        }
+    }
+
+    @Override
+    public void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        long start = System.nanoTime();
+        try {
+            this.tray.addRadioMenuEntry(group, menuText, selected, wrap(menuText, menuText, callback));
+        } finally {
+            record(ADD_RADIO_MENU_ENTRY, start, group, menuText, selected);
+        }
+    }
+
+    @Override
+    public void setMenuEntryChecked(String menuText, boolean checked) {
+        long start = System.nanoTime();
+        try {
+            this.tray.setMenuEntryChecked(menuText, checked);
+        } finally {
+            record(SET_MENU_ENTRY_CHECKED, start, menuText, checked);
+        }
+    }
+
+    @Override
+    public boolean isMenuEntryChecked(String menuText) {
+        long start = System.nanoTime();
+        try {
+            return this.tray.isMenuEntryChecked(menuText);
+        } finally {
+            record(IS_MENU_ENTRY_CHECKED, start, menuText);
+        }
+    }
+
+    @Override
+    protected void addSubmenuEntry(String menuText, LazySubmenu submenu) {
+        // not recorded, the entries come from the application
+        this.tray.addSubmenuEntry(menuText, submenu);
+    }
+
+    @Override
+    protected void invalidateSubmenuEntry(String menuText) {
+        this.tray.invalidateSubmenuEntry(menuText);
+    }
+
+    @Override
+    public void addMenuList(String menuText, MenuListModel model) {
+        // not recorded, the entries come from the application
+        this.tray.addMenuList(menuText, model);
+    }
+
+    @Override
+    protected void showFrame(String infoString, String iconName) {
+        // not recorded, there would be too many
+        this.tray.showFrame(infoString, iconName);
+    }
+
+    @Override
+    protected void preloadIcon(String iconName) {
+        this.tray.preloadIcon(iconName);
+    }
+
+    @Override
+    protected void displayNotification(String title, String message) {
+        long start = System.nanoTime();
+        try {
+            this.tray.displayNotification(title, message);
+        } finally {
+            record(NOTIFICATION, start, title, message);
+        }
+    }
+
+    /**
+     * Clicks are recorded as well, and the action gets this tray (instead of the real one), so that whatever it does is recorded too.
+     */
+    private SystemTrayMenuAction wrap(String origMenuText, String menuText, SystemTrayMenuAction callback) {
+        synchronized (this.actions) {
+            RecordedAction action = this.actions.remove(origMenuText);
+            if (callback == null) {
+                return null;
+            }
+
+            if (action == null || action.callback != callback || !action.menuText.equals(menuText)) {
+                if (callback instanceof InlineMenuAction) {
+                    action = new RecordedInlineAction(menuText, callback);
+                } else {
+                    action = new RecordedAction(menuText, callback);
+                }
+            }
+
+            this.actions.put(menuText, action);
+            return action;
+        }
+    }
+
+    private class RecordedAction implements SystemTrayMenuAction {
+        final String menuText;
+        final SystemTrayMenuAction callback;
+
+        RecordedAction(String menuText, SystemTrayMenuAction callback) {
+            this.menuText = menuText;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onClick(SystemTray systemTray) {
+            click(this.menuText, this.callback);
+        }
+    }
+
+    private class RecordedInlineAction extends RecordedAction implements InlineMenuAction {
+        RecordedInlineAction(String menuText, SystemTrayMenuAction callback) {
+            super(menuText, callback);
+        }
+    }
+
+    private void click(String menuText, SystemTrayMenuAction callback) {
+        long start = System.nanoTime();
+        try {
+            callback.onClick(this);
+        } finally {
+            record(CLICK, start, menuText);
+        }
+    }
+
+    private void record(byte op, long start, Object... args) {
+        long now = System.nanoTime();
+
+        synchronized (this.out) {
+            if (this.closed) {
+                return;
+            }
+
+            try {
+                this.out.writeByte(op);
+                writeVarLong(this.out, (start - this.startTime) / 1000L);
+                writeVarLong(this.out, (now - start) / 1000L);
+
+                for (Object arg : args) {
+                    if (arg instanceof Boolean) {
+                        this.out.writeBoolean((Boolean) arg);
+                    } else {
+                        writeString(this.out, (String) arg);
+                    }
+                }
+
+                // so nothing is lost if the application dies. The tray is not called often enough for this to matter
+                this.out.flush();
+            } catch (IOException e) {
+                logger.error("Unable to record tray call.", e);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,832 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dorkbox.util.NamedThreadFactory;
+
+/**
+ * A tray that is shown by a helper JVM ({@link TrayHost}), so that AWT, GTK and JNA are never loaded into this one -- and a crash in
+ * them only takes down the helper. Used when the "SystemTray.outOfProcess" system property is "true".
+ * <p>
+ * The helper is started with the same java and classpath, and this talks to it over its stdin/stdout. Calls return right away: they
+ * are written (in batches, everything made while the last batch was being written goes out in the next one) to the helper, which
+ * makes them on the real tray. Clicks are pushed back, and the callbacks run here. The state of the tray (icon, status, menu) is kept
+ * here as well, so isMenuEntryChecked() does not need a round trip, and so that a helper that dies is restarted with the same tray.
+ * <p>
+ * Protocol: a stream of records, each an op (byte) followed by its arguments. Strings are a boolean (false for null) followed by the
+ * modified UTF-8 string, callbacks and submenus are referred to by (int) id, 0 being none.
+ */
+public class RemoteSystemTray extends SystemTray {
+    /** JVM options for the helper */
+    public static String[] HELPER_JVM_OPTIONS = new String[] {"-Xmx32m", "-Xss512k", "-XX:+UseSerialGC"};
+
+    /** How many times in a row the helper is restarted (after it dies) before giving up, and running the failure callback */
+    public static int MAX_RESTARTS = 3;
+
+    /** A helper that ran for at least this long counts as having worked, so the restart count starts over */
+    public static long RESTART_RESET_MILLIS = 60000L;
+
+    /** How long the helper waits for the entries of a submenu */
+    public static long SUBMENU_TIMEOUT_MILLIS = 30000L;
+
+    /** Show the tray in the helper with the {@link dorkbox.util.tray.headless.HeadlessSystemTray} (for benchmarks and testing) */
+    public static boolean HEADLESS = false;
+
+    // to the helper. The ops shared with the recording are the same numbers (RecordingSystemTray.CREATE_TRAY, etc)
+    static final byte HELLO = 16;
+    static final byte SHOW_FRAME = 17;
+    static final byte PRELOAD_ICON = 18;
+    static final byte ADD_SUBMENU = 19;
+    static final byte INVALIDATE_SUBMENU = 20;
+    static final byte SUBMENU_ITEMS = 21;
+    static final byte PING = 22;
+    static final byte TEST_CLICK = 23;
+
+    // from the helper. (PING is echoed back, and clicks use RecordingSystemTray.CLICK)
+    static final byte FAILED = 24;
+    static final byte SUBMENU_REQUEST = 25;
+
+    private static final int MENU_ITEM = 0;
+    private static final int CHECK_ITEM = 1;
+    private static final int RADIO_ITEM = 2;
+    private static final int SUBMENU_ITEM = 3;
+
+    /**
+     * The state of a menu entry, to replay it to a new helper.
+     */
+    private static class Entry {
+        private final int type;
+        private final String group;
+        private String label;
+        private int callbackId;
+        private boolean checked;
+
+        Entry(int type, String group, String label) {
+            this.type = type;
+            this.group = group;
+            this.label = label;
+        }
+    }
+
+    /**
+     * A running helper.
+     */
+    private class Helper {
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final long startTime = System.nanoTime();
+
+        Helper(Process process) {
+            this.process = process;
+            this.out = new DataOutputStream(process.getOutputStream());
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+    }
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(new NamedThreadFactory("SysTrayRemoteWriter", true));
+
+    // runs the submenu providers, they can take a while
+    private static final ExecutorService providers = Executors.newCachedThreadPool(new NamedThreadFactory("SysTrayRemoteSubmenu", true));
+
+    // everything below (and writing to 'batch') is guarded by this
+    private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(1024);
+    private final DataOutputStream batch = new DataOutputStream(this.batchBytes);
+    private boolean flushQueued;
+
+    private Helper helper;
+    private int restarts;
+    private boolean removed;
+
+    private String iconName;
+    private String statusText;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private int nextId = 1;
+    private final Map<SystemTrayMenuAction, Integer> callbackIds = new IdentityHashMap<SystemTrayMenuAction, Integer>();
+    // how many entries use each callback id. The id is let go of when the last one is changed to another callback
+    private final Map<Integer, Integer> callbackUses = new HashMap<Integer, Integer>();
+    // the ids (of callbacks and submenus) that were handed out with the entries of a submenu, by that submenu. Thrown away on reload
+    private final Map<Integer, List<Integer>> ownedIds = new ConcurrentHashMap<Integer, List<Integer>>();
+    // end of guarded by this
+
+    private final Map<Integer, SystemTrayMenuAction> callbacks = new ConcurrentHashMap<Integer, SystemTrayMenuAction>();
+    private final Map<Integer, SubmenuProvider> submenuProviders = new ConcurrentHashMap<Integer, SubmenuProvider>();
+    // the submenu id of each top-level submenu, by text
+    private final Map<String, Integer> submenuIds = new ConcurrentHashMap<String, Integer>();
+
+    private final Map<Long, CountDownLatch> pings = new ConcurrentHashMap<Long, CountDownLatch>();
+    private final AtomicInteger pingSequence = new AtomicInteger();
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public RemoteSystemTray() {
+    }
+
+    @Override
+    public void createTray(String iconName) {
+        synchronized (this) {
+            this.iconName = iconName;
+            this.removed = false;
+            this.active = true;
+
+            if (this.helper == null) {
+                // the new helper gets the whole state, which includes the tray
+                if (!startHelper()) {
+                    this.active = false;
+                }
+            } else {
+                write(RecordingSystemTray.CREATE_TRAY, iconName);
+            }
+        }
+
+        if (!this.active) {
+            trayFailed();
+        }
+    }
+
+    @Override
+    public void removeTray() {
+        Helper helper;
+        synchronized (this) {
+            this.active = false;
+            this.removed = true;
+
+            helper = this.helper;
+            this.helper = null;
+
+            if (helper != null) {
+                write(helper, RecordingSystemTray.REMOVE_TRAY);
+            }
+
+            this.entries.clear();
+            this.callbackIds.clear();
+            this.callbackUses.clear();
+            this.ownedIds.clear();
+        }
+        this.callbacks.clear();
+        this.submenuProviders.clear();
+        this.submenuIds.clear();
+
+        if (helper != null) {
+            // the helper exits when its stdin is closed, after removing the tray
+            try {
+                helper.out.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        super.removeTray();
+    }
+
+    @Override
+    public synchronized void setStatus(String infoString, String iconName) {
+        this.statusText = infoString;
+        this.iconName = iconName;
+        write(RecordingSystemTray.SET_STATUS, infoString, iconName);
+    }
+
+    @Override
+    protected synchronized void showFrame(String infoString, String iconName) {
+        this.statusText = infoString;
+        this.iconName = iconName;
+        write(SHOW_FRAME, infoString, iconName);
+    }
+
+    @Override
+    protected synchronized void preloadIcon(String iconName) {
+        write(PRELOAD_ICON, iconName);
+    }
+
+    @Override
+    protected synchronized void displayNotification(String title, String message) {
+        // notifications are not replayed
+        write(RecordingSystemTray.NOTIFICATION, title, message);
+    }
+
+    @Override
+    public synchronized void addMenuEntry(String menuText, SystemTrayMenuAction callback) {
+        Entry entry = this.entries.get(menuText);
+        if (entry == null) {
+            entry = new Entry(MENU_ITEM, null, menuText);
+            this.entries.put(menuText, entry);
+        }
+        setCallback(entry, callback);
+
+        write(RecordingSystemTray.ADD_MENU_ENTRY, menuText, entry.callbackId);
+    }
+
+    @Override
+    public synchronized void updateMenuEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback) {
+        Entry entry = this.entries.get(origMenuText);
+        if (entry == null) {
+            addMenuEntry(origMenuText, newCallback);
+            return;
+        }
+        entry.label = newMenuText;
+        setCallback(entry, newCallback);
+
+        write(RecordingSystemTray.UPDATE_MENU_ENTRY, origMenuText, newMenuText, entry.callbackId);
+    }
+
+    @Override
+    public synchronized void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        Entry entry = toggleEntry(CHECK_ITEM, null, menuText, checked, callback);
+        write(RecordingSystemTray.ADD_CHECK_MENU_ENTRY, menuText, checked, entry.callbackId);
+    }
+
+    @Override
+    public synchronized void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        Entry entry = toggleEntry(RADIO_ITEM, group, menuText, selected, callback);
+        write(RecordingSystemTray.ADD_RADIO_MENU_ENTRY, group, menuText, selected, entry.callbackId);
+    }
+
+    // must hold the lock on this
+    private Entry toggleEntry(int type, String group, String menuText, boolean checked, SystemTrayMenuAction callback) {
+        Entry entry = this.entries.get(menuText);
+        if (entry == null) {
+            entry = new Entry(type, group, menuText);
+            this.entries.put(menuText, entry);
+        }
+        setCallback(entry, callback);
+        setChecked(entry, checked);
+        return entry;
+    }
+
+    @Override
+    public synchronized void setMenuEntryChecked(String menuText, boolean checked) {
+        Entry entry = this.entries.get(menuText);
+        if (entry != null) {
+            setChecked(entry, checked);
+        }
+        write(RecordingSystemTray.SET_MENU_ENTRY_CHECKED, menuText, checked);
+    }
+
+    @Override
+    public synchronized boolean isMenuEntryChecked(String menuText) {
+        // clicks tell us about changes, so this is always up to date
+        Entry entry = this.entries.get(menuText);
+        return entry != null && entry.checked;
+    }
+
+    // must hold the lock on this. Radio entries uncheck the others in their group
+    private void setChecked(Entry entry, boolean checked) {
+        if (checked && entry.group != null) {
+            for (Entry other : this.entries.values()) {
+                if (other != entry && entry.group.equals(other.group)) {
+                    other.checked = false;
+                }
+            }
+        }
+        entry.checked = checked;
+    }
+
+    @Override
+    protected synchronized void addSubmenuEntry(String menuText, LazySubmenu submenu) {
+        Entry entry = this.entries.get(menuText);
+        if (entry == null) {
+            entry = new Entry(SUBMENU_ITEM, null, menuText);
+            this.entries.put(menuText, entry);
+        } else if (entry.type != SUBMENU_ITEM) {
+            logger.error("Menu entry '{}' already exists, and is not a submenu.", menuText);
+            return;
+        }
+
+        // the helper asks for the entries, and caches them (so the LazySubmenu here is not used)
+        int id = this.nextId++;
+        this.submenuProviders.put(id, submenu.getProvider());
+        this.submenuIds.put(menuText, id);
+        if (entry.callbackId != 0) {
+            // the submenu it replaces, and everything that was loaded into it
+            release(entry.callbackId, true);
+        }
+        entry.callbackId = id;
+
+        write(ADD_SUBMENU, menuText, id);
+    }
+
+    @Override
+    protected synchronized void invalidateSubmenuEntry(String menuText) {
+        write(INVALIDATE_SUBMENU, menuText);
+    }
+
+    /**
+     * Measures the round trip to the helper: from a call made here, until its reply is read here.
+     *
+     * @param count how many round trips to make (one after the other)
+     * @return the latency of every round trip, or null if there is no helper
+     */
+    public LatencyHistogram ping(int count) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+
+        for (int i = 0; i < count; i++) {
+            long id = this.pingSequence.incrementAndGet();
+            CountDownLatch latch = new CountDownLatch(1);
+            this.pings.put(id, latch);
+
+            long start = System.nanoTime();
+            synchronized (this) {
+                if (this.helper == null) {
+                    this.pings.remove(id);
+                    return null;
+                }
+                write(PING, id);
+            }
+
+            boolean replied = latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            this.pings.remove(id);
+            if (!replied) {
+                throw new SystemTrayTimeoutException("No reply from the tray helper in " + TIMEOUT_MILLIS + " ms");
+            }
+            latency.record(System.nanoTime() - start);
+        }
+
+        return latency;
+    }
+
+    /**
+     * Has the helper act as if the user clicked on the menu entry. Only works with a {@link #HEADLESS} helper, for testing.
+     */
+    public synchronized void testClick(String menuText) {
+        write(TEST_CLICK, menuText);
+    }
+
+    /**
+     * Kills the helper (as if it crashed). It is restarted, and the tray is shown again. For testing.
+     */
+    public void killHelper() {
+        Helper helper;
+        synchronized (this) {
+            helper = this.helper;
+        }
+        if (helper != null) {
+            helper.process.destroy();
+        }
+    }
+
+    /**
+     * Must hold the lock on this. Changes the callback of a (non-submenu) entry, and lets go of the id of the callback it had before,
+     * if no other entry uses it.
+     */
+    private void setCallback(Entry entry, SystemTrayMenuAction callback) {
+        int oldId = entry.callbackId;
+
+        int id = 0;
+        if (callback != null) {
+            Integer existing = this.callbackIds.get(callback);
+            if (existing == null) {
+                id = this.nextId++;
+                this.callbackIds.put(callback, id);
+                this.callbacks.put(id, callback);
+                this.callbackUses.put(id, 1);
+            } else {
+                id = existing;
+                if (id == oldId) {
+                    return;
+                }
+                this.callbackUses.put(id, this.callbackUses.get(id) + 1);
+            }
+        }
+        entry.callbackId = id;
+
+        if (oldId != 0) {
+            int uses = this.callbackUses.get(oldId) - 1;
+            if (uses == 0) {
+                this.callbackUses.remove(oldId);
+                this.callbackIds.remove(this.callbacks.remove(oldId));
+            } else {
+                this.callbackUses.put(oldId, uses);
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock on this. Starts the helper, and gives it the whole state.
+     *
+     * @return false if it could not be started
+     */
+    private boolean startHelper() {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<String> command = new ArrayList<String>();
+        command.add(java);
+        command.addAll(Arrays.asList(HELPER_JVM_OPTIONS));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TrayHost.class.getName());
+
+        Process process;
+        try {
+            process = new ProcessBuilder(command).start();
+        } catch (IOException e) {
+            logger.error("Unable to start the tray helper.", e);
+            return false;
+        }
+
+        final Helper helper = new Helper(process);
+        this.helper = helper;
+
+        // anything that is already waiting to be written is part of the state, which is written again
+        this.batchBytes.reset();
+
+        write(HELLO, this.appName, ICON_PATH, HEADLESS, SUBMENU_TIMEOUT_MILLIS);
+        write(RecordingSystemTray.CREATE_TRAY, this.iconName);
+        if (this.statusText != null) {
+            write(RecordingSystemTray.SET_STATUS, this.statusText, this.iconName);
+        }
+
+        for (Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+            String menuText = mapEntry.getKey();
+            Entry entry = mapEntry.getValue();
+
+            switch (entry.type) {
+                case MENU_ITEM:
+                    write(RecordingSystemTray.ADD_MENU_ENTRY, menuText, entry.callbackId);
+                    break;
+                case CHECK_ITEM:
+                    write(RecordingSystemTray.ADD_CHECK_MENU_ENTRY, menuText, entry.checked, entry.callbackId);
+                    break;
+                case RADIO_ITEM:
+                    write(RecordingSystemTray.ADD_RADIO_MENU_ENTRY, entry.group, menuText, entry.checked, entry.callbackId);
+                    break;
+                case SUBMENU_ITEM:
+                    write(ADD_SUBMENU, menuText, entry.callbackId);
+                    break;
+            }
+
+            if (!entry.label.equals(menuText)) {
+                write(RecordingSystemTray.UPDATE_MENU_ENTRY, menuText, entry.label, entry.type == SUBMENU_ITEM ? 0 : entry.callbackId);
+            }
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(helper);
+            }
+        }, "SysTrayRemoteReader");
+        reader.setDaemon(true);
+        reader.start();
+
+        // whatever the helper says on stderr goes to the log
+        Thread errors = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(helper.process.getErrorStream()));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        logger.info("[tray helper] {}", line);
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }, "SysTrayRemoteErrors");
+        errors.setDaemon(true);
+        errors.start();
+
+        return true;
+    }
+
+    /**
+     * Reads what the helper sends, until it exits. Runs on the reader thread of that helper.
+     */
+    private void read(Helper helper) {
+        try {
+            while (true) {
+                byte op = helper.in.readByte();
+
+                switch (op) {
+                    case RecordingSystemTray.CLICK: {
+                        int callbackId = helper.in.readInt();
+                        String menuText = readString(helper.in);
+                        boolean checked = helper.in.readBoolean();
+                        clicked(callbackId, menuText, checked);
+                        break;
+                    }
+
+                    case PING: {
+                        CountDownLatch latch = this.pings.get(helper.in.readLong());
+                        if (latch != null) {
+                            latch.countDown();
+                        }
+                        break;
+                    }
+
+                    case SUBMENU_REQUEST: {
+                        final int requestId = helper.in.readInt();
+                        final int submenuId = helper.in.readInt();
+                        providers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                loadSubmenu(requestId, submenuId);
+                            }
+                        });
+                        break;
+                    }
+
+                    case FAILED:
+                        // restarting it won't help, it exits after this
+                        synchronized (this) {
+                            if (this.helper == helper) {
+                                this.helper = null;
+                                this.active = false;
+                            }
+                        }
+                        logger.error("The tray helper was unable to create the tray.");
+                        trayFailed();
+                        break;
+
+                    default:
+                        throw new IOException("Unknown op from the tray helper: " + op);
+                }
+            }
+        } catch (EOFException e) {
+            // it exited
+        } catch (IOException e) {
+            logger.error("Lost the connection to the tray helper.", e);
+        }
+
+        helper.process.destroy();
+        helperExited(helper);
+    }
+
+    private void helperExited(Helper helper) {
+        boolean failed = false;
+
+        synchronized (this) {
+            if (this.helper != helper) {
+                // removed (or already replaced)
+                return;
+            }
+            this.helper = null;
+
+            if (this.removed) {
+                return;
+            }
+
+            if (System.nanoTime() - helper.startTime > TimeUnit.MILLISECONDS.toNanos(RESTART_RESET_MILLIS)) {
+                this.restarts = 0;
+            }
+
+            if (this.restarts < MAX_RESTARTS) {
+                this.restarts++;
+                logger.warn("The tray helper exited, restarting it ({} of {}).", this.restarts, MAX_RESTARTS);
+                if (!startHelper()) {
+                    failed = true;
+                }
+            } else {
+                logger.error("The tray helper exited {} times in a row, giving up.", this.restarts + 1);
+                failed = true;
+            }
+
+            if (failed) {
+                this.active = false;
+            }
+        }
+
+        if (failed) {
+            trayFailed();
+        }
+    }
+
+    private void clicked(int callbackId, String menuText, boolean checked) {
+        synchronized (this) {
+            // (submenu entries don't have any state, their clicks don't have a menu text)
+            Entry entry = menuText == null ? null : this.entries.get(menuText);
+            if (entry != null && (entry.type == CHECK_ITEM || entry.type == RADIO_ITEM)) {
+                setChecked(entry, checked);
+            }
+        }
+
+        SystemTrayMenuAction callback = this.callbacks.get(callbackId);
+        if (callback != null) {
+            dispatchClick(callback);
+        }
+    }
+
+    /**
+     * Runs the submenu provider, and sends the entries to the helper. Runs on a provider thread.
+     */
+    private void loadSubmenu(int requestId, int submenuId) {
+        SubmenuProvider provider = this.submenuProviders.get(submenuId);
+
+        List<SubmenuItem> items = null;
+        if (provider != null) {
+            try {
+                items = provider.getItems();
+            } catch (Throwable t) {
+                logger.error("Unable to get the submenu entries from {}", provider, t);
+            }
+        }
+
+        synchronized (this) {
+            // the ids handed out the last time this submenu was loaded are not used anymore
+            release(submenuId, false);
+
+            List<Integer> owned = new ArrayList<Integer>();
+            this.ownedIds.put(submenuId, owned);
+
+            try {
+                this.batch.writeByte(SUBMENU_ITEMS);
+                this.batch.writeInt(requestId);
+                this.batch.writeBoolean(items != null);
+                if (items != null) {
+                    this.batch.writeInt(items.size());
+                    for (SubmenuItem item : items) {
+                        int id = 0;
+                        if (item.isSubmenu()) {
+                            id = this.nextId++;
+                            this.submenuProviders.put(id, item.getProvider());
+                            owned.add(id);
+                        } else if (item.getCallback() != null) {
+                            id = this.nextId++;
+                            this.callbacks.put(id, item.getCallback());
+                            owned.add(id);
+                        }
+
+                        this.batch.writeBoolean(item.isSubmenu());
+                        writeString(this.batch, item.getText());
+                        this.batch.writeInt(id);
+                    }
+                }
+            } catch (IOException e) {
+                // can't happen, it's in memory
+                throw new RuntimeException(e);
+            }
+            queueFlush();
+        }
+    }
+
+    // must hold the lock on this
+    private void release(int id, boolean self) {
+        if (self) {
+            this.callbacks.remove(id);
+            this.submenuProviders.remove(id);
+        }
+
+        List<Integer> owned = this.ownedIds.remove(id);
+        if (owned != null) {
+            for (Integer ownedId : owned) {
+                release(ownedId, true);
+            }
+        }
+    }
+
+    private void trayFailed() {
+        this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (RemoteSystemTray.this.failureCallback != null) {
+                    RemoteSystemTray.this.failureCallback.createTrayFailed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Must hold the lock on this. Adds the call to the batch that is written next. Does nothing if there is no helper, because it gets
+     * the whole state when it is started.
+     */
+    private void write(byte op, Object... args) {
+        if (this.helper == null) {
+            return;
+        }
+
+        try {
+            this.batch.writeByte(op);
+            writeArgs(this.batch, args);
+        } catch (IOException e) {
+            // can't happen, it's in memory
+            throw new RuntimeException(e);
+        }
+        queueFlush();
+    }
+
+    /**
+     * Must hold the lock on this. Writes straight to the helper (ie: the last call, before it goes away).
+     */
+    private void write(Helper helper, byte op, Object... args) {
+        try {
+            flushTo(helper);
+            helper.out.writeByte(op);
+            writeArgs(helper.out, args);
+            helper.out.flush();
+        } catch (IOException ignored) {
+            // it is gone already
+        }
+    }
+
+    // must hold the lock on this
+    private void queueFlush() {
+        if (!this.flushQueued) {
+            this.flushQueued = true;
+            writer.execute(this.flush);
+        }
+    }
+
+    /**
+     * Writes everything in the batch, in one go. Runs on the writer thread.
+     */
+    private void flush() {
+        Helper helper;
+        byte[] bytes;
+        synchronized (this) {
+            this.flushQueued = false;
+            helper = this.helper;
+            if (helper == null || this.batchBytes.size() == 0) {
+                return;
+            }
+            bytes = this.batchBytes.toByteArray();
+            this.batchBytes.reset();
+        }
+
+        try {
+            // only this thread writes (except for the last call), so the batches stay in order
+            OutputStream out = helper.out;
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            // the reader finds out that it died, and restarts it
+            logger.debug("Unable to write to the tray helper.", e);
+        }
+    }
+
+    // must hold the lock on this
+    private void flushTo(Helper helper) throws IOException {
+        if (this.batchBytes.size() > 0) {
+            helper.out.write(this.batchBytes.toByteArray());
+            this.batchBytes.reset();
+        }
+    }
+
+    static void writeArgs(DataOutputStream out, Object... args) throws IOException {
+        for (Object arg : args) {
+            if (arg instanceof Boolean) {
+                out.writeBoolean((Boolean) arg);
+            } else if (arg instanceof Integer) {
+                out.writeInt((Integer) arg);
+            } else if (arg instanceof Long) {
+                out.writeLong((Long) arg);
+            } else {
+                writeString(out, (String) arg);
+            }
+        }
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the bounds of every screen, so that placing the popup menu is simple arithmetic instead of a walk through every
+ * GraphicsDevice (which is what SwingUtil.getScreenBoundsAt() does).
+ * <p>
+ * The cache is dropped when the display configuration changes, and when a point isn't on any of the cached screens (a screen was
+ * added or moved, and the JVM didn't let us listen for that).
+ */
+public class ScreenBounds {
+    private static final Logger logger = LoggerFactory.getLogger(ScreenBounds.class);
+
+    private static final Object lock = new Object();
+
+    private static volatile Rectangle[] screens;
+    private static volatile int defaultScreen;
+
+    // the graphics environment only keeps a weak reference to its listeners
+    private static Object displayChangedListener;
+
+    static {
+        listenForDisplayChanges();
+    }
+
+    /**
+     * @return the bounds of the screen that contains the point (or of the default screen). The returned rectangle is shared, and
+     *         MUST NOT be modified.
+     */
+    public static Rectangle at(int x, int y) {
+        Rectangle[] cached = getScreens();
+
+        Rectangle bounds = find(cached, x, y);
+        if (bounds == null) {
+            // maybe a screen was added, and we haven't been told
+            invalidate();
+            cached = getScreens();
+
+            bounds = find(cached, x, y);
+            if (bounds == null) {
+                // the default index might belong to a newer array
+                bounds = cached[Math.min(defaultScreen, cached.length - 1)];
+            }
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Forget all cached screen bounds.
+     */
+    public static void invalidate() {
+        screens = null;
+    }
+
+    private static Rectangle find(Rectangle[] bounds, int x, int y) {
+        for (int i = 0; i < bounds.length; i++) {
+            Rectangle screen = bounds[i];
+            if (screen.contains(x, y)) {
+                return screen;
+            }
+        }
+
+        return null;
+    }
+
+    private static Rectangle[] getScreens() {
+        Rectangle[] cached = screens;
+        if (cached != null) {
+            return cached;
+        }
+
+        synchronized (lock) {
+            GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
+            GraphicsDevice defaultDevice = ge.getDefaultScreenDevice();
+            GraphicsDevice[] devices = ge.getScreenDevices();
+
+            Rectangle[] bounds = new Rectangle[devices.length];
+            int defaultIndex = 0;
+            for (int i = 0; i < devices.length; i++) {
+                bounds[i] = devices[i].getDefaultConfiguration().getBounds();
+                if (devices[i] == defaultDevice) {
+                    defaultIndex = i;
+                }
+            }
+
+            defaultScreen = defaultIndex;
+            screens = bounds;
+            return bounds;
+        }
+    }
+
+    /**
+     * There is no public API for this, but every Sun/Oracle/OpenJDK graphics environment supports a DisplayChangedListener. Without it,
+     * a change is only noticed when a click is outside of every cached screen.
+     */
+    private static void listenForDisplayChanges() {
+        try {
+            GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
+            Class<?> listenerClass = Class.forName("sun.awt.DisplayChangedListener");
+            Method addListener = ge.getClass().getMethod("addDisplayChangedListener", listenerClass);
+
+            Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[] {listenerClass}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(this, args);
+                    }
+
+                    // displayChanged() or paletteChanged()
+                    invalidate();
+                    return null;
+                }
+            });
+
+            addListener.invoke(ge, listener);
+            displayChangedListener = listener;
+        } catch (Throwable t) {
+            // ie: the JDK doesn't open sun.awt, or it is not a Sun graphics environment
+            logger.debug("Unable to listen for display changes, the screen bounds are recomputed when a click is off every screen.", t);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+/**
+ * Supplies a value (status text, icon name or menu label) that is polled by the tray, see {@link SystemTray#pollStatus}.
+ */
+public interface StatusSupplier {
+    /**
+     * Called on the (shared) poller thread, so it should be quick. A null value is ignored (the last one is kept).
+     */
+    String get();
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+/**
+ * An entry of a submenu: either a menu entry with an action, or another (lazily populated) submenu.
+ */
+public final class SubmenuItem {
+    final String text;
+    final SystemTrayMenuAction callback;
+    final SubmenuProvider provider;
+
+    private SubmenuItem(String text, SystemTrayMenuAction callback, SubmenuProvider provider) {
+        this.text = text;
+        this.callback = callback;
+        this.provider = provider;
+    }
+
+    public static SubmenuItem entry(String text, SystemTrayMenuAction callback) {
+        return new SubmenuItem(text, callback, null);
+    }
+
+    public static SubmenuItem submenu(String text, SubmenuProvider provider) {
+        if (provider == null) {
+            throw new NullPointerException("provider");
+        }
+        return new SubmenuItem(text, null, provider);
+    }
+
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * @return the action, or null if this is a submenu
+     */
+    public SystemTrayMenuAction getCallback() {
+        return this.callback;
+    }
+
+    /**
+     * @return the provider of the entries, or null if this is not a submenu
+     */
+    public SubmenuProvider getProvider() {
+        return this.provider;
+    }
+
+    public boolean isSubmenu() {
+        return this.provider != null;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.List;
+
+/**
+ * Supplies the entries of a submenu, see {@link SystemTray#addSubmenu(String, SubmenuProvider)}.
+ */
+public interface SubmenuProvider {
+    /**
+     * Called (off the UI thread) the first time the submenu is opened, and the first time after it was invalidated. The result is
+     * cached until then.
+     */
+    List<SubmenuItem> getItems();
+}
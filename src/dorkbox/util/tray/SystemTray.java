@@ -15,22 +15,33 @@
  */
 package dorkbox.util.tray;
 
+import java.awt.EventQueue;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.math.BigInteger;
 import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +51,7 @@ import dorkbox.util.OS;
 import dorkbox.util.jna.linux.GtkSupport;
 import dorkbox.util.tray.linux.AppIndicatorTray;
 import dorkbox.util.tray.linux.GtkSystemTray;
+import dorkbox.util.tray.linux.StatusNotifierTray;
 import dorkbox.util.tray.swing.SwingSystemTray;
 
 
@@ -48,9 +60,6 @@ import dorkbox.util.tray.swing.SwingSystemTray;
  */
 public abstract class SystemTray {
 
-    private static final Charset UTF_8 = Charset.forName("UTF-8");
-    private static MessageDigest digest;
-
     protected static final Logger logger = LoggerFactory.getLogger(SystemTray.class);
 
     /**
@@ -63,7 +72,37 @@ public abstract class SystemTray {
      */
     public static String ICON_PATH = "";
 
-    private static final long runtimeRandom = new SecureRandom().nextLong();
+    /**
+     * When set, every call made to the tray is recorded to this file (appended), so it can be played back with {@link TrayReplay}
+     */
+    public static String RECORD_FILE = null;
+
+    /**
+     * How long a tray operation waits for the Swing EDT or GTK event loop, before failing with a {@link SystemTrayTimeoutException}
+     */
+    public static long TIMEOUT_MILLIS = 10000L;
+
+    /**
+     * How many clicks can be waiting for the callback executor before queueing one more allocates anything. More than that are still
+     * queued (the queue grows), a click is never dropped.
+     */
+    public static int CALLBACK_QUEUE_SIZE = 1024;
+
+    /**
+     * How long an {@link InlineMenuAction} may block the GTK/Swing event thread before it is reported, and moved to the callback executor
+     */
+    public static long INLINE_ACTION_LIMIT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * How many entries of a menu list are shown, by trays that show it as a (native) submenu. See {@link #addMenuList}
+     */
+    public static int MENU_LIST_LIMIT = 200;
+
+    /**
+     * The last entry of a menu list that has more than {@link #MENU_LIST_LIMIT} entries, with the number that isn't shown
+     */
+    public static String MENU_LIST_MORE_TEXT = "(%d more)";
+
     private static Class<? extends SystemTray> trayType;
 
     static {
@@ -72,12 +111,39 @@ public abstract class SystemTray {
             TRAY_SIZE -= 4;
         }
 
-        if (OS.isLinux()) {
-            GtkSupport.init();
-            if (GtkSupport.isSupported) {
+        if ("true".equals(System.getProperty("SystemTray.outOfProcess"))) {
+            // the tray is shown by a helper JVM, so none of the native (or AWT) detection happens in this one
+            trayType = RemoteSystemTray.class;
+        }
+
+        if (trayType == null && OS.isLinux()) {
+            // "true" to always use the StatusNotifierItem tray (when there is a tray host for it), "false" to never use it
+            String statusNotifier = System.getProperty("SystemTray.statusNotifier");
+            String desktop = System.getenv("XDG_CURRENT_DESKTOP");
+            boolean preferStatusNotifier = "true".equals(statusNotifier) ||
+                                           (statusNotifier == null && desktop != null && desktop.contains("KDE"));
+
+            // has to happen before JNA is used, and starts loading GTK in the background (unless we probably won't need it)
+            NativeLoader.init(!preferStatusNotifier);
+
+            if (preferStatusNotifier && StatusNotifierTray.isSupported()) {
+                trayType = StatusNotifierTray.class;
+            }
+
+            boolean gtkSupported = false;
+            if (trayType == null) {
+                try {
+                    NativeLoader.init(true);
+                    GtkSupport.init();
+                    gtkSupported = GtkSupport.isSupported;
+                } catch (Throwable t) {
+                    logger.debug("GTK is not available.", t);
+                }
+            }
+
+            if (trayType == null && gtkSupported) {
                 // quick check, because we know that unity uses app-indicator. Maybe REALLY old versions do not. We support 14.04 LTE at least
-                String getenv = System.getenv("XDG_CURRENT_DESKTOP");
-                if (getenv != null && getenv.equals("Unity")) {
+                if (desktop != null && desktop.equals("Unity")) {
                     try {
                         trayType = AppIndicatorTray.class;
                     } catch (Exception ignored) {
@@ -133,6 +199,11 @@ public abstract class SystemTray {
                     trayType = GtkSystemTray.class;
                 }
             }
+
+            // no GTK, the StatusNotifierItem tray doesn't need it
+            if (trayType == null && !"false".equals(statusNotifier) && StatusNotifierTray.isSupported()) {
+                trayType = StatusNotifierTray.class;
+            }
         }
 
         // this is windows OR mac
@@ -145,7 +216,7 @@ public abstract class SystemTray {
             logger.error("Unsupported tray type!");
         } else {
             try {
-                digest = MessageDigest.getInstance("MD5");
+                MessageDigest.getInstance("MD5");
             } catch (NoSuchAlgorithmException e) {
                 logger.error("Unsupported hashing algorithm!");
                 trayType = null;
@@ -153,18 +224,111 @@ public abstract class SystemTray {
         }
     }
 
-    protected final ExecutorService callbackExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("SysTrayExecutor", false));
+    // the thread that runs the callbacks, so a teardown from a callback knows not to wait for itself
+    private volatile Thread callbackThread;
+
+    private final ThreadFactory callbackThreads = new ThreadFactory() {
+        private final ThreadFactory threads = new NamedThreadFactory("SysTrayExecutor", false);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = this.threads.newThread(runnable);
+            SystemTray.this.callbackThread = thread;
+            return thread;
+        }
+    };
+
+    // unbounded, so a callback is never dropped. Clicks are queued in their own ring, so they don't allocate a node each
+    private final ThreadPoolExecutor callbackPool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                                                           new LinkedBlockingQueue<Runnable>(), this.callbackThreads,
+                                                                           new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            // only happens after the tray is removed, when callbacks are ignored
+        }
+    });
+    protected final ExecutorService callbackExecutor = this.callbackPool;
+
+    private final LatencyHistogram clickLatency = new LatencyHistogram();
+    private final NotificationQueue notifications = new NotificationQueue(this);
+    private final Map<String, LazySubmenu> submenus = new ConcurrentHashMap<String, LazySubmenu>(2);
+    private final TrayStatusUpdates statusUpdates = new TrayStatusUpdates(this);
+    private final AtomicReference<TeardownReport> teardown = new AtomicReference<TeardownReport>();
+
+    // the clicks that are waiting for the callback executor, so queueing one doesn't allocate anything (until there are more than fit,
+    // then it grows). Guarded by clickLock
+    private final Object clickLock = new Object();
+    private SystemTrayMenuAction[] queuedClicks = new SystemTrayMenuAction[Math.max(1, CALLBACK_QUEUE_SIZE)];
+    private long[] queuedClickTimes = new long[this.queuedClicks.length];
+    private int queuedClickHead;
+    private int queuedClickCount;
+    // if runQueuedClicks is queued on the callback executor (or running), and will run the clicks that are queued after this
+    private boolean clicksScheduled;
+    // how many clicks were run, and by how many runQueuedClicks tasks, for the teardown report
+    private int clicksRun;
+    private int clickTasksRun;
+
+    // queued when a click is queued while none are waiting, and runs every click that is queued until it is done
+    private final Runnable runQueuedClicks = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                SystemTrayMenuAction action;
+                long clickTime;
+
+                synchronized (SystemTray.this.clickLock) {
+                    if (SystemTray.this.queuedClickCount == 0) {
+                        SystemTray.this.clicksScheduled = false;
+                        SystemTray.this.clickTasksRun++;
+                        return;
+                    }
+
+                    SystemTrayMenuAction[] queuedClicks = SystemTray.this.queuedClicks;
+                    int head = SystemTray.this.queuedClickHead;
+                    action = queuedClicks[head];
+                    clickTime = SystemTray.this.queuedClickTimes[head];
+                    queuedClicks[head] = null;
+
+                    SystemTray.this.queuedClickHead = (head + 1) % queuedClicks.length;
+                    SystemTray.this.queuedClickCount--;
+                    SystemTray.this.clicksRun++;
+                }
+
+                runAction(action, clickTime);
+            }
+        }
+    };
+
+    // inline actions that blocked for too long. They are not allowed to run inline anymore
+    private final Set<SystemTrayMenuAction> slowInlineActions =
+                    Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<SystemTrayMenuAction, Boolean>()));
 
     protected volatile FailureCallback failureCallback;
     protected volatile boolean active = false;
     protected String appName;
 
     public static SystemTray create(String appName) {
+        return create(appName, trayType);
+    }
+
+    /**
+     * Creates a tray of the given type, instead of the one that was detected (ie: to train every backend).
+     */
+    static SystemTray create(String appName, Class<? extends SystemTray> trayType) {
         if (trayType != null) {
             try {
                 SystemTray newInstance = trayType.newInstance();
                 if (newInstance != null) {
                     newInstance.setAppName(appName);
+
+                    if (RECORD_FILE != null) {
+                        try {
+                            return new RecordingSystemTray(newInstance, new File(RECORD_FILE));
+                        } catch (IOException e) {
+                            // the tray still works, it just isn't recorded
+                            logger.error("Unable to record the tray to '{}'.", RECORD_FILE, e);
+                        }
+                    }
                 }
                 return newInstance;
             } catch (Exception e) {
@@ -183,112 +347,470 @@ public abstract class SystemTray {
     public abstract void createTray(String iconName);
 
     public void removeTray() {
+        stopBackgroundWork();
         SystemTray.this.callbackExecutor.shutdown();
     }
 
+    /**
+     * Removes the tray, but waits for at most the timeout. It is safe to call while other threads are still changing the tray (the
+     * changes that come after it are ignored), and more than once (the others wait for the first one).
+     * <p>
+     * It first stops the pollers, the animation and the notifications. Then it runs the callbacks that are still queued (if
+     * drainCallbacks), or throws them away, and then it removes the tray. The callbacks get at most half of the timeout: after that, the
+     * rest are thrown away, and the one that is running is interrupted. If removing the tray takes longer than what is left, it is
+     * finished in the background.
+     *
+     * @param drainCallbacks true to run the queued callbacks (until the deadline), false to throw them away
+     * @return how long each phase took, and what was not done
+     */
+    public TeardownReport removeTray(long timeout, TimeUnit unit, boolean drainCallbacks) {
+        final long start = System.nanoTime();
+        final long deadline = start + unit.toNanos(timeout);
+
+        final TeardownReport report = new TeardownReport();
+        if (!this.teardown.compareAndSet(null, report)) {
+            TeardownReport first = this.teardown.get();
+            try {
+                first.done.await(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return first;
+        }
+
+        try {
+            stopBackgroundWork();
+            long stopped = System.nanoTime();
+            report.stopNanos = stopped - start;
+
+            ThreadPoolExecutor callbacks = this.callbackPool;
+            int completed = callbacksRun(callbacks);
+            if (drainCallbacks) {
+                callbacks.shutdown();
+            } else {
+                report.cancelledCallbacks = cancelQueuedClicks(callbacks.shutdownNow());
+            }
+
+            // a callback that removes the tray can't wait for itself (or for the callbacks queued after it)
+            if (Thread.currentThread() != this.callbackThread) {
+                try {
+                    // at most half of the time, so there is still time left to remove the tray
+                    long callbackDeadline = start + unit.toNanos(timeout) / 2;
+                    if (!callbacks.awaitTermination(Math.max(0L, callbackDeadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                        report.cancelledCallbacks += cancelQueuedClicks(callbacks.shutdownNow());
+                        report.callbackRunning = callbacks.getActiveCount() > 0;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            // a task that just finished can be counted before the executor counts it
+            report.drainedCallbacks = Math.max(0, callbacksRun(callbacks) - completed);
+
+            long drained = System.nanoTime();
+            report.callbacksNanos = drained - stopped;
+
+            // the tray does its own (native) removal in one go, which is waited for until the deadline
+            FutureTask<Object> removal = new FutureTask<Object>(new Runnable() {
+                @Override
+                public void run() {
+                    removeTray();
+                }
+            }, null);
+            Thread thread = new Thread(removal, "SysTrayTeardown");
+            thread.setDaemon(true);
+            thread.start();
+
+            try {
+                removal.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                report.nativeRemoved = true;
+            } catch (TimeoutException e) {
+                logger.warn("The tray was not removed within {} ms, it is left to be removed in the background.",
+                            unit.toMillis(timeout));
+            } catch (ExecutionException e) {
+                logger.error("Unable to remove the tray.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            long end = System.nanoTime();
+            report.nativeNanos = end - drained;
+            report.totalNanos = end - start;
+        } finally {
+            report.done.countDown();
+        }
+
+        return report;
+    }
+
+    private void stopBackgroundWork() {
+        this.statusUpdates.stop();
+        this.submenus.clear();
+
+        this.notifications.clear();
+    }
+
     public abstract void setStatus(String infoString, String iconName);
 
+    /**
+     * Animates the tray icon (ie: a "busy" spinner), instead of calling setStatus() from a timer. The frames are prepared once (see
+     * {@link #preloadIcons(String...)}) before the animation starts, and it loops until it is stopped, another animation is started,
+     * or the tray is removed. Call {@link #stopAnimation()} before calling setStatus() again.
+     *
+     * @param infoString the status text, while animating
+     * @param framesPerSecond how fast to go through the frames. Frames are skipped (not queued) when the tray can't keep up.
+     * @param frameIconNames the icon of each frame. Repeating an icon holds it for longer, at no cost.
+     */
+    public final TrayAnimation animate(String infoString, int framesPerSecond, String... frameIconNames) {
+        return this.statusUpdates.animate(infoString, framesPerSecond, frameIconNames);
+    }
+
+    /**
+     * Stops the animation (if there is one). The frame that was shown last stays.
+     */
+    public final void stopAnimation() {
+        this.statusUpdates.stopAnimation();
+    }
+
+    /**
+     * Shows the next frame of an animation. The status text has already been set (to infoString) with the first frame, so trays that
+     * can change only the icon should override this, and do that -- with the icon that was prepared by {@link #preloadIcon(String)}.
+     */
+    protected void showFrame(String infoString, String iconName) {
+        setStatus(infoString, iconName);
+    }
+
+    /**
+     * Polls the status text and icon (instead of having a timer that calls setStatus()), and calls setStatus() only when one of them
+     * changed. The suppliers of every tray are polled on one shared thread, starting right away.
+     *
+     * @param statusText supplies the status text. Use one that returns a constant for a value that doesn't change.
+     * @param iconName supplies the icon name
+     * @param intervalMillis how long to wait between polls
+     *
+     * @return the poller, to cancel it or to see how long the suppliers take. It is cancelled when the tray is removed.
+     */
+    public final PolledStatus pollStatus(StatusSupplier statusText, StatusSupplier iconName, long intervalMillis) {
+        return this.statusUpdates.pollStatus(statusText, iconName, intervalMillis);
+    }
+
+    /**
+     * Polls the label of a menu entry, and calls updateMenuEntry() only when it changed.
+     *
+     * @param menuText the (original) text of the menu entry, which it is found by. The entry is added if it doesn't exist yet.
+     * @param label supplies the label
+     * @param callback the action of the menu entry
+     * @param intervalMillis how long to wait between polls
+     *
+     * @return the poller, to cancel it or to see how long the supplier takes. It is cancelled when the tray is removed.
+     */
+    public final PolledStatus pollMenuEntry(String menuText, StatusSupplier label, SystemTrayMenuAction callback,
+                                            long intervalMillis) {
+        return this.statusUpdates.pollMenuEntry(menuText, label, callback, intervalMillis);
+    }
+
+    /**
+     * @return how long each polled supplier takes to evaluate, and how often the values changed
+     */
+    public final String getPollReport() {
+        return this.statusUpdates.getPollReport();
+    }
+
     public abstract void addMenuEntry(String menuText, SystemTrayMenuAction callback);
 
     public abstract void updateMenuEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback);
 
+    /**
+     * Will add a new menu entry that has a check-box (or update one if it already exists). The callback is run every time the user
+     * toggles it.
+     *
+     * @throws UnsupportedOperationException if this tray doesn't have check-box entries
+     */
+    public void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        throw unsupported("check-box menu entries");
+    }
 
-    protected String iconPath(String fileName) {
-        // is file sitting on drive
-        File iconTest;
-        if (ICON_PATH.isEmpty()) {
-            iconTest = new File(fileName);
-        } else {
-            iconTest = new File(ICON_PATH, fileName);
+    /**
+     * Will add a new radio menu entry (or update one if it already exists). Only one entry per group is selected at a time. The
+     * callback is run when the user selects it.
+     *
+     * @throws UnsupportedOperationException if this tray doesn't have radio entries
+     */
+    public void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        throw unsupported("radio menu entries");
+    }
+
+    /**
+     * Changes the state of a check-box or radio menu entry in place. The label and callback are left alone, and the callback is NOT run.
+     *
+     * @throws UnsupportedOperationException if this tray doesn't have check-box or radio entries
+     */
+    public void setMenuEntryChecked(String menuText, boolean checked) {
+        throw unsupported("check-box and radio menu entries");
+    }
+
+    /**
+     * @return true if the check-box or radio menu entry is currently checked.
+     *
+     * @throws UnsupportedOperationException if this tray doesn't have check-box or radio entries
+     */
+    public boolean isMenuEntryChecked(String menuText) {
+        throw unsupported("check-box and radio menu entries");
+    }
+
+    /**
+     * Adds a submenu, whose entries come from the provider when it is first opened (instead of being built up front). They are cached
+     * until {@link #invalidateSubmenu(String)} is called. The provider is called off the UI thread, and entries can be submenus too.
+     * Adding a submenu that already exists replaces its provider.
+     */
+    public final void addSubmenu(String menuText, SubmenuProvider provider) {
+        LazySubmenu submenu = new LazySubmenu(provider);
+        // first, so a tray that doesn't have submenus doesn't keep it
+        addSubmenuEntry(menuText, submenu);
+        this.submenus.put(menuText, submenu);
+    }
+
+    /**
+     * Throws away the cached entries of the submenu, so that they are asked for again the next time it is opened.
+     */
+    public final void invalidateSubmenu(String menuText) {
+        LazySubmenu submenu = this.submenus.get(menuText);
+        if (submenu != null) {
+            submenu.invalidate();
+            invalidateSubmenuEntry(menuText);
         }
-        if (iconTest.isFile() && iconTest.canRead()) {
-            return iconTest.getAbsolutePath();
-        } else {
-            if (!ICON_PATH.isEmpty()) {
-                fileName = ICON_PATH + "/" + fileName;
-            }
+    }
 
-            String extension = "";
-            int dot = fileName.lastIndexOf('.');
-            if (dot > -1) {
-                extension = fileName.substring(dot + 1);
-            }
+    /**
+     * Adds a list of entries (ie: thousands of recent files), without making a menu entry for each one. The Swing popup (which the GTK
+     * tray uses as well) shows it as a scrolling list that only renders the rows that are visible, with a filter field. Native menus
+     * can't do that, so there it is a submenu of the first {@link #MENU_LIST_LIMIT} entries, which is cached until
+     * {@link #invalidateSubmenu(String)} is called. Adding a list that already exists replaces its model.
+     */
+    public void addMenuList(String menuText, final MenuListModel model) {
+        addSubmenu(menuText, new SubmenuProvider() {
+            @Override
+            public List<SubmenuItem> getItems() {
+                int size = model.getSize();
+                int shown = Math.min(size, MENU_LIST_LIMIT);
+
+                List<SubmenuItem> items = new ArrayList<SubmenuItem>(shown + 1);
+                for (int i = 0; i < shown; i++) {
+                    final int index = i;
+                    items.add(SubmenuItem.entry(model.getText(i), new SystemTrayMenuAction() {
+                        @Override
+                        public void onClick(SystemTray systemTray) {
+                            model.onClick(systemTray, index);
+                        }
+                    }));
+                }
 
-            // maybe it's in somewhere else.
-            URL systemResource = Thread.currentThread().getContextClassLoader().getResource(fileName);
-            if (systemResource == null) {
-                // maybe it's in the system classloader?
-                systemResource = ClassLoader.getSystemResource(fileName);
+                if (shown < size) {
+                    items.add(SubmenuItem.entry(String.format(MENU_LIST_MORE_TEXT, size - shown), null));
+                }
+                return items;
             }
+        });
+    }
 
-            if (systemResource != null) {
-                // copy out to a temp file, as a hash of the file
-                String resourceFileName = systemResource.getPath();
-                byte[] bytes = resourceFileName.getBytes(UTF_8);
-                File newFile;
-                String tempDir = System.getProperty("java.io.tmpdir");
-
-                // can be wimpy, only one at a time
-                synchronized (SystemTray.this) {
-                    digest.reset();
-                    digest.update(bytes);
-
-                    // For KDE4, it must also be unique across runs
-                    byte[] longBytes = new byte[8];
-                    ByteBuffer wrap = ByteBuffer.wrap(longBytes);
-                    wrap.putLong(runtimeRandom);
-                    digest.update(longBytes);
-
-                    byte[] hashBytes = digest.digest();
-                    String hash = new BigInteger(1, hashBytes).toString(32);
-
-                    newFile = new File(tempDir, hash + '.' + extension).getAbsoluteFile();
-                    newFile.deleteOnExit();
-                }
+    /**
+     * Adds (or replaces) the menu entry that opens the submenu. When it is opened, the entries are in {@link LazySubmenu#open}.
+     *
+     * @throws UnsupportedOperationException if this tray doesn't have submenus
+     */
+    protected void addSubmenuEntry(String menuText, LazySubmenu submenu) {
+        throw unsupported("submenus");
+    }
 
-                InputStream inStream = null;
-                OutputStream outStream = null;
+    /**
+     * Called after the cached entries of the submenu were thrown away. Only needed by trays that cache the entries somewhere else.
+     */
+    protected void invalidateSubmenuEntry(String menuText) {
+    }
 
-                try {
-                    inStream = systemResource.openStream();
-                    outStream = new FileOutputStream(newFile);
 
-                    byte[] buffer = new byte[2048];
-                    int read;
-                    while ((read = inStream.read(buffer)) > 0) {
-                        outStream.write(buffer, 0, read);
-                    }
+    /**
+     * Runs the runnable on the EDT and waits for it, for at most {@link #TIMEOUT_MILLIS}.
+     *
+     * @throws SystemTrayTimeoutException if the EDT didn't run it in time
+     */
+    protected static void runOnEdt(Runnable runnable) {
+        if (EventQueue.isDispatchThread()) {
+            runnable.run();
+        } else {
+            FutureTask<Object> task = new FutureTask<Object>(runnable, null);
+            EventQueue.invokeLater(task);
+            TrayWatchdog.await(task, TrayWatchdog.EDT);
+        }
+    }
 
-                    return newFile.getAbsolutePath();
-                } catch (IOException e) {
-                    // Running from main line.
-                    String message = "Unable to copy icon '" + fileName + "' to location: '" + newFile.getAbsolutePath() + "'";
-                    logger.error(message, e);
-                    throw new RuntimeException(message);
-                } finally {
-                    try {
-                        if (inStream != null) {
-                            inStream.close();
-                        }
-                    } catch (Exception ignored) {
-                    }
-                    try {
-                        if (outStream != null) {
-                            outStream.close();
-                        }
-                    } catch (Exception ignored) {
-                    }
+    /**
+     * Gets the icons ready (finds them, copies them out of the jar, and decodes/scales them if that is what this tray needs) in
+     * parallel, so that the first time each one is used is as fast as every other time. Call this at startup, with every icon that
+     * will be used.
+     *
+     * @return a future that is done once every icon is ready. If an icon could not be loaded, get() throws the first such error.
+     */
+    public final Future<?> preloadIcons(String... iconNames) {
+        return TrayIcons.preload(this, iconNames);
+    }
+
+    /**
+     * Called (in parallel, from the icon loader threads) for every icon that is preloaded. By default, the icon is copied to the file
+     * system. Trays that convert the icon to something else should do that here instead, and cache it.
+     *
+     * @param iconName the name the icon will be used with
+     */
+    protected void preloadIcon(String iconName) {
+        iconPath(iconName);
+    }
+
+    /**
+     * Shows a desktop notification (balloon message). This never blocks, notifications are queued and de-duplicated, merged and rate
+     * limited by the {@link NotificationQueue}.
+     *
+     * @param key notifications with the same key are considered duplicates of each other
+     */
+    public final void showNotification(String key, String title, String message) {
+        this.notifications.submit(key, title, message);
+    }
+
+    /**
+     * @return the notification queue, for its metrics
+     */
+    public final NotificationQueue getNotifications() {
+        return this.notifications;
+    }
+
+    /**
+     * Actually shows the notification. Called by the {@link NotificationQueue}, never more often than it allows.
+     *
+     * @throws UnsupportedOperationException if this tray can't show notifications (the queue logs it, for every notification)
+     */
+    protected void displayNotification(String title, String message) {
+        throw unsupported("notifications");
+    }
+
+    private UnsupportedOperationException unsupported(String feature) {
+        return new UnsupportedOperationException(getClass().getSimpleName() + " does not support " + feature);
+    }
+
+    /**
+     * Called by the backends when a menu entry is clicked, on whatever thread delivered the click (GTK event loop or EDT).
+     */
+    protected final void dispatchClick(final SystemTrayMenuAction action) {
+        final long clickTime = System.nanoTime();
+
+        if (action instanceof InlineMenuAction && !this.slowInlineActions.contains(action)) {
+            runAction(action, clickTime);
+
+            long blockedNanos = System.nanoTime() - clickTime;
+            if (blockedNanos > INLINE_ACTION_LIMIT_NANOS) {
+                this.slowInlineActions.add(action);
+                logger.warn("Inline menu action {} blocked the '{}' thread for {} ms. It will run on the callback executor from now on.",
+                            action.getClass().getName(), Thread.currentThread().getName(), TimeUnit.NANOSECONDS.toMillis(blockedNanos));
+            }
+        } else {
+            synchronized (this.clickLock) {
+                if (this.queuedClickCount == this.queuedClicks.length) {
+                    growQueuedClicks();
                 }
 
-                // appIndicator/gtk require strings
-                // swing version loads as an image
+                SystemTrayMenuAction[] queuedClicks = this.queuedClicks;
+                int tail = (this.queuedClickHead + this.queuedClickCount) % queuedClicks.length;
+                queuedClicks[tail] = action;
+                this.queuedClickTimes[tail] = clickTime;
+                this.queuedClickCount++;
+
+                if (this.clicksScheduled) {
+                    return;
+                }
+                this.clicksScheduled = true;
             }
+
+            this.callbackExecutor.execute(this.runQueuedClicks);
         }
+    }
+
+    /**
+     * Doubles the size of the (full) click queue. MUST be called with clickLock held.
+     */
+    private void growQueuedClicks() {
+        int count = this.queuedClickCount;
+        SystemTrayMenuAction[] clicks = new SystemTrayMenuAction[count * 2];
+        long[] clickTimes = new long[clicks.length];
+
+        for (int i = 0; i < count; i++) {
+            int index = (this.queuedClickHead + i) % count;
+            clicks[i] = this.queuedClicks[index];
+            clickTimes[i] = this.queuedClickTimes[index];
+        }
+
+        this.queuedClicks = clicks;
+        this.queuedClickTimes = clickTimes;
+        this.queuedClickHead = 0;
+    }
 
-        // Running from main line.
-        String message = "Unable to find icon '" + fileName + "'";
-        logger.error(message);
-        throw new RuntimeException(message);
+    /**
+     * Throws away the clicks that are still queued.
+     *
+     * @param cancelled the callbacks that the executor did not run
+     * @return how many callbacks (and clicks) were thrown away
+     */
+    private int cancelQueuedClicks(List<Runnable> cancelled) {
+        synchronized (this.clickLock) {
+            int count = cancelled.size() + this.queuedClickCount;
+            if (cancelled.remove(this.runQueuedClicks)) {
+                count--;
+            }
+
+            Arrays.fill(this.queuedClicks, null);
+            this.queuedClickHead = 0;
+            this.queuedClickCount = 0;
+            return count;
+        }
+    }
+
+    /**
+     * @return how many callbacks ran, where each click counts as one callback (instead of the task that ran it)
+     */
+    private int callbacksRun(ThreadPoolExecutor callbacks) {
+        synchronized (this.clickLock) {
+            return (int) callbacks.getCompletedTaskCount() - this.clickTasksRun + this.clicksRun;
+        }
+    }
+
+    private void runAction(SystemTrayMenuAction action, long clickTime) {
+        this.clickLatency.record(System.nanoTime() - clickTime);
+
+        try {
+            action.onClick(this);
+        } catch (Throwable t) {
+            logger.error("Error running menu action.", t);
+        }
+    }
+
+    /**
+     * @return the latency from when this tray receives a click (GTK signal or AWT ActionEvent), until the action's onClick() starts.
+     */
+    public final LatencyHistogram getClickLatency() {
+        return this.clickLatency;
+    }
+
+    /**
+     * @return where the icon is, for trays that read it themselves (instead of giving a file path to a native library). Unlike
+     * {@link #iconPath(String)}, an icon that is in a jar is not copied out.
+     */
+    protected URL iconUrl(String fileName) {
+        return TrayIcons.url(fileName);
+    }
+
+    /**
+     * @return the file of the icon. Icons that are in a jar are copied out (once) to a temp file. Once the icon was found, this only
+     * checks (at most once a second) that the file is still there.
+     */
+    protected String iconPath(String fileName) {
+        return TrayIcons.path(fileName);
     }
 
     public final void setFailureCallback(FailureCallback failureCallback) {
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.swing.ButtonGroup;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JMenuItem;
+import javax.swing.JRadioButtonMenuItem;
+
+/**
+ * The menu of the trays that show it with a {@link SystemTrayMenuPopup} (Swing and GTK): the status entry, and the menu entries by
+ * text. Every method can be called from any thread, the popup itself is only changed on the EDT.
+ */
+public class SystemTrayMenuEntries {
+
+    /**
+     * The listener of a menu entry. It is kept (and changed) when the entry is updated, instead of being replaced.
+     */
+    private final class MenuAction implements ActionListener {
+        private volatile String text;
+        private volatile SystemTrayMenuAction callback;
+
+        MenuAction(String text, SystemTrayMenuAction callback) {
+            this.text = text;
+            this.callback = callback;
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            SystemTrayMenuAction callback = this.callback;
+            if (callback != null) {
+                SystemTrayMenuEntries.this.tray.dispatchClick(callback);
+            }
+        }
+    }
+
+    private final SystemTray tray;
+
+    private volatile SystemTrayMenuPopup popup;
+
+    // only changed on the EDT (which is what keeps the edits in order), but can be read from anywhere without a lock
+    private final Map<String, JMenuItem> menuEntries = new ConcurrentHashMap<String, JMenuItem>(2);
+
+    // only changed on the EDT, can be read from anywhere. So an update that doesn't change anything doesn't have to go to the EDT
+    private final Map<String, MenuAction> menuActions = new ConcurrentHashMap<String, MenuAction>(2);
+
+    // only accessed on the EDT
+    private final Map<String, ButtonGroup> radioGroups = new HashMap<String, ButtonGroup>(2);
+    private JMenuItem statusItem;
+
+    // what the status entry shows. Only changed on the EDT, once it shows it, so an update that timed out is not skipped next time
+    private volatile String statusText;
+
+    public SystemTrayMenuEntries(SystemTray tray) {
+        this.tray = tray;
+    }
+
+    /**
+     * Creates the popup. Must be called on the EDT.
+     */
+    public SystemTrayMenuPopup createPopup() {
+        SystemTrayMenuPopup popup = new SystemTrayMenuPopup();
+        this.popup = popup;
+        return popup;
+    }
+
+    /**
+     * @return the popup, or null if it wasn't created yet
+     */
+    public SystemTrayMenuPopup getPopup() {
+        return this.popup;
+    }
+
+    /**
+     * Forgets every entry (the popup is left as it is). Must be called on the EDT.
+     */
+    public void clear() {
+        this.menuEntries.clear();
+        this.menuActions.clear();
+        this.radioGroups.clear();
+    }
+
+    /**
+     * Shows the status text in the (disabled) first entry.
+     */
+    public void setStatus(final String infoString) {
+        // a tray that is updated from a timer mostly sets what is already there, which shouldn't cost anything
+        if (infoString.equals(this.statusText)) {
+            return;
+        }
+
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                JMenuItem statusItem = SystemTrayMenuEntries.this.statusItem;
+                if (statusItem == null) {
+                    statusItem = new JMenuItem(infoString);
+                    statusItem.setEnabled(false);
+                    SystemTrayMenuEntries.this.popup.add(statusItem);
+                    SystemTrayMenuEntries.this.statusItem = statusItem;
+                } else {
+                    statusItem.setText(infoString);
+                }
+                SystemTrayMenuEntries.this.statusText = infoString;
+            }
+        });
+    }
+
+    /**
+     * Will add a new menu entry, or update one if it already exists
+     */
+    public void addMenuEntry(final String menuText, final SystemTrayMenuAction callback) {
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                JMenuItem menuEntry = SystemTrayMenuEntries.this.menuEntries.get(menuText);
+
+                if (menuEntry == null) {
+                    add(menuText, new JMenuItem(menuText), callback);
+                } else {
+                    updateMenuEntry(menuText, menuText, callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Will update an already existing menu entry (or add a new one, if it doesn't exist)
+     */
+    public void updateMenuEntry(final String origMenuText, final String newMenuText, final SystemTrayMenuAction newCallback) {
+        MenuAction current = this.menuActions.get(origMenuText);
+        if (current != null && current.callback == newCallback && newMenuText.equals(current.text)) {
+            // nothing changed, so there is no need to go to the EDT (which allocates)
+            return;
+        }
+
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                JMenuItem menuEntry = SystemTrayMenuEntries.this.menuEntries.get(origMenuText);
+
+                if (menuEntry != null) {
+                    MenuAction menuAction = SystemTrayMenuEntries.this.menuActions.get(origMenuText);
+                    if (menuAction == null) {
+                        // ie: it was a submenu
+                        for (ActionListener l : menuEntry.getActionListeners()) {
+                            menuEntry.removeActionListener(l);
+                        }
+
+                        menuAction = new MenuAction(newMenuText, newCallback);
+                        menuEntry.addActionListener(menuAction);
+                        SystemTrayMenuEntries.this.menuActions.put(origMenuText, menuAction);
+                    } else {
+                        menuAction.callback = newCallback;
+                        menuAction.text = newMenuText;
+                    }
+
+                    if (!newMenuText.equals(menuEntry.getText())) {
+                        menuEntry.setText(newMenuText);
+                        menuEntry.revalidate();
+                    }
+                } else {
+                    addMenuEntry(origMenuText, newCallback);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param group null for a check-box entry, otherwise the radio group
+     */
+    public void addToggleMenuEntry(final String group, final String menuText, final boolean checked, final SystemTrayMenuAction callback) {
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                JMenuItem menuEntry = SystemTrayMenuEntries.this.menuEntries.get(menuText);
+
+                if (menuEntry == null) {
+                    if (group == null) {
+                        menuEntry = new JCheckBoxMenuItem(menuText, checked);
+                    } else {
+                        menuEntry = new JRadioButtonMenuItem(menuText, checked);
+
+                        ButtonGroup buttonGroup = SystemTrayMenuEntries.this.radioGroups.get(group);
+                        if (buttonGroup == null) {
+                            buttonGroup = new ButtonGroup();
+                            SystemTrayMenuEntries.this.radioGroups.put(group, buttonGroup);
+                        }
+                        buttonGroup.add(menuEntry);
+                    }
+
+                    add(menuText, menuEntry, callback);
+                } else {
+                    menuEntry.setSelected(checked);
+                    updateMenuEntry(menuText, menuText, callback);
+                }
+            }
+        });
+    }
+
+    // must be called on the EDT
+    private void add(String menuText, JMenuItem menuEntry, SystemTrayMenuAction callback) {
+        MenuAction menuAction = new MenuAction(menuText, callback);
+        menuEntry.addActionListener(menuAction);
+        this.popup.add(menuEntry);
+
+        this.menuEntries.put(menuText, menuEntry);
+        this.menuActions.put(menuText, menuAction);
+    }
+
+    public void addSubmenuEntry(final String menuText, final LazySubmenu submenu) {
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                SystemTrayMenuPopup popup = SystemTrayMenuEntries.this.popup;
+                SystemTraySubmenu menuEntry = new SystemTraySubmenu(SystemTrayMenuEntries.this.tray, menuText, submenu);
+
+                JMenuItem existing = SystemTrayMenuEntries.this.menuEntries.put(menuText, menuEntry);
+                SystemTrayMenuEntries.this.menuActions.remove(menuText);
+                if (existing == null) {
+                    popup.add(menuEntry);
+                } else {
+                    // replace it where it is
+                    int index = popup.getComponentIndex(existing);
+                    popup.remove(index);
+                    popup.insert(menuEntry, index);
+                }
+            }
+        });
+    }
+
+    public void addMenuList(final String menuText, final MenuListModel model) {
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                SystemTrayMenuEntries.this.popup.addMenuList(SystemTrayMenuEntries.this.tray, menuText, model);
+            }
+        });
+    }
+
+    public void setMenuEntryChecked(final String menuText, final boolean checked) {
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                JMenuItem menuEntry = SystemTrayMenuEntries.this.menuEntries.get(menuText);
+
+                if (menuEntry != null) {
+                    // this does not fire an ActionEvent, so the listener (and callback) is left alone
+                    menuEntry.setSelected(checked);
+                }
+            }
+        });
+    }
+
+    public boolean isMenuEntryChecked(final String menuText) {
+        final boolean[] checked = new boolean[1];
+
+        SystemTray.runOnEdt(new Runnable() {
+            @Override
+            public void run() {
+                JMenuItem menuEntry = SystemTrayMenuEntries.this.menuEntries.get(menuText);
+                checked[0] = menuEntry != null && menuEntry.isSelected();
+            }
+        });
+
+        return checked[0];
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.BorderLayout;
+import java.awt.Container;
+import java.awt.Point;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Locale;
+
+import javax.swing.AbstractListModel;
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.MenuSelectionManager;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * A section of the Swing popup ({@link SystemTrayMenuPopup}) that shows a {@link MenuListModel} as a scrolling list, with a filter field
+ * on top (typing filters it). Only the visible rows are rendered, and every row has the same (fixed) size, so opening it takes the same
+ * time (and memory) whatever the size of the model. Only accessed on the EDT.
+ */
+// JList is only generic since java 7
+@SuppressWarnings("unchecked")
+public class SystemTrayMenuList extends JPanel {
+    private static final long serialVersionUID = 1L;
+
+    /** How many rows are visible, the rest is scrolled to */
+    public static int visibleRows = 15;
+
+    /** Sets the width of the rows */
+    public static String prototypeText = "MMMMMMMMMMMMMMMMMMMM";
+
+    /**
+     * The entries that are shown: all of them, or the ones that match the filter.
+     */
+    // raw, this targets java 6 (AbstractListModel is only generic since java 7)
+    @SuppressWarnings("rawtypes")
+    private class FilteredModel extends AbstractListModel {
+        private static final long serialVersionUID = 1L;
+
+        private int size;
+        // the model index of every row, or null if nothing is filtered out
+        private int[] matches;
+
+        @Override
+        public int getSize() {
+            return this.size;
+        }
+
+        @Override
+        public Object getElementAt(int row) {
+            return SystemTrayMenuList.this.model.getText(modelIndex(row));
+        }
+
+        int modelIndex(int row) {
+            return this.matches == null ? row : this.matches[row];
+        }
+
+        void refresh() {
+            MenuListModel model = SystemTrayMenuList.this.model;
+            String filter = SystemTrayMenuList.this.filter.getText().toLowerCase(Locale.ROOT);
+            int modelSize = model.getSize();
+            int oldSize = this.size;
+
+            if (filter.isEmpty()) {
+                this.matches = null;
+                this.size = modelSize;
+            } else {
+                int[] matches = this.matches != null && this.matches.length >= modelSize ? this.matches : new int[modelSize];
+                int count = 0;
+                for (int i = 0; i < modelSize; i++) {
+                    String text = model.getText(i);
+                    if (text != null && text.toLowerCase(Locale.ROOT).contains(filter)) {
+                        matches[count++] = i;
+                    }
+                }
+                this.matches = matches;
+                this.size = count;
+            }
+
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+            if (this.size > 0) {
+                fireIntervalAdded(this, 0, this.size - 1);
+            }
+        }
+    }
+
+    private final SystemTray tray;
+    private final JLabel title;
+    private final JTextField filter = new JTextField();
+    private final FilteredModel rows = new FilteredModel();
+    // raw, this targets java 6 (JList is only generic since java 7)
+    @SuppressWarnings("rawtypes")
+    private final JList list = new JList(this.rows);
+
+    private MenuListModel model;
+
+    public SystemTrayMenuList(SystemTray tray, String text, MenuListModel model) {
+        super(new BorderLayout());
+        this.tray = tray;
+        this.model = model;
+
+        this.title = new JLabel(text);
+        this.title.setEnabled(false);
+        this.title.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+
+        JPanel header = new JPanel(new BorderLayout());
+        header.setOpaque(false);
+        header.add(this.title, BorderLayout.NORTH);
+        header.add(this.filter, BorderLayout.SOUTH);
+        add(header, BorderLayout.NORTH);
+
+        // a fixed row size is what keeps the list from measuring every row
+        this.list.setPrototypeCellValue(prototypeText);
+        this.list.setVisibleRowCount(visibleRows);
+        this.list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        this.list.setFocusable(false);
+        add(new JScrollPane(this.list, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER),
+            BorderLayout.CENTER);
+
+        this.filter.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filterChanged();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filterChanged();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
+        this.filter.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_DOWN:
+                        select(Math.min(SystemTrayMenuList.this.list.getSelectedIndex() + 1, SystemTrayMenuList.this.rows.getSize() - 1));
+                        e.consume();
+                        break;
+                    case KeyEvent.VK_UP:
+                        select(Math.max(SystemTrayMenuList.this.list.getSelectedIndex() - 1, 0));
+                        e.consume();
+                        break;
+                    case KeyEvent.VK_ENTER:
+                        click(SystemTrayMenuList.this.list.getSelectedIndex());
+                        e.consume();
+                        break;
+                    case KeyEvent.VK_ESCAPE:
+                        if (!SystemTrayMenuList.this.filter.getText().isEmpty()) {
+                            SystemTrayMenuList.this.filter.setText("");
+                            e.consume();
+                        }
+                        break;
+                }
+            }
+        });
+
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                // highlights the row under the mouse, like a menu
+                select(rowAt(e.getPoint()));
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                if (SwingUtilities.isLeftMouseButton(e)) {
+                    click(rowAt(e.getPoint()));
+                }
+            }
+        };
+        this.list.addMouseListener(mouse);
+        this.list.addMouseMotionListener(mouse);
+
+        // the model is read again every time the popup is opened
+        addHierarchyListener(new HierarchyListener() {
+            @Override
+            public void hierarchyChanged(HierarchyEvent e) {
+                if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && isShowing()) {
+                    opened();
+                }
+            }
+        });
+
+        this.rows.refresh();
+    }
+
+    public void setText(String text) {
+        this.title.setText(text);
+    }
+
+    /**
+     * Shows another model (the filter is kept).
+     */
+    public void setModel(MenuListModel model) {
+        this.model = model;
+        this.rows.refresh();
+    }
+
+    private void opened() {
+        this.rows.refresh();
+        this.list.clearSelection();
+        this.list.ensureIndexIsVisible(0);
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                // so typing goes to the filter
+                SystemTrayMenuList.this.filter.requestFocusInWindow();
+            }
+        });
+    }
+
+    private void filterChanged() {
+        this.rows.refresh();
+        select(0);
+    }
+
+    private int rowAt(Point point) {
+        int row = this.list.locationToIndex(point);
+        if (row >= 0 && !this.list.getCellBounds(row, row).contains(point)) {
+            // below the last row
+            return -1;
+        }
+        return row;
+    }
+
+    private void select(int row) {
+        if (row < 0 || row >= this.rows.getSize()) {
+            this.list.clearSelection();
+        } else {
+            this.list.setSelectedIndex(row);
+            this.list.ensureIndexIsVisible(row);
+        }
+    }
+
+    private void click(int row) {
+        if (row < 0 || row >= this.rows.getSize()) {
+            return;
+        }
+
+        final MenuListModel model = this.model;
+        final int index = this.rows.modelIndex(row);
+
+        // closes the popup, like clicking on a menu entry does
+        MenuSelectionManager.defaultManager().clearSelectedPath();
+        Container popup = SwingUtilities.getAncestorOfClass(SystemTrayMenuPopup.class, this);
+        if (popup != null) {
+            popup.setVisible(false);
+        }
+
+        this.tray.dispatchClick(new SystemTrayMenuAction() {
+            @Override
+            public void onClick(SystemTray systemTray) {
+                model.onClick(systemTray, index);
+            }
+        });
+    }
+}
@@ -1,12 +1,26 @@
 package dorkbox.util.tray;
 
+import java.awt.Component;
+import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Graphics;
 import java.awt.MouseInfo;
 import java.awt.Point;
+import java.awt.event.ContainerEvent;
+import java.awt.event.ContainerListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.swing.AbstractButton;
 import javax.swing.JPopupMenu;
+import javax.swing.MenuElement;
+import javax.swing.MenuSelectionManager;
 
 import dorkbox.util.DelayTimer;
 import dorkbox.util.SwingUtil;
@@ -17,8 +31,39 @@ public class SystemTrayMenuPopup extends JPopupMenu {
     /** Allows you to customize the delay (for hiding the popup) when the cursor is "moused out" of the popup menu */
     public static long hidePopupDelay = 1000L;
 
+    /**
+     * Lays out and renders the popup off-screen every time the menu changes, so the first click (after a change) doesn't have to.
+     */
+    public static boolean prewarmPopup = false;
+
     private DelayTimer timer;
 
+    // only accessed on the EDT
+    private Dimension preferredSize;
+    private boolean prewarmQueued = false;
+
+    private final Runnable prewarm = new Runnable() {
+        @Override
+        public void run() {
+            SystemTrayMenuPopup.this.prewarmQueued = false;
+            prewarm();
+        }
+    };
+
+    private final PropertyChangeListener itemChangeListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent event) {
+            String name = event.getPropertyName();
+            if (AbstractButton.TEXT_CHANGED_PROPERTY.equals(name) || AbstractButton.ICON_CHANGED_PROPERTY.equals(name)
+                || "font".equals(name)) {
+                menuChanged();
+            }
+        }
+    };
+
+    // only accessed on the EDT
+    private final Map<String, SystemTrayMenuList> menuLists = new HashMap<String, SystemTrayMenuList>(2);
+
     protected boolean mouseStillOnMenu;
 //    private JDialog hiddenDialog;
 
@@ -33,11 +78,8 @@ public class SystemTrayMenuPopup extends JPopupMenu {
                     @Override
                     public void run() {
                         Point location = MouseInfo.getPointerInfo().getLocation();
-                        Point locationOnScreen = getLocationOnScreen();
-                        Dimension size = getSize();
 
-                        if (location.x >= locationOnScreen.x && location.x < locationOnScreen.x + size.width
-                            && location.y >= locationOnScreen.y && location.y < locationOnScreen.y + size.height) {
+                        if (isMouseOver(location)) {
 
                             SystemTrayMenuPopup.this.timer.delay(SystemTrayMenuPopup.this.timer.getDelay());
                         } else {
@@ -48,6 +90,20 @@ public class SystemTrayMenuPopup extends JPopupMenu {
             }
         });
 
+        addContainerListener(new ContainerListener() {
+            @Override
+            public void componentAdded(ContainerEvent event) {
+                event.getChild().addPropertyChangeListener(SystemTrayMenuPopup.this.itemChangeListener);
+                menuChanged();
+            }
+
+            @Override
+            public void componentRemoved(ContainerEvent event) {
+                event.getChild().removePropertyChangeListener(SystemTrayMenuPopup.this.itemChangeListener);
+                menuChanged();
+            }
+        });
+
         addMouseListener(new MouseAdapter() {
             @Override
             public void mouseExited(MouseEvent event) {
@@ -74,6 +130,45 @@ public class SystemTrayMenuPopup extends JPopupMenu {
 //        });
     }
 
+    /**
+     * Adds a list section (or shows another model in it, if it already exists). Must be called on the EDT.
+     */
+    public void addMenuList(SystemTray tray, String menuText, MenuListModel model) {
+        SystemTrayMenuList menuList = this.menuLists.get(menuText);
+        if (menuList == null) {
+            menuList = new SystemTrayMenuList(tray, menuText, model);
+            this.menuLists.put(menuText, menuList);
+            add(menuList);
+        } else {
+            menuList.setModel(model);
+        }
+    }
+
+    /**
+     * @return true if the mouse is on this popup, or on one of its submenus that is open
+     */
+    private boolean isMouseOver(Point location) {
+        if (contains(this, location)) {
+            return true;
+        }
+
+        for (MenuElement element : MenuSelectionManager.defaultManager().getSelectedPath()) {
+            Component component = element.getComponent();
+            if (component != this && component instanceof JPopupMenu && component.isShowing() && contains(component, location)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(Component component, Point location) {
+        Point locationOnScreen = component.getLocationOnScreen();
+        Dimension size = component.getSize();
+
+        return location.x >= locationOnScreen.x && location.x < locationOnScreen.x + size.width
+               && location.y >= locationOnScreen.y && location.y < locationOnScreen.y + size.height;
+    }
+
     @Override
     public void setVisible(boolean makeVisible) {
         this.timer.cancel();
@@ -86,4 +181,74 @@ public class SystemTrayMenuPopup extends JPopupMenu {
 //        this.hiddenDialog.setVisible(makeVisible);
         super.setVisible(makeVisible);
     }
+
+    /**
+     * The preferred size is cached until the menu items change, since every click needs it to place the popup.
+     */
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) {
+            return super.getPreferredSize();
+        }
+
+        if (this.preferredSize == null) {
+            this.preferredSize = super.getPreferredSize();
+        }
+        return new Dimension(this.preferredSize);
+    }
+
+    @Override
+    public void updateUI() {
+        // the look and feel changes the size of everything
+        this.preferredSize = null;
+        super.updateUI();
+    }
+
+    /**
+     * Lays out and renders (to an off-screen image) the popup and all of its items. Must be called on the EDT.
+     */
+    public void prewarm() {
+        if (isVisible()) {
+            return;
+        }
+
+        Dimension size = getPreferredSize();
+        if (size.width <= 0 || size.height <= 0) {
+            return;
+        }
+
+        setSize(size);
+        layoutTree(this);
+
+        // creates the glyph caches, icons, etc that are otherwise created by the first paint
+        BufferedImage image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics graphics = image.createGraphics();
+        try {
+            paint(graphics);
+        } catch (Exception ignored) {
+            // not fatal, the popup will still paint normally when it is shown
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    private void menuChanged() {
+        this.preferredSize = null;
+
+        if (prewarmPopup && !this.prewarmQueued) {
+            // coalesce all of the changes made together (ie: building the menu) into a single prewarm
+            this.prewarmQueued = true;
+            EventQueue.invokeLater(this.prewarm);
+        }
+    }
+
+    private static void layoutTree(Container container) {
+        container.doLayout();
+
+        for (Component component : container.getComponents()) {
+            if (component instanceof Container) {
+                layoutTree((Container) component);
+            }
+        }
+    }
 }
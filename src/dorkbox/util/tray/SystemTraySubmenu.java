@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+
+import dorkbox.util.SwingUtil;
+
+/**
+ * A submenu of the Swing popup ({@link SystemTrayMenuPopup}), which is populated from a {@link LazySubmenu} when it is opened. Used by
+ * the Swing and GTK trays. Only accessed on the EDT.
+ */
+public class SystemTraySubmenu extends JMenu {
+    private static final long serialVersionUID = 1L;
+
+    private final SystemTray tray;
+    private final LazySubmenu submenu;
+
+    // the entries that are shown now
+    private List<SubmenuItem> shownItems;
+
+    private final LazySubmenu.Listener listener = new LazySubmenu.Listener() {
+        @Override
+        public void loaded(final List<SubmenuItem> items) {
+            SwingUtil.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    show(items);
+                }
+            });
+        }
+    };
+
+    public SystemTraySubmenu(SystemTray tray, String text, LazySubmenu submenu) {
+        super(text);
+        this.tray = tray;
+        this.submenu = submenu;
+
+        // so it looks (and sizes) like a submenu before it is ever opened
+        showLoading();
+
+        addMenuListener(new MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                opened();
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
+    }
+
+    private void opened() {
+        List<SubmenuItem> items = this.submenu.open(this.listener);
+        if (items == null) {
+            showLoading();
+        } else {
+            show(items);
+        }
+    }
+
+    private void showLoading() {
+        this.shownItems = null;
+        removeAll();
+
+        JMenuItem loading = new JMenuItem(LazySubmenu.loadingText);
+        loading.setEnabled(false);
+        add(loading);
+    }
+
+    private void show(List<SubmenuItem> items) {
+        if (items == this.shownItems) {
+            // still cached, nothing to rebuild
+            return;
+        }
+        this.shownItems = items;
+
+        removeAll();
+        for (SubmenuItem item : items) {
+            if (item.isSubmenu()) {
+                add(new SystemTraySubmenu(this.tray, item.text, new LazySubmenu(item.provider)));
+            } else {
+                final SystemTrayMenuAction callback = item.callback;
+                JMenuItem menuItem = new JMenuItem(item.text);
+                menuItem.addActionListener(new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent e) {
+                        if (callback != null) {
+                            SystemTraySubmenu.this.tray.dispatchClick(callback);
+                        }
+                    }
+                });
+                add(menuItem);
+            }
+        }
+
+        if (isPopupMenuVisible()) {
+            // the popup has the size of the old entries
+            setPopupMenuVisible(false);
+            setPopupMenuVisible(true);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+/**
+ * Thrown by a tray operation when the Swing EDT or the GTK event loop did not run it within {@link SystemTray#TIMEOUT_MILLIS}.
+ * <p>
+ * The operation has been cancelled if it had not started yet. If it had already started, it will finish whenever that thread
+ * unblocks.
+ */
+public class SystemTrayTimeoutException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public SystemTrayTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link SystemTray#removeTray(long, TimeUnit, boolean)} did: how long each phase took, and what was not done by the deadline.
+ */
+public class TeardownReport {
+    final CountDownLatch done = new CountDownLatch(1);
+
+    volatile long stopNanos;
+    volatile long callbacksNanos;
+    volatile long nativeNanos;
+    volatile long totalNanos;
+
+    volatile int drainedCallbacks;
+    volatile int cancelledCallbacks;
+    volatile boolean callbackRunning;
+    volatile boolean nativeRemoved;
+
+    TeardownReport() {
+    }
+
+    /**
+     * @return how long it took to stop the pollers, the animation and the notifications
+     */
+    public long getStopNanos() {
+        return this.stopNanos;
+    }
+
+    /**
+     * @return how long it took to run (or cancel) the callbacks that were still queued
+     */
+    public long getCallbacksNanos() {
+        return this.callbacksNanos;
+    }
+
+    /**
+     * @return how long it took to remove the tray (the icon, menu and native resources), or how long it was waited for
+     */
+    public long getNativeNanos() {
+        return this.nativeNanos;
+    }
+
+    public long getTotalNanos() {
+        return this.totalNanos;
+    }
+
+    /**
+     * @return how many queued callbacks were run during the teardown
+     */
+    public int getDrainedCallbacks() {
+        return this.drainedCallbacks;
+    }
+
+    /**
+     * @return how many queued callbacks were thrown away, without being run
+     */
+    public int getCancelledCallbacks() {
+        return this.cancelledCallbacks;
+    }
+
+    /**
+     * @return true if a callback was still running at the deadline. It was interrupted, but it may still be running.
+     */
+    public boolean isCallbackRunning() {
+        return this.callbackRunning;
+    }
+
+    /**
+     * @return true if the tray was removed by the deadline. If not, it is still being removed (in the background).
+     */
+    public boolean isNativeRemoved() {
+        return this.nativeRemoved;
+    }
+
+    /**
+     * @return true if everything was done by the deadline, and no callback was thrown away
+     */
+    public boolean isComplete() {
+        return this.nativeRemoved && !this.callbackRunning && this.cancelledCallbacks == 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("teardown in ").append(millis(this.totalNanos)).append(" ms: stop ").append(millis(this.stopNanos))
+               .append(" ms, callbacks ").append(millis(this.callbacksNanos)).append(" ms (").append(this.drainedCallbacks)
+               .append(" run, ").append(this.cancelledCallbacks).append(" cancelled");
+        if (this.callbackRunning) {
+            builder.append(", one still running");
+        }
+        builder.append("), tray ").append(millis(this.nativeNanos)).append(" ms");
+        if (!this.nativeRemoved) {
+            builder.append(" (not removed yet)");
+        }
+        return builder.toString();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
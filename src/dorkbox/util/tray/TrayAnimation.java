@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.NamedThreadFactory;
+
+/**
+ * An animated tray icon, see {@link SystemTray#animate(String, int, String...)}.
+ * <p>
+ * The frames are prepared (copied out, decoded and scaled, whatever the tray needs) once, before the animation starts. Every animation
+ * (of every tray) is driven by the same clock thread, and which frame to show is worked out from the time, so an animation that falls
+ * behind skips frames instead of queueing them. A frame is only sent to the tray when the previous one is done, and when it is a
+ * different icon.
+ */
+public class TrayAnimation {
+    private static final Logger logger = LoggerFactory.getLogger(TrayAnimation.class);
+
+    // the shared clock. The thread goes away when nothing is animating
+    private static final ScheduledThreadPoolExecutor clock;
+
+    // sends the frames to the trays, so a slow tray can't hold up the clock (or the other trays)
+    private static final ExecutorService painter;
+
+    static {
+        clock = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("SysTrayAnimationClock", true));
+        clock.setKeepAliveTime(10L, TimeUnit.SECONDS);
+        clock.allowCoreThreadTimeOut(true);
+        clock.setRemoveOnCancelPolicy(true);
+
+        painter = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                                         new NamedThreadFactory("SysTrayAnimation", true));
+    }
+
+    private final SystemTray tray;
+    private final String infoString;
+    private final String[] frames;
+    // for every frame, how many frames until the icon is a different one. 0 if it never is
+    private final int[] untilChange;
+    private final long frameNanos;
+    private final Future<?> prepared;
+
+    private final AtomicBoolean painting = new AtomicBoolean();
+    private final AtomicLong shownCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    // only used by the clock thread
+    private long startTime;
+    private long lastFrameNumber = -1L;
+    // only used by the painter, while 'painting' is held
+    private String shownIcon;
+
+    private volatile boolean stopped;
+    private volatile ScheduledFuture<?> tick;
+
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    TrayAnimation(SystemTray tray, String infoString, int framesPerSecond, String[] frames, Future<?> prepared) {
+        this.tray = tray;
+        this.infoString = infoString;
+        this.frames = frames;
+        this.untilChange = untilChange(frames);
+        this.frameNanos = TimeUnit.SECONDS.toNanos(1L) / framesPerSecond;
+        this.prepared = prepared;
+    }
+
+    void start() {
+        schedule(0L);
+    }
+
+    private void schedule(long delayNanos) {
+        if (!this.stopped) {
+            this.tick = clock.schedule(this.tickTask, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Runs on the clock thread.
+     */
+    private void tick() {
+        if (this.stopped) {
+            return;
+        }
+        if (!this.tray.isActive()) {
+            // the tray is gone, and it doesn't come back
+            stop();
+            return;
+        }
+
+        if (!this.prepared.isDone()) {
+            // the frames are not ready yet, check again in a frame
+            schedule(this.frameNanos);
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (this.lastFrameNumber < 0) {
+            this.startTime = now;
+        }
+
+        long frameNumber = (now - this.startTime) / this.frameNanos;
+        if (this.lastFrameNumber >= 0) {
+            long expected = this.lastFrameNumber + this.untilChange[(int) (this.lastFrameNumber % this.frames.length)];
+            if (frameNumber > expected) {
+                this.skippedCount.addAndGet(frameNumber - expected);
+            }
+        }
+        this.lastFrameNumber = frameNumber;
+
+        int index = (int) (frameNumber % this.frames.length);
+        final String iconName = this.frames[index];
+
+        if (this.painting.compareAndSet(false, true)) {
+            painter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    paint(iconName);
+                }
+            });
+        } else {
+            // the tray is still busy with the last frame
+            this.skippedCount.incrementAndGet();
+        }
+
+        int untilChange = this.untilChange[index];
+        if (untilChange > 0) {
+            // wake up when the icon changes. Frames that repeat the same icon cost nothing, and if every frame is the same icon, the
+            // clock is not needed at all
+            schedule(this.startTime + (frameNumber + untilChange) * this.frameNanos - now);
+        }
+    }
+
+    private static int[] untilChange(String[] frames) {
+        int length = frames.length;
+        int[] untilChange = new int[length];
+
+        for (int i = 0; i < length; i++) {
+            for (int distance = 1; distance < length; distance++) {
+                if (!frames[(i + distance) % length].equals(frames[i])) {
+                    untilChange[i] = distance;
+                    break;
+                }
+            }
+        }
+
+        return untilChange;
+    }
+
+    /**
+     * Runs on a painter thread, while 'painting' is held.
+     */
+    private void paint(String iconName) {
+        try {
+            if (this.stopped) {
+                return;
+            }
+
+            if (this.shownIcon == null) {
+                // the first frame also sets the status text
+                this.tray.setStatus(this.infoString, iconName);
+            } else if (!iconName.equals(this.shownIcon)) {
+                this.tray.showFrame(this.infoString, iconName);
+            } else {
+                // same icon as the one showing, nothing to do
+                return;
+            }
+
+            this.shownIcon = iconName;
+            this.shownCount.incrementAndGet();
+        } catch (Throwable t) {
+            logger.error("Unable to show animation frame '{}'", iconName, t);
+        } finally {
+            this.painting.set(false);
+        }
+    }
+
+    /**
+     * Stops the animation. The last frame that was shown stays.
+     */
+    public void stop() {
+        this.stopped = true;
+
+        ScheduledFuture<?> tick = this.tick;
+        if (tick != null) {
+            tick.cancel(false);
+        }
+    }
+
+    public boolean isStopped() {
+        return this.stopped;
+    }
+
+    /**
+     * @return how many frames were sent to the tray
+     */
+    public long getShownCount() {
+        return this.shownCount.get();
+    }
+
+    /**
+     * @return how many frames were dropped, because the clock or the tray fell behind
+     */
+    public long getSkippedCount() {
+        return this.skippedCount.get();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.tray.headless.HeadlessSystemTray;
+
+/**
+ * The helper JVM for the {@link RemoteSystemTray}. It reads the tray calls from stdin, makes them on the real tray, and writes clicks
+ * (and replies) to stdout. It removes the tray and exits when stdin is closed, ie: when the process that started it goes away.
+ * <p>
+ * {@code TrayHostBenchmark} (in the bench sources) measures the round trip to it.
+ */
+public class TrayHost {
+    private static final Logger logger = LoggerFactory.getLogger(TrayHost.class);
+
+    /**
+     * The entries of a submenu, as sent by the other side.
+     */
+    private static class SubmenuRequest {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile List<SubmenuItem> items;
+    }
+
+    /**
+     * The state of a check-box or radio entry, as it is shown.
+     */
+    private static class Toggle {
+        private final String group;
+        private boolean checked;
+
+        Toggle(String group) {
+            this.group = group;
+        }
+    }
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /*
+     * The toggle entries, by (original) text. Clicks are sent with the state that they left the entry in, from here, because asking the
+     * tray (isMenuEntryChecked) from the event thread can wait for the entry while the event thread holds the gdk lock.
+     * Guarded by itself.
+     */
+    private final Map<String, Toggle> toggles = new HashMap<String, Toggle>();
+
+    private SystemTray tray;
+    private long submenuTimeoutMillis;
+
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, SubmenuRequest> submenuRequests = new ConcurrentHashMap<Integer, SubmenuRequest>();
+
+    TrayHost(DataInputStream in, DataOutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Makes the calls that are read, until stdin is closed.
+     */
+    void run() throws IOException {
+        if (this.in.readByte() != RemoteSystemTray.HELLO) {
+            throw new IOException("The tray helper has to be started by the RemoteSystemTray");
+        }
+
+        String appName = RemoteSystemTray.readString(this.in);
+        SystemTray.ICON_PATH = RemoteSystemTray.readString(this.in);
+        boolean headless = this.in.readBoolean();
+        this.submenuTimeoutMillis = this.in.readLong();
+
+        this.tray = headless ? new HeadlessSystemTray(appName) : SystemTray.create(appName);
+        if (this.tray == null) {
+            write(RemoteSystemTray.FAILED);
+            return;
+        }
+        this.tray.setFailureCallback(new FailureCallback() {
+            @Override
+            public void createTrayFailed() {
+                write(RemoteSystemTray.FAILED);
+            }
+        });
+
+        try {
+            while (true) {
+                byte op;
+                try {
+                    op = this.in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                try {
+                    call(op);
+                } catch (RuntimeException e) {
+                    // ie: a SystemTrayTimeoutException. The tray is still there, so keep going
+                    logger.error("Tray call {} failed.", op, e);
+                }
+            }
+        } finally {
+            if (this.tray.isActive()) {
+                this.tray.removeTray();
+            }
+        }
+    }
+
+    /**
+     * Reads the arguments of the call, and makes it.
+     */
+    private void call(byte op) throws IOException {
+        DataInputStream in = this.in;
+        SystemTray tray = this.tray;
+
+        switch (op) {
+            case RecordingSystemTray.CREATE_TRAY:
+                tray.createTray(RemoteSystemTray.readString(in));
+                break;
+
+            case RecordingSystemTray.REMOVE_TRAY:
+                tray.removeTray();
+                synchronized (this.toggles) {
+                    this.toggles.clear();
+                }
+                break;
+
+            case RecordingSystemTray.SET_STATUS: {
+                String infoString = RemoteSystemTray.readString(in);
+                tray.setStatus(infoString, RemoteSystemTray.readString(in));
+                break;
+            }
+
+            case RemoteSystemTray.SHOW_FRAME: {
+                String infoString = RemoteSystemTray.readString(in);
+                tray.showFrame(infoString, RemoteSystemTray.readString(in));
+                break;
+            }
+
+            case RemoteSystemTray.PRELOAD_ICON:
+                tray.preloadIcon(RemoteSystemTray.readString(in));
+                break;
+
+            case RecordingSystemTray.NOTIFICATION: {
+                String title = RemoteSystemTray.readString(in);
+                tray.displayNotification(title, RemoteSystemTray.readString(in));
+                break;
+            }
+
+            case RecordingSystemTray.ADD_MENU_ENTRY: {
+                String menuText = RemoteSystemTray.readString(in);
+                tray.addMenuEntry(menuText, action(in.readInt(), menuText));
+                break;
+            }
+
+            case RecordingSystemTray.UPDATE_MENU_ENTRY: {
+                String origMenuText = RemoteSystemTray.readString(in);
+                String newMenuText = RemoteSystemTray.readString(in);
+                tray.updateMenuEntry(origMenuText, newMenuText, action(in.readInt(), origMenuText));
+                break;
+            }
+
+            case RecordingSystemTray.ADD_CHECK_MENU_ENTRY: {
+                String menuText = RemoteSystemTray.readString(in);
+                boolean checked = in.readBoolean();
+                setToggle(null, menuText, checked);
+                tray.addCheckMenuEntry(menuText, checked, action(in.readInt(), menuText));
+                break;
+            }
+
+            case RecordingSystemTray.ADD_RADIO_MENU_ENTRY: {
+                String group = RemoteSystemTray.readString(in);
+                String menuText = RemoteSystemTray.readString(in);
+                boolean selected = in.readBoolean();
+                setToggle(group, menuText, selected);
+                tray.addRadioMenuEntry(group, menuText, selected, action(in.readInt(), menuText));
+                break;
+            }
+
+            case RecordingSystemTray.SET_MENU_ENTRY_CHECKED: {
+                String menuText = RemoteSystemTray.readString(in);
+                boolean checked = in.readBoolean();
+                synchronized (this.toggles) {
+                    Toggle toggle = this.toggles.get(menuText);
+                    if (toggle != null) {
+                        setChecked(toggle, checked);
+                    }
+                }
+                tray.setMenuEntryChecked(menuText, checked);
+                break;
+            }
+
+            case RemoteSystemTray.ADD_SUBMENU: {
+                String menuText = RemoteSystemTray.readString(in);
+                tray.addSubmenu(menuText, provider(in.readInt()));
+                break;
+            }
+
+            case RemoteSystemTray.INVALIDATE_SUBMENU:
+                tray.invalidateSubmenu(RemoteSystemTray.readString(in));
+                break;
+
+            case RemoteSystemTray.SUBMENU_ITEMS:
+                readSubmenuItems();
+                break;
+
+            case RemoteSystemTray.PING:
+                write(RemoteSystemTray.PING, in.readLong());
+                break;
+
+            case RemoteSystemTray.TEST_CLICK: {
+                String menuText = RemoteSystemTray.readString(in);
+                if (tray instanceof HeadlessSystemTray) {
+                    ((HeadlessSystemTray) tray).click(menuText);
+                }
+                break;
+            }
+
+            default:
+                throw new IOException("Unknown tray call: " + op);
+        }
+    }
+
+    private void readSubmenuItems() throws IOException {
+        SubmenuRequest request = this.submenuRequests.remove(this.in.readInt());
+
+        List<SubmenuItem> items = null;
+        if (this.in.readBoolean()) {
+            int count = this.in.readInt();
+            items = new ArrayList<SubmenuItem>(count);
+            for (int i = 0; i < count; i++) {
+                boolean isSubmenu = this.in.readBoolean();
+                String text = RemoteSystemTray.readString(this.in);
+                int id = this.in.readInt();
+
+                if (isSubmenu) {
+                    items.add(SubmenuItem.submenu(text, provider(id)));
+                } else {
+                    items.add(SubmenuItem.entry(text, action(id, null)));
+                }
+            }
+        }
+
+        if (request != null) {
+            request.items = items;
+            request.latch.countDown();
+        }
+    }
+
+    private void setToggle(String group, String menuText, boolean checked) {
+        synchronized (this.toggles) {
+            Toggle toggle = this.toggles.get(menuText);
+            if (toggle == null) {
+                toggle = new Toggle(group);
+                this.toggles.put(menuText, toggle);
+            }
+            setChecked(toggle, checked);
+        }
+    }
+
+    // must hold the lock on toggles. Radio entries uncheck the others in their group
+    private void setChecked(Toggle toggle, boolean checked) {
+        if (checked && toggle.group != null) {
+            for (Toggle other : this.toggles.values()) {
+                if (other != toggle && toggle.group.equals(other.group)) {
+                    other.checked = false;
+                }
+            }
+        }
+        toggle.checked = checked;
+    }
+
+    /**
+     * @return the state that the click left the entry in (check-box entries are toggled, and radio entries are selected), false if it
+     * isn't a toggle entry
+     */
+    private boolean clicked(String menuText) {
+        synchronized (this.toggles) {
+            Toggle toggle = this.toggles.get(menuText);
+            if (toggle == null) {
+                return false;
+            }
+
+            setChecked(toggle, toggle.group != null || !toggle.checked);
+            return toggle.checked;
+        }
+    }
+
+    /**
+     * @param menuText the (original) text of the top-level entry, so the other side knows which one was toggled. Null for submenus.
+     *
+     * @return an action that tells the other side about the click, or null if there is no callback
+     */
+    private SystemTrayMenuAction action(final int callbackId, final String menuText) {
+        if (callbackId == 0) {
+            return null;
+        }
+
+        // only writes to stdout, so it can run on the event thread
+        return new InlineMenuAction() {
+            @Override
+            public void onClick(SystemTray systemTray) {
+                boolean checked = menuText != null && clicked(menuText);
+                write(RecordingSystemTray.CLICK, callbackId, menuText, checked);
+            }
+        };
+    }
+
+    /**
+     * @return a provider that asks the other side for the entries of the submenu
+     */
+    private SubmenuProvider provider(final int submenuId) {
+        return new SubmenuProvider() {
+            @Override
+            public List<SubmenuItem> getItems() {
+                int requestId = TrayHost.this.nextRequestId.incrementAndGet();
+                SubmenuRequest request = new SubmenuRequest();
+                TrayHost.this.submenuRequests.put(requestId, request);
+
+                try {
+                    write(RemoteSystemTray.SUBMENU_REQUEST, requestId, submenuId);
+                    if (!request.latch.await(TrayHost.this.submenuTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        throw new SystemTrayTimeoutException("The submenu entries took longer than " +
+                                                             TrayHost.this.submenuTimeoutMillis + " ms");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SystemTrayTimeoutException("Interrupted waiting for the submenu entries");
+                } finally {
+                    TrayHost.this.submenuRequests.remove(requestId);
+                }
+
+                if (request.items == null) {
+                    // so it is not cached, and asked for again the next time
+                    throw new IllegalStateException("The submenu provider failed");
+                }
+                return request.items;
+            }
+        };
+    }
+
+    private void write(byte op, Object... args) {
+        synchronized (this.out) {
+            try {
+                this.out.writeByte(op);
+                RemoteSystemTray.writeArgs(this.out, args);
+                this.out.flush();
+            } catch (IOException e) {
+                // the other side is gone, reading stdin finds out
+                logger.debug("Unable to write to the tray client.", e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // stdout is for the other side only, anything else that is printed goes to stderr
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+
+        // so the tray in here isn't a remote one as well
+        System.clearProperty("SystemTray.outOfProcess");
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        new TrayHost(in, out).run();
+
+        System.exit(0);
+    }
+}
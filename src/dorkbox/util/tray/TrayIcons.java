@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.NamedThreadFactory;
+
+/**
+ * Finds the icons of every tray (on disk, or in a jar, which are copied out to a temp file), remembers where they were found, and
+ * gets them ready in parallel.
+ */
+final class TrayIcons {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Logger logger = LoggerFactory.getLogger(TrayIcons.class);
+
+    private static final long runtimeRandom = new SecureRandom().nextLong();
+
+    // resources that have already been copied out to a temp file. Only one copy (and one deleteOnExit) per resource, per run
+    private static final Map<String, String> extractedIcons = new HashMap<String, String>();
+
+    /**
+     * Where an icon was found, by icon name.
+     */
+    private static final class ResolvedIcon {
+        // the ICON_PATH that it was found with
+        private final String iconDirectory;
+        private final String path;
+        private final File file;
+        // when the file was last seen (nanoTime)
+        private volatile long checkedAt;
+
+        ResolvedIcon(String iconDirectory, String path) {
+            this.iconDirectory = iconDirectory;
+            this.path = path;
+            this.file = new File(path);
+            this.checkedAt = System.nanoTime();
+        }
+    }
+
+    // how often a resolved icon is checked to still be there. File.isFile() allocates (a little), and icons hardly ever go away
+    private static final long ICON_RECHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Map<String, ResolvedIcon> resolvedIcons = new ConcurrentHashMap<String, ResolvedIcon>();
+
+    // shared by all trays, the threads go away when there is nothing to load
+    private static final ThreadPoolExecutor loader;
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors();
+        loader = new ThreadPoolExecutor(processors, processors, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                        new NamedThreadFactory("SysTrayIconLoader", true));
+        loader.allowCoreThreadTimeOut(true);
+    }
+
+    private TrayIcons() {
+    }
+
+    /**
+     * Calls {@link SystemTray#preloadIcon(String)} of the tray for every icon, in parallel.
+     *
+     * @return a future that is done once every icon is ready. If an icon could not be loaded, get() throws the first such error.
+     */
+    static Future<?> preload(final SystemTray tray, String... iconNames) {
+        final IconPreload preload = new IconPreload(iconNames.length);
+
+        for (final String iconName : iconNames) {
+            loader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        tray.preloadIcon(iconName);
+                    } catch (Throwable t) {
+                        preload.failed(t);
+                    } finally {
+                        preload.latch.countDown();
+                    }
+                }
+            });
+        }
+
+        return preload;
+    }
+
+    private static class IconPreload implements Future<Object> {
+        private final CountDownLatch latch;
+        private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        IconPreload(int count) {
+            this.latch = new CountDownLatch(count);
+        }
+
+        void failed(Throwable t) {
+            this.error.compareAndSet(null, t);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.latch.getCount() == 0;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            this.latch.await();
+            return result();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!this.latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private Object result() throws ExecutionException {
+            Throwable t = this.error.get();
+            if (t != null) {
+                throw new ExecutionException(t);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return where the icon is, for trays that read it themselves (instead of giving a file path to a native library). Unlike
+     * {@link #path(String)}, an icon that is in a jar is not copied out.
+     */
+    static URL url(String fileName) {
+        File iconTest;
+        if (SystemTray.ICON_PATH.isEmpty()) {
+            iconTest = new File(fileName);
+        } else {
+            iconTest = new File(SystemTray.ICON_PATH, fileName);
+        }
+        if (iconTest.isFile() && iconTest.canRead()) {
+            try {
+                return iconTest.getAbsoluteFile().toURI().toURL();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read icon '" + fileName + "'", e);
+            }
+        }
+
+        if (!SystemTray.ICON_PATH.isEmpty()) {
+            fileName = SystemTray.ICON_PATH + "/" + fileName;
+        }
+
+        URL systemResource = Thread.currentThread().getContextClassLoader().getResource(fileName);
+        if (systemResource == null) {
+            systemResource = ClassLoader.getSystemResource(fileName);
+        }
+        if (systemResource == null) {
+            String message = "Unable to find icon '" + fileName + "'";
+            logger.error(message);
+            throw new RuntimeException(message);
+        }
+        return systemResource;
+    }
+
+    /**
+     * @return the file of the icon. Icons that are in a jar are copied out (once) to a temp file. Once the icon was found, this only
+     * checks (at most once a second) that the file is still there.
+     */
+    static String path(String fileName) {
+        ResolvedIcon resolved = resolvedIcons.get(fileName);
+        if (resolved != null && resolved.iconDirectory.equals(SystemTray.ICON_PATH)) {
+            long now = System.nanoTime();
+            if (now - resolved.checkedAt < ICON_RECHECK_NANOS) {
+                return resolved.path;
+            }
+            if (resolved.file.isFile()) {
+                resolved.checkedAt = now;
+                return resolved.path;
+            }
+        }
+
+        String path = resolve(fileName);
+        resolvedIcons.put(fileName, new ResolvedIcon(SystemTray.ICON_PATH, path));
+        return path;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // checked when the tray type was picked
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String resolve(String fileName) {
+        // is file sitting on drive
+        File iconTest;
+        if (SystemTray.ICON_PATH.isEmpty()) {
+            iconTest = new File(fileName);
+        } else {
+            iconTest = new File(SystemTray.ICON_PATH, fileName);
+        }
+        if (iconTest.isFile() && iconTest.canRead()) {
+            return iconTest.getAbsolutePath();
+        } else {
+            if (!SystemTray.ICON_PATH.isEmpty()) {
+                fileName = SystemTray.ICON_PATH + "/" + fileName;
+            }
+
+            synchronized (extractedIcons) {
+                String extracted = extractedIcons.get(fileName);
+                if (extracted != null && new File(extracted).isFile()) {
+                    return extracted;
+                }
+            }
+
+            String extension = "";
+            int dot = fileName.lastIndexOf('.');
+            if (dot > -1) {
+                extension = fileName.substring(dot + 1);
+            }
+
+            // maybe it's in somewhere else.
+            URL systemResource = Thread.currentThread().getContextClassLoader().getResource(fileName);
+            if (systemResource == null) {
+                // maybe it's in the system classloader?
+                systemResource = ClassLoader.getSystemResource(fileName);
+            }
+
+            if (systemResource != null) {
+                // copy out to a temp file, as a hash of the file
+                String resourceFileName = systemResource.getPath();
+                byte[] bytes = resourceFileName.getBytes(UTF_8);
+                File newFile;
+                String tempDir = System.getProperty("java.io.tmpdir");
+
+                // a digest per call, icons are resolved in parallel (by preloadIcons)
+                MessageDigest digest = newDigest();
+                digest.update(bytes);
+
+                // For KDE4, it must also be unique across runs
+                byte[] longBytes = new byte[8];
+                ByteBuffer wrap = ByteBuffer.wrap(longBytes);
+                wrap.putLong(runtimeRandom);
+                digest.update(longBytes);
+
+                byte[] hashBytes = digest.digest();
+                String hash = new BigInteger(1, hashBytes).toString(32);
+
+                newFile = new File(tempDir, hash + '.' + extension).getAbsoluteFile();
+                newFile.deleteOnExit();
+
+                InputStream inStream = null;
+                OutputStream outStream = null;
+                File tempFile = null;
+
+                try {
+                    // copy to a temp file first, so that nobody (another tray, or another preload thread) ever sees a partial icon
+                    tempFile = File.createTempFile(hash, ".tmp", newFile.getParentFile());
+                    inStream = systemResource.openStream();
+                    outStream = new FileOutputStream(tempFile);
+
+                    byte[] buffer = new byte[2048];
+                    int read;
+                    while ((read = inStream.read(buffer)) > 0) {
+                        outStream.write(buffer, 0, read);
+                    }
+                    outStream.close();
+                    outStream = null;
+
+                    // the rename replaces the icon in one step. Where it can't replace files (windows), it fails instead, which is fine
+                    // when another thread just put the same icon there.
+                    if (!tempFile.renameTo(newFile) && !newFile.isFile()) {
+                        throw new IOException("Unable to move " + tempFile + " to " + newFile);
+                    }
+
+                    String absolutePath = newFile.getAbsolutePath();
+                    synchronized (extractedIcons) {
+                        extractedIcons.put(fileName, absolutePath);
+                    }
+                    return absolutePath;
+                } catch (IOException e) {
+                    // Running from main line.
+                    String message = "Unable to copy icon '" + fileName + "' to location: '" + newFile.getAbsolutePath() + "'";
+                    logger.error(message, e);
+                    throw new RuntimeException(message);
+                } finally {
+                    try {
+                        if (inStream != null) {
+                            inStream.close();
+                        }
+                    } catch (Exception ignored) {
+                    }
+                    try {
+                        if (outStream != null) {
+                            outStream.close();
+                        }
+                    } catch (Exception ignored) {
+                    }
+                    if (tempFile != null) {
+                        tempFile.delete();
+                    }
+                }
+
+                // appIndicator/gtk require strings
+                // swing version loads as an image
+            }
+        }
+
+        // Running from main line.
+        String message = "Unable to find icon '" + fileName + "'";
+        logger.error(message);
+        throw new RuntimeException(message);
+    }
+}
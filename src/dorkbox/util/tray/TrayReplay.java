@@ -0,0 +1,338 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import dorkbox.util.tray.headless.HeadlessSystemTray;
+
+/**
+ * Plays back a log written by the {@link RecordingSystemTray} against a tray, either at the recorded pace or as fast as possible, and
+ * reports the throughput and the latency of every type of call.
+ * <p>
+ * Menu actions are not recorded, so the replayed entries don't do anything when clicked. Recorded clicks and notifications are counted,
+ * but not replayed (notifications are rate limited anyway, and a click cannot be faked on a real tray).
+ * <p>
+ * Usage: TrayReplay [--max-speed] [--headless] logFile
+ */
+public class TrayReplay {
+    private static final String[] NAMES = new String[] {"session",
+                                                        "createTray",
+                                                        "removeTray",
+                                                        "setStatus",
+                                                        "addMenuEntry",
+                                                        "updateMenuEntry",
+                                                        "addCheckMenuEntry",
+                                                        "addRadioMenuEntry",
+                                                        "setMenuEntryChecked",
+                                                        "isMenuEntryChecked",
+                                                        "notification",
+                                                        "click"};
+
+    private static final SystemTrayMenuAction NO_ACTION = new InlineMenuAction() {
+        @Override
+        public void onClick(SystemTray systemTray) {
+        }
+    };
+
+    /**
+     * The result of a replay.
+     */
+    public static class Report {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[NAMES.length];
+        private final LatencyHistogram[] recordedLatencies = new LatencyHistogram[NAMES.length];
+        private long callCount;
+        private long skippedCount;
+        private long elapsedNanos;
+
+        Report() {
+            for (int i = 0; i < NAMES.length; i++) {
+                this.latencies[i] = new LatencyHistogram();
+                this.recordedLatencies[i] = new LatencyHistogram();
+            }
+        }
+
+        public long getCallCount() {
+            return this.callCount;
+        }
+
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+        /**
+         * @return tray calls per second, during the replay
+         */
+        public double getThroughput() {
+            if (this.elapsedNanos == 0) {
+                return 0.0D;
+            }
+            return this.callCount * 1e9D / this.elapsedNanos;
+        }
+
+        /**
+         * @return the latency of the replayed calls, for the given call name (ie: "setStatus"), or null if there is no such call
+         */
+        public LatencyHistogram getLatency(String callName) {
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(callName)) {
+                    return this.latencies[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(512);
+            builder.append(this.callCount).append(" calls in ").append(TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos)).append(" ms (")
+                   .append((long) getThroughput()).append(" calls/sec)");
+            if (this.skippedCount > 0) {
+                builder.append(", ").append(this.skippedCount).append(" clicks/notifications not replayed");
+            }
+            builder.append('\n');
+
+            builder.append(String.format("%-20s %8s %10s %10s %10s %14s%n", "call", "count", "p50 (us)", "p99 (us)", "max (us)",
+                                         "recorded p99"));
+            for (int i = 1; i < NAMES.length; i++) {
+                LatencyHistogram recorded = this.recordedLatencies[i];
+                if (recorded.getTotalCount() == 0) {
+                    continue;
+                }
+
+                LatencyHistogram latency = this.latencies[i];
+                builder.append(String.format("%-20s %8d %10d %10d %10d %14d%n", NAMES[i], recorded.getTotalCount(),
+                                             micros(latency.getValueAtPercentile(50.0D)), micros(latency.getValueAtPercentile(99.0D)),
+                                             micros(latency.getMaxValue()), micros(recorded.getValueAtPercentile(99.0D))));
+            }
+
+            return builder.toString();
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+
+    /**
+     * Plays back the log against the tray.
+     *
+     * @param maxSpeed true to make the calls as fast as possible, false to make them at the same pace as they were recorded
+     */
+    public static Report replay(File logFile, SystemTray tray, boolean maxSpeed) throws IOException {
+        Report report = new Report();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            if (in.readInt() != RecordingSystemTray.MAGIC) {
+                throw new IOException("Not a tray recording: " + logFile);
+            }
+            int version = in.readByte();
+            if (version != RecordingSystemTray.VERSION) {
+                throw new IOException("Unsupported tray recording version: " + version);
+            }
+
+            long replayStart = System.nanoTime();
+            // where the current session starts, in replay time
+            long sessionStart = replayStart;
+
+            while (true) {
+                int op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (op == RecordingSystemTray.SESSION) {
+                    in.readLong();
+                    readString(in);
+                    sessionStart = System.nanoTime();
+                    continue;
+                }
+
+                if (op < 0 || op >= NAMES.length) {
+                    throw new IOException("Corrupt tray recording, unknown call: " + op);
+                }
+
+                long startMicros = readVarLong(in);
+                long durationMicros = readVarLong(in);
+                report.recordedLatencies[op].record(TimeUnit.MICROSECONDS.toNanos(durationMicros));
+
+                if (!maxSpeed) {
+                    long delay = sessionStart + TimeUnit.MICROSECONDS.toNanos(startMicros) - System.nanoTime();
+                    if (delay > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(delay);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted");
+                        }
+                    }
+                }
+
+                long start = System.nanoTime();
+                if (replay(op, in, tray)) {
+                    report.latencies[op].record(System.nanoTime() - start);
+                    report.callCount++;
+                } else {
+                    report.skippedCount++;
+                }
+            }
+
+            report.elapsedNanos = System.nanoTime() - replayStart;
+        } finally {
+            in.close();
+        }
+
+        return report;
+    }
+
+    /**
+     * Reads the arguments of the call, and makes it.
+     *
+     * @return false if the call was only read, but not replayed
+     */
+    private static boolean replay(int op, DataInputStream in, SystemTray tray) throws IOException {
+        switch (op) {
+            case RecordingSystemTray.CREATE_TRAY:
+                tray.createTray(readString(in));
+                return true;
+
+            case RecordingSystemTray.REMOVE_TRAY:
+                tray.removeTray();
+                return true;
+
+            case RecordingSystemTray.SET_STATUS: {
+                String infoString = readString(in);
+                tray.setStatus(infoString, readString(in));
+                return true;
+            }
+
+            case RecordingSystemTray.ADD_MENU_ENTRY:
+                tray.addMenuEntry(readString(in), NO_ACTION);
+                return true;
+
+            case RecordingSystemTray.UPDATE_MENU_ENTRY: {
+                String origMenuText = readString(in);
+                tray.updateMenuEntry(origMenuText, readString(in), NO_ACTION);
+                return true;
+            }
+
+            case RecordingSystemTray.ADD_CHECK_MENU_ENTRY: {
+                String menuText = readString(in);
+                tray.addCheckMenuEntry(menuText, in.readBoolean(), NO_ACTION);
+                return true;
+            }
+
+            case RecordingSystemTray.ADD_RADIO_MENU_ENTRY: {
+                String group = readString(in);
+                String menuText = readString(in);
+                tray.addRadioMenuEntry(group, menuText, in.readBoolean(), NO_ACTION);
+                return true;
+            }
+
+            case RecordingSystemTray.SET_MENU_ENTRY_CHECKED: {
+                String menuText = readString(in);
+                tray.setMenuEntryChecked(menuText, in.readBoolean());
+                return true;
+            }
+
+            case RecordingSystemTray.IS_MENU_ENTRY_CHECKED:
+                tray.isMenuEntryChecked(readString(in));
+                return true;
+
+            case RecordingSystemTray.NOTIFICATION:
+                readString(in);
+                readString(in);
+                return false;
+
+            case RecordingSystemTray.CLICK:
+                readString(in);
+                return false;
+
+            default:
+                throw new IOException("Corrupt tray recording, unknown call: " + op);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0L;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Corrupt tray recording, var-long is too long");
+            }
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean maxSpeed = false;
+        boolean headless = false;
+        File logFile = null;
+
+        for (String arg : args) {
+            if (arg.equals("--max-speed")) {
+                maxSpeed = true;
+            } else if (arg.equals("--headless")) {
+                headless = true;
+            } else {
+                logFile = new File(arg);
+            }
+        }
+
+        if (logFile == null) {
+            System.err.println("Usage: TrayReplay [--max-speed] [--headless] logFile");
+            System.exit(1);
+            return;
+        }
+
+        String appName = "TrayReplay";
+        SystemTray tray = headless ? new HeadlessSystemTray(appName) : SystemTray.create(appName);
+        if (tray == null) {
+            System.err.println("There is no system tray available, use --headless");
+            System.exit(1);
+            return;
+        }
+
+        Report report = replay(logFile, tray, maxSpeed);
+        System.out.print(report);
+
+        if (tray.isActive()) {
+            tray.removeTray();
+        }
+        System.exit(0);
+    }
+}
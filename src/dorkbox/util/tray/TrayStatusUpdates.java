@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Changes the status of a tray over time, for it: the animation, and the pollers. Stopped (all of it) when the tray is removed.
+ */
+final class TrayStatusUpdates {
+    private final SystemTray tray;
+
+    private final AtomicReference<TrayAnimation> animation = new AtomicReference<TrayAnimation>();
+    private final List<PolledStatus> pollers = new CopyOnWriteArrayList<PolledStatus>();
+
+    TrayStatusUpdates(SystemTray tray) {
+        this.tray = tray;
+    }
+
+    /**
+     * See {@link SystemTray#animate(String, int, String...)}
+     */
+    TrayAnimation animate(String infoString, int framesPerSecond, String... frameIconNames) {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("framesPerSecond must be positive: " + framesPerSecond);
+        }
+        if (frameIconNames.length == 0) {
+            throw new IllegalArgumentException("There must be at least one frame");
+        }
+
+        String[] frames = frameIconNames.clone();
+        TrayAnimation animation = new TrayAnimation(this.tray, infoString, framesPerSecond, frames, this.tray.preloadIcons(frames));
+
+        TrayAnimation previous = this.animation.getAndSet(animation);
+        if (previous != null) {
+            previous.stop();
+        }
+
+        animation.start();
+        return animation;
+    }
+
+    void stopAnimation() {
+        TrayAnimation animation = this.animation.getAndSet(null);
+        if (animation != null) {
+            animation.stop();
+        }
+    }
+
+    /**
+     * See {@link SystemTray#pollStatus(StatusSupplier, StatusSupplier, long)}
+     */
+    PolledStatus pollStatus(StatusSupplier statusText, StatusSupplier iconName, long intervalMillis) {
+        PolledStatus poller = new PolledStatus(new String[] {"status text", "status icon"},
+                                               new StatusSupplier[] {statusText, iconName},
+                                               new String[2]) {
+            @Override
+            void push(String[] values) {
+                TrayStatusUpdates.this.tray.setStatus(values[0], values[1]);
+            }
+        };
+
+        return startPolling(poller, intervalMillis);
+    }
+
+    /**
+     * See {@link SystemTray#pollMenuEntry(String, StatusSupplier, SystemTrayMenuAction, long)}
+     */
+    PolledStatus pollMenuEntry(final String menuText, StatusSupplier label, final SystemTrayMenuAction callback, long intervalMillis) {
+        // so there is an entry to update, and its label is known
+        this.tray.addMenuEntry(menuText, callback);
+
+        PolledStatus poller = new PolledStatus(new String[] {"menu '" + menuText + "'"},
+                                               new StatusSupplier[] {label},
+                                               new String[] {menuText}) {
+            @Override
+            void push(String[] values) {
+                TrayStatusUpdates.this.tray.updateMenuEntry(menuText, values[0], callback);
+            }
+        };
+
+        return startPolling(poller, intervalMillis);
+    }
+
+    private PolledStatus startPolling(PolledStatus poller, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive: " + intervalMillis);
+        }
+
+        this.pollers.add(poller);
+        poller.start(intervalMillis);
+        return poller;
+    }
+
+    String getPollReport() {
+        StringBuilder builder = new StringBuilder(256);
+        for (PolledStatus poller : this.pollers) {
+            builder.append(poller).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Stops the animation, and cancels every poller.
+     */
+    void stop() {
+        for (PolledStatus poller : this.pollers) {
+            poller.cancel();
+        }
+        this.pollers.clear();
+
+        stopAnimation();
+    }
+}
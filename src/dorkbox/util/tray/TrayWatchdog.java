@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray;
+
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.NamedThreadFactory;
+
+/**
+ * Watches the event loops that the trays depend on (the Swing EDT and the GTK event loop), and reports when one of them stops
+ * responding -- with the stack trace of that thread, and of whoever holds the lock that it is waiting for.
+ * <p>
+ * Also used by the trays to wait (for at most {@link SystemTray#TIMEOUT_MILLIS}) for work that runs on those loops.
+ */
+public class TrayWatchdog {
+    private static final Logger logger = LoggerFactory.getLogger(TrayWatchdog.class);
+
+    /** Set to false (before a tray is created) to disable the heartbeat */
+    public static boolean ENABLED = true;
+
+    /** How long a loop can go without responding before it is reported */
+    public static long STALL_THRESHOLD_MILLIS = 5000L;
+
+    /** How often the loops are checked */
+    public static long CHECK_INTERVAL_MILLIS = 1000L;
+
+    public static final String EDT = "EDT";
+
+    private static final Executor edtExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            EventQueue.invokeLater(command);
+        }
+    };
+
+    private static class Loop {
+        private final String name;
+        private final String threadName;
+        private final Executor executor;
+
+        private volatile Thread thread;
+        // 0 when there is no heartbeat waiting to run
+        private volatile long postedAt = 0L;
+        private volatile boolean reported = false;
+
+        private final Runnable heartbeat = new Runnable() {
+            @Override
+            public void run() {
+                Loop.this.thread = Thread.currentThread();
+                Loop.this.postedAt = 0L;
+
+                if (Loop.this.reported) {
+                    Loop.this.reported = false;
+                    logger.info("The {} thread is responding again.", Loop.this.name);
+                }
+            }
+        };
+
+        Loop(String name, String threadName, Executor executor) {
+            this.name = name;
+            this.threadName = threadName;
+            this.executor = executor;
+        }
+    }
+
+    private static final Map<String, Loop> loops = new ConcurrentHashMap<String, Loop>(2);
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Starts watching the Swing EDT.
+     */
+    public static void watchEdt() {
+        watch(EDT, "AWT-EventQueue", edtExecutor);
+    }
+
+    /**
+     * Starts watching an event loop.
+     *
+     * @param threadName the name (or start of the name) of the loop's thread, used to find it before it has ever responded
+     * @param executor runs a task on the event loop, asynchronously
+     */
+    public static synchronized void watch(String name, String threadName, Executor executor) {
+        if (!loops.containsKey(name)) {
+            loops.put(name, new Loop(name, threadName, executor));
+        }
+        start();
+    }
+
+    private static synchronized void start() {
+        if (!ENABLED || scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SysTrayWatchdog", true));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void check() {
+        long now = System.currentTimeMillis();
+
+        for (Loop loop : loops.values()) {
+            long postedAt = loop.postedAt;
+            if (postedAt == 0L) {
+                loop.postedAt = now;
+                try {
+                    loop.executor.execute(loop.heartbeat);
+                } catch (Exception e) {
+                    loop.postedAt = 0L;
+                }
+            } else if (now - postedAt > STALL_THRESHOLD_MILLIS && !loop.reported) {
+                loop.reported = true;
+                logger.warn("The {} thread has not responded for {} ms.{}", loop.name, now - postedAt, diagnose(loop));
+            }
+        }
+    }
+
+    /**
+     * Waits (for at most {@link SystemTray#TIMEOUT_MILLIS}) for work that was queued on an event loop.
+     *
+     * @throws SystemTrayTimeoutException if it did not finish in time. It is cancelled if it had not started yet.
+     */
+    public static void await(Future<?> future, String loopName) {
+        try {
+            future.get(SystemTray.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+
+            Loop loop = loops.get(loopName);
+            logger.warn("Timed out waiting for the {} thread.{}", loopName, loop != null ? diagnose(loop) : "");
+            throw new SystemTrayTimeoutException("Timed out after " + SystemTray.TIMEOUT_MILLIS + " ms waiting for the " + loopName +
+                                                 " thread.");
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new SystemTrayTimeoutException("Interrupted while waiting for the " + loopName + " thread.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static String diagnose(Loop loop) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        StringBuilder builder = new StringBuilder(1024);
+
+        Thread thread = loop.thread;
+        if (thread == null) {
+            thread = findThread(loop.threadName);
+        }
+
+        if (thread == null) {
+            builder.append("\nUnable to find the ").append(loop.name).append(" thread.");
+        } else {
+            ThreadInfo info = threadMXBean.getThreadInfo(new long[] {thread.getId()}, true, true)[0];
+            append(builder, info);
+
+            if (info != null && info.getLockOwnerId() != -1) {
+                builder.append("\nwhich is waiting for '").append(info.getLockName()).append("', held by:");
+                append(builder, threadMXBean.getThreadInfo(new long[] {info.getLockOwnerId()}, true, true)[0]);
+            }
+        }
+
+        // the GDK lock is native, so the JVM doesn't know who is waiting for it. We can still find the java threads that are.
+        for (ThreadInfo info : threadMXBean.dumpAllThreads(false, false)) {
+            StackTraceElement[] stackTrace = info.getStackTrace();
+            if (stackTrace.length > 0 && "gdk_threads_enter".equals(stackTrace[0].getMethodName())) {
+                builder.append("\nThread '").append(info.getThreadName()).append("' is waiting for the GDK lock:");
+                append(builder, info);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, ThreadInfo info) {
+        if (info == null) {
+            builder.append("\n  (thread has exited)");
+            return;
+        }
+
+        builder.append("\n  \"").append(info.getThreadName()).append("\" ").append(info.getThreadState());
+        for (StackTraceElement element : info.getStackTrace()) {
+            builder.append("\n    at ").append(element);
+        }
+    }
+
+    private static Thread findThread(String threadName) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(threadName)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.headless;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dorkbox.util.tray.LazySubmenu;
+import dorkbox.util.tray.SubmenuItem;
+import dorkbox.util.tray.SystemTray;
+import dorkbox.util.tray.SystemTrayMenuAction;
+
+/**
+ * System tray that doesn't show anything. It only keeps track of the icon, status and menu, so it can be used where there is no
+ * display, or to measure the overhead of this library (without the native/Swing side), ie: with {@link dorkbox.util.tray.TrayReplay}.
+ */
+public class HeadlessSystemTray extends SystemTray {
+
+    private static class Entry {
+        private volatile String text;
+        private volatile SystemTrayMenuAction callback;
+        private volatile boolean checked;
+        private final boolean toggle;
+        private final String group;
+
+        Entry(String text, SystemTrayMenuAction callback, boolean toggle, String group) {
+            this.text = text;
+            this.callback = callback;
+            this.toggle = toggle;
+            this.group = group;
+        }
+    }
+
+    private final Map<String, Entry> menuEntries = new ConcurrentHashMap<String, Entry>(4);
+    private final Map<String, LazySubmenu> submenus = new ConcurrentHashMap<String, LazySubmenu>(2);
+
+    private volatile String iconName;
+    private volatile String status;
+
+    public HeadlessSystemTray(String appName) {
+        this.appName = appName;
+    }
+
+    @Override
+    public void createTray(String iconName) {
+        this.iconName = iconName;
+        this.active = true;
+    }
+
+    @Override
+    public void removeTray() {
+        this.active = false;
+        this.menuEntries.clear();
+        this.submenus.clear();
+
+        super.removeTray();
+    }
+
+    @Override
+    public void setStatus(String infoString, String iconName) {
+        this.status = infoString;
+        this.iconName = iconName;
+    }
+
+    @Override
+    protected void displayNotification(String title, String message) {
+        logger.debug("Notification: {} - {}", title, message);
+    }
+
+    @Override
+    public void addMenuEntry(String menuText, SystemTrayMenuAction callback) {
+        Entry entry = this.menuEntries.get(menuText);
+        if (entry == null) {
+            this.menuEntries.put(menuText, new Entry(menuText, callback, false, null));
+        } else {
+            entry.callback = callback;
+        }
+    }
+
+    @Override
+    public void updateMenuEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback) {
+        Entry entry = this.menuEntries.get(origMenuText);
+        if (entry == null) {
+            addMenuEntry(origMenuText, newCallback);
+        } else {
+            entry.text = newMenuText;
+            entry.callback = newCallback;
+        }
+    }
+
+    @Override
+    public void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        addToggleMenuEntry(null, menuText, checked, callback);
+    }
+
+    @Override
+    public void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        addToggleMenuEntry(group, menuText, selected, callback);
+    }
+
+    private synchronized void addToggleMenuEntry(String group, String menuText, boolean checked, SystemTrayMenuAction callback) {
+        Entry entry = this.menuEntries.get(menuText);
+        if (entry == null) {
+            entry = new Entry(menuText, callback, true, group);
+            this.menuEntries.put(menuText, entry);
+        } else {
+            entry.callback = callback;
+        }
+
+        setChecked(entry, checked);
+    }
+
+    @Override
+    protected void addSubmenuEntry(String menuText, LazySubmenu submenu) {
+        this.submenus.put(menuText, submenu);
+    }
+
+    @Override
+    public synchronized void setMenuEntryChecked(String menuText, boolean checked) {
+        Entry entry = this.menuEntries.get(menuText);
+        if (entry != null) {
+            setChecked(entry, checked);
+        }
+    }
+
+    // must hold the lock on this, so radio groups change atomically
+    private void setChecked(Entry entry, boolean checked) {
+        if (checked && entry.group != null) {
+            for (Entry other : this.menuEntries.values()) {
+                if (other != entry && entry.group.equals(other.group)) {
+                    other.checked = false;
+                }
+            }
+        }
+
+        entry.checked = checked;
+    }
+
+    @Override
+    public boolean isMenuEntryChecked(String menuText) {
+        Entry entry = this.menuEntries.get(menuText);
+        return entry != null && entry.checked;
+    }
+
+    /**
+     * Acts as if the user clicked on the menu entry. Check-box entries are toggled, and radio entries are selected.
+     *
+     * @return false if there is no such entry
+     */
+    public boolean click(String menuText) {
+        Entry entry = this.menuEntries.get(menuText);
+        if (entry == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (entry.group != null) {
+                setChecked(entry, true);
+            } else if (entry.toggle) {
+                entry.checked = !entry.checked;
+            }
+        }
+
+        SystemTrayMenuAction callback = entry.callback;
+        if (callback != null) {
+            dispatchClick(callback);
+        }
+        return true;
+    }
+
+    /**
+     * Acts as if the user opened the submenu, and waits (for at most {@link #TIMEOUT_MILLIS}) for its entries.
+     *
+     * @return the entries, or null if there is no such submenu (or they took too long to load)
+     */
+    public List<SubmenuItem> openSubmenu(String menuText) throws InterruptedException {
+        LazySubmenu submenu = this.submenus.get(menuText);
+        if (submenu == null) {
+            return null;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<List<SubmenuItem>> loaded = new AtomicReference<List<SubmenuItem>>();
+        List<SubmenuItem> items = submenu.open(new LazySubmenu.Listener() {
+            @Override
+            public void loaded(List<SubmenuItem> items) {
+                loaded.set(items);
+                latch.countDown();
+            }
+        });
+
+        if (items == null && latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            items = loaded.get();
+        }
+        return items;
+    }
+
+    /**
+     * @return the current label of the menu entry, or null if there is no such entry
+     */
+    public String getMenuEntryText(String menuText) {
+        Entry entry = this.menuEntries.get(menuText);
+        return entry == null ? null : entry.text;
+    }
+
+    public String getIconName() {
+        return this.iconName;
+    }
+
+    public String getStatus() {
+        return this.status;
+    }
+}
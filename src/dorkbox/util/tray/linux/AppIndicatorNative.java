@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import dorkbox.util.Keep;
+
+/**
+ * Direct-mapped bindings for the app-indicator calls that are made on every tray update. See {@link GtkNative}.
+ */
+final class AppIndicatorNative {
+    static {
+        Native.register(AppIndicatorNative.class, "appindicator");
+    }
+
+    private AppIndicatorNative() {
+    }
+
+    /**
+     * The "connection-changed" signal, emitted when the indicator (un)registers with the tray host.
+     */
+    @Keep
+    interface ConnectionChanged extends Callback {
+        void callback(Pointer indicator, int connected, Pointer data);
+    }
+
+    static native void app_indicator_set_icon_full(Pointer self, String icon_name, String icon_desc);
+}
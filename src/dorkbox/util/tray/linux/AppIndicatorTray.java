@@ -16,217 +16,875 @@
 package dorkbox.util.tray.linux;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.jna.Pointer;
 
+import dorkbox.util.NamedThreadFactory;
 import dorkbox.util.jna.linux.AppIndicator;
 import dorkbox.util.jna.linux.Gobject;
 import dorkbox.util.jna.linux.Gtk;
 import dorkbox.util.jna.linux.GtkSupport;
+import dorkbox.util.tray.LazySubmenu;
 import dorkbox.util.tray.SystemTray;
 import dorkbox.util.tray.SystemTrayMenuAction;
+import dorkbox.util.tray.SystemTrayTimeoutException;
 
 /**
  * Class for handling all system tray interactions.
  *
  * specialization for using app indicators in ubuntu unity
  *
+ * When the tray host (indicator-application-service, or the panel) goes away and comes back, the tray is rebuilt from what was last
+ * set (icon, status and menu). The failure callback only runs if the host doesn't come back within {@link #HOST_RETURN_TIMEOUT_MILLIS}.
+ *
  * Heavily modified from
  *
  * Lantern: https://github.com/getlantern/lantern/ Apache 2.0 License Copyright 2010 Brave New Software Project, Inc.
  */
 public class AppIndicatorTray extends SystemTray {
+    /**
+     * How long to wait for the tray host to come back, before the failure callback runs.
+     */
+    public static long HOST_RETURN_TIMEOUT_MILLIS = 10000L;
+
+    /**
+     * After the tray host comes back, the tray is rebuilt (once) after this delay. Any other connection changes in the meantime are
+     * merged into that one rebuild.
+     */
+    public static long REBUILD_DELAY_MILLIS = 250L;
+
+    /**
+     * How long a menu call made on the GTK thread (ie: from an {@link dorkbox.util.tray.InlineMenuAction}) waits for an entry that another
+     * thread is changing. Only a quick change is waited for, a thread that holds on to the entry for longer is waiting for the GTK
+     * thread itself.
+     */
+    public static long GTK_ENTRY_WAIT_MILLIS = 5L;
+
+    /**
+     * When true, every icon is copied (once) into a directory that is registered with the indicator as its icon theme path, and icons
+     * are then switched by their name in that theme, instead of by file path. Icons given to {@link #preloadIcons(String...)} are
+     * copied right away.
+     */
+    public static boolean USE_ICON_THEME = false;
+
     private static final AppIndicator libappindicator = AppIndicator.INSTANCE;
     private static final Gobject libgobject = Gobject.INSTANCE;
     private static final Gtk libgtk = Gtk.INSTANCE;
 
-    private final Map<String, MenuEntry> menuEntries = new HashMap<String, MenuEntry>(2);
+    // one thread for all of the trays
+    private static final ScheduledExecutorService reconnectScheduler =
+                    Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SysTrayReconnect", true));
+
+    /*
+     * There is no lock for the whole menu. An entry is locked (on itself) while it is being created or changed, so unrelated entries
+     * can be changed at the same time, and the widgets themselves are only touched while holding the gdk lock. Waiting for an entry is
+     * never open-ended (see lockedEntry), since its holder can be waiting for the gdk lock.
+     */
+    private final ConcurrentMap<String, MenuEntry> menuEntries = new ConcurrentHashMap<String, MenuEntry>(4);
+
+    // the first radio item of each group, new items join the group through it. Only accessed while holding the gdk lock.
+    private final Map<String, Pointer> radioGroups = new HashMap<String, Pointer>(2);
 
     private volatile AppIndicator.AppIndicatorInstanceStruct appIndicator;
     private volatile Pointer menu;
+    // only accessed with the gdk lock held
+    private boolean removed;
 
     private volatile Pointer connectionStatusItem;
 
+    // what was last set, so the tray can be rebuilt when the host comes back. The icon is the file, or the name in the icon theme
+    private volatile String icon;
+    private volatile String statusText;
+
+    // only when USE_ICON_THEME, created with the first icon. Changed while holding this
+    private volatile IconTheme iconTheme;
+    private boolean iconThemeFailed;
+    // the version of the icon theme that the indicator was given the path of. Only accessed with the gdk lock held
+    private int iconThemeVersion = -1;
+
     // need to hang on to these to prevent gc
     private final List<Pointer> widgets = new ArrayList<Pointer>(4);
+    private final AppIndicator.Fallback fallback;
+    private final AppIndicatorNative.ConnectionChanged connectionChanged;
 
+    private final GtkSubmenu.Clicks submenuClicks = new GtkSubmenu.Clicks() {
+        @Override
+        public void clicked(SystemTrayMenuAction callback) {
+            dispatchClick(callback);
+        }
+    };
 
-    public AppIndicatorTray() {
-    }
+    private final Object reconnectLock = new Object();
 
-    @Override
-    public void createTray(String iconName) {
-        libgtk.gdk_threads_enter();
-        this.appIndicator =
-                        libappindicator.app_indicator_new(this.appName, "indicator-messages-new", AppIndicator.CATEGORY_APPLICATION_STATUS);
+    // guarded by reconnectLock
+    private boolean registered;
+    private boolean hostLost;
+    private ScheduledFuture<?> hostReturnTimeout;
+    private ScheduledFuture<?> rebuild;
 
-        /*
-         * basically a hack -- we should subclass the AppIndicator type and override the fallback entry in the 'vtable', instead we just
-         * hack the app indicator class itself. Not an issue unless we need other appindicators.
-         */
-        AppIndicator.AppIndicatorClassStruct aiclass =
-                        new AppIndicator.AppIndicatorClassStruct(this.appIndicator.parent.g_type_instance.g_class);
+    private final Runnable hostDidNotReturn = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (AppIndicatorTray.this.reconnectLock) {
+                AppIndicatorTray.this.hostReturnTimeout = null;
+            }
 
+            trayFailed();
+        }
+    };
+
+    private final Runnable rebuildTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (AppIndicatorTray.this.reconnectLock) {
+                AppIndicatorTray.this.rebuild = null;
+                if (!AppIndicatorTray.this.active) {
+                    return;
+                }
+            }
+
+            try {
+                rebuildTray();
+            } catch (Exception e) {
+                logger.error("Unable to rebuild the appindicator system tray.", e);
+            }
+        }
+    };
 
-        aiclass.fallback = new AppIndicator.Fallback() {
+
+    public AppIndicatorTray() {
+        /*
+         * These are called by the GTK event loop (with the gdk lock held).
+         */
+        this.fallback = new AppIndicator.Fallback() {
             @Override
             public Pointer callback(final AppIndicator.AppIndicatorInstanceStruct self) {
-                AppIndicatorTray.this.callbackExecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        logger.warn("Failed to create appindicator system tray.");
-
-                        if (AppIndicatorTray.this.failureCallback != null) {
-                            AppIndicatorTray.this.failureCallback.createTrayFailed();
-                        }
-                    }
-                });
+                // we don't want a GtkStatusIcon instead. Without one, libappindicator won't call unfallback either
+                hostLost();
                 return null;
             }
         };
-        aiclass.write();
 
-        this.menu = libgtk.gtk_menu_new();
-        libappindicator.app_indicator_set_menu(this.appIndicator, this.menu);
+        this.connectionChanged = new AppIndicatorNative.ConnectionChanged() {
+            @Override
+            public void callback(Pointer indicator, int connected, Pointer data) {
+                if (connected != Gtk.FALSE) {
+                    hostReturned();
+                } else {
+                    hostLost();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void createTray(String iconName) {
+        GtkDispatch.watch();
 
-        libappindicator.app_indicator_set_icon_full(this.appIndicator, iconPath(iconName), this.appName);
-        libappindicator.app_indicator_set_status(this.appIndicator, AppIndicator.STATUS_ACTIVE);
+        // this can copy a file, so not while holding the gdk lock
+        final String icon = icon(iconName);
+        this.icon = icon;
 
-        libgtk.gdk_threads_leave();
+        GtkDispatch.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                createIndicator(icon);
+            }
+        });
 
         this.active = true;
     }
 
     @Override
     public void removeTray() {
-        libgtk.gdk_threads_enter();
-        for (Pointer widget : this.widgets) {
-            libgtk.gtk_widget_destroy(widget);
+        synchronized (this.reconnectLock) {
+            cancelReconnect();
         }
 
-        // this hides the indicator
-        libappindicator.app_indicator_set_status(this.appIndicator, AppIndicator.STATUS_PASSIVE);
-        this.appIndicator.write();
-        Pointer p = this.appIndicator.getPointer();
-        libgobject.g_object_unref(p);
+        GtkDispatch.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (AppIndicatorTray.this.removed) {
+                    return;
+                }
+                AppIndicatorTray.this.removed = true;
 
-        this.active = false;
+                if (AppIndicatorTray.this.menu != null) {
+                    destroyIndicator();
+                }
 
-        // GC it
-        this.appIndicator = null;
-        this.widgets.clear();
+                AppIndicatorTray.this.active = false;
 
-        // unrefs the children too
-        libgobject.g_object_unref(this.menu);
-        this.menu = null;
+                AppIndicatorTray.this.menuEntries.clear();
+                AppIndicatorTray.this.radioGroups.clear();
 
-        synchronized (this.menuEntries) {
-            this.menuEntries.clear();
-        }
+                GtkSupport.shutdownGTK();
+            }
+        });
 
-        this.connectionStatusItem = null;
-        GtkSupport.shutdownGTK();
+        synchronized (this) {
+            if (this.iconTheme != null) {
+                this.iconTheme.delete();
+                this.iconTheme = null;
+            }
+        }
 
-        libgtk.gdk_threads_leave();
         super.removeTray();
     }
 
     @Override
-    public void setStatus(String infoString, String iconName) {
-        libgtk.gdk_threads_enter();
-        if (this.connectionStatusItem == null) {
-            this.connectionStatusItem = libgtk.gtk_menu_item_new_with_label(infoString);
-            this.widgets.add(this.connectionStatusItem);
-            libgtk.gtk_widget_set_sensitive(this.connectionStatusItem, Gtk.FALSE);
-            libgtk.gtk_menu_shell_append(this.menu, this.connectionStatusItem);
-        } else {
-            libgtk.gtk_menu_item_set_label(this.connectionStatusItem, infoString);
+    public void setStatus(final String infoString, String iconName) {
+        // this can copy a file, so not while holding the gdk lock
+        final String icon = icon(iconName);
+
+        if (infoString.equals(this.statusText) && icon.equals(this.icon)) {
+            // nothing changed, so there is no need to take the gdk lock (or to allocate anything)
+            return;
         }
 
-        libgtk.gtk_widget_show_all(this.connectionStatusItem);
+        GtkDispatch.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (AppIndicatorTray.this.menu == null) {
+                    // removed
+                    return;
+                }
+
+                Pointer connectionStatusItem = AppIndicatorTray.this.connectionStatusItem;
+                if (connectionStatusItem == null) {
+                    addStatusItem(infoString);
+                } else if (!infoString.equals(AppIndicatorTray.this.statusText)) {
+                    GtkNative.gtk_menu_item_set_label(connectionStatusItem, infoString);
+                    GtkNative.gtk_widget_show_all(connectionStatusItem);
+                }
+                AppIndicatorTray.this.statusText = infoString;
+
+                // app-indicator only takes a file or theme icon name (and the host reads and decodes the file on every change, there
+                // is no pixbuf to hand it), so the most that can be done is to not send the same icon again
+                if (!icon.equals(AppIndicatorTray.this.icon)) {
+                    AppIndicatorTray.this.icon = icon;
+                    // an icon that was just added to the theme isn't known to the tray host yet
+                    registerIconTheme(AppIndicatorTray.this.appIndicator);
+                    AppIndicatorNative.app_indicator_set_icon_full(AppIndicatorTray.this.appIndicator.getPointer(), icon,
+                                                                   AppIndicatorTray.this.appName);
+                }
+            }
+        });
+    }
 
-        libappindicator.app_indicator_set_icon_full(this.appIndicator, iconPath(iconName), this.appName);
-        libgtk.gdk_threads_leave();
+    @Override
+    protected void preloadIcon(String iconName) {
+        // copies it into the icon theme, too
+        icon(iconName);
+    }
+
+    /**
+     * Can copy a file, so MUST NOT be called with the gdk lock held.
+     *
+     * @return what to give app_indicator_set_icon_full(): the name of the icon in the icon theme, or the file of the icon
+     */
+    private String icon(String iconName) {
+        if (!USE_ICON_THEME) {
+            return iconPath(iconName);
+        }
+
+        IconTheme iconTheme;
+        synchronized (this) {
+            iconTheme = this.iconTheme;
+            if (iconTheme == null) {
+                if (this.iconThemeFailed) {
+                    return iconPath(iconName);
+                }
+
+                iconTheme = IconTheme.create(this.appName == null ? "tray" : this.appName);
+                if (iconTheme == null) {
+                    // logged already, don't try again for every icon
+                    this.iconThemeFailed = true;
+                    return iconPath(iconName);
+                }
+                this.iconTheme = iconTheme;
+            }
+        }
+
+        // the name is all that is needed once the icon is in the theme, the path isn't even resolved
+        String name = iconTheme.get(iconName);
+        if (name != null) {
+            return name;
+        }
+
+        String iconPath = iconPath(iconName);
+        name = iconTheme.add(iconName, iconPath);
+        return name != null ? name : iconPath;
+    }
+
+    @Override
+    protected void displayNotification(String title, String message) {
+        DesktopNotifications.show(this.appName, title, message);
     }
 
     /**
      * Will add a new menu entry, or update one if it already exists
      */
     @Override
-    public void addMenuEntry(String menuText, final SystemTrayMenuAction callback) {
-        synchronized (this.menuEntries) {
-            MenuEntry menuEntry = this.menuEntries.get(menuText);
+    public void addMenuEntry(String menuText, SystemTrayMenuAction callback) {
+        addMenuEntry(MenuEntry.ITEM, null, menuText, false, callback);
+    }
 
-            if (menuEntry == null) {
-                libgtk.gdk_threads_enter();
+    /**
+     * Will update an already existing menu entry (or add a new one, if it doesn't exist)
+     */
+    @Override
+    public void updateMenuEntry(String origMenuText, final String newMenuText, final SystemTrayMenuAction newCallback) {
+        final MenuEntry menuEntry = lockedEntry(origMenuText);
 
-                Pointer dashboardItem = libgtk.gtk_menu_item_new_with_label(menuText);
+        if (menuEntry == null) {
+            addMenuEntry(origMenuText, newCallback);
+            return;
+        }
 
-                // have to watch out! These can get garbage collected!
-                Gobject.GCallback gtkCallback = new Gobject.GCallback() {
-                    @Override
-                    public void callback(Pointer instance, Pointer data) {
-                        AppIndicatorTray.this.callbackExecutor.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                callback.onClick(AppIndicatorTray.this);
+        if (menuEntry.callback == newCallback && newMenuText.equals(menuEntry.text)) {
+            // nothing changed
+            menuEntry.lock.unlock();
+            return;
+        }
+
+        try {
+            GtkDispatch.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    if (AppIndicatorTray.this.menu == null) {
+                        // removed, the widget is gone
+                        return;
+                    }
+
+                    GtkNative.gtk_menu_item_set_label(menuEntry.dashboardItem, newMenuText);
+                    menuEntry.text = newMenuText;
+
+                    // the signal handler is already connected (and reads this), reconnecting would stack another handler each update
+                    menuEntry.callback = newCallback;
+
+                    GtkNative.gtk_widget_show_all(menuEntry.dashboardItem);
+                }
+            });
+        } finally {
+            menuEntry.lock.unlock();
+        }
+    }
+
+    @Override
+    public void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        addMenuEntry(MenuEntry.CHECK, null, menuText, checked, callback);
+    }
+
+    @Override
+    public void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        addMenuEntry(MenuEntry.RADIO, group, menuText, selected, callback);
+    }
+
+    private void addMenuEntry(int type, String group, String menuText, final boolean checked, SystemTrayMenuAction callback) {
+        final MenuEntry newEntry = new MenuEntry(type, group, menuText);
+        newEntry.callback = callback;
+
+        // locked BEFORE anyone else can see it (so this never waits), and they wait until the widget exists
+        newEntry.lock.lock();
+        try {
+            MenuEntry existing = this.menuEntries.putIfAbsent(menuText, newEntry);
+
+            if (existing == null) {
+                try {
+                    GtkDispatch.invokeAndWait(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!newEntry.claimed.compareAndSet(false, true) || AppIndicatorTray.this.menu == null) {
+                                // given up on, or removed
+                                return;
+                            }
+
+                            Pointer dashboardItem = newMenuItem(newEntry);
+
+                            if (newEntry.type != MenuEntry.ITEM) {
+                                // before the signal is connected, so there is nothing to ignore
+                                GtkNative.gtk_check_menu_item_set_active(dashboardItem, checked);
+                            }
+                            attach(newEntry, dashboardItem);
+                        }
+                    });
+                } catch (SystemTrayTimeoutException e) {
+                    giveUp(menuText, newEntry);
+                    throw e;
+                } catch (RuntimeException e) {
+                    this.menuEntries.remove(menuText, newEntry);
+                    throw e;
+                }
+                return;
+            }
+        } finally {
+            newEntry.lock.unlock();
+        }
+
+        if (type != MenuEntry.ITEM) {
+            setMenuEntryChecked(menuText, checked);
+        }
+        updateMenuEntry(menuText, menuText, callback);
+    }
+
+    @Override
+    protected void addSubmenuEntry(String menuText, final LazySubmenu submenu) {
+        final MenuEntry newEntry = new MenuEntry(MenuEntry.SUBMENU, null, menuText);
+        newEntry.submenu = submenu;
+
+        // locked BEFORE anyone else can see it (so this never waits), and they wait until the widget exists
+        newEntry.lock.lock();
+        try {
+            MenuEntry existing = this.menuEntries.putIfAbsent(menuText, newEntry);
+
+            if (existing == null) {
+                try {
+                    GtkDispatch.invokeAndWait(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (newEntry.claimed.compareAndSet(false, true) && AppIndicatorTray.this.menu != null) {
+                                attach(newEntry, newMenuItem(newEntry));
                             }
-                        });
+                        }
+                    });
+                } catch (SystemTrayTimeoutException e) {
+                    giveUp(menuText, newEntry);
+                    throw e;
+                } catch (RuntimeException e) {
+                    this.menuEntries.remove(menuText, newEntry);
+                    throw e;
+                }
+                return;
+            }
+        } finally {
+            newEntry.lock.unlock();
+        }
+
+        final MenuEntry menuEntry = lockedEntry(menuText);
+        if (menuEntry == null) {
+            // removed in the meantime
+            addSubmenuEntry(menuText, submenu);
+            return;
+        }
+
+        try {
+            if (menuEntry.type != MenuEntry.SUBMENU) {
+                logger.error("Menu entry '{}' already exists, and is not a submenu.", menuText);
+                return;
+            }
+
+            GtkDispatch.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    menuEntry.submenu = submenu;
+                    if (menuEntry.gtkSubmenu != null && AppIndicatorTray.this.menu != null) {
+                        menuEntry.gtkSubmenu.setSubmenu(submenu);
                     }
-                };
+                }
+            });
+        } finally {
+            menuEntry.lock.unlock();
+        }
+    }
 
-                libgobject.g_signal_connect_data(dashboardItem, "activate", gtkCallback, null, null, 0);
-                libgtk.gtk_menu_shell_append(this.menu, dashboardItem);
-                libgtk.gtk_widget_show_all(dashboardItem);
+    @Override
+    public void setMenuEntryChecked(String menuText, final boolean checked) {
+        final MenuEntry menuEntry = lockedEntry(menuText);
 
-                libgtk.gdk_threads_leave();
+        if (menuEntry != null) {
+            if (!menuEntry.isToggle()) {
+                menuEntry.lock.unlock();
+                return;
+            }
 
-                menuEntry = new MenuEntry();
-                menuEntry.dashboardItem = dashboardItem;
-                menuEntry.gtkCallback = gtkCallback;
+            try {
+                GtkDispatch.invokeAndWait(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (AppIndicatorTray.this.menu == null) {
+                            // removed, the widget is gone
+                            return;
+                        }
 
-                this.menuEntries.put(menuText, menuEntry);
-            } else {
-                updateMenuEntry(menuText, menuText, callback);
+                        // gtk emits "activate" (synchronously, on this thread) when the state changes
+                        menuEntry.ignoreActivate = true;
+                        GtkNative.gtk_check_menu_item_set_active(menuEntry.dashboardItem, checked);
+                        menuEntry.ignoreActivate = false;
+                    }
+                });
+            } finally {
+                menuEntry.lock.unlock();
             }
         }
     }
 
+    @Override
+    public boolean isMenuEntryChecked(String menuText) {
+        final MenuEntry menuEntry = lockedEntry(menuText);
+
+        if (menuEntry == null) {
+            return false;
+        }
+        if (!menuEntry.isToggle()) {
+            menuEntry.lock.unlock();
+            return false;
+        }
+
+        try {
+            final boolean[] active = new boolean[1];
+            GtkDispatch.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    // (unless it was removed, and the widget is gone)
+                    active[0] = AppIndicatorTray.this.menu != null && GtkNative.gtk_check_menu_item_get_active(menuEntry.dashboardItem);
+                }
+            });
+            return active[0];
+        } finally {
+            menuEntry.lock.unlock();
+        }
+    }
+
     /**
-     * Will update an already existing menu entry (or add a new one, if it doesn't exist)
+     * Called when the GTK thread didn't create the entry's widget in time. If it hasn't started to, it never will and the entry is
+     * removed. Otherwise the entry stays, so the widget isn't orphaned, and whoever uses it next waits (on the GTK thread) for it.
      */
-    @Override
-    public void updateMenuEntry(String origMenuText, String newMenuText, final SystemTrayMenuAction newCallback) {
-        synchronized (this.menuEntries) {
-            MenuEntry menuEntry = this.menuEntries.get(origMenuText);
+    private void giveUp(String menuText, MenuEntry newEntry) {
+        if (newEntry.claimed.compareAndSet(false, true)) {
+            this.menuEntries.remove(menuText, newEntry);
+        }
+    }
 
-            if (menuEntry != null) {
-                libgtk.gdk_threads_enter();
-                libgtk.gtk_menu_item_set_label(menuEntry.dashboardItem, newMenuText);
+    /**
+     * @return the entry, locked (the caller MUST unlock it), or null if there is no such entry
+     *
+     * @throws SystemTrayTimeoutException if another thread held on to the entry for longer than {@link #TIMEOUT_MILLIS}. The GTK thread
+     * waits for at most {@link #GTK_ENTRY_WAIT_MILLIS}, because whoever holds the entry for longer is waiting for the GTK thread.
+     */
+    private MenuEntry lockedEntry(String menuText) {
+        long waitMillis = GtkDispatch.isGtkThread() ? GTK_ENTRY_WAIT_MILLIS : TIMEOUT_MILLIS;
 
-                // have to watch out! These can get garbage collected!
-                menuEntry.gtkCallback = new Gobject.GCallback() {
-                    @Override
-                    public void callback(Pointer instance, Pointer data) {
-                        AppIndicatorTray.this.callbackExecutor.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                newCallback.onClick(AppIndicatorTray.this);
-                            }
-                        });
+        while (true) {
+            MenuEntry menuEntry = this.menuEntries.get(menuText);
+            if (menuEntry == null) {
+                return null;
+            }
+
+            boolean locked;
+            try {
+                locked = menuEntry.lock.tryLock(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SystemTrayTimeoutException("Interrupted while waiting for menu entry '" + menuText + "'.");
+            }
+            if (!locked) {
+                throw new SystemTrayTimeoutException("Timed out after " + waitMillis + " ms waiting for menu entry '" + menuText +
+                                                     "', which another thread is changing.");
+            }
+
+            if (this.menuEntries.get(menuText) == menuEntry) {
+                return menuEntry;
+            }
+
+            // it failed to be created (or the tray was removed) while we were waiting for it
+            menuEntry.lock.unlock();
+        }
+    }
+
+    /**
+     * Called when the indicator lost its tray host, or never found one.
+     */
+    private void hostLost() {
+        boolean failNow = false;
+
+        synchronized (this.reconnectLock) {
+            if (this.rebuild != null) {
+                this.rebuild.cancel(false);
+                this.rebuild = null;
+            }
+
+            if (!this.registered) {
+                // there was never a host to begin with, don't make the application wait for one
+                failNow = !this.hostLost;
+            } else if (this.hostReturnTimeout == null && !this.hostLost) {
+                logger.info("Appindicator system tray host went away, waiting {} ms for it to return.", HOST_RETURN_TIMEOUT_MILLIS);
+                this.hostReturnTimeout = reconnectScheduler.schedule(this.hostDidNotReturn, HOST_RETURN_TIMEOUT_MILLIS,
+                                                                     TimeUnit.MILLISECONDS);
+            }
+
+            this.hostLost = true;
+        }
+
+        if (failNow) {
+            trayFailed();
+        }
+    }
+
+    /**
+     * Called when the indicator (re)registered with a tray host.
+     */
+    private void hostReturned() {
+        synchronized (this.reconnectLock) {
+            this.registered = true;
+
+            if (this.hostReturnTimeout != null) {
+                this.hostReturnTimeout.cancel(false);
+                this.hostReturnTimeout = null;
+            }
+
+            if (this.hostLost) {
+                this.hostLost = false;
+
+                if (this.rebuild == null && this.active) {
+                    logger.info("Appindicator system tray host is back, rebuilding the tray.");
+                    this.rebuild = reconnectScheduler.schedule(this.rebuildTask, REBUILD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    // must hold reconnectLock
+    private void cancelReconnect() {
+        if (this.hostReturnTimeout != null) {
+            this.hostReturnTimeout.cancel(false);
+            this.hostReturnTimeout = null;
+        }
+        if (this.rebuild != null) {
+            this.rebuild.cancel(false);
+            this.rebuild = null;
+        }
+    }
+
+    private void trayFailed() {
+        this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                logger.warn("Failed to create appindicator system tray.");
+
+                if (AppIndicatorTray.this.failureCallback != null) {
+                    AppIndicatorTray.this.failureCallback.createTrayFailed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Throws away the indicator and builds it again, with the current icon, status and menu. This is all done in a single trip to
+     * the gdk lock.
+     */
+    private void rebuildTray() {
+        GtkDispatch.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (!AppIndicatorTray.this.active) {
+                    return;
+                }
+
+                /*
+                 * The entries are NOT locked here. Whoever holds one of their locks might be waiting for us (the gdk lock), but
+                 * the widgets are only ever changed while holding the gdk lock, so they cannot change under us either.
+                 */
+                List<MenuEntry> entries = new ArrayList<MenuEntry>(AppIndicatorTray.this.menuEntries.size());
+                for (MenuEntry entry : AppIndicatorTray.this.menuEntries.values()) {
+                    // still waiting for its turn to be created, it will be added to the new menu then
+                    if (entry.dashboardItem != null) {
+                        entries.add(entry);
+                    }
+                }
+                Collections.sort(entries, MenuEntry.CREATION_ORDER);
+
+                int size = entries.size();
+
+                // the toggle state only lives in the widgets, which are about to be destroyed
+                boolean[] checked = new boolean[size];
+                for (int i = 0; i < size; i++) {
+                    MenuEntry entry = entries.get(i);
+                    if (entry.isToggle()) {
+                        checked[i] = GtkNative.gtk_check_menu_item_get_active(entry.dashboardItem);
                     }
-                };
+                }
 
-                libgobject.g_signal_connect_data(menuEntry.dashboardItem, "activate", menuEntry.gtkCallback, null, null, 0);
+                destroyIndicator();
+                AppIndicatorTray.this.radioGroups.clear();
 
-                libgtk.gtk_widget_show_all(menuEntry.dashboardItem);
-                libgtk.gdk_threads_leave();
-            } else {
-                addMenuEntry(origMenuText, newCallback);
+                createIndicator(AppIndicatorTray.this.icon);
+
+                String statusText = AppIndicatorTray.this.statusText;
+                if (statusText != null) {
+                    addStatusItem(statusText);
+                }
+
+                for (int i = 0; i < size; i++) {
+                    MenuEntry entry = entries.get(i);
+                    Pointer dashboardItem = newMenuItem(entry);
+
+                    if (entry.isToggle()) {
+                        GtkNative.gtk_check_menu_item_set_active(dashboardItem, checked[i]);
+                    }
+                    attach(entry, dashboardItem);
+                }
             }
+        });
+    }
+
+    /**
+     * MUST be called with the gdk lock held.
+     */
+    private void createIndicator(String icon) {
+        AppIndicator.AppIndicatorInstanceStruct appIndicator = libappindicator.app_indicator_new(this.appName, "indicator-messages-new",
+                                                                                                 AppIndicator.CATEGORY_APPLICATION_STATUS);
+
+        /*
+         * basically a hack -- we should subclass the AppIndicator type and override the fallback entry in the 'vtable', instead we
+         * just hack the app indicator class itself. Not an issue unless we need other appindicators.
+         */
+        AppIndicator.AppIndicatorClassStruct aiclass = new AppIndicator.AppIndicatorClassStruct(appIndicator.parent.g_type_instance.g_class);
+        aiclass.fallback = this.fallback;
+        aiclass.write();
+
+        libgobject.g_signal_connect_data(appIndicator.getPointer(), "connection-changed", this.connectionChanged, null, null, 0);
+
+        Pointer menu = libgtk.gtk_menu_new();
+        libappindicator.app_indicator_set_menu(appIndicator, menu);
+
+        // from then on the icons are switched by name, and the path is only registered again when icons were added
+        this.iconThemeVersion = -1;
+        registerIconTheme(appIndicator);
+
+        AppIndicatorNative.app_indicator_set_icon_full(appIndicator.getPointer(), icon, this.appName);
+        libappindicator.app_indicator_set_status(appIndicator, AppIndicator.STATUS_ACTIVE);
+
+        this.menu = menu;
+        this.appIndicator = appIndicator;
+    }
+
+    /**
+     * Gives the indicator the path of the icon theme, if icons were added to it since it was last given. That makes the tray host read
+     * the directory again. MUST be called with the gdk lock held.
+     */
+    private void registerIconTheme(AppIndicator.AppIndicatorInstanceStruct appIndicator) {
+        IconTheme iconTheme = this.iconTheme;
+        if (iconTheme == null) {
+            return;
+        }
+
+        int version = iconTheme.getVersion();
+        if (version != this.iconThemeVersion) {
+            this.iconThemeVersion = version;
+            libappindicator.app_indicator_set_icon_theme_path(appIndicator, iconTheme.getPath(version));
         }
     }
+
+    /**
+     * MUST be called with the gdk lock held.
+     */
+    private void destroyIndicator() {
+        for (MenuEntry entry : this.menuEntries.values()) {
+            if (entry.gtkSubmenu != null) {
+                // destroyed with the menu
+                entry.gtkSubmenu.destroyed();
+                entry.gtkSubmenu = null;
+            }
+        }
+
+        for (Pointer widget : this.widgets) {
+            libgtk.gtk_widget_destroy(widget);
+        }
+
+        // this hides the indicator
+        libappindicator.app_indicator_set_status(this.appIndicator, AppIndicator.STATUS_PASSIVE);
+        this.appIndicator.write();
+        Pointer p = this.appIndicator.getPointer();
+        libgobject.g_object_unref(p);
+
+        // GC it
+        this.appIndicator = null;
+        this.widgets.clear();
+
+        // unrefs the children too
+        libgobject.g_object_unref(this.menu);
+        this.menu = null;
+
+        this.connectionStatusItem = null;
+    }
+
+    /**
+     * MUST be called with the gdk lock held.
+     */
+    private void addStatusItem(String infoString) {
+        Pointer connectionStatusItem = libgtk.gtk_menu_item_new_with_label(infoString);
+        this.widgets.add(connectionStatusItem);
+        libgtk.gtk_widget_set_sensitive(connectionStatusItem, Gtk.FALSE);
+        libgtk.gtk_menu_shell_append(this.menu, connectionStatusItem);
+        GtkNative.gtk_widget_show_all(connectionStatusItem);
+        this.connectionStatusItem = connectionStatusItem;
+    }
+
+    /**
+     * Creates the widget for the entry. MUST be called with the gdk lock held.
+     */
+    private Pointer newMenuItem(MenuEntry menuEntry) {
+        switch (menuEntry.type) {
+            case MenuEntry.CHECK:
+                return GtkNative.gtk_check_menu_item_new_with_label(menuEntry.text);
+
+            case MenuEntry.RADIO:
+                Pointer firstInGroup = this.radioGroups.get(menuEntry.group);
+                Pointer dashboardItem = GtkNative.gtk_radio_menu_item_new_with_label_from_widget(firstInGroup, menuEntry.text);
+                if (firstInGroup == null) {
+                    this.radioGroups.put(menuEntry.group, dashboardItem);
+                }
+                return dashboardItem;
+
+            case MenuEntry.SUBMENU:
+                GtkSubmenu gtkSubmenu = new GtkSubmenu(menuEntry.text, menuEntry.submenu, this.submenuClicks);
+                menuEntry.gtkSubmenu = gtkSubmenu;
+                return gtkSubmenu.getItem();
+
+            default:
+                return libgtk.gtk_menu_item_new_with_label(menuEntry.text);
+        }
+    }
+
+    /**
+     * Connects the entry's callback and appends the item to the menu. MUST be called with the gdk lock held.
+     */
+    private void attach(final MenuEntry menuEntry, Pointer dashboardItem) {
+        if (menuEntry.type == MenuEntry.SUBMENU) {
+            // the submenu is opened on "activate", it is not an action
+            libgtk.gtk_menu_shell_append(this.menu, dashboardItem);
+            GtkNative.gtk_widget_show_all(dashboardItem);
+            menuEntry.dashboardItem = dashboardItem;
+            return;
+        }
+
+        // have to watch out! These can get garbage collected!
+        Gobject.GCallback gtkCallback = new Gobject.GCallback() {
+            @Override
+            public void callback(Pointer instance, Pointer data) {
+                if (!menuEntry.ignoreActivate) {
+                    dispatchClick(menuEntry.callback);
+                }
+            }
+        };
+
+        libgobject.g_signal_connect_data(dashboardItem, "activate", gtkCallback, null, null, 0);
+        libgtk.gtk_menu_shell_append(this.menu, dashboardItem);
+        GtkNative.gtk_widget_show_all(dashboardItem);
+
+        menuEntry.dashboardItem = dashboardItem;
+        menuEntry.gtkCallback = gtkCallback;
+    }
 }
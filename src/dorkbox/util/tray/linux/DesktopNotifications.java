@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Pointer;
+
+import dorkbox.util.jna.linux.Gobject;
+
+/**
+ * Desktop notifications for the linux trays, via libnotify. If libnotify isn't installed, notifications are logged instead.
+ */
+final class DesktopNotifications {
+    private static final Logger logger = LoggerFactory.getLogger(DesktopNotifications.class);
+
+    private static boolean initialized = false;
+    private static boolean supported = false;
+
+    private DesktopNotifications() {
+    }
+
+    static synchronized void show(String appName, String title, String message) {
+        if (!initialized) {
+            initialized = true;
+
+            try {
+                supported = LibNotify.notify_init(appName);
+            } catch (Throwable t) {
+                logger.warn("libnotify is not available, notifications will only be logged.", t);
+            }
+        }
+
+        if (!supported) {
+            logger.info("{}: {}", title, message);
+            return;
+        }
+
+        Pointer notification = LibNotify.notify_notification_new(title, message, null);
+        if (notification != null) {
+            LibNotify.notify_notification_show(notification, null);
+            Gobject.INSTANCE.g_object_unref(notification);
+        }
+    }
+}
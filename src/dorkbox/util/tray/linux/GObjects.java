@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+import dorkbox.util.tray.NativeLoader;
+
+/**
+ * Counts the live GObjects of the types that the GTK trays create. GLib only counts them when the process was started with
+ * GOBJECT_DEBUG=instance-count (it reads that once, when it starts).
+ */
+public final class GObjects {
+    static {
+        // the bundled jna jar doesn't load its own library, and this can be used before a tray is created
+        NativeLoader.init(false);
+        Native.register(GObjects.class, "gobject-2.0");
+    }
+
+    private static final String[] TYPES = new String[] {"GtkMenu", "GtkMenuItem", "GtkImageMenuItem", "GtkCheckMenuItem",
+                                                        "GtkRadioMenuItem", "GtkSeparatorMenuItem", "GtkImage", "GtkStatusIcon",
+                                                        "GdkPixbuf", "AppIndicator"};
+
+    private GObjects() {
+    }
+
+    /**
+     * @return 0 if no type by that name was registered (yet)
+     */
+    private static native NativeLong g_type_from_name(String name);
+
+    private static native int g_type_get_instance_count(NativeLong type);
+
+    /**
+     * @return true if GLib counts the instances of each type
+     */
+    public static boolean isCounting() {
+        String debug = System.getenv("GOBJECT_DEBUG");
+        return debug != null && (debug.contains("instance-count") || debug.contains("all"));
+    }
+
+    /**
+     * @return how many GObjects of the tray's types are alive, or -1 if GLib doesn't count them
+     */
+    public static long count() {
+        if (!isCounting()) {
+            return -1L;
+        }
+
+        long count = 0L;
+        for (String name : TYPES) {
+            NativeLong type = g_type_from_name(name);
+            if (type.longValue() != 0L) {
+                count += g_type_get_instance_count(type);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Pointer;
+
+import dorkbox.util.jna.linux.Gtk;
+import dorkbox.util.tray.SystemTrayTimeoutException;
+import dorkbox.util.tray.TrayWatchdog;
+
+/**
+ * Runs GTK work while holding the gdk lock, without letting the caller wait on that lock forever.
+ * <p>
+ * The work runs on a single dispatch thread, and the caller waits for it for at most {@link dorkbox.util.tray.SystemTray#TIMEOUT_MILLIS}.
+ * If the GTK event loop (or anyone else) holds on to the gdk lock, the caller gets a SystemTrayTimeoutException instead of hanging, and
+ * the dispatch thread (which may be stuck) is replaced, so the work after it doesn't have to wait for it.
+ */
+final class GtkDispatch {
+    private static final Logger logger = LoggerFactory.getLogger(GtkDispatch.class);
+
+    static final String LOOP_NAME = "GTK";
+
+    /**
+     * How many dispatch threads that timed out can still be stuck (ie: waiting for the gdk lock), before they are no longer replaced.
+     * When the gdk lock is held for good, replacing them would only add another stuck thread every time.
+     */
+    static int MAX_STUCK_DISPATCHERS = 2;
+
+    // the name GtkSupport gives the thread it runs the event loop on. Only used to find it for a stall report, before it is known
+    private static final String GTK_THREAD_NAME = "GTK Event Loop";
+
+    // the thread that runs the GTK event loop, as seen from the loop itself. Not known by name: SWT (for one) runs it on its own thread
+    private static volatile Thread gtkThread;
+
+    /**
+     * The dispatch threads, so they are known to hold the gdk lock while they run a task.
+     */
+    private static final class DispatchThread extends Thread {
+        DispatchThread(Runnable runnable) {
+            super(runnable, "SysTrayGtkDispatch");
+            setDaemon(true);
+        }
+    }
+
+    private static final ThreadFactory dispatchThreads = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new DispatchThread(runnable);
+        }
+    };
+
+    // dispatchers that were replaced, and whose thread has not finished yet
+    private static final AtomicInteger stuckDispatchers = new AtomicInteger();
+
+    private static volatile ThreadPoolExecutor dispatcher = newDispatcher();
+
+    private static final ConcurrentLinkedQueue<Runnable> idleTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // have to hang on to this, to prevent gc
+    private static final GtkNative.GSourceFunc runIdleTasks = new GtkNative.GSourceFunc() {
+        @Override
+        public int callback(Pointer data) {
+            gtkThread = Thread.currentThread();
+
+            Runnable task;
+            while ((task = idleTasks.poll()) != null) {
+                task.run();
+            }
+            return Gtk.FALSE;
+        }
+    };
+
+    /**
+     * Runs tasks on the GTK event loop (asynchronously). Used for the watchdog heartbeat, and for work that nobody waits for.
+     */
+    private static final Executor gtkLoop = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            idleTasks.add(command);
+            GtkNative.gdk_threads_add_idle(runIdleTasks, null);
+        }
+    };
+
+    private static final Runnable nothing = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private GtkDispatch() {
+    }
+
+    private static ThreadPoolExecutor newDispatcher() {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), dispatchThreads) {
+            @Override
+            protected void terminated() {
+                if (this != dispatcher) {
+                    stuckDispatchers.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    static void watch() {
+        // so the event loop says which thread it is, before anything is delivered on it
+        gtkLoop.execute(nothing);
+
+        TrayWatchdog.watch(LOOP_NAME, GTK_THREAD_NAME, gtkLoop);
+    }
+
+    /**
+     * @return true if this is the GTK event loop (or a dispatch thread), which holds the gdk lock while it runs Java code
+     */
+    static boolean isGtkThread() {
+        Thread currentThread = Thread.currentThread();
+        return currentThread == gtkThread || currentThread instanceof DispatchThread;
+    }
+
+    /**
+     * Runs the runnable on the GTK event loop (while holding the gdk lock), and does not wait for it.
+     */
+    static void invokeLater(Runnable runnable) {
+        gtkLoop.execute(runnable);
+    }
+
+    /**
+     * Runs the runnable while holding the gdk lock, and waits for it to finish.
+     *
+     * @throws dorkbox.util.tray.SystemTrayTimeoutException if it could not be run in time
+     */
+    static void invokeAndWait(final Runnable runnable) {
+        if (isGtkThread()) {
+            // the gdk lock is already held (gtk signals are delivered with it held), and it is not re-entrant
+            runnable.run();
+            return;
+        }
+
+        FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+            @Override
+            public void run() {
+                GtkNative.gdk_threads_enter();
+                try {
+                    runnable.run();
+                } finally {
+                    GtkNative.gdk_threads_leave();
+                }
+            }
+        }, null);
+
+        ThreadPoolExecutor dispatcher = GtkDispatch.dispatcher;
+        dispatcher.execute(task);
+
+        try {
+            TrayWatchdog.await(task, LOOP_NAME);
+        } catch (SystemTrayTimeoutException e) {
+            replace(dispatcher);
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the dispatcher that timed out (unless that was done already). Its thread finishes what it is stuck on, runs what is still
+     * queued on it (the callers of which timed out as well, so it was cancelled), and goes away.
+     */
+    private static synchronized void replace(ThreadPoolExecutor timedOut) {
+        if (timedOut != dispatcher || timedOut.getActiveCount() == 0) {
+            // replaced already, or it was only the wait that was cut short (ie: interrupted)
+            return;
+        }
+
+        if (stuckDispatchers.get() >= MAX_STUCK_DISPATCHERS) {
+            logger.warn("{} GTK dispatch threads are still stuck, the dispatch thread is not replaced again.", stuckDispatchers.get());
+            return;
+        }
+
+        stuckDispatchers.incrementAndGet();
+        dispatcher = newDispatcher();
+        timedOut.shutdown();
+    }
+}
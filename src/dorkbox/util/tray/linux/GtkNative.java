@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import dorkbox.util.Keep;
+
+/**
+ * Direct-mapped bindings for the GTK calls that are made on every tray update.
+ * <p>
+ * These skip the reflection and proxy dispatch (and argument boxing) of the interface-mapped {@link dorkbox.util.jna.linux.Gtk#INSTANCE},
+ * which is still used for everything else.
+ */
+final class GtkNative {
+    static {
+        Native.register(GtkNative.class, "gtk-x11-2.0");
+    }
+
+    private GtkNative() {
+    }
+
+    @Keep
+    interface GSourceFunc extends Callback {
+        /**
+         * @return FALSE to remove this source
+         */
+        int callback(Pointer data);
+    }
+
+    @Keep
+    interface GWeakNotify extends Callback {
+        void callback(Pointer data, Pointer where_the_object_was);
+    }
+
+    static native void gdk_threads_enter();
+    static native void gdk_threads_leave();
+
+    /**
+     * Runs the function on the GTK event loop, while holding the gdk lock.
+     */
+    static native int gdk_threads_add_idle(GSourceFunc function, Pointer data);
+
+    static native void gtk_menu_item_set_label(Pointer menu_item, String label);
+    static native void gtk_menu_item_set_submenu(Pointer menu_item, Pointer submenu);
+    static native void gtk_status_icon_set_from_file(Pointer widget, String filename);
+    static native void gtk_status_icon_set_from_pixbuf(Pointer widget, Pointer pixbuf);
+
+    /**
+     * Thread safe, does not need the gdk lock. Returns NULL if the file could not be read (the error is not returned if it is NULL).
+     */
+    static native Pointer gdk_pixbuf_new_from_file(String filename, Pointer error);
+
+    static native Pointer g_object_ref(Pointer object);
+    static native void g_object_unref(Pointer object);
+    static native void g_object_weak_ref(Pointer object, GWeakNotify notify, Pointer data);
+
+    static native Pointer gtk_check_menu_item_new_with_label(String label);
+    static native Pointer gtk_radio_menu_item_new_with_label_from_widget(Pointer group, String label);
+    static native void gtk_check_menu_item_set_active(Pointer check_menu_item, boolean is_active);
+    static native boolean gtk_check_menu_item_get_active(Pointer check_menu_item);
+
+    static native void gtk_widget_show_all(Pointer widget);
+}
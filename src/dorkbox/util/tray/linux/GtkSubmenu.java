@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.jna.Pointer;
+
+import dorkbox.util.jna.linux.Gobject;
+import dorkbox.util.jna.linux.Gtk;
+import dorkbox.util.tray.LazySubmenu;
+import dorkbox.util.tray.SubmenuItem;
+import dorkbox.util.tray.SystemTrayMenuAction;
+
+/**
+ * A native (GTK) submenu, which is populated from a {@link LazySubmenu} when it is opened. Used by the AppIndicator tray, where
+ * libdbusmenu activates the item of a submenu when the tray host is about to show it.
+ * <p>
+ * Everything here MUST be called with the gdk lock held.
+ */
+final class GtkSubmenu {
+    private static final Gobject libgobject = Gobject.INSTANCE;
+    private static final Gtk libgtk = Gtk.INSTANCE;
+
+    interface Clicks {
+        void clicked(SystemTrayMenuAction callback);
+    }
+
+    private final Clicks clicks;
+    private final Pointer item;
+    private final Pointer menu;
+
+    private LazySubmenu submenu;
+    private boolean destroyed;
+
+    // the entries that are shown now, and what they need to stay alive
+    private List<SubmenuItem> shownItems;
+    private final List<Pointer> children = new ArrayList<Pointer>();
+    private final List<Object> callbacks = new ArrayList<Object>();
+    private final List<GtkSubmenu> childSubmenus = new ArrayList<GtkSubmenu>();
+
+    private final LazySubmenu.Listener listener = new LazySubmenu.Listener() {
+        @Override
+        public void loaded(final List<SubmenuItem> items) {
+            GtkDispatch.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!GtkSubmenu.this.destroyed) {
+                        show(items);
+                    }
+                }
+            });
+        }
+    };
+
+    // have to hang on to this, to prevent gc
+    private final Gobject.GCallback opened = new Gobject.GCallback() {
+        @Override
+        public void callback(Pointer instance, Pointer data) {
+            opened();
+        }
+    };
+
+    /**
+     * Creates the menu item, and its (empty) submenu.
+     */
+    GtkSubmenu(String text, LazySubmenu submenu, Clicks clicks) {
+        this.submenu = submenu;
+        this.clicks = clicks;
+
+        this.item = libgtk.gtk_menu_item_new_with_label(text);
+        this.menu = libgtk.gtk_menu_new();
+        GtkNative.gtk_menu_item_set_submenu(this.item, this.menu);
+
+        // so it is shown as a submenu before it is ever opened
+        showLoading();
+
+        libgobject.g_signal_connect_data(this.item, "activate", this.opened, null, null, 0);
+    }
+
+    /**
+     * @return the menu item that opens the submenu
+     */
+    Pointer getItem() {
+        return this.item;
+    }
+
+    /**
+     * Changes where the entries come from. They are loaded the next time the submenu is opened.
+     */
+    void setSubmenu(LazySubmenu submenu) {
+        this.submenu = submenu;
+        showLoading();
+    }
+
+    /**
+     * Called when the widgets were destroyed (with the menu they are in), so a load that finishes later does not touch them.
+     */
+    void destroyed() {
+        this.destroyed = true;
+        for (GtkSubmenu child : this.childSubmenus) {
+            child.destroyed();
+        }
+    }
+
+    private void opened() {
+        List<SubmenuItem> items = this.submenu.open(this.listener);
+        if (items == null) {
+            showLoading();
+        } else {
+            show(items);
+        }
+    }
+
+    private void showLoading() {
+        if (this.shownItems == null && !this.children.isEmpty()) {
+            // already showing it
+            return;
+        }
+
+        removeChildren();
+
+        Pointer loading = libgtk.gtk_menu_item_new_with_label(LazySubmenu.loadingText);
+        libgtk.gtk_widget_set_sensitive(loading, Gtk.FALSE);
+        append(loading);
+    }
+
+    private void show(List<SubmenuItem> items) {
+        if (items == this.shownItems) {
+            // still cached, nothing to rebuild
+            return;
+        }
+
+        removeChildren();
+        this.shownItems = items;
+
+        for (SubmenuItem item : items) {
+            if (item.isSubmenu()) {
+                GtkSubmenu child = new GtkSubmenu(item.getText(), new LazySubmenu(item.getProvider()), this.clicks);
+                this.childSubmenus.add(child);
+                append(child.getItem());
+            } else {
+                final SystemTrayMenuAction callback = item.getCallback();
+                Pointer menuItem = libgtk.gtk_menu_item_new_with_label(item.getText());
+
+                if (callback != null) {
+                    Gobject.GCallback gtkCallback = new Gobject.GCallback() {
+                        @Override
+                        public void callback(Pointer instance, Pointer data) {
+                            GtkSubmenu.this.clicks.clicked(callback);
+                        }
+                    };
+                    this.callbacks.add(gtkCallback);
+                    libgobject.g_signal_connect_data(menuItem, "activate", gtkCallback, null, null, 0);
+                }
+
+                append(menuItem);
+            }
+        }
+    }
+
+    private void append(Pointer child) {
+        this.children.add(child);
+        libgtk.gtk_menu_shell_append(this.menu, child);
+        GtkNative.gtk_widget_show_all(child);
+    }
+
+    private void removeChildren() {
+        for (GtkSubmenu child : this.childSubmenus) {
+            child.destroyed();
+        }
+        for (Pointer child : this.children) {
+            libgtk.gtk_widget_destroy(child);
+        }
+
+        this.childSubmenus.clear();
+        this.children.clear();
+        // the widgets are gone, so their signals can't be emitted anymore
+        this.callbacks.clear();
+        this.shownItems = null;
+    }
+}
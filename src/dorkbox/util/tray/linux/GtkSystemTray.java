@@ -16,16 +16,10 @@
 package dorkbox.util.tray.linux;
 
 import java.awt.Dimension;
-import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-import javax.swing.JMenuItem;
 
 import com.sun.jna.Pointer;
 
@@ -34,9 +28,14 @@ import dorkbox.util.jna.linux.Gobject;
 import dorkbox.util.jna.linux.Gtk;
 import dorkbox.util.jna.linux.Gtk.GdkEventButton;
 import dorkbox.util.jna.linux.GtkSupport;
+import dorkbox.util.tray.LazySubmenu;
+import dorkbox.util.tray.MenuListModel;
+import dorkbox.util.tray.ScreenBounds;
 import dorkbox.util.tray.SystemTray;
 import dorkbox.util.tray.SystemTrayMenuAction;
+import dorkbox.util.tray.SystemTrayMenuEntries;
 import dorkbox.util.tray.SystemTrayMenuPopup;
+import dorkbox.util.tray.TrayWatchdog;
 
 /**
  * Class for handling all system tray interactions via GTK.
@@ -44,15 +43,26 @@ import dorkbox.util.tray.SystemTrayMenuPopup;
  * This is the "old" way to do it, and does not work with some desktop environments.
  */
 public class GtkSystemTray extends SystemTray {
+    /**
+     * How many decoded icons are kept (natively), so switching between them does not read and decode the file again.
+     */
+    public static int PIXBUF_CACHE_SIZE = 16;
+
     private static final Gobject libgobject = Gobject.INSTANCE;
     private static final Gtk libgtk = Gtk.INSTANCE;
 
-    private final Map<String, JMenuItem> menuEntries = new HashMap<String, JMenuItem>(2);
+    // the popup, and its entries
+    private final SystemTrayMenuEntries menu = new SystemTrayMenuEntries(this);
+
+    // the icon that is shown now (only changed once it is), so setting it again doesn't do anything
+    private volatile String statusIconName;
 
-    private volatile SystemTrayMenuPopup jmenu;
-    private volatile JMenuItem connectionStatusItem;
 
     private volatile Pointer trayIcon;
+    // only accessed with the gdk lock held
+    private boolean removed;
+
+    private final PixbufCache pixbufs = new PixbufCache(PIXBUF_CACHE_SIZE);
 
     // need to hang on to these to prevent gc
     private final List<Pointer> widgets = new ArrayList<Pointer>(4);
@@ -62,20 +72,20 @@ public class GtkSystemTray extends SystemTray {
     }
 
     @Override
-    public void createTray(String iconName) {
-        SwingUtil.invokeAndWait(new Runnable() {
+    public void createTray(final String iconName) {
+        TrayWatchdog.watchEdt();
+        GtkDispatch.watch();
+
+        runOnEdt(new Runnable() {
             @Override
             public void run() {
-                GtkSystemTray.this.jmenu = new SystemTrayMenuPopup();
+                GtkSystemTray.this.menu.createPopup();
             }
         });
 
-        libgtk.gdk_threads_enter();
-
-        this.trayIcon = libgtk.gtk_status_icon_new();
-        libgtk.gtk_status_icon_set_from_file(this.trayIcon, iconPath(iconName));
-        libgtk.gtk_status_icon_set_tooltip(this.trayIcon, this.appName);
-        libgtk.gtk_status_icon_set_visible(this.trayIcon, true);
+        // this can copy (and decode) a file, so not while holding the gdk lock
+        final String iconPath = iconPath(iconName);
+        final Pointer pixbuf = this.pixbufs.acquire(iconPath);
 
         // have to make this a field, to prevent GC on this object
         this.gtkCallback = new Gobject.GEventCallback() {
@@ -87,17 +97,17 @@ public class GtkSystemTray extends SystemTray {
                         @Override
                         public void run() {
                             // test this using cinnamon (which still uses status icon)
+                            SystemTrayMenuPopup popup = GtkSystemTray.this.menu.getPopup();
 
-                            if (GtkSystemTray.this.jmenu.isVisible()) {
-                                GtkSystemTray.this.jmenu.setVisible(false);
+                            if (popup.isVisible()) {
+                                popup.setVisible(false);
                             } else {
-                                Dimension size = GtkSystemTray.this.jmenu.getPreferredSize();
+                                Dimension size = popup.getPreferredSize();
 
                                 int x = (int) event.x_root;
                                 int y =  (int) event.y_root;
 
-                                Point point = new Point(x, y);
-                                Rectangle bounds = SwingUtil.getScreenBoundsAt(point);
+                                Rectangle bounds = ScreenBounds.at(x, y);
 
                                 if (y < bounds.y) {
                                     y = bounds.y;
@@ -126,154 +136,193 @@ public class GtkSystemTray extends SystemTray {
                                     y -= distanceToEdgeOfTray + 4;
                                 }
 
-                                GtkSystemTray.this.jmenu.setInvoker(GtkSystemTray.this.jmenu);
-                                GtkSystemTray.this.jmenu.setLocation(x, y);
-                                GtkSystemTray.this.jmenu.setVisible(true);
-                                GtkSystemTray.this.jmenu.requestFocus();
+                                popup.setInvoker(popup);
+                                popup.setLocation(x, y);
+                                popup.setVisible(true);
+                                popup.requestFocus();
                             }
                         }
                     });
                 }
             }
         };
-        // all the clicks. This is because native menu popups are a pain to figure out, so we cheat and use some java bits to do the popup
-        libgobject.g_signal_connect_data(this.trayIcon, "button_press_event", this.gtkCallback, null, null, 0);
-        libgtk.gdk_threads_leave();
+
+        GtkDispatch.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                Pointer trayIcon = libgtk.gtk_status_icon_new();
+                setIcon(trayIcon, iconPath, pixbuf);
+                GtkSystemTray.this.statusIconName = iconName;
+                libgtk.gtk_status_icon_set_tooltip(trayIcon, GtkSystemTray.this.appName);
+                libgtk.gtk_status_icon_set_visible(trayIcon, true);
+
+                // all the clicks. This is because native menu popups are a pain to figure out, so we cheat and use some java bits to do the popup
+                libgobject.g_signal_connect_data(trayIcon, "button_press_event", GtkSystemTray.this.gtkCallback, null, null, 0);
+                GtkSystemTray.this.trayIcon = trayIcon;
+            }
+        });
 
         this.active = true;
     }
 
     @Override
     public void removeTray() {
-        libgtk.gdk_threads_enter();
-        for (Pointer widget : this.widgets) {
-            libgtk.gtk_widget_destroy(widget);
-        }
+        GtkDispatch.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+                if (GtkSystemTray.this.removed) {
+                    return;
+                }
+                GtkSystemTray.this.removed = true;
 
-        // this hides the indicator
-        libgtk.gtk_status_icon_set_visible(this.trayIcon, false);
-        libgobject.g_object_unref(this.trayIcon);
+                for (Pointer widget : GtkSystemTray.this.widgets) {
+                    libgtk.gtk_widget_destroy(widget);
+                }
 
-        this.active = false;
+                Pointer trayIcon = GtkSystemTray.this.trayIcon;
+                if (trayIcon != null) {
+                    // this hides the indicator
+                    libgtk.gtk_status_icon_set_visible(trayIcon, false);
+                    libgobject.g_object_unref(trayIcon);
+                }
 
-        // GC it
-        this.trayIcon = null;
-        this.widgets.clear();
+                // nothing is shown anymore, so the cache lets go of every icon
+                GtkSystemTray.this.pixbufs.clear();
 
-        synchronized (this.menuEntries) {
-            this.menuEntries.clear();
-        }
+                GtkSystemTray.this.active = false;
 
-        this.jmenu.setVisible(false);
-        this.jmenu.setEnabled(false);
+                // GC it. Changes made after this (by other threads) see that it is gone
+                GtkSystemTray.this.trayIcon = null;
+                GtkSystemTray.this.widgets.clear();
 
-        this.jmenu = null;
-        this.connectionStatusItem = null;
+                GtkSupport.shutdownGTK();
+            }
+        });
+
+        // the popup is only touched on the EDT, and nobody has to wait for it to be hidden. It is not let go of, so changes made to
+        // the menu after this (by other threads) don't fail
+        SwingUtil.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                SystemTrayMenuPopup popup = GtkSystemTray.this.menu.getPopup();
+                if (popup != null) {
+                    popup.setVisible(false);
+                    popup.setEnabled(false);
+                }
 
-        GtkSupport.shutdownGTK();
-        libgtk.gdk_threads_leave();
+                GtkSystemTray.this.menu.clear();
+            }
+        });
 
         super.removeTray();
     }
 
     @Override
-    public void setStatus(final String infoString, String iconName) {
-        SwingUtil.invokeAndWait(new Runnable() {
+    public void setStatus(String infoString, String iconName) {
+        this.menu.setStatus(infoString);
+
+        // a tray that is updated from a timer mostly sets what is already there, which shouldn't cost anything
+        if (!iconName.equals(this.statusIconName)) {
+            showIcon(iconName);
+        }
+    }
+
+    @Override
+    protected void showFrame(String infoString, String iconName) {
+        // the status text is already set, this skips the trip to the EDT
+        showIcon(iconName);
+    }
+
+    private void showIcon(final String iconName) {
+        // this can copy (and decode) a file, so not while holding the gdk lock
+        final String iconPath = iconPath(iconName);
+        final Pointer pixbuf = this.pixbufs.acquire(iconPath);
+
+        GtkDispatch.invokeAndWait(new Runnable() {
             @Override
             public void run() {
-                if (GtkSystemTray.this.connectionStatusItem == null) {
-                    GtkSystemTray.this.connectionStatusItem = new JMenuItem(infoString);
-                    GtkSystemTray.this.connectionStatusItem.setEnabled(false);
-                    GtkSystemTray.this.jmenu.add(GtkSystemTray.this.connectionStatusItem);
-                } else {
-                    GtkSystemTray.this.connectionStatusItem.setText(infoString);
-                }
+                setIcon(GtkSystemTray.this.trayIcon, iconPath, pixbuf);
+                GtkSystemTray.this.statusIconName = iconName;
             }
         });
+    }
 
-        libgtk.gdk_threads_enter();
-        libgtk.gtk_status_icon_set_from_file(GtkSystemTray.this.trayIcon, iconPath(iconName));
-        libgtk.gdk_threads_leave();
+    /**
+     * MUST be called with the gdk lock held. Gives back the reference to the pixbuf.
+     *
+     * @param pixbuf the decoded icon, or null to have GTK read the file (when it could not be decoded)
+     */
+    private void setIcon(Pointer trayIcon, String iconPath, Pointer pixbuf) {
+        if (trayIcon == null) {
+            // removed
+            if (pixbuf != null) {
+                this.pixbufs.release(pixbuf);
+            }
+        } else if (pixbuf == null) {
+            GtkNative.gtk_status_icon_set_from_file(trayIcon, iconPath);
+        } else {
+            // the status icon takes its own reference
+            GtkNative.gtk_status_icon_set_from_pixbuf(trayIcon, pixbuf);
+            this.pixbufs.release(pixbuf);
+        }
+    }
+
+    @Override
+    protected void preloadIcon(String iconName) {
+        Pointer pixbuf = this.pixbufs.acquire(iconPath(iconName));
+        if (pixbuf != null) {
+            this.pixbufs.release(pixbuf);
+        }
+    }
+
+    @Override
+    protected void displayNotification(String title, String message) {
+        DesktopNotifications.show(this.appName, title, message);
     }
 
     /**
      * Will add a new menu entry, or update one if it already exists
      */
     @Override
-    public void addMenuEntry(final String menuText, final SystemTrayMenuAction callback) {
-        SwingUtil.invokeAndWait(new Runnable() {
-            @Override
-            public void run() {
-                Map<String, JMenuItem> menuEntries2 = GtkSystemTray.this.menuEntries;
-
-                synchronized (menuEntries2) {
-                    JMenuItem menuEntry = menuEntries2.get(menuText);
-
-                    if (menuEntry == null) {
-                        SystemTrayMenuPopup menu = GtkSystemTray.this.jmenu;
-
-                        menuEntry = new JMenuItem(menuText);
-                        menuEntry.addActionListener(new ActionListener() {
-                            @Override
-                            public void actionPerformed(ActionEvent e) {
-//                                SystemTrayMenuPopup source = (SystemTrayMenuPopup) ((JMenuItem)e.getSource()).getParent();
-
-                                GtkSystemTray.this.callbackExecutor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        callback.onClick(GtkSystemTray.this);
-                                    }
-                                });
-                            }
-                        });
-                        menu.add(menuEntry);
-
-                        menuEntries2.put(menuText, menuEntry);
-                    } else {
-                        updateMenuEntry(menuText, menuText, callback);
-                    }
-                }
-            }
-        });
+    public void addMenuEntry(String menuText, SystemTrayMenuAction callback) {
+        this.menu.addMenuEntry(menuText, callback);
     }
 
     /**
      * Will update an already existing menu entry (or add a new one, if it doesn't exist)
      */
     @Override
-    public void updateMenuEntry(final String origMenuText, final String newMenuText, final SystemTrayMenuAction newCallback) {
-        SwingUtil.invokeAndWait(new Runnable() {
-            @Override
-            public void run() {
-                Map<String, JMenuItem> menuEntries2 = GtkSystemTray.this.menuEntries;
+    public void updateMenuEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback) {
+        this.menu.updateMenuEntry(origMenuText, newMenuText, newCallback);
+    }
 
-                synchronized (menuEntries2) {
-                    JMenuItem menuEntry = menuEntries2.get(origMenuText);
+    @Override
+    protected void addSubmenuEntry(String menuText, LazySubmenu submenu) {
+        this.menu.addSubmenuEntry(menuText, submenu);
+    }
 
-                    if (menuEntry != null) {
-                        ActionListener[] actionListeners = menuEntry.getActionListeners();
-                        for (ActionListener l : actionListeners) {
-                            menuEntry.removeActionListener(l);
-                        }
+    @Override
+    public void addMenuList(String menuText, MenuListModel model) {
+        this.menu.addMenuList(menuText, model);
+    }
 
-                        menuEntry.addActionListener(new ActionListener() {
-                            @Override
-                            public void actionPerformed(ActionEvent e) {
-                                GtkSystemTray.this.callbackExecutor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        newCallback.onClick(GtkSystemTray.this);
-                                    }
-                                });
-                            }
-                        });
-                        menuEntry.setText(newMenuText);
-                        menuEntry.revalidate();
-                    } else {
-                        addMenuEntry(origMenuText, newCallback);
-                    }
-                }
-            }
-        });
+    @Override
+    public void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        this.menu.addToggleMenuEntry(null, menuText, checked, callback);
+    }
+
+    @Override
+    public void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        this.menu.addToggleMenuEntry(group, menuText, selected, callback);
+    }
+
+    @Override
+    public void setMenuEntryChecked(String menuText, boolean checked) {
+        this.menu.setMenuEntryChecked(menuText, checked);
+    }
+
+    @Override
+    public boolean isMenuEntryChecked(String menuText) {
+        return this.menu.isMenuEntryChecked(menuText);
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.tray.SystemTray;
+
+/**
+ * A directory that is registered with the app-indicator as its icon theme path. Every icon is copied into it (once), and from then
+ * on the indicator is told the icon's name in the theme, instead of a file path.
+ * <p>
+ * The directory is new for every tray (and run), so the tray host cannot show an icon it cached for the same name in an earlier run.
+ * <p>
+ * The tray host reads the directory when the path is registered, so it doesn't know about the icons that are added after that. Each
+ * add counts as a new version of the theme, and the path is registered again (spelled differently, or it is ignored) before one of
+ * those icons is shown.
+ */
+class IconTheme {
+    private static final Logger logger = LoggerFactory.getLogger(IconTheme.class);
+
+    /**
+     * An icon in the theme, by icon name.
+     */
+    private static final class ThemeIcon {
+        // the ICON_PATH that it was found with
+        private final String iconDirectory;
+        private final String name;
+
+        ThemeIcon(String iconDirectory, String name) {
+            this.iconDirectory = iconDirectory;
+            this.name = name;
+        }
+    }
+
+    private final File directory;
+    private final String path;
+
+    private final Map<String, ThemeIcon> icons = new ConcurrentHashMap<String, ThemeIcon>();
+    // guarded by icons
+    private int nextIcon;
+    // how many icons were added
+    private volatile int version;
+
+    private IconTheme(File directory) {
+        this.directory = directory;
+        this.path = directory.getAbsolutePath();
+    }
+
+    /**
+     * @return a new (empty) theme directory, or null if it could not be created
+     */
+    static IconTheme create(String appName) {
+        try {
+            // the (unique) temp file is replaced with a directory of the same name
+            File directory = File.createTempFile("SystemTray-" + appName.replaceAll("[^A-Za-z0-9_-]", "_") + '-', "");
+            if (!directory.delete() || !directory.mkdir()) {
+                logger.error("Unable to create the icon theme directory '{}'", directory);
+                return null;
+            }
+            // before the icons are, so it is deleted after them
+            directory.deleteOnExit();
+
+            return new IconTheme(directory);
+        } catch (IOException e) {
+            logger.error("Unable to create the icon theme directory.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of icons in the theme, which changes every time an icon is added
+     */
+    int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * The app-indicator ignores a path that is the same as the one it has, and only then does the tray host read the directory again.
+     * Every other version is spelled with a trailing "/.", so that the path is different from the one before it.
+     *
+     * @return the directory, for app_indicator_set_icon_theme_path()
+     */
+    String getPath(int version) {
+        return (version & 1) == 0 ? this.path : this.path + File.separatorChar + '.';
+    }
+
+    /**
+     * @return the name of the icon in the theme, or null if it isn't in the theme (yet)
+     */
+    String get(String iconName) {
+        ThemeIcon icon = this.icons.get(iconName);
+        if (icon != null && icon.iconDirectory.equals(SystemTray.ICON_PATH)) {
+            return icon.name;
+        }
+        return null;
+    }
+
+    /**
+     * Copies the icon into the theme. Does the (slow) copy only once for each icon, when called from different threads at the same time.
+     *
+     * @param iconPath the file of the icon
+     *
+     * @return the name of the icon in the theme, or null if it could not be copied (the file path should be used instead)
+     */
+    String add(String iconName, String iconPath) {
+        synchronized (this.icons) {
+            String name = get(iconName);
+            if (name != null) {
+                return name;
+            }
+
+            String extension = "";
+            int dot = iconPath.lastIndexOf('.');
+            if (dot > iconPath.lastIndexOf(File.separatorChar)) {
+                extension = iconPath.substring(dot);
+            }
+
+            name = "icon-" + this.nextIcon++;
+            File file = new File(this.directory, name + extension);
+
+            try {
+                copy(new File(iconPath), file);
+            } catch (IOException e) {
+                logger.error("Unable to copy icon '{}' to the icon theme directory '{}'", iconPath, this.path, e);
+                return null;
+            }
+            file.deleteOnExit();
+
+            this.icons.put(iconName, new ThemeIcon(SystemTray.ICON_PATH, name));
+            this.version++;
+            return name;
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream inStream = new FileInputStream(from);
+        try {
+            OutputStream outStream = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[2048];
+                int read;
+                while ((read = inStream.read(buffer)) > 0) {
+                    outStream.write(buffer, 0, read);
+                }
+            } finally {
+                outStream.close();
+            }
+        } finally {
+            inStream.close();
+        }
+    }
+
+    /**
+     * Deletes the directory, and the icons in it.
+     */
+    void delete() {
+        synchronized (this.icons) {
+            File[] files = this.directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            this.directory.delete();
+            this.icons.clear();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * Direct-mapped bindings for libnotify (0.7+). Only used through {@link DesktopNotifications}, since libnotify is optional.
+ */
+final class LibNotify {
+    static {
+        Native.register(LibNotify.class, "notify");
+    }
+
+    private LibNotify() {
+    }
+
+    static native boolean notify_init(String app_name);
+    static native Pointer notify_notification_new(String summary, String body, String icon);
+    static native boolean notify_notification_show(Pointer notification, Pointer error);
+}
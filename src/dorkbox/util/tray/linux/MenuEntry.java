@@ -15,24 +15,78 @@
  */
 package dorkbox.util.tray.linux;
 
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
 import com.sun.jna.Pointer;
 
 import dorkbox.util.jna.linux.Gobject.GCallback;
+import dorkbox.util.tray.LazySubmenu;
+import dorkbox.util.tray.SystemTrayMenuAction;
 
 /**
- * Can only access this from within a synchronized block!
+ * Can only change this while holding its lock!
  */
 class MenuEntry {
+    static final int ITEM = 0;
+    static final int CHECK = 1;
+    static final int RADIO = 2;
+    static final int SUBMENU = 3;
+
+    static final Comparator<MenuEntry> CREATION_ORDER = new Comparator<MenuEntry>() {
+        @Override
+        public int compare(MenuEntry o1, MenuEntry o2) {
+            return o1.order < o2.order ? -1 : o1.order == o2.order ? 0 : 1;
+        }
+    };
+
+    private static final AtomicLong nextOrder = new AtomicLong();
 
     private final int hashCode;
+    private final long order = nextOrder.getAndIncrement();
+
+    public final ReentrantLock lock = new ReentrantLock();
+
+    // what is needed to build this entry again, when the tray is re-registered
+    public final int type;
+    public final String group;
+    public String text;
+
+    // only for a SUBMENU. The widget is rebuilt with the tray, the (cached) entries are kept
+    public LazySubmenu submenu;
+    public GtkSubmenu gtkSubmenu;
+
     public Pointer dashboardItem;
     public GCallback gtkCallback;
 
-    public MenuEntry() {
+    // the gtk callback is only connected once, and always dispatches to the current action
+    public volatile SystemTrayMenuAction callback;
+
+    // taken by whichever comes first: the GTK task that creates the widget, or the caller that timed out waiting for that task. So a
+    // widget is never made for an entry that was given up on, and an entry whose widget is being made is not given up on
+    public final AtomicBoolean claimed = new AtomicBoolean();
+
+    // set while WE change the state of a check/radio item, because gtk emits "activate" for that as well
+    public boolean ignoreActivate;
+
+    public MenuEntry(int type, String group, String text) {
+        this.type = type;
+        this.group = group;
+        this.text = text;
+
         long time = System.nanoTime();
         this.hashCode = (int) (time ^ time >>> 32);
     }
 
+    /**
+     * @return true for a check-box or radio entry
+     */
+    boolean isToggle() {
+        return this.type == CHECK || this.type == RADIO;
+    }
+
     @Override
     public int hashCode() {
         return this.hashCode;
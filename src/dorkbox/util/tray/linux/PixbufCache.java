@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Decoded icons (GdkPixbuf), by file path, so that switching between icons does not make GTK read and decode the file every time.
+ * <p>
+ * The cache holds one reference to each pixbuf, and the least recently used one is unreferenced when the cache is full. Anyone that
+ * uses a pixbuf from the cache gets their own reference (so an eviction can't free it out from under them), and must release it.
+ * <p>
+ * Every pixbuf is watched (with a weak reference) until it is finalized, so that one that outlives its eviction -- a leak -- is found.
+ */
+class PixbufCache {
+    private static final Logger logger = LoggerFactory.getLogger(PixbufCache.class);
+
+    private final int maxSize;
+
+    // guarded by this. Access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, Pointer> pixbufs = new LinkedHashMap<String, Pointer>(16, 0.75F, true);
+
+    // pixbufs that are not finalized yet, and their file. Guarded by this
+    private final Map<Pointer, String> live = new HashMap<Pointer, String>();
+    // pixbufs that were evicted, but not finalized yet. Guarded by this
+    private final Map<Pointer, String> evicted = new HashMap<Pointer, String>();
+
+    // have to make this a field, to prevent GC on this object
+    private final GtkNative.GWeakNotify finalized = new GtkNative.GWeakNotify() {
+        @Override
+        public void callback(Pointer data, Pointer where_the_object_was) {
+            synchronized (PixbufCache.this) {
+                PixbufCache.this.live.remove(where_the_object_was);
+                PixbufCache.this.evicted.remove(where_the_object_was);
+            }
+        }
+    };
+
+    PixbufCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Can be called from any thread, and does not need the gdk lock (gdk-pixbuf is thread safe).
+     *
+     * @return the pixbuf for the file, with a reference for the caller, which must be given back with {@link #release(Pointer)}. Null if
+     * the file could not be decoded.
+     */
+    Pointer acquire(String iconPath) {
+        synchronized (this) {
+            Pointer pixbuf = this.pixbufs.get(iconPath);
+            if (pixbuf != null) {
+                return GtkNative.g_object_ref(pixbuf);
+            }
+        }
+
+        // decoding can take a while, so not while holding the lock
+        Pointer pixbuf = GtkNative.gdk_pixbuf_new_from_file(iconPath, null);
+        if (pixbuf == null) {
+            return null;
+        }
+        GtkNative.g_object_weak_ref(pixbuf, this.finalized, null);
+
+        Pointer evict = null;
+        Pointer existing;
+        synchronized (this) {
+            this.live.put(pixbuf, iconPath);
+
+            existing = this.pixbufs.get(iconPath);
+            if (existing != null) {
+                // someone else decoded it at the same time, and was first. The caller gets theirs, so only one is ever in use
+                GtkNative.g_object_ref(existing);
+            } else {
+                this.pixbufs.put(iconPath, GtkNative.g_object_ref(pixbuf));
+
+                if (this.pixbufs.size() > this.maxSize) {
+                    Iterator<Map.Entry<String, Pointer>> iterator = this.pixbufs.entrySet().iterator();
+                    Map.Entry<String, Pointer> eldest = iterator.next();
+                    iterator.remove();
+
+                    evict = eldest.getValue();
+                    this.evicted.put(evict, eldest.getKey());
+                }
+            }
+        }
+
+        if (existing != null) {
+            // nobody else has ours, so this finalizes it
+            GtkNative.g_object_unref(pixbuf);
+            return existing;
+        }
+
+        if (evict != null) {
+            // if nobody else has it (ie: it is not being shown), this finalizes it
+            GtkNative.g_object_unref(evict);
+        }
+
+        return pixbuf;
+    }
+
+    /**
+     * Gives back a reference from {@link #acquire(String)}.
+     */
+    void release(Pointer pixbuf) {
+        GtkNative.g_object_unref(pixbuf);
+    }
+
+    /**
+     * Unreferences everything. Pixbufs that are still in use are finalized when the last user lets go of them.
+     */
+    void clear() {
+        Pointer[] pixbufs;
+        synchronized (this) {
+            pixbufs = this.pixbufs.values().toArray(new Pointer[this.pixbufs.size()]);
+            for (Map.Entry<String, Pointer> entry : this.pixbufs.entrySet()) {
+                this.evicted.put(entry.getValue(), entry.getKey());
+            }
+            this.pixbufs.clear();
+        }
+
+        for (Pointer pixbuf : pixbufs) {
+            GtkNative.g_object_unref(pixbuf);
+        }
+    }
+
+    /**
+     * Reports the pixbufs that were evicted (or cleared), but are still alive. Something (other than the one that is currently shown)
+     * still holds a reference to those, which means that they are leaked.
+     *
+     * @param inUse how many evicted pixbufs are expected to still be in use (ie: 1, if the icon being shown was just evicted)
+     *
+     * @return how many evicted pixbufs are still alive
+     */
+    synchronized int checkLeaks(int inUse) {
+        int count = this.evicted.size();
+        if (count > inUse) {
+            logger.warn("{} evicted icon(s) were not freed: {}", count, this.evicted.values());
+        }
+        return count;
+    }
+
+    /**
+     * @return how many pixbufs were decoded, and not finalized yet (cached, in use, or leaked)
+     */
+    synchronized int liveCount() {
+        return this.live.size();
+    }
+}
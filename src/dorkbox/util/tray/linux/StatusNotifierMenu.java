@@ -0,0 +1,567 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.tray.LazySubmenu;
+import dorkbox.util.tray.SubmenuItem;
+import dorkbox.util.tray.SystemTrayMenuAction;
+import dorkbox.util.tray.linux.dbus.Message;
+import dorkbox.util.tray.linux.dbus.Variant;
+
+/**
+ * The menu of the {@link StatusNotifierTray}, exported with the DBusMenu (com.canonical.dbusmenu) protocol. The tray host draws it.
+ * <p>
+ * The whole menu is guarded by one lock, but that lock is never held for more than updating a few fields (and writing a signal to the
+ * socket), there are no native calls or round trips while holding it.
+ */
+final class StatusNotifierMenu {
+    private static final Logger logger = LoggerFactory.getLogger(StatusNotifierMenu.class);
+
+    static final String PATH = "/MenuBar";
+    static final String INTERFACE = "com.canonical.dbusmenu";
+
+    private static final String LAYOUT_SIGNATURE = "(ia{sv}av)";
+
+    static final String INTROSPECTION = "<node>" +
+                                        "<interface name=\"" + INTERFACE + "\">" +
+                                        "<property name=\"Version\" type=\"u\" access=\"read\"/>" +
+                                        "<property name=\"TextDirection\" type=\"s\" access=\"read\"/>" +
+                                        "<property name=\"Status\" type=\"s\" access=\"read\"/>" +
+                                        "<property name=\"IconThemePath\" type=\"as\" access=\"read\"/>" +
+                                        "<method name=\"GetLayout\"><arg type=\"i\" direction=\"in\"/><arg type=\"i\" direction=\"in\"/>" +
+                                        "<arg type=\"as\" direction=\"in\"/><arg type=\"u\" direction=\"out\"/>" +
+                                        "<arg type=\"(ia{sv}av)\" direction=\"out\"/></method>" +
+                                        "<method name=\"GetGroupProperties\"><arg type=\"ai\" direction=\"in\"/>" +
+                                        "<arg type=\"as\" direction=\"in\"/><arg type=\"a(ia{sv})\" direction=\"out\"/></method>" +
+                                        "<method name=\"GetProperty\"><arg type=\"i\" direction=\"in\"/><arg type=\"s\" direction=\"in\"/>" +
+                                        "<arg type=\"v\" direction=\"out\"/></method>" +
+                                        "<method name=\"Event\"><arg type=\"i\" direction=\"in\"/><arg type=\"s\" direction=\"in\"/>" +
+                                        "<arg type=\"v\" direction=\"in\"/><arg type=\"u\" direction=\"in\"/></method>" +
+                                        "<method name=\"EventGroup\"><arg type=\"a(isvu)\" direction=\"in\"/>" +
+                                        "<arg type=\"ai\" direction=\"out\"/></method>" +
+                                        "<method name=\"AboutToShow\"><arg type=\"i\" direction=\"in\"/>" +
+                                        "<arg type=\"b\" direction=\"out\"/></method>" +
+                                        "<method name=\"AboutToShowGroup\"><arg type=\"ai\" direction=\"in\"/>" +
+                                        "<arg type=\"ai\" direction=\"out\"/><arg type=\"ai\" direction=\"out\"/></method>" +
+                                        "<signal name=\"ItemsPropertiesUpdated\"><arg type=\"a(ia{sv})\"/><arg type=\"a(ias)\"/></signal>" +
+                                        "<signal name=\"LayoutUpdated\"><arg type=\"u\"/><arg type=\"i\"/></signal>" +
+                                        "</interface></node>";
+
+    private static class Item {
+        private final int id;
+        private final String toggleType;
+        private final String group;
+        private final boolean enabled;
+
+        private String label;
+        private boolean checked;
+        private volatile SystemTrayMenuAction callback;
+
+        // only for a submenu. The children are null until the entries are loaded
+        private LazySubmenu submenu;
+        private LazySubmenu.Listener listener;
+        private List<Item> children;
+        private List<SubmenuItem> shownItems;
+
+        Item(int id, String toggleType, String group, boolean enabled, String label) {
+            this.id = id;
+            this.toggleType = toggleType;
+            this.group = group;
+            this.enabled = enabled;
+            this.label = label;
+        }
+    }
+
+    private final StatusNotifierTray tray;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final List<Item> items = new ArrayList<Item>();
+    private final Map<String, Item> itemsByText = new HashMap<String, Item>();
+    // every item, including the ones in submenus
+    private final Map<Integer, Item> itemsById = new HashMap<Integer, Item>();
+    private Item statusItem;
+    private int nextId = 1;
+    private int revision = 1;
+
+    StatusNotifierMenu(StatusNotifierTray tray) {
+        this.tray = tray;
+    }
+
+    void setStatus(String infoString) {
+        synchronized (this.lock) {
+            if (this.statusItem == null) {
+                this.statusItem = newItem(null, null, false, infoString);
+                this.items.add(0, this.statusItem);
+                layoutChanged(0);
+            } else {
+                this.statusItem.label = infoString;
+                labelChanged(this.statusItem);
+            }
+        }
+    }
+
+    /**
+     * @param toggleType null, "checkmark" or "radio"
+     */
+    void addEntry(String toggleType, String group, String menuText, boolean checked, SystemTrayMenuAction callback) {
+        synchronized (this.lock) {
+            Item item = this.itemsByText.get(menuText);
+
+            if (item == null) {
+                item = newItem(toggleType, group, true, menuText);
+                item.callback = callback;
+                this.items.add(item);
+                this.itemsByText.put(menuText, item);
+
+                List<Item> changed = new ArrayList<Item>(2);
+                if (toggleType != null) {
+                    setChecked(item, checked, changed);
+                }
+                layoutChanged(0);
+            } else {
+                item.callback = callback;
+
+                List<Item> changed = new ArrayList<Item>(2);
+                changed.add(item);
+                if (item.toggleType != null) {
+                    setChecked(item, checked, changed);
+                }
+                propertiesChanged(changed);
+            }
+        }
+    }
+
+    void addSubmenu(String menuText, LazySubmenu submenu) {
+        synchronized (this.lock) {
+            Item item = this.itemsByText.get(menuText);
+
+            if (item == null) {
+                item = newItem(null, null, true, menuText);
+                item.submenu = submenu;
+                this.items.add(item);
+                this.itemsByText.put(menuText, item);
+                layoutChanged(0);
+            } else if (item.submenu != null) {
+                item.submenu = submenu;
+                setChildren(item, null);
+                layoutChanged(item.id);
+            } else {
+                logger.error("Menu entry '{}' already exists, and is not a submenu.", menuText);
+            }
+        }
+    }
+
+    void updateEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback) {
+        synchronized (this.lock) {
+            Item item = this.itemsByText.get(origMenuText);
+            if (item == null) {
+                addEntry(null, null, origMenuText, false, newCallback);
+                return;
+            }
+
+            item.callback = newCallback;
+
+            // the host only sees the label, so nothing is sent when it is the same
+            if (!newMenuText.equals(item.label)) {
+                item.label = newMenuText;
+                labelChanged(item);
+            }
+        }
+    }
+
+    void setChecked(String menuText, boolean checked) {
+        synchronized (this.lock) {
+            Item item = this.itemsByText.get(menuText);
+            if (item != null && item.toggleType != null) {
+                List<Item> changed = new ArrayList<Item>(2);
+                setChecked(item, checked, changed);
+                propertiesChanged(changed);
+            }
+        }
+    }
+
+    boolean isChecked(String menuText) {
+        synchronized (this.lock) {
+            Item item = this.itemsByText.get(menuText);
+            return item != null && item.checked;
+        }
+    }
+
+    void clear() {
+        synchronized (this.lock) {
+            this.items.clear();
+            this.itemsByText.clear();
+            this.itemsById.clear();
+            this.statusItem = null;
+        }
+    }
+
+    /**
+     * Must hold the lock. Radio items uncheck the others in their group.
+     */
+    private void setChecked(Item item, boolean checked, List<Item> changed) {
+        if (checked && item.group != null) {
+            for (Item other : this.items) {
+                if (other != item && other.checked && item.group.equals(other.group)) {
+                    other.checked = false;
+                    changed.add(other);
+                }
+            }
+        }
+
+        item.checked = checked;
+        if (!changed.contains(item)) {
+            changed.add(item);
+        }
+    }
+
+    /**
+     * Handles a call to the menu object. Called on the D-Bus reader thread.
+     *
+     * @return false if the call is unknown
+     */
+    @SuppressWarnings("unchecked")
+    boolean handle(Message message) throws IOException {
+        if (message.is(INTERFACE, "GetLayout")) {
+            int parentId = (Integer) message.body[0];
+            int depth = (Integer) message.body[1];
+
+            synchronized (this.lock) {
+                Object[] layout;
+                if (parentId == 0) {
+                    List<Object> children = new ArrayList<Object>(this.items.size());
+                    if (depth != 0) {
+                        for (Item item : this.items) {
+                            children.add(new Variant(LAYOUT_SIGNATURE, layout(item, depth - 1)));
+                        }
+                    }
+
+                    Map<String, Variant> properties = new LinkedHashMap<String, Variant>(2);
+                    properties.put("children-display", Variant.of("submenu"));
+                    layout = new Object[] {0, properties, children};
+                } else {
+                    Item item = find(parentId);
+                    if (item == null) {
+                        this.tray.reply(message.error("org.freedesktop.DBus.Error.InvalidArgs", "Unknown menu item: " + parentId));
+                        return true;
+                    }
+                    layout = layout(item, depth);
+                }
+
+                this.tray.reply(message.methodReturn("u" + LAYOUT_SIGNATURE, this.revision, layout));
+            }
+            return true;
+        }
+
+        if (message.is(INTERFACE, "GetGroupProperties")) {
+            List<Object> ids = (List<Object>) message.body[0];
+            List<Object> result = new ArrayList<Object>();
+
+            synchronized (this.lock) {
+                if (ids.isEmpty()) {
+                    for (Item item : this.itemsById.values()) {
+                        result.add(new Object[] {item.id, properties(item)});
+                    }
+                } else {
+                    for (Object id : ids) {
+                        Item item = find((Integer) id);
+                        if (item != null) {
+                            result.add(new Object[] {item.id, properties(item)});
+                        }
+                    }
+                }
+            }
+
+            this.tray.reply(message.methodReturn("a(ia{sv})", result));
+            return true;
+        }
+
+        if (message.is(INTERFACE, "GetProperty")) {
+            Variant value;
+            synchronized (this.lock) {
+                Item item = find((Integer) message.body[0]);
+                value = item == null ? null : properties(item).get((String) message.body[1]);
+            }
+
+            if (value == null) {
+                this.tray.reply(message.error("org.freedesktop.DBus.Error.InvalidArgs", "Unknown property"));
+            } else {
+                this.tray.reply(message.methodReturn("v", value));
+            }
+            return true;
+        }
+
+        if (message.is(INTERFACE, "Event")) {
+            event((Integer) message.body[0], (String) message.body[1]);
+            this.tray.reply(message.methodReturn(""));
+            return true;
+        }
+
+        if (message.is(INTERFACE, "EventGroup")) {
+            for (Object event : (List<Object>) message.body[0]) {
+                Object[] struct = (Object[]) event;
+                event((Integer) struct[0], (String) struct[1]);
+            }
+            this.tray.reply(message.methodReturn("ai", new ArrayList<Object>(0)));
+            return true;
+        }
+
+        if (message.is(INTERFACE, "AboutToShow")) {
+            this.tray.reply(message.methodReturn("b", aboutToShow((Integer) message.body[0])));
+            return true;
+        }
+
+        if (message.is(INTERFACE, "AboutToShowGroup")) {
+            List<Object> updatesNeeded = new ArrayList<Object>(0);
+            for (Object id : (List<Object>) message.body[0]) {
+                if (aboutToShow((Integer) id)) {
+                    updatesNeeded.add(id);
+                }
+            }
+            this.tray.reply(message.methodReturn("aiai", updatesNeeded, new ArrayList<Object>(0)));
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the (D-Bus) properties of the menu object itself
+     */
+    static Map<String, Variant> menuProperties() {
+        Map<String, Variant> properties = new LinkedHashMap<String, Variant>(4);
+        properties.put("Version", new Variant("u", 3));
+        properties.put("TextDirection", Variant.of("ltr"));
+        properties.put("Status", Variant.of("normal"));
+        properties.put("IconThemePath", new Variant("as", new ArrayList<Object>(0)));
+        return properties;
+    }
+
+    /**
+     * Loads the entries of a submenu, if that is what is about to be shown. If they are not cached, they are loaded in the background,
+     * and the host is told (LayoutUpdated) when they are ready.
+     *
+     * @return true if the layout of the submenu changed
+     */
+    private boolean aboutToShow(int id) {
+        synchronized (this.lock) {
+            final Item item = find(id);
+            if (item == null || item.submenu == null) {
+                return false;
+            }
+
+            if (item.listener == null) {
+                item.listener = new LazySubmenu.Listener() {
+                    @Override
+                    public void loaded(List<SubmenuItem> items) {
+                        synchronized (StatusNotifierMenu.this.lock) {
+                            // still in the menu, and still showing that submenu
+                            if (find(item.id) == item && setChildren(item, items)) {
+                                layoutChanged(item.id);
+                            }
+                        }
+                    }
+                };
+            }
+
+            List<SubmenuItem> items = item.submenu.open(item.listener);
+            if (items != null && setChildren(item, items)) {
+                layoutChanged(item.id);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Must hold the lock. Replaces the children of the submenu.
+     *
+     * @param items the entries, or null to show that they are loading
+     * @return false if nothing changed
+     */
+    private boolean setChildren(Item submenu, List<SubmenuItem> items) {
+        if (items != null && items == submenu.shownItems) {
+            return false;
+        }
+
+        if (submenu.children != null) {
+            for (Item child : submenu.children) {
+                removeItem(child);
+            }
+        }
+
+        submenu.shownItems = items;
+        if (items == null) {
+            submenu.children = null;
+            return true;
+        }
+
+        submenu.children = new ArrayList<Item>(items.size());
+        for (SubmenuItem entry : items) {
+            Item child = newItem(null, null, true, entry.getText());
+            child.callback = entry.getCallback();
+            if (entry.isSubmenu()) {
+                child.submenu = new LazySubmenu(entry.getProvider());
+            }
+            submenu.children.add(child);
+        }
+        return true;
+    }
+
+    // must hold the lock
+    private Item newItem(String toggleType, String group, boolean enabled, String label) {
+        Item item = new Item(this.nextId++, toggleType, group, enabled, label);
+        this.itemsById.put(item.id, item);
+        return item;
+    }
+
+    // must hold the lock
+    private void removeItem(Item item) {
+        this.itemsById.remove(item.id);
+        if (item.children != null) {
+            for (Item child : item.children) {
+                removeItem(child);
+            }
+        }
+    }
+
+    private void event(int id, String eventId) {
+        if ("opened".equals(eventId)) {
+            // some hosts only send this, instead of AboutToShow
+            aboutToShow(id);
+            return;
+        }
+        if (!"clicked".equals(eventId)) {
+            return;
+        }
+
+        SystemTrayMenuAction callback;
+        synchronized (this.lock) {
+            Item item = find(id);
+            if (item == null || !item.enabled) {
+                return;
+            }
+
+            if (item.toggleType != null) {
+                List<Item> changed = new ArrayList<Item>(2);
+                // radio items can only be selected by clicking them, check-boxes flip
+                setChecked(item, item.group != null || !item.checked, changed);
+                propertiesChanged(changed);
+            }
+
+            callback = item.callback;
+        }
+
+        if (callback != null) {
+            this.tray.click(callback);
+        }
+    }
+
+    // must hold the lock
+    private Item find(int id) {
+        return this.itemsById.get(id);
+    }
+
+    /**
+     * Must hold the lock.
+     *
+     * @param depth how many levels of children to include, -1 for all of them
+     */
+    private static Object[] layout(Item item, int depth) {
+        List<Object> children = new ArrayList<Object>(0);
+
+        if (item.submenu != null && depth != 0) {
+            if (item.children == null) {
+                // the host needs something to show, while the entries load
+                Map<String, Variant> loading = new LinkedHashMap<String, Variant>(4);
+                loading.put("label", Variant.of(LazySubmenu.loadingText));
+                loading.put("enabled", Variant.of(false));
+                loading.put("visible", Variant.of(true));
+                // never a real id, so the host can't do anything with it
+                children.add(new Variant(LAYOUT_SIGNATURE, new Object[] {Integer.MAX_VALUE - item.id, loading, new ArrayList<Object>(0)}));
+            } else {
+                for (Item child : item.children) {
+                    children.add(new Variant(LAYOUT_SIGNATURE, layout(child, depth - 1)));
+                }
+            }
+        }
+
+        return new Object[] {item.id, properties(item), children};
+    }
+
+    // must hold the lock
+    private static Map<String, Variant> properties(Item item) {
+        Map<String, Variant> properties = new LinkedHashMap<String, Variant>(6);
+        // '_' marks the mnemonic
+        properties.put("label", Variant.of(item.label.replace("_", "__")));
+        properties.put("enabled", Variant.of(item.enabled));
+        properties.put("visible", Variant.of(true));
+
+        if (item.submenu != null) {
+            properties.put("children-display", Variant.of("submenu"));
+        }
+
+        if (item.toggleType != null) {
+            properties.put("toggle-type", Variant.of(item.toggleType));
+            properties.put("toggle-state", Variant.of(item.checked ? 1 : 0));
+        }
+
+        return properties;
+    }
+
+    // must hold the lock
+    private void layoutChanged(int parentId) {
+        this.revision++;
+        this.tray.emit(Message.signal(PATH, INTERFACE, "LayoutUpdated", "ui", this.revision, parentId));
+    }
+
+    // must hold the lock. Only the label is sent, the host keeps the other properties it has
+    private void labelChanged(Item item) {
+        Map<String, Variant> properties = new LinkedHashMap<String, Variant>(2);
+        properties.put("label", Variant.of(item.label));
+
+        List<Object> updated = new ArrayList<Object>(1);
+        updated.add(new Object[] {item.id, properties});
+
+        this.tray.emit(Message.signal(PATH, INTERFACE, "ItemsPropertiesUpdated", "a(ia{sv})a(ias)", updated, new ArrayList<Object>(0)));
+    }
+
+    // must hold the lock
+    private void propertiesChanged(List<Item> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        List<Object> updated = new ArrayList<Object>(changed.size());
+        for (Item item : changed) {
+            updated.add(new Object[] {item.id, properties(item)});
+        }
+
+        this.tray.emit(Message.signal(PATH, INTERFACE, "ItemsPropertiesUpdated", "a(ia{sv})a(ias)", updated, new ArrayList<Object>(0)));
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import dorkbox.util.NamedThreadFactory;
+import dorkbox.util.tray.IconCache;
+import dorkbox.util.tray.LazySubmenu;
+import dorkbox.util.tray.SystemTray;
+import dorkbox.util.tray.SystemTrayMenuAction;
+import dorkbox.util.tray.linux.dbus.DBusConnection;
+import dorkbox.util.tray.linux.dbus.DBusException;
+import dorkbox.util.tray.linux.dbus.Message;
+import dorkbox.util.tray.linux.dbus.Variant;
+
+/**
+ * Class for handling all system tray interactions.
+ *
+ * specialization for the StatusNotifierItem (and DBusMenu) D-Bus protocols, which is what KDE, and app-indicators underneath, use. This
+ * talks to the session bus directly, so neither GTK nor libappindicator are loaded. Icons are sent as pixels, so they are never copied
+ * to a temp file either.
+ */
+public class StatusNotifierTray extends SystemTray {
+    /**
+     * How long to wait for the tray host (StatusNotifierWatcher) to come back, before the failure callback runs.
+     */
+    public static long HOST_RETURN_TIMEOUT_MILLIS = 10000L;
+
+    /**
+     * How many decoded icons are kept, so switching between them does not read and decode the file again.
+     */
+    public static int PIXMAP_CACHE_SIZE = 16;
+
+    private static final String WATCHER = "org.kde.StatusNotifierWatcher";
+    private static final String WATCHER_PATH = "/StatusNotifierWatcher";
+
+    private static final String ITEM_PATH = "/StatusNotifierItem";
+    private static final String ITEM_INTERFACE = "org.kde.StatusNotifierItem";
+
+    private static final String PROPERTIES = "org.freedesktop.DBus.Properties";
+    private static final String INTROSPECTABLE = "org.freedesktop.DBus.Introspectable";
+
+    private static final String ITEM_INTROSPECTION = "<node>" +
+                                                     "<interface name=\"" + ITEM_INTERFACE + "\">" +
+                                                     "<property name=\"Category\" type=\"s\" access=\"read\"/>" +
+                                                     "<property name=\"Id\" type=\"s\" access=\"read\"/>" +
+                                                     "<property name=\"Title\" type=\"s\" access=\"read\"/>" +
+                                                     "<property name=\"Status\" type=\"s\" access=\"read\"/>" +
+                                                     "<property name=\"WindowId\" type=\"i\" access=\"read\"/>" +
+                                                     "<property name=\"IconName\" type=\"s\" access=\"read\"/>" +
+                                                     "<property name=\"IconPixmap\" type=\"a(iiay)\" access=\"read\"/>" +
+                                                     "<property name=\"ToolTip\" type=\"(sa(iiay)ss)\" access=\"read\"/>" +
+                                                     "<property name=\"ItemIsMenu\" type=\"b\" access=\"read\"/>" +
+                                                     "<property name=\"Menu\" type=\"o\" access=\"read\"/>" +
+                                                     "<method name=\"ContextMenu\"><arg type=\"i\" direction=\"in\"/>" +
+                                                     "<arg type=\"i\" direction=\"in\"/></method>" +
+                                                     "<method name=\"Activate\"><arg type=\"i\" direction=\"in\"/>" +
+                                                     "<arg type=\"i\" direction=\"in\"/></method>" +
+                                                     "<method name=\"SecondaryActivate\"><arg type=\"i\" direction=\"in\"/>" +
+                                                     "<arg type=\"i\" direction=\"in\"/></method>" +
+                                                     "<method name=\"Scroll\"><arg type=\"i\" direction=\"in\"/>" +
+                                                     "<arg type=\"s\" direction=\"in\"/></method>" +
+                                                     "<signal name=\"NewIcon\"/><signal name=\"NewToolTip\"/>" +
+                                                     "<signal name=\"NewStatus\"><arg type=\"s\"/></signal>" +
+                                                     "</interface></node>";
+
+    private static final AtomicInteger instanceCount = new AtomicInteger();
+
+    // reply to RequestName
+    private static final int PRIMARY_OWNER = 1;
+    private static final int REQUEST_NAME_TRIES = 5;
+
+    // one thread for all of the trays. For anything that has to wait on a reply, which the D-Bus reader thread cannot do
+    private static final ScheduledExecutorService scheduler =
+                    Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SysTrayStatusNotifier", true));
+
+    private final StatusNotifierMenu menu = new StatusNotifierMenu(this);
+
+    // decoded icons, by name
+    private final IconCache<List<Object>> pixmaps = new IconCache<List<Object>>(PIXMAP_CACHE_SIZE);
+
+    private volatile DBusConnection connection;
+    private volatile String busName;
+
+    private volatile List<Object> iconPixmap = new ArrayList<Object>(0);
+    private volatile String statusText = "";
+    // false until the status item is in the menu
+    private volatile boolean statusSet;
+
+    // guarded by this
+    private ScheduledFuture<?> hostReturnTimeout;
+
+    private final DBusConnection.Handler handler = new DBusConnection.Handler() {
+        @Override
+        public boolean handle(Message message) throws IOException {
+            return StatusNotifierTray.this.handle(message);
+        }
+
+        @Override
+        public void closed() {
+            if (StatusNotifierTray.this.active) {
+                logger.error("Lost the connection to the D-Bus session bus.");
+                trayFailed();
+            }
+        }
+    };
+
+    private final Runnable register = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                register();
+            } catch (IOException e) {
+                logger.error("Unable to register with the StatusNotifierWatcher.", e);
+            }
+        }
+    };
+
+    private final Runnable hostDidNotReturn = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StatusNotifierTray.this) {
+                StatusNotifierTray.this.hostReturnTimeout = null;
+            }
+            trayFailed();
+        }
+    };
+
+
+    public StatusNotifierTray() {
+    }
+
+    /**
+     * @return true if there is a session bus, and a StatusNotifierWatcher (tray host) on it
+     */
+    public static boolean isSupported() {
+        DBusConnection connection = null;
+        try {
+            connection = DBusConnection.openSessionBus(1000L);
+            return (Boolean) connection.callBus("NameHasOwner", "s", WATCHER).body[0];
+        } catch (Throwable t) {
+            logger.debug("StatusNotifierItem is not supported.", t);
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    @Override
+    public void createTray(String iconName) {
+        this.iconPixmap = pixmap(iconName);
+
+        try {
+            DBusConnection connection = DBusConnection.openSessionBus(TIMEOUT_MILLIS);
+            connection.setHandler(this.handler);
+            this.connection = connection;
+
+            this.busName = requestName(connection);
+
+            // so we know when the tray host restarts
+            connection.callBus("AddMatch", "s", "type='signal',sender='" + DBusConnection.BUS_NAME + "',interface='" +
+                                                DBusConnection.BUS_NAME + "',member='NameOwnerChanged',arg0='" + WATCHER + "'");
+
+            this.active = true;
+            register();
+        } catch (IOException e) {
+            logger.error("Failed to create the StatusNotifierItem system tray.", e);
+
+            this.active = false;
+            if (this.connection != null) {
+                this.connection.close();
+            }
+            trayFailed();
+        }
+    }
+
+    /**
+     * Owns the bus name that the tray host knows us by. Names are unique per process, so one that is taken was most likely left over by
+     * another tray (ie: from another class loader, which has its own count), and the next one is tried.
+     *
+     * @throws IOException if none of them could be owned, and the tray fails (so that another tray can be used)
+     */
+    private static String requestName(DBusConnection connection) throws IOException {
+        for (int i = 0; i < REQUEST_NAME_TRIES; i++) {
+            String busName = "org.kde.StatusNotifierItem-" + DBusConnection.getProcessId() + "-" + instanceCount.incrementAndGet();
+
+            // 4 = DBUS_NAME_FLAG_DO_NOT_QUEUE
+            int reply = ((Number) connection.callBus("RequestName", "su", busName, 4).body[0]).intValue();
+            if (reply == PRIMARY_OWNER) {
+                return busName;
+            }
+
+            logger.debug("The bus name {} is already owned ({}).", busName, reply);
+        }
+
+        throw new IOException("Unable to own a StatusNotifierItem bus name, after " + REQUEST_NAME_TRIES + " tries.");
+    }
+
+    private void register() throws IOException {
+        DBusConnection connection = this.connection;
+        if (connection == null || !this.active) {
+            return;
+        }
+
+        connection.call(Message.methodCall(WATCHER, WATCHER_PATH, WATCHER, "RegisterStatusNotifierItem", "s", this.busName));
+    }
+
+    @Override
+    public void removeTray() {
+        this.active = false;
+
+        synchronized (this) {
+            if (this.hostReturnTimeout != null) {
+                this.hostReturnTimeout.cancel(false);
+                this.hostReturnTimeout = null;
+            }
+        }
+
+        // the watcher notices that our bus name is gone, and removes the item
+        DBusConnection connection = this.connection;
+        this.connection = null;
+        if (connection != null) {
+            connection.close();
+        }
+
+        this.menu.clear();
+        this.statusSet = false;
+        super.removeTray();
+    }
+
+    @Override
+    public void setStatus(String infoString, String iconName) {
+        // the pixmaps are cached, so the same icon is the same list
+        List<Object> pixmap = pixmap(iconName);
+
+        // nothing is sent over D-Bus for what didn't change
+        if (!this.statusSet || !infoString.equals(this.statusText)) {
+            this.menu.setStatus(infoString);
+            this.statusText = infoString;
+            this.statusSet = true;
+            emit(Message.signal(ITEM_PATH, ITEM_INTERFACE, "NewToolTip", ""));
+        }
+
+        if (pixmap != this.iconPixmap) {
+            this.iconPixmap = pixmap;
+            emit(Message.signal(ITEM_PATH, ITEM_INTERFACE, "NewIcon", ""));
+        }
+    }
+
+    @Override
+    protected void showFrame(String infoString, String iconName) {
+        // the status text (and so the tooltip) is already set
+        this.iconPixmap = pixmap(iconName);
+        emit(Message.signal(ITEM_PATH, ITEM_INTERFACE, "NewIcon", ""));
+    }
+
+    @Override
+    protected void preloadIcon(String iconName) {
+        pixmap(iconName);
+    }
+
+    @Override
+    protected void displayNotification(String title, String message) {
+        Message notify = Message.methodCall("org.freedesktop.Notifications", "/org/freedesktop/Notifications",
+                                            "org.freedesktop.Notifications", "Notify", "susssasa{sv}i", this.appName == null ? "" : this.appName, 0, "", title,
+                                            message, new ArrayList<Object>(0), new LinkedHashMap<String, Variant>(0), -1);
+        notify.flags = Message.NO_REPLY_EXPECTED;
+        emit(notify);
+    }
+
+    /**
+     * Will add a new menu entry, or update one if it already exists
+     */
+    @Override
+    public void addMenuEntry(String menuText, SystemTrayMenuAction callback) {
+        this.menu.addEntry(null, null, menuText, false, callback);
+    }
+
+    /**
+     * Will update an already existing menu entry (or add a new one, if it doesn't exist)
+     */
+    @Override
+    public void updateMenuEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback) {
+        this.menu.updateEntry(origMenuText, newMenuText, newCallback);
+    }
+
+    @Override
+    public void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        this.menu.addEntry("checkmark", null, menuText, checked, callback);
+    }
+
+    @Override
+    public void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        this.menu.addEntry("radio", group, menuText, selected, callback);
+    }
+
+    @Override
+    protected void addSubmenuEntry(String menuText, LazySubmenu submenu) {
+        this.menu.addSubmenu(menuText, submenu);
+    }
+
+    @Override
+    public void setMenuEntryChecked(String menuText, boolean checked) {
+        this.menu.setChecked(menuText, checked);
+    }
+
+    @Override
+    public boolean isMenuEntryChecked(String menuText) {
+        return this.menu.isChecked(menuText);
+    }
+
+    /**
+     * Called on the D-Bus reader thread.
+     */
+    private boolean handle(Message message) throws IOException {
+        if (message.type == Message.SIGNAL) {
+            if (message.is(DBusConnection.BUS_NAME, "NameOwnerChanged") && WATCHER.equals(message.body[0])) {
+                if (((String) message.body[2]).isEmpty()) {
+                    hostLost();
+                } else {
+                    hostReturned();
+                }
+            }
+            return true;
+        }
+
+        if (message.type != Message.METHOD_CALL) {
+            return false;
+        }
+
+        if (message.is(INTROSPECTABLE, "Introspect")) {
+            if (ITEM_PATH.equals(message.path)) {
+                reply(message.methodReturn("s", ITEM_INTROSPECTION));
+                return true;
+            }
+            if (StatusNotifierMenu.PATH.equals(message.path)) {
+                reply(message.methodReturn("s", StatusNotifierMenu.INTROSPECTION));
+                return true;
+            }
+            return false;
+        }
+
+        if (ITEM_PATH.equals(message.path)) {
+            if (message.is(PROPERTIES, "Get")) {
+                Variant value = itemProperties().get((String) message.body[1]);
+                if (value == null) {
+                    reply(message.error("org.freedesktop.DBus.Error.UnknownProperty", "Unknown property: " + message.body[1]));
+                } else {
+                    reply(message.methodReturn("v", value));
+                }
+                return true;
+            }
+
+            if (message.is(PROPERTIES, "GetAll")) {
+                reply(message.methodReturn("a{sv}", itemProperties()));
+                return true;
+            }
+
+            if (message.is(ITEM_INTERFACE, "ContextMenu") || message.is(ITEM_INTERFACE, "Activate") ||
+                message.is(ITEM_INTERFACE, "SecondaryActivate") || message.is(ITEM_INTERFACE, "Scroll")) {
+                // ItemIsMenu is set, so the host shows the menu itself
+                reply(message.methodReturn(""));
+                return true;
+            }
+
+            return false;
+        }
+
+        if (StatusNotifierMenu.PATH.equals(message.path)) {
+            if (message.is(PROPERTIES, "Get")) {
+                Variant value = StatusNotifierMenu.menuProperties().get((String) message.body[1]);
+                if (value == null) {
+                    reply(message.error("org.freedesktop.DBus.Error.UnknownProperty", "Unknown property: " + message.body[1]));
+                } else {
+                    reply(message.methodReturn("v", value));
+                }
+                return true;
+            }
+
+            if (message.is(PROPERTIES, "GetAll")) {
+                reply(message.methodReturn("a{sv}", StatusNotifierMenu.menuProperties()));
+                return true;
+            }
+
+            return this.menu.handle(message);
+        }
+
+        return false;
+    }
+
+    private Map<String, Variant> itemProperties() {
+        List<Object> noPixmap = new ArrayList<Object>(0);
+        // strings can't be null on the bus
+        String id = this.appName == null ? "" : this.appName;
+
+        Map<String, Variant> properties = new LinkedHashMap<String, Variant>(16);
+        properties.put("Category", Variant.of("ApplicationStatus"));
+        properties.put("Id", Variant.of(id));
+        properties.put("Title", Variant.of(id));
+        properties.put("Status", Variant.of("Active"));
+        properties.put("WindowId", Variant.of(0));
+        properties.put("IconName", Variant.of(""));
+        properties.put("IconPixmap", new Variant("a(iiay)", this.iconPixmap));
+        properties.put("OverlayIconName", Variant.of(""));
+        properties.put("OverlayIconPixmap", new Variant("a(iiay)", noPixmap));
+        properties.put("AttentionIconName", Variant.of(""));
+        properties.put("AttentionIconPixmap", new Variant("a(iiay)", noPixmap));
+        properties.put("AttentionMovieName", Variant.of(""));
+        properties.put("ToolTip", new Variant("(sa(iiay)ss)", new Object[] {"", noPixmap, id, this.statusText}));
+        properties.put("ItemIsMenu", Variant.of(true));
+        properties.put("Menu", new Variant("o", StatusNotifierMenu.PATH));
+        return properties;
+    }
+
+    private synchronized void hostLost() {
+        if (this.active && this.hostReturnTimeout == null) {
+            logger.info("StatusNotifierWatcher went away, waiting {} ms for it to return.", HOST_RETURN_TIMEOUT_MILLIS);
+            this.hostReturnTimeout = scheduler.schedule(this.hostDidNotReturn, HOST_RETURN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void hostReturned() {
+        if (this.hostReturnTimeout != null) {
+            this.hostReturnTimeout.cancel(false);
+            this.hostReturnTimeout = null;
+        }
+
+        // everything is still here, the new host only has to be told about us. Can't wait for its reply on this thread
+        scheduler.execute(this.register);
+    }
+
+    private void trayFailed() {
+        this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                logger.warn("Failed to create StatusNotifierItem system tray.");
+
+                if (StatusNotifierTray.this.failureCallback != null) {
+                    StatusNotifierTray.this.failureCallback.createTrayFailed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by the menu, when an entry was clicked.
+     */
+    void click(SystemTrayMenuAction callback) {
+        dispatchClick(callback);
+    }
+
+    /**
+     * Sends a reply to a method call.
+     */
+    void reply(Message reply) throws IOException {
+        DBusConnection connection = this.connection;
+        if (connection != null) {
+            connection.send(reply);
+        }
+    }
+
+    /**
+     * Sends a signal (or any message that doesn't need a reply). Does nothing if the tray isn't connected.
+     */
+    void emit(Message message) {
+        DBusConnection connection = this.connection;
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.send(message);
+        } catch (IOException e) {
+            if (connection.isClosed()) {
+                // the tray was removed while this was being sent
+                return;
+            }
+            logger.error("Unable to send {}", message.member, e);
+        }
+    }
+
+    /**
+     * @return the icon, as the ARGB32 (network byte order) pixmaps that StatusNotifierItem wants. At its own size, and at TRAY_SIZE.
+     */
+    private List<Object> pixmap(String iconName) {
+        List<Object> pixmap = this.pixmaps.get(iconName);
+        if (pixmap != null) {
+            return pixmap;
+        }
+
+        URL iconUrl = iconUrl(iconName);
+        BufferedImage image;
+        try {
+            image = ImageIO.read(iconUrl);
+        } catch (IOException e) {
+            image = null;
+        }
+        if (image == null) {
+            String message = "Unable to read icon '" + iconName + "' from: '" + iconUrl + "'";
+            logger.error(message);
+            throw new RuntimeException(message);
+        }
+
+        pixmap = new ArrayList<Object>(2);
+        pixmap.add(toPixmap(image));
+
+        if (image.getWidth() != TRAY_SIZE || image.getHeight() != TRAY_SIZE) {
+            BufferedImage scaled = new BufferedImage(TRAY_SIZE, TRAY_SIZE, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = scaled.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+                g.drawImage(image, 0, 0, TRAY_SIZE, TRAY_SIZE, null);
+            } finally {
+                g.dispose();
+            }
+            pixmap.add(toPixmap(scaled));
+        }
+
+        this.pixmaps.put(iconName, pixmap);
+        return pixmap;
+    }
+
+    private static Object[] toPixmap(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        byte[] bytes = new byte[argb.length * 4];
+        for (int i = 0, j = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            bytes[j++] = (byte) (pixel >>> 24);
+            bytes[j++] = (byte) (pixel >>> 16);
+            bytes[j++] = (byte) (pixel >>> 8);
+            bytes[j++] = (byte) pixel;
+        }
+
+        return new Object[] {width, height, bytes};
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dorkbox.util.tray.linux.dbus.DBusConnection;
+import dorkbox.util.tray.linux.dbus.Message;
+import dorkbox.util.tray.linux.dbus.Variant;
+
+/**
+ * A stand-in for the tray host's StatusNotifierWatcher, for running the app-indicator and StatusNotifierItem trays where there is no
+ * desktop (ie: a soak run on a private session bus). Items that register are only remembered, nothing is shown.
+ */
+public class StatusNotifierWatcher {
+    private static final Logger logger = LoggerFactory.getLogger(StatusNotifierWatcher.class);
+
+    private static final String WATCHER = "org.kde.StatusNotifierWatcher";
+    private static final String WATCHER_PATH = "/StatusNotifierWatcher";
+    private static final String PROPERTIES = "org.freedesktop.DBus.Properties";
+
+    // reply to RequestName
+    private static final int PRIMARY_OWNER = 1;
+
+    private final DBusConnection connection;
+
+    // guarded by itself
+    private final List<String> items = new ArrayList<String>();
+
+    private StatusNotifierWatcher(DBusConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Takes the watcher's name on the session bus.
+     *
+     * @return null if there already is a watcher (a real tray host, most likely)
+     */
+    public static StatusNotifierWatcher start() throws IOException {
+        DBusConnection connection = DBusConnection.openSessionBus(1000L);
+        final StatusNotifierWatcher watcher = new StatusNotifierWatcher(connection);
+
+        connection.setHandler(new DBusConnection.Handler() {
+            @Override
+            public boolean handle(Message message) throws IOException {
+                return watcher.handle(message);
+            }
+
+            @Override
+            public void closed() {
+            }
+        });
+
+        try {
+            // 4 = DBUS_NAME_FLAG_DO_NOT_QUEUE
+            int reply = ((Number) connection.callBus("RequestName", "su", WATCHER, 4).body[0]).intValue();
+            if (reply != PRIMARY_OWNER) {
+                connection.close();
+                return null;
+            }
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+
+        return watcher;
+    }
+
+    private boolean handle(Message message) throws IOException {
+        if (message.type != Message.METHOD_CALL || !WATCHER_PATH.equals(message.path)) {
+            return false;
+        }
+
+        if (message.is(WATCHER, "RegisterStatusNotifierItem")) {
+            // libappindicator sends its object path, and is known by its sender. Everyone else sends their bus name
+            String service = (String) message.body[0];
+            String item = service.startsWith("/") ? message.sender + service : service;
+            synchronized (this.items) {
+                this.items.add(item);
+            }
+            logger.debug("Registered status notifier item {}", item);
+
+            this.connection.send(message.methodReturn(""));
+            this.connection.send(Message.signal(WATCHER_PATH, WATCHER, "StatusNotifierItemRegistered", "s", item));
+            return true;
+        }
+
+        if (message.is(WATCHER, "RegisterStatusNotifierHost")) {
+            this.connection.send(message.methodReturn(""));
+            return true;
+        }
+
+        if (message.is(PROPERTIES, "Get")) {
+            Variant value = properties().get((String) message.body[1]);
+            if (value == null) {
+                this.connection.send(message.error("org.freedesktop.DBus.Error.UnknownProperty", "Unknown property: " + message.body[1]));
+            } else {
+                this.connection.send(message.methodReturn("v", value));
+            }
+            return true;
+        }
+
+        if (message.is(PROPERTIES, "GetAll")) {
+            this.connection.send(message.methodReturn("a{sv}", properties()));
+            return true;
+        }
+
+        return false;
+    }
+
+    private Map<String, Variant> properties() {
+        Map<String, Variant> properties = new LinkedHashMap<String, Variant>();
+        properties.put("RegisteredStatusNotifierItems", new Variant("as", getItems()));
+        properties.put("IsStatusNotifierHostRegistered", Variant.of(true));
+        properties.put("ProtocolVersion", Variant.of(0));
+        return properties;
+    }
+
+    /**
+     * @return every item that registered (an item that registers again, ie: after the watcher restarted, is in here again)
+     */
+    public List<String> getItems() {
+        synchronized (this.items) {
+            return new ArrayList<String>(this.items);
+        }
+    }
+
+    /**
+     * Gives up the watcher's name, like a tray host that quits.
+     */
+    public void close() {
+        this.connection.close();
+    }
+}
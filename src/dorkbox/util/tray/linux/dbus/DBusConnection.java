@@ -0,0 +1,407 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A (minimal) connection to a D-Bus message bus. Only unix sockets and EXTERNAL authentication are supported, which is what every
+ * session bus on linux offers.
+ * <p>
+ * Incoming method calls and signals are handed to the {@link Handler} on the connection's reader thread. The handler MUST NOT make
+ * (blocking) method calls itself, because their replies are read by that same thread.
+ */
+public class DBusConnection {
+    private static final Logger logger = LoggerFactory.getLogger(DBusConnection.class);
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    public static final String BUS_NAME = "org.freedesktop.DBus";
+    public static final String BUS_PATH = "/org/freedesktop/DBus";
+
+    public static final String UNKNOWN_METHOD = "org.freedesktop.DBus.Error.UnknownMethod";
+
+    public interface Handler {
+        /**
+         * @return true if the message was handled. Unhandled method calls get an UnknownMethod error
+         */
+        boolean handle(Message message) throws IOException;
+
+        /**
+         * Called (once) when the connection is closed, by either side.
+         */
+        void closed();
+    }
+
+    private static class Reply {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Message message;
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Closeable transport;
+    private final long timeoutMillis;
+
+    private final AtomicInteger nextSerial = new AtomicInteger(1);
+    private final Map<Integer, Reply> pendingReplies = new ConcurrentHashMap<Integer, Reply>();
+
+    private volatile Handler handler;
+    private volatile boolean closed;
+    private String uniqueName;
+
+    /**
+     * Authenticates, and says hello to the bus.
+     *
+     * @param timeoutMillis how long to wait for the reply to a method call, unless told otherwise
+     */
+    public DBusConnection(InputStream in, OutputStream out, Closeable transport, long timeoutMillis) throws IOException {
+        this.in = in;
+        this.out = out;
+        this.transport = transport;
+        this.timeoutMillis = timeoutMillis;
+
+        try {
+            authenticate();
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readMessages();
+                }
+            }, "SysTrayDBus");
+            reader.setDaemon(true);
+            reader.start();
+
+            Message reply = callBus("Hello", "");
+            this.uniqueName = (String) reply.body[0];
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to the session bus (DBUS_SESSION_BUS_ADDRESS, or the default for this user).
+     */
+    public static DBusConnection openSessionBus(long timeoutMillis) throws IOException {
+        String addresses = System.getenv("DBUS_SESSION_BUS_ADDRESS");
+        if (addresses == null || addresses.isEmpty()) {
+            String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+            if (runtimeDir == null || runtimeDir.isEmpty()) {
+                runtimeDir = "/run/user/" + LibC.getuid();
+            }
+            addresses = "unix:path=" + runtimeDir + "/bus";
+        }
+
+        IOException error = null;
+        for (String address : addresses.split(";")) {
+            try {
+                UnixSocket socket = connect(address);
+                if (socket != null) {
+                    return new DBusConnection(socket.getInputStream(), socket.getOutputStream(), socket, timeoutMillis);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+        throw new IOException("No supported D-Bus address in: " + addresses);
+    }
+
+    /**
+     * @return the connected socket, or null if the address isn't a unix socket
+     */
+    private static UnixSocket connect(String address) throws IOException {
+        if (!address.startsWith("unix:")) {
+            return null;
+        }
+
+        for (String option : address.substring(5).split(",")) {
+            int equals = option.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+
+            String key = option.substring(0, equals);
+            String value = unescape(option.substring(equals + 1));
+
+            if (key.equals("path")) {
+                return UnixSocket.connect(value, false);
+            }
+            if (key.equals("abstract")) {
+                return UnixSocket.connect(value, true);
+            }
+        }
+
+        return null;
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+
+        return new String(bytes.toByteArray(), Charset.forName("UTF-8"));
+    }
+
+    private void authenticate() throws IOException {
+        // the uid, as a decimal string, in hex
+        String uid = Integer.toString(uid());
+        StringBuilder hexUid = new StringBuilder(uid.length() * 2);
+        for (int i = 0; i < uid.length(); i++) {
+            hexUid.append(Integer.toHexString(uid.charAt(i)));
+        }
+
+        this.out.write(0);
+        this.out.write(("AUTH EXTERNAL " + hexUid + "\r\n").getBytes(US_ASCII));
+        this.out.flush();
+
+        String response = readLine();
+        if (!response.startsWith("OK ")) {
+            throw new IOException("D-Bus authentication failed: " + response);
+        }
+
+        this.out.write("BEGIN\r\n".getBytes(US_ASCII));
+        this.out.flush();
+    }
+
+    /**
+     * @return the id of this process, which is what unique names on the bus (ie: StatusNotifierItem-pid-n) are usually made of
+     */
+    public static int getProcessId() {
+        return LibC.getpid();
+    }
+
+    /**
+     * The uid, for authentication. Can be overridden, for a transport that isn't a (JNA) unix socket.
+     */
+    protected int uid() {
+        return LibC.getuid();
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = this.in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("D-Bus connection closed during authentication");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void readMessages() {
+        try {
+            while (!this.closed) {
+                Message message = Message.read(this.in);
+
+                if (message.type == Message.METHOD_RETURN || message.type == Message.ERROR) {
+                    Reply reply = this.pendingReplies.remove(message.replySerial);
+                    if (reply != null) {
+                        reply.message = message;
+                        reply.latch.countDown();
+                    }
+                    continue;
+                }
+
+                dispatch(message);
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            if (!this.closed) {
+                logger.error("Error reading from the D-Bus connection.", e);
+            }
+        }
+
+        close();
+    }
+
+    private void dispatch(Message message) {
+        boolean handled = false;
+
+        try {
+            if (message.type == Message.METHOD_CALL && message.is("org.freedesktop.DBus.Peer", "Ping")) {
+                handled = true;
+                if (message.expectsReply()) {
+                    send(message.methodReturn(""));
+                }
+            } else {
+                Handler handler = this.handler;
+                handled = handler != null && handler.handle(message);
+            }
+
+            if (!handled && message.expectsReply()) {
+                send(message.error(UNKNOWN_METHOD, "No such method: " + message.iface + "." + message.member));
+            }
+        } catch (Exception e) {
+            logger.error("Error handling D-Bus message {}", message, e);
+
+            if (message.expectsReply()) {
+                try {
+                    send(message.error("org.freedesktop.DBus.Error.Failed", String.valueOf(e.getMessage())));
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return the unique name of this connection, ie: ":1.42"
+     */
+    public String getUniqueName() {
+        return this.uniqueName;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Sends the message, without waiting for a reply.
+     */
+    public void send(Message message) throws IOException {
+        if (this.closed) {
+            throw new IOException("D-Bus connection is closed");
+        }
+
+        synchronized (this.out) {
+            this.out.write(message.encode(this.nextSerial.getAndIncrement()));
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Makes a method call, and waits for the reply. MUST NOT be called from the {@link Handler}.
+     *
+     * @throws DBusException if the reply was an error
+     */
+    public Message call(Message message) throws IOException {
+        return call(message, this.timeoutMillis);
+    }
+
+    /**
+     * Makes a method call, and waits for the reply. MUST NOT be called from the {@link Handler}.
+     *
+     * @throws DBusException if the reply was an error
+     */
+    public Message call(Message message, long timeoutMillis) throws IOException {
+        Reply reply = new Reply();
+
+        int serial;
+        synchronized (this.out) {
+            if (this.closed) {
+                throw new IOException("D-Bus connection is closed");
+            }
+
+            serial = this.nextSerial.getAndIncrement();
+            this.pendingReplies.put(serial, reply);
+            this.out.write(message.encode(serial));
+            this.out.flush();
+        }
+
+        try {
+            if (!reply.latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No reply to " + message.iface + "." + message.member + " within " + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + message.iface + "." + message.member);
+        } finally {
+            this.pendingReplies.remove(serial);
+        }
+
+        Message response = reply.message;
+        if (response == null) {
+            throw new IOException("D-Bus connection closed waiting for " + message.iface + "." + message.member);
+        }
+        if (response.type == Message.ERROR) {
+            String text = response.body.length > 0 && response.body[0] instanceof String ? (String) response.body[0] : "";
+            throw new DBusException(response.errorName, text);
+        }
+
+        return response;
+    }
+
+    /**
+     * Calls a method on the bus itself.
+     */
+    public Message callBus(String member, String signature, Object... body) throws IOException {
+        return call(Message.methodCall(BUS_NAME, BUS_PATH, BUS_NAME, member, signature, body));
+    }
+
+    public void close() {
+        synchronized (this.out) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+
+        try {
+            this.transport.close();
+        } catch (IOException ignored) {
+        }
+
+        // nothing else is coming
+        List<Reply> replies = new ArrayList<Reply>(this.pendingReplies.values());
+        this.pendingReplies.clear();
+        for (Reply reply : replies) {
+            reply.latch.countDown();
+        }
+
+        Handler handler = this.handler;
+        if (handler != null) {
+            handler.closed();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.io.IOException;
+
+/**
+ * An error reply to a method call.
+ */
+public class DBusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String errorName;
+
+    public DBusException(String errorName, String message) {
+        super(errorName + ": " + message);
+        this.errorName = errorName;
+    }
+
+    /**
+     * @return the D-Bus error name, ie: org.freedesktop.DBus.Error.UnknownMethod
+     */
+    public String getErrorName() {
+        return this.errorName;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unmarshals values from the D-Bus wire format (either endian). Produces the same types that {@link DBusWriter} accepts, except that
+ * arrays are always a List (or byte[], or Map), and 'q' is an Integer.
+ */
+final class DBusReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] buffer;
+    private final boolean bigEndian;
+    private int position;
+
+    DBusReader(byte[] buffer, int position, boolean bigEndian) {
+        this.buffer = buffer;
+        this.position = position;
+        this.bigEndian = bigEndian;
+    }
+
+    int position() {
+        return this.position;
+    }
+
+    Object[] readAll(String signature) throws IOException {
+        List<Object> values = new ArrayList<Object>(4);
+
+        int index = 0;
+        while (index < signature.length()) {
+            int end = Signatures.end(signature, index);
+            values.add(read(signature.substring(index, end)));
+            index = end;
+        }
+
+        return values.toArray();
+    }
+
+    /**
+     * @param type a single complete type
+     */
+    Object read(String type) throws IOException {
+        char c = type.charAt(0);
+        align(Signatures.alignment(c));
+
+        switch (c) {
+            case 'y':
+                return readByte();
+            case 'b':
+                return readInt() != 0;
+            case 'n':
+                return (short) readShort();
+            case 'q':
+                return readShort() & 0xFFFF;
+            case 'i':
+            case 'u':
+            case 'h':
+                return readInt();
+            case 'x':
+            case 't':
+                return readLong();
+            case 'd':
+                return Double.longBitsToDouble(readLong());
+            case 's':
+            case 'o': {
+                int length = readInt();
+                String string = readString(length);
+                this.position++;
+                return string;
+            }
+            case 'g': {
+                int length = readByte() & 0xFF;
+                String string = readString(length);
+                this.position++;
+                return string;
+            }
+            case 'v': {
+                String signature = (String) read("g");
+                return new Variant(signature, read(signature));
+            }
+            case '(':
+                return readAll(type.substring(1, type.length() - 1));
+            case 'a':
+                return readArray(type.substring(1));
+            default:
+                throw new IOException("Unsupported type: " + type);
+        }
+    }
+
+    private Object readArray(String elementType) throws IOException {
+        int length = readInt();
+        align(Signatures.alignment(elementType.charAt(0)));
+
+        int end = this.position + length;
+        check(length);
+
+        if (elementType.charAt(0) == 'y') {
+            byte[] bytes = Arrays.copyOfRange(this.buffer, this.position, end);
+            this.position = end;
+            return bytes;
+        }
+
+        if (elementType.charAt(0) == '{') {
+            int keyEnd = Signatures.end(elementType, 1);
+            String keyType = elementType.substring(1, keyEnd);
+            String valueType = elementType.substring(keyEnd, elementType.length() - 1);
+
+            Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+            while (this.position < end) {
+                align(8);
+                Object key = read(keyType);
+                map.put(key, read(valueType));
+            }
+            return map;
+        }
+
+        List<Object> list = new ArrayList<Object>();
+        while (this.position < end) {
+            list.add(read(elementType));
+        }
+        return list;
+    }
+
+    void align(int alignment) {
+        this.position += (alignment - this.position % alignment) % alignment;
+    }
+
+    private String readString(int length) throws IOException {
+        check(length + 1);
+        String string = new String(this.buffer, this.position, length, UTF_8);
+        this.position += length;
+        return string;
+    }
+
+    byte readByte() throws IOException {
+        check(1);
+        return this.buffer[this.position++];
+    }
+
+    int readShort() throws IOException {
+        check(2);
+        int b0 = this.buffer[this.position++] & 0xFF;
+        int b1 = this.buffer[this.position++] & 0xFF;
+        return this.bigEndian ? b0 << 8 | b1 : b1 << 8 | b0;
+    }
+
+    int readInt() throws IOException {
+        check(4);
+        int b0 = this.buffer[this.position++] & 0xFF;
+        int b1 = this.buffer[this.position++] & 0xFF;
+        int b2 = this.buffer[this.position++] & 0xFF;
+        int b3 = this.buffer[this.position++] & 0xFF;
+        return this.bigEndian ? b0 << 24 | b1 << 16 | b2 << 8 | b3 : b3 << 24 | b2 << 16 | b1 << 8 | b0;
+    }
+
+    long readLong() throws IOException {
+        long first = readInt() & 0xFFFFFFFFL;
+        long second = readInt() & 0xFFFFFFFFL;
+        return this.bigEndian ? first << 32 | second : second << 32 | first;
+    }
+
+    private void check(int count) throws IOException {
+        if (count < 0 || this.position + count > this.buffer.length) {
+            throw new IOException("Truncated D-Bus message");
+        }
+    }
+}
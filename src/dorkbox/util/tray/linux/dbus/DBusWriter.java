@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Marshals values into the D-Bus wire format (little endian), driven by their type signature.
+ * <p>
+ * y=Byte, b=Boolean, n/q=Short, i/u=Integer, x/t=Long, d=Double, s/o/g=String, v={@link Variant}, (...)=Object[], ay=byte[], a{..}=Map,
+ * any other array=List (or Object[]). Any Number can be used for the numeric types.
+ */
+final class DBusWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+    private int position;
+
+    DBusWriter(int initialSize) {
+        this.buffer = new byte[initialSize];
+    }
+
+    int position() {
+        return this.position;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.position);
+    }
+
+    /**
+     * Writes every value, one after another, using the types in the signature.
+     */
+    void writeAll(String signature, Object[] values) throws IOException {
+        int index = 0;
+        int i = 0;
+        while (index < signature.length()) {
+            if (i >= values.length) {
+                throw new IOException("Not enough values for signature: " + signature);
+            }
+
+            int end = Signatures.end(signature, index);
+            write(signature.substring(index, end), values[i++]);
+            index = end;
+        }
+    }
+
+    /**
+     * @param type a single complete type
+     */
+    @SuppressWarnings("unchecked")
+    void write(String type, Object value) throws IOException {
+        char c = type.charAt(0);
+        align(Signatures.alignment(c));
+
+        switch (c) {
+            case 'y':
+                writeByte(((Number) value).byteValue());
+                break;
+            case 'b':
+                writeInt((Boolean) value ? 1 : 0);
+                break;
+            case 'n':
+            case 'q':
+                writeShort(((Number) value).shortValue());
+                break;
+            case 'i':
+            case 'u':
+            case 'h':
+                writeInt(((Number) value).intValue());
+                break;
+            case 'x':
+            case 't':
+                writeLong(((Number) value).longValue());
+                break;
+            case 'd':
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+                break;
+            case 's':
+            case 'o': {
+                byte[] bytes = ((String) value).getBytes(UTF_8);
+                writeInt(bytes.length);
+                writeBytes(bytes);
+                writeByte(0);
+                break;
+            }
+            case 'g': {
+                byte[] bytes = ((String) value).getBytes(UTF_8);
+                writeByte(bytes.length);
+                writeBytes(bytes);
+                writeByte(0);
+                break;
+            }
+            case 'v': {
+                Variant variant = (Variant) value;
+                write("g", variant.signature);
+                write(variant.signature, variant.value);
+                break;
+            }
+            case '(':
+                writeAll(type.substring(1, type.length() - 1), (Object[]) value);
+                break;
+            case 'a':
+                writeArray(type.substring(1), value);
+                break;
+            default:
+                throw new IOException("Unsupported type: " + type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeArray(String elementType, Object value) throws IOException {
+        int lengthPosition = this.position;
+        writeInt(0);
+
+        // the padding to the first element is not part of the length
+        align(Signatures.alignment(elementType.charAt(0)));
+        int start = this.position;
+
+        if (elementType.charAt(0) == 'y' && value instanceof byte[]) {
+            writeBytes((byte[]) value);
+        } else if (elementType.charAt(0) == '{') {
+            int keyEnd = Signatures.end(elementType, 1);
+            String keyType = elementType.substring(1, keyEnd);
+            String valueType = elementType.substring(keyEnd, elementType.length() - 1);
+
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                align(8);
+                write(keyType, entry.getKey());
+                write(valueType, entry.getValue());
+            }
+        } else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                write(elementType, element);
+            }
+        } else {
+            for (Object element : (List<Object>) value) {
+                write(elementType, element);
+            }
+        }
+
+        int length = this.position - start;
+        int end = this.position;
+        this.position = lengthPosition;
+        writeInt(length);
+        this.position = end;
+    }
+
+    void align(int alignment) {
+        int padding = (alignment - this.position % alignment) % alignment;
+        ensure(padding);
+        // the buffer is only ever grown, so it is already 0
+        this.position += padding;
+    }
+
+    void writeByte(int value) {
+        ensure(1);
+        this.buffer[this.position++] = (byte) value;
+    }
+
+    void writeShort(int value) {
+        ensure(2);
+        this.buffer[this.position++] = (byte) value;
+        this.buffer[this.position++] = (byte) (value >>> 8);
+    }
+
+    void writeInt(int value) {
+        ensure(4);
+        this.buffer[this.position++] = (byte) value;
+        this.buffer[this.position++] = (byte) (value >>> 8);
+        this.buffer[this.position++] = (byte) (value >>> 16);
+        this.buffer[this.position++] = (byte) (value >>> 24);
+    }
+
+    void writeLong(long value) {
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+    }
+
+    void writeBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+    }
+
+    private void ensure(int count) {
+        if (this.position + count > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + count));
+        }
+    }
+}
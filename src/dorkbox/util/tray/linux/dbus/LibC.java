@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Structure;
+
+import dorkbox.util.tray.NativeLoader;
+
+/**
+ * Direct-mapped bindings for the libc socket calls. Java (before 16) has no unix domain sockets, and D-Bus needs them.
+ */
+final class LibC {
+    static {
+        // the bundled jna jar doesn't load its own library, and this can be used before a tray is created
+        NativeLoader.init(false);
+        Native.register(LibC.class, "c");
+    }
+
+    static final int AF_UNIX = 1;
+    static final int SOCK_STREAM = 1;
+    static final int SHUT_RDWR = 2;
+    static final int EINTR = 4;
+
+    private LibC() {
+    }
+
+    /**
+     * struct sockaddr_un
+     */
+    public static class SockAddr extends Structure {
+        public short sun_family = AF_UNIX;
+        public byte[] sun_path = new byte[108];
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("sun_family", "sun_path");
+        }
+    }
+
+    static native int socket(int domain, int type, int protocol);
+    static native int connect(int sockfd, SockAddr addr, int addrlen);
+    static native NativeLong read(int fd, byte[] buf, NativeLong count);
+    static native NativeLong write(int fd, byte[] buf, NativeLong count);
+    static native int shutdown(int sockfd, int how);
+    static native int close(int fd);
+    static native int getuid();
+    static native int getpid();
+    static native String strerror(int errnum);
+}
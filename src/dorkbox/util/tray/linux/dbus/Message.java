@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A D-Bus message.
+ */
+public final class Message {
+    public static final byte METHOD_CALL = 1;
+    public static final byte METHOD_RETURN = 2;
+    public static final byte ERROR = 3;
+    public static final byte SIGNAL = 4;
+
+    public static final byte NO_REPLY_EXPECTED = 0x1;
+
+    private static final Object[] EMPTY = new Object[0];
+
+    // header field codes
+    private static final byte PATH = 1;
+    private static final byte INTERFACE = 2;
+    private static final byte MEMBER = 3;
+    private static final byte ERROR_NAME = 4;
+    private static final byte REPLY_SERIAL = 5;
+    private static final byte DESTINATION = 6;
+    private static final byte SENDER = 7;
+    private static final byte SIGNATURE = 8;
+
+    // the spec limits messages to 128 MB
+    private static final int MAX_LENGTH = 128 * 1024 * 1024;
+
+    public byte type;
+    public byte flags;
+    public int serial;
+
+    public String path;
+    public String iface;
+    public String member;
+    public String errorName;
+    public int replySerial;
+    public String destination;
+    public String sender;
+
+    public String signature = "";
+    public Object[] body = EMPTY;
+
+    public static Message methodCall(String destination, String path, String iface, String member, String signature, Object... body) {
+        Message message = new Message();
+        message.type = METHOD_CALL;
+        message.destination = destination;
+        message.path = path;
+        message.iface = iface;
+        message.member = member;
+        message.signature = signature;
+        message.body = body;
+        return message;
+    }
+
+    public static Message signal(String path, String iface, String member, String signature, Object... body) {
+        Message message = new Message();
+        message.type = SIGNAL;
+        message.path = path;
+        message.iface = iface;
+        message.member = member;
+        message.signature = signature;
+        message.body = body;
+        return message;
+    }
+
+    /**
+     * @return the reply to this (method call) message
+     */
+    public Message methodReturn(String signature, Object... body) {
+        Message message = new Message();
+        message.type = METHOD_RETURN;
+        message.flags = NO_REPLY_EXPECTED;
+        message.replySerial = this.serial;
+        message.destination = this.sender;
+        message.signature = signature;
+        message.body = body;
+        return message;
+    }
+
+    /**
+     * @return the error reply to this (method call) message
+     */
+    public Message error(String errorName, String text) {
+        Message message = new Message();
+        message.type = ERROR;
+        message.flags = NO_REPLY_EXPECTED;
+        message.replySerial = this.serial;
+        message.destination = this.sender;
+        message.errorName = errorName;
+        message.signature = "s";
+        message.body = new Object[] {text};
+        return message;
+    }
+
+    public boolean expectsReply() {
+        return this.type == METHOD_CALL && (this.flags & NO_REPLY_EXPECTED) == 0;
+    }
+
+    /**
+     * @return true if this is a call/signal of that interface and member
+     */
+    public boolean is(String iface, String member) {
+        return member.equals(this.member) && (this.iface == null || iface.equals(this.iface));
+    }
+
+    byte[] encode(int serial) throws IOException {
+        this.serial = serial;
+
+        DBusWriter body = new DBusWriter(64);
+        body.writeAll(this.signature, this.body);
+
+        List<Object[]> fields = new ArrayList<Object[]>(6);
+        addField(fields, PATH, "o", this.path);
+        addField(fields, INTERFACE, "s", this.iface);
+        addField(fields, MEMBER, "s", this.member);
+        addField(fields, ERROR_NAME, "s", this.errorName);
+        if (this.replySerial != 0) {
+            addField(fields, REPLY_SERIAL, "u", this.replySerial);
+        }
+        addField(fields, DESTINATION, "s", this.destination);
+        if (!this.signature.isEmpty()) {
+            addField(fields, SIGNATURE, "g", this.signature);
+        }
+
+        DBusWriter writer = new DBusWriter(128 + body.position());
+        writer.writeByte('l');
+        writer.writeByte(this.type);
+        writer.writeByte(this.flags);
+        writer.writeByte(1);
+        writer.writeInt(body.position());
+        writer.writeInt(serial);
+        writer.write("a(yv)", fields);
+        writer.align(8);
+        writer.writeBytes(body.toByteArray());
+
+        return writer.toByteArray();
+    }
+
+    private static void addField(List<Object[]> fields, byte code, String signature, Object value) {
+        if (value != null) {
+            fields.add(new Object[] {code, new Variant(signature, value)});
+        }
+    }
+
+    /**
+     * Reads the next message.
+     *
+     * @throws EOFException if the stream ended (cleanly) before the message
+     */
+    static Message read(InputStream in) throws IOException {
+        byte[] fixed = new byte[16];
+        if (!readFully(in, fixed, 0, 16, true)) {
+            throw new EOFException();
+        }
+
+        boolean bigEndian = fixed[0] == 'B';
+        if (!bigEndian && fixed[0] != 'l') {
+            throw new IOException("Invalid D-Bus message");
+        }
+
+        DBusReader header = new DBusReader(fixed, 4, bigEndian);
+        int bodyLength = header.readInt();
+        header.readInt();
+        int fieldsLength = header.readInt();
+
+        int headerLength = 16 + fieldsLength;
+        headerLength += (8 - headerLength % 8) % 8;
+        if (fieldsLength < 0 || bodyLength < 0 || (long) headerLength + bodyLength > MAX_LENGTH) {
+            throw new IOException("Invalid D-Bus message length");
+        }
+
+        byte[] bytes = new byte[headerLength + bodyLength];
+        System.arraycopy(fixed, 0, bytes, 0, 16);
+        readFully(in, bytes, 16, bytes.length - 16, false);
+
+        return decode(bytes, bigEndian, headerLength);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Message decode(byte[] bytes, boolean bigEndian, int headerLength) throws IOException {
+        Message message = new Message();
+
+        DBusReader reader = new DBusReader(bytes, 1, bigEndian);
+        message.type = reader.readByte();
+        message.flags = reader.readByte();
+        reader.readByte();
+        reader.readInt();
+        message.serial = reader.readInt();
+
+        List<Object> fields = (List<Object>) reader.read("a(yv)");
+        for (Object field : fields) {
+            Object[] struct = (Object[]) field;
+            Object value = ((Variant) struct[1]).value;
+
+            switch ((Byte) struct[0]) {
+                case PATH:
+                    message.path = (String) value;
+                    break;
+                case INTERFACE:
+                    message.iface = (String) value;
+                    break;
+                case MEMBER:
+                    message.member = (String) value;
+                    break;
+                case ERROR_NAME:
+                    message.errorName = (String) value;
+                    break;
+                case REPLY_SERIAL:
+                    message.replySerial = (Integer) value;
+                    break;
+                case DESTINATION:
+                    message.destination = (String) value;
+                    break;
+                case SENDER:
+                    message.sender = (String) value;
+                    break;
+                case SIGNATURE:
+                    message.signature = (String) value;
+                    break;
+                default:
+                    // unknown fields must be ignored
+            }
+        }
+
+        message.body = new DBusReader(bytes, headerLength, bigEndian).readAll(message.signature);
+        return message;
+    }
+
+    /**
+     * @return false if the stream ended before anything was read (and that was allowed)
+     */
+    private static boolean readFully(InputStream in, byte[] bytes, int offset, int length, boolean allowEof) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, offset + read, length - read);
+            if (count < 0) {
+                if (read == 0 && allowEof) {
+                    return false;
+                }
+                throw new EOFException("Truncated D-Bus message");
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "Message{type=" + this.type + ", serial=" + this.serial + ", path=" + this.path + ", iface=" + this.iface + ", member=" +
+               this.member + ", signature=" + this.signature + "}";
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.io.IOException;
+
+/**
+ * Helpers for D-Bus type signatures.
+ */
+final class Signatures {
+    private Signatures() {
+    }
+
+    /**
+     * @return the index just after the single complete type that starts at index
+     */
+    static int end(String signature, int index) throws IOException {
+        if (index >= signature.length()) {
+            throw new IOException("Invalid signature: " + signature);
+        }
+
+        char c = signature.charAt(index);
+        switch (c) {
+            case 'a':
+                return end(signature, index + 1);
+
+            case '(':
+            case '{': {
+                char close = c == '(' ? ')' : '}';
+                index++;
+                while (index < signature.length() && signature.charAt(index) != close) {
+                    index = end(signature, index);
+                }
+                if (index >= signature.length()) {
+                    throw new IOException("Invalid signature: " + signature);
+                }
+                return index + 1;
+            }
+
+            default:
+                return index + 1;
+        }
+    }
+
+    /**
+     * @return the alignment (in bytes) of the type
+     */
+    static int alignment(char type) {
+        switch (type) {
+            case 'y':
+            case 'g':
+            case 'v':
+                return 1;
+            case 'n':
+            case 'q':
+                return 2;
+            case 'x':
+            case 't':
+            case 'd':
+            case '(':
+            case '{':
+                return 8;
+            default:
+                // b, i, u, s, o, a, h
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+/**
+ * A connected unix domain (stream) socket.
+ */
+public class UnixSocket implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int fd;
+    private volatile boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int read = read(this.single, 0, 1);
+            return read < 0 ? -1 : this.single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            byte[] buffer = off == 0 ? b : new byte[len];
+            long read;
+            do {
+                read = LibC.read(UnixSocket.this.fd, buffer, new NativeLong(len)).longValue();
+            } while (read < 0 && Native.getLastError() == LibC.EINTR);
+
+            if (read < 0) {
+                if (UnixSocket.this.closed) {
+                    return -1;
+                }
+                throw error("read");
+            }
+            if (read == 0) {
+                return -1;
+            }
+
+            if (buffer != b) {
+                System.arraycopy(buffer, 0, b, off, (int) read);
+            }
+            return (int) read;
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                byte[] buffer = b;
+                if (off != 0) {
+                    buffer = new byte[len];
+                    System.arraycopy(b, off, buffer, 0, len);
+                }
+
+                long written = LibC.write(UnixSocket.this.fd, buffer, new NativeLong(len)).longValue();
+                if (written < 0) {
+                    if (Native.getLastError() == LibC.EINTR) {
+                        continue;
+                    }
+                    throw error("write");
+                }
+
+                off += (int) written;
+                len -= (int) written;
+            }
+        }
+    };
+
+    UnixSocket(int fd) {
+        this.fd = fd;
+    }
+
+    /**
+     * @param path the socket file, or the name in the abstract namespace
+     * @param abstractName true if the path is in the abstract namespace
+     */
+    public static UnixSocket connect(String path, boolean abstractName) throws IOException {
+        int fd = LibC.socket(LibC.AF_UNIX, LibC.SOCK_STREAM, 0);
+        if (fd < 0) {
+            throw error("socket");
+        }
+
+        LibC.SockAddr address = new LibC.SockAddr();
+        int length = address(address, path, abstractName);
+
+        if (LibC.connect(fd, address, length) < 0) {
+            IOException error = error("connect to " + path);
+            LibC.close(fd);
+            throw error;
+        }
+
+        return new UnixSocket(fd);
+    }
+
+    /**
+     * Fills in the address.
+     *
+     * @return the length of the address
+     */
+    static int address(LibC.SockAddr address, String path, boolean abstractName) throws IOException {
+        byte[] bytes = path.getBytes(UTF_8);
+        // abstract names start with a 0, paths end with one
+        if (bytes.length + 1 > address.sun_path.length) {
+            throw new IOException("Socket path is too long: " + path);
+        }
+
+        System.arraycopy(bytes, 0, address.sun_path, abstractName ? 1 : 0, bytes.length);
+        address.write();
+
+        // sizeof(sun_family) + the path (and its leading/trailing 0)
+        return 2 + bytes.length + 1;
+    }
+
+    static IOException error(String operation) {
+        int errno = Native.getLastError();
+        return new IOException("Unable to " + operation + ": " + LibC.strerror(errno) + " (" + errno + ")");
+    }
+
+    public InputStream getInputStream() {
+        return this.inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.outputStream;
+    }
+
+    /**
+     * Closes the socket. Anything blocked reading from it returns end-of-stream.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        LibC.shutdown(this.fd, LibC.SHUT_RDWR);
+        LibC.close(this.fd);
+    }
+}
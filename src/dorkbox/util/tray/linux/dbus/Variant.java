@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.tray.linux.dbus;
+
+/**
+ * A D-Bus variant: a value, together with its (single, complete) type signature.
+ */
+public final class Variant {
+    public final String signature;
+    public final Object value;
+
+    public Variant(String signature, Object value) {
+        this.signature = signature;
+        this.value = value;
+    }
+
+    public static Variant of(String value) {
+        return new Variant("s", value);
+    }
+
+    public static Variant of(int value) {
+        return new Variant("i", value);
+    }
+
+    public static Variant of(boolean value) {
+        return new Variant("b", value);
+    }
+
+    @Override
+    public String toString() {
+        return this.signature + ":" + this.value;
+    }
+}
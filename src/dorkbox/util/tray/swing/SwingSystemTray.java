@@ -17,34 +17,45 @@ package dorkbox.util.tray.swing;
 
 import java.awt.AWTException;
 import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.Image;
-import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.SystemTray;
 import java.awt.TrayIcon;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.HashMap;
-import java.util.Map;
+import java.awt.image.BufferedImage;
 
 import javax.swing.ImageIcon;
-import javax.swing.JMenuItem;
 
 import dorkbox.util.SwingUtil;
+import dorkbox.util.tray.IconCache;
+import dorkbox.util.tray.LazySubmenu;
+import dorkbox.util.tray.MenuListModel;
+import dorkbox.util.tray.ScreenBounds;
 import dorkbox.util.tray.SystemTrayMenuAction;
+import dorkbox.util.tray.SystemTrayMenuEntries;
 import dorkbox.util.tray.SystemTrayMenuPopup;
+import dorkbox.util.tray.TrayWatchdog;
 
 /**
  * Class for handling all system tray interaction, via SWING
  */
 public class SwingSystemTray extends dorkbox.util.tray.SystemTray {
+    /**
+     * How many decoded (and scaled) icons are kept, so switching between them does not read and decode the file again.
+     */
+    public static int IMAGE_CACHE_SIZE = 16;
+
+    // the popup, and its entries
+    private final SystemTrayMenuEntries menu = new SystemTrayMenuEntries(this);
+
+    // the icon that is shown now (only changed on the EDT, once it is), so setting it again doesn't do anything
+    private volatile String statusIconName;
 
-    private final Map<String, JMenuItem> menuEntries = new HashMap<String, JMenuItem>(2);
+    // already decoded and scaled, by icon name
+    private final IconCache<Image> images = new IconCache<Image>(IMAGE_CACHE_SIZE);
 
-    private volatile SystemTrayMenuPopup jmenu;
-    private volatile JMenuItem connectionStatusItem;
 
     private volatile SystemTray tray;
     private volatile TrayIcon trayIcon;
@@ -57,11 +68,15 @@ public class SwingSystemTray extends dorkbox.util.tray.SystemTray {
 
     @Override
     public void removeTray() {
-        SwingUtil.invokeAndWait(new Runnable() {
+        runOnEdt(new Runnable() {
             @Override
             public void run() {
-                SwingSystemTray.this.tray.remove(SwingSystemTray.this.trayIcon);
-                SwingSystemTray.this.menuEntries.clear();
+                TrayIcon trayIcon = SwingSystemTray.this.trayIcon;
+                if (trayIcon != null) {
+                    // removing it more than once does nothing
+                    SwingSystemTray.this.tray.remove(trayIcon);
+                }
+                SwingSystemTray.this.menu.clear();
             }
         });
 
@@ -70,14 +85,16 @@ public class SwingSystemTray extends dorkbox.util.tray.SystemTray {
 
     @Override
     public void createTray(final String iconName) {
-        SwingUtil.invokeAndWait(new Runnable() {
+        TrayWatchdog.watchEdt();
+
+        runOnEdt(new Runnable() {
             @Override
             public void run() {
                 SwingSystemTray.this.tray = SystemTray.getSystemTray();
                 if (SwingSystemTray.this.tray == null) {
                     logger.error("The system tray is not available");
                 } else {
-                    SwingSystemTray.this.jmenu = new SystemTrayMenuPopup();
+                    final SystemTrayMenuPopup popup = SwingSystemTray.this.menu.createPopup();
 
                     Image trayImage = newImage(iconName);
                     SwingSystemTray.this.trayIcon = new TrayIcon(trayImage);
@@ -86,13 +103,12 @@ public class SwingSystemTray extends dorkbox.util.tray.SystemTray {
                     SwingSystemTray.this.trayIcon.addMouseListener(new MouseAdapter() {
                         @Override
                         public void mousePressed(MouseEvent e) {
-                            Dimension size = SwingSystemTray.this.jmenu.getPreferredSize();
+                            Dimension size = popup.getPreferredSize();
 
-                            Point point = e.getPoint();
-                            Rectangle bounds = SwingUtil.getScreenBoundsAt(point);
+                            int x = e.getX();
+                            int y = e.getY();
 
-                            int x = point.x;
-                            int y = point.y;
+                            Rectangle bounds = ScreenBounds.at(x, y);
 
                             if (y < bounds.y) {
                                 y = bounds.y;
@@ -110,15 +126,16 @@ public class SwingSystemTray extends dorkbox.util.tray.SystemTray {
                                 x -= size.width; // snap to edge of mouse
                             }
 
-                            SwingSystemTray.this.jmenu.setInvoker(SwingSystemTray.this.jmenu);
-                            SwingSystemTray.this.jmenu.setLocation(x, y);
-                            SwingSystemTray.this.jmenu.setVisible(true);
-                            SwingSystemTray.this.jmenu.requestFocus();
+                            popup.setInvoker(popup);
+                            popup.setLocation(x, y);
+                            popup.setVisible(true);
+                            popup.requestFocus();
                         }
                     });
 
                     try {
                         SwingSystemTray.this.tray.add(SwingSystemTray.this.trayIcon);
+                        SwingSystemTray.this.statusIconName = iconName;
                         SwingSystemTray.this.active = true;
                     } catch (AWTException e) {
                         logger.error("TrayIcon could not be added.", e);
@@ -129,106 +146,129 @@ public class SwingSystemTray extends dorkbox.util.tray.SystemTray {
     }
 
     Image newImage(String name) {
-        String iconPath = iconPath(name);
+        Image image = this.images.get(name);
+        if (image != null) {
+            return image;
+        }
+
+        image = loadImage(iconPath(name));
+        this.images.put(name, image);
+        return image;
+    }
 
-        return new ImageIcon(iconPath).getImage().getScaledInstance(TRAY_SIZE, TRAY_SIZE, Image.SCALE_SMOOTH);
+    @Override
+    protected void preloadIcon(String iconName) {
+        this.images.put(iconName, loadImage(iconPath(iconName)));
+    }
+
+    /**
+     * Decodes and scales the image now, instead of when it's first drawn.
+     */
+    private static Image loadImage(String iconPath) {
+        Image scaled = new ImageIcon(iconPath).getImage().getScaledInstance(TRAY_SIZE, TRAY_SIZE, Image.SCALE_SMOOTH);
+
+        BufferedImage image = new BufferedImage(TRAY_SIZE, TRAY_SIZE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            // the scaled instance is done (synchronously) by the time this returns
+            g.drawImage(new ImageIcon(scaled).getImage(), 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return image;
     }
 
     @Override
-    public void setStatus(final String infoString, final String iconName) {
-        SwingUtil.invokeAndWait(new Runnable() {
+    public void setStatus(String infoString, String iconName) {
+        this.menu.setStatus(infoString);
+
+        // a tray that is updated from a timer mostly sets what is already there, which shouldn't cost anything
+        if (!iconName.equals(this.statusIconName)) {
+            showIcon(iconName);
+        }
+    }
+
+    @Override
+    protected void showFrame(String infoString, String iconName) {
+        // the status text is already set, so only the icon is changed
+        showIcon(iconName);
+    }
+
+    private void showIcon(final String iconName) {
+        // this can read (and decode) a file, so not on the EDT
+        final Image image = newImage(iconName);
+
+        runOnEdt(new Runnable() {
             @Override
             public void run() {
-                if (SwingSystemTray.this.connectionStatusItem == null) {
-                    SwingSystemTray.this.connectionStatusItem = new JMenuItem(infoString);
-                    SwingSystemTray.this.connectionStatusItem.setEnabled(false);
-                    SwingSystemTray.this.jmenu.add(SwingSystemTray.this.connectionStatusItem);
-                } else {
-                    SwingSystemTray.this.connectionStatusItem.setText(infoString);
+                TrayIcon trayIcon = SwingSystemTray.this.trayIcon;
+                if (trayIcon == null) {
+                    // not created (or not available)
+                    return;
                 }
+
+                trayIcon.setImage(image);
+                SwingSystemTray.this.statusIconName = iconName;
             }
         });
-
-        Image trayImage = newImage(iconName);
-        SwingSystemTray.this.trayIcon.setImage(trayImage);
     }
 
-    /**
-     * Will add a new menu entry, or update one if it already exists
-     */
     @Override
-    public void addMenuEntry(final String menuText, final SystemTrayMenuAction callback) {
-        SwingUtil.invokeAndWait(new Runnable() {
+    protected void displayNotification(final String title, final String message) {
+        SwingUtil.invokeLater(new Runnable() {
             @Override
             public void run() {
-                Map<String, JMenuItem> menuEntries2 = SwingSystemTray.this.menuEntries;
-
-                synchronized (menuEntries2) {
-                    JMenuItem menuEntry = menuEntries2.get(menuText);
-
-                    if (menuEntry == null) {
-                        SystemTrayMenuPopup menu = SwingSystemTray.this.jmenu;
-
-                        menuEntry = new JMenuItem(menuText);
-                        menuEntry.addActionListener(new ActionListener() {
-                            @Override
-                            public void actionPerformed(ActionEvent e) {
-                                SwingSystemTray.this.callbackExecutor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        callback.onClick(SwingSystemTray.this);
-                                    }
-                                });
-                            }
-                        });
-                        menu.add(menuEntry);
-
-                        menuEntries2.put(menuText, menuEntry);
-                    } else {
-                        updateMenuEntry(menuText, menuText, callback);
-                    }
+                TrayIcon trayIcon = SwingSystemTray.this.trayIcon;
+                if (trayIcon != null) {
+                    trayIcon.displayMessage(title, message, TrayIcon.MessageType.INFO);
                 }
             }
         });
     }
 
+    /**
+     * Will add a new menu entry, or update one if it already exists
+     */
+    @Override
+    public void addMenuEntry(String menuText, SystemTrayMenuAction callback) {
+        this.menu.addMenuEntry(menuText, callback);
+    }
+
     /**
      * Will update an already existing menu entry (or add a new one, if it doesn't exist)
      */
     @Override
-    public void updateMenuEntry(final String origMenuText, final String newMenuText, final SystemTrayMenuAction newCallback) {
-        SwingUtil.invokeAndWait(new Runnable() {
-            @Override
-            public void run() {
-                Map<String, JMenuItem> menuEntries2 = SwingSystemTray.this.menuEntries;
+    public void updateMenuEntry(String origMenuText, String newMenuText, SystemTrayMenuAction newCallback) {
+        this.menu.updateMenuEntry(origMenuText, newMenuText, newCallback);
+    }
 
-                synchronized (menuEntries2) {
-                    JMenuItem menuEntry = menuEntries2.get(origMenuText);
+    @Override
+    protected void addSubmenuEntry(String menuText, LazySubmenu submenu) {
+        this.menu.addSubmenuEntry(menuText, submenu);
+    }
 
-                    if (menuEntry != null) {
-                        ActionListener[] actionListeners = menuEntry.getActionListeners();
-                        for (ActionListener l : actionListeners) {
-                            menuEntry.removeActionListener(l);
-                        }
+    @Override
+    public void addMenuList(String menuText, MenuListModel model) {
+        this.menu.addMenuList(menuText, model);
+    }
 
-                        menuEntry.addActionListener(new ActionListener() {
-                            @Override
-                            public void actionPerformed(ActionEvent e) {
-                                SwingSystemTray.this.callbackExecutor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        newCallback.onClick(SwingSystemTray.this);
-                                    }
-                                });
-                            }
-                        });
-                        menuEntry.setText(newMenuText);
-                        menuEntry.revalidate();
-                    } else {
-                        addMenuEntry(origMenuText, newCallback);
-                    }
-                }
-            }
-        });
+    @Override
+    public void addCheckMenuEntry(String menuText, boolean checked, SystemTrayMenuAction callback) {
+        this.menu.addToggleMenuEntry(null, menuText, checked, callback);
+    }
+
+    @Override
+    public void addRadioMenuEntry(String group, String menuText, boolean selected, SystemTrayMenuAction callback) {
+        this.menu.addToggleMenuEntry(group, menuText, selected, callback);
+    }
+
+    @Override
+    public void setMenuEntryChecked(String menuText, boolean checked) {
+        this.menu.setMenuEntryChecked(menuText, checked);
+    }
+
+    @Override
+    public boolean isMenuEntryChecked(String menuText) {
+        return this.menu.isMenuEntryChecked(menuText);
     }
 }